@@ -15,6 +15,7 @@ import org.snomed.langauges.ecl.ECLQueryBuilder;
 import org.snomed.snowstorm.core.data.domain.CodeSystem;
 import org.snomed.snowstorm.core.data.domain.CodeSystemVersion;
 import org.snomed.snowstorm.core.data.domain.Concepts;
+import org.snomed.snowstorm.core.data.domain.QueryConcept;
 import org.snomed.snowstorm.core.data.domain.SnomedComponent;
 import org.snomed.snowstorm.core.data.domain.classification.Classification;
 import org.snomed.snowstorm.core.data.domain.classification.EquivalentConcepts;
@@ -341,6 +342,22 @@ public abstract class Config extends ElasticsearchConfig {
 				Document document = indexOperations.createMapping(aClass);
 				indexOperations.putMapping(document);
 			}
+		} else {
+			// Fields added to the semantic index, such as attrRef, descendantCount and childCount, are only mapped when the mapping is updated
+			updateMapping(QueryConcept.class);
+		}
+	}
+
+	private void updateMapping(Class<?> domainEntityClass) {
+		IndexOperations indexOperations = elasticsearchTemplate.indexOps(elasticsearchTemplate.getIndexCoordinatesFor(domainEntityClass));
+		if (!indexOperations.exists()) {
+			return;
+		}
+		try {
+			indexOperations.putMapping(indexOperations.createMapping(domainEntityClass));
+		} catch (RuntimeException e) {
+			String indexName = elasticsearchTemplate.getIndexCoordinatesFor(domainEntityClass).getIndexName();
+			logger.error("Failed to update the mapping of index {}, see docs/index-mapping-changes.md.", indexName, e);
 		}
 	}
 }
@@ -29,6 +29,9 @@ public class ConceptMini implements Serializable {
 	private String moduleId;
 	private Boolean active;
 	private Map<String, Object> extraFields;
+	// FSN and PT taken from the terms cache, used instead of active descriptions
+	private TermLangPojo cachedFsn;
+	private TermLangPojo cachedPt;
 
 	public ConceptMini() {
 		activeDescriptions = new HashSet<>();
@@ -87,6 +90,9 @@ public class ConceptMini implements Serializable {
 
 	@JsonView(value = View.Component.class)
 	public TermLangPojo getFsn() {
+		if (cachedFsn != null) {
+			return cachedFsn;
+		}
 		return DescriptionHelper.getFsnDescriptionTermAndLang(activeDescriptions, requestedLanguageDialects);
 	}
 
@@ -106,9 +112,18 @@ public class ConceptMini implements Serializable {
 
 	@JsonView(value = View.Component.class)
 	public TermLangPojo getPt() {
+		if (cachedPt != null) {
+			return cachedPt;
+		}
 		return DescriptionHelper.getPtDescriptionTermAndLang(activeDescriptions, requestedLanguageDialects);
 	}
 
+	@JsonIgnore
+	public void setTerms(TermLangPojo fsn, TermLangPojo pt) {
+		cachedFsn = fsn;
+		cachedPt = pt;
+	}
+
 	public void setDefinitionStatusId(String definitionStatusId) {
 		this.definitionStatusId = definitionStatusId;
 	}
@@ -0,0 +1,198 @@
+package org.snomed.snowstorm.core.data.domain;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact binary form of the grouped attributes of a QueryConcept, stored base64 encoded.
+ * Layout, integers as varints: group count, then for each group the group number and attribute count,
+ * then for each attribute the type id and value count, then for each value a tag followed by the value.
+ * Concept id values are held as varints rather than decimal strings.
+ * ECL refinements read the values straight from the bytes when checking attribute cardinality and groups, no maps are built.
+ */
+public final class GroupedAttributes {
+
+	private static final int CONCEPT = 0;
+	private static final int INTEGER = 1;
+	private static final int DECIMAL = 2;
+	private static final int STRING = 3;
+
+	private static final GroupedAttributes EMPTY = new GroupedAttributes(new byte[]{0});
+
+	private final byte[] bytes;
+
+	public interface ValueConsumer {
+
+		/**
+		 * @param conceptValue Concept id value, only set when concreteValue is null.
+		 * @param concreteValue Integer, Float or String concrete value, null for a concept value.
+		 */
+		void accept(int group, long type, long conceptValue, Object concreteValue);
+	}
+
+	private GroupedAttributes(byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	public static GroupedAttributes empty() {
+		return EMPTY;
+	}
+
+	public static GroupedAttributes decode(String encoded) {
+		if (encoded == null || encoded.isEmpty()) {
+			return EMPTY;
+		}
+		return new GroupedAttributes(Base64.getDecoder().decode(encoded));
+	}
+
+	public static GroupedAttributes fromMap(Map<Integer, Map<String, List<Object>>> groupedAttributesMap) {
+		if (groupedAttributesMap == null || groupedAttributesMap.isEmpty()) {
+			return EMPTY;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeVarint(out, groupedAttributesMap.size());
+		for (Map.Entry<Integer, Map<String, List<Object>>> group : groupedAttributesMap.entrySet()) {
+			writeVarint(out, group.getKey());
+			writeVarint(out, group.getValue().size());
+			for (Map.Entry<String, List<Object>> attribute : group.getValue().entrySet()) {
+				writeVarint(out, Long.parseLong(attribute.getKey()));
+				writeVarint(out, attribute.getValue().size());
+				for (Object value : attribute.getValue()) {
+					writeValue(out, value);
+				}
+			}
+		}
+		return new GroupedAttributes(out.toByteArray());
+	}
+
+	public String encode() {
+		return Base64.getEncoder().encodeToString(bytes);
+	}
+
+	public void forEachValue(ValueConsumer consumer) {
+		Reader reader = new Reader(bytes);
+		int groupCount = (int) reader.readVarint();
+		for (int g = 0; g < groupCount; g++) {
+			int group = (int) reader.readVarint();
+			int attributeCount = (int) reader.readVarint();
+			for (int a = 0; a < attributeCount; a++) {
+				long type = reader.readVarint();
+				int valueCount = (int) reader.readVarint();
+				for (int v = 0; v < valueCount; v++) {
+					int tag = reader.readByte();
+					if (tag == CONCEPT) {
+						consumer.accept(group, type, reader.readVarint(), null);
+					} else {
+						consumer.accept(group, type, 0, reader.readConcreteValue(tag));
+					}
+				}
+			}
+		}
+	}
+
+	public Map<Integer, Map<String, List<Object>>> toMap() {
+		Map<Integer, Map<String, List<Object>>> groupedAttributesMap = new HashMap<>();
+		forEachValue((group, type, conceptValue, concreteValue) ->
+				groupedAttributesMap.computeIfAbsent(group, g -> new HashMap<>())
+						.computeIfAbsent(Long.toString(type), t -> new ArrayList<>())
+						.add(concreteValue != null ? concreteValue : Long.toString(conceptValue)));
+		return groupedAttributesMap;
+	}
+
+	private static void writeValue(ByteArrayOutputStream out, Object value) {
+		if (value instanceof String) {
+			String stringValue = (String) value;
+			if (isConceptId(stringValue)) {
+				out.write(CONCEPT);
+				writeVarint(out, Long.parseLong(stringValue));
+			} else {
+				byte[] utf8 = stringValue.getBytes(StandardCharsets.UTF_8);
+				out.write(STRING);
+				writeVarint(out, utf8.length);
+				out.write(utf8, 0, utf8.length);
+			}
+		} else if (value instanceof Integer) {
+			int intValue = (Integer) value;
+			out.write(INTEGER);
+			// Zigzag so that small negative numbers stay small
+			writeVarint(out, ((intValue << 1) ^ (intValue >> 31)) & 0xFFFFFFFFL);
+		} else if (value instanceof Number) {
+			int bits = Float.floatToIntBits(((Number) value).floatValue());
+			out.write(DECIMAL);
+			out.write(bits >>> 24);
+			out.write(bits >>> 16);
+			out.write(bits >>> 8);
+			out.write(bits);
+		} else {
+			throw new IllegalArgumentException("Unsupported attribute value " + value);
+		}
+	}
+
+	// Only decimal strings which convert back to the same string can be held as numbers
+	private static boolean isConceptId(String value) {
+		int length = value.length();
+		if (length == 0 || length > 18 || value.charAt(0) < '1' || value.charAt(0) > '9') {
+			return false;
+		}
+		for (int i = 1; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static final class Reader {
+
+		private final byte[] bytes;
+		private int position;
+
+		private Reader(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		private int readByte() {
+			return bytes[position++] & 0xFF;
+		}
+
+		private long readVarint() {
+			long value = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		private Object readConcreteValue(int tag) {
+			switch (tag) {
+				case INTEGER:
+					int zigzag = (int) readVarint();
+					return (zigzag >>> 1) ^ -(zigzag & 1);
+				case DECIMAL:
+					int bits = readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+					return Float.intBitsToFloat(bits);
+				case STRING:
+					int length = (int) readVarint();
+					String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+					position += length;
+					return value;
+				default:
+					throw new IllegalStateException("Unknown attribute value tag " + tag);
+			}
+		}
+	}
+}
@@ -30,6 +30,10 @@ public class QueryConcept extends DomainEntity<QueryConcept> implements FHIRGrap
 		String STATED = "stated";
 		String ATTR = "attr";
 		String ATTR_MAP = "attrMap";
+		String ATTR_PACKED = "attrPacked";
+		String ATTR_REFERENCES = "attrRef";
+		String DESCENDANT_COUNT = "descendantCount";
+		String CHILD_COUNT = "childCount";
 		String START = "start";
 	}
 
@@ -57,6 +61,21 @@ public class QueryConcept extends DomainEntity<QueryConcept> implements FHIRGrap
 	// groupNo:attr=value:attr=value,value|groupNo:attr=value:attr=value,value
 	private String attrMap;
 
+	@Field(type = FieldType.Binary)
+	// Replaces attrMap, which is only read from documents indexed before this field was added. See GroupedAttributes.
+	private String attrPacked;
+
+	@Field(type = FieldType.Keyword)
+	// Reverse index of concept attribute values, each as destinationId_typeId, used to find and count references to a concept by type.
+	private Set<String> attrRef;
+
+	// Number of concepts with this concept as an ancestor or parent in the same form, maintained by the semantic index update
+	@Field(type = FieldType.Integer)
+	private Integer descendantCount;
+
+	@Field(type = FieldType.Integer)
+	private Integer childCount;
+
 	@Transient
 	private Map<Integer, Map<String, List<Object>>> groupedAttributesMap;
 
@@ -82,6 +101,9 @@ public class QueryConcept extends DomainEntity<QueryConcept> implements FHIRGrap
 		ancestors = new HashSet<>(queryConcept.ancestors);
 		stated = queryConcept.stated;
 		attrMap = queryConcept.attrMap;
+		attrPacked = queryConcept.attrPacked;
+		descendantCount = queryConcept.descendantCount;
+		childCount = queryConcept.childCount;
 		serializeGroupedAttributesMap();// Populates attr field
 	}
 
@@ -123,12 +145,31 @@ public class QueryConcept extends DomainEntity<QueryConcept> implements FHIRGrap
 
 	@JsonIgnore
 	public Map<Integer, Map<String, List<Object>>> getGroupedAttributesMap() {
-		if (groupedAttributesMap == null && this.attrMap != null) {
-			return GroupedAttributesMapSerializer.deserializeMap(this.attrMap);
+		if (groupedAttributesMap == null) {
+			if (this.attrPacked != null) {
+				return GroupedAttributes.decode(this.attrPacked).toMap();
+			} else if (this.attrMap != null) {
+				return GroupedAttributesMapSerializer.deserializeMap(this.attrMap);
+			}
 		}
 		return groupedAttributesMap;
 	}
 
+	/**
+	 * Attributes for reading without building maps, used when matching ECL refinements.
+	 */
+	@JsonIgnore
+	public GroupedAttributes getGroupedAttributes() {
+		if (groupedAttributesMap == null) {
+			if (this.attrPacked != null) {
+				return GroupedAttributes.decode(this.attrPacked);
+			} else if (this.attrMap == null) {
+				return GroupedAttributes.empty();
+			}
+		}
+		return GroupedAttributes.fromMap(getGroupedAttributesMap());
+	}
+
 	public Map<String, Set<Object>> getAttr() {
 		return GroupedAttributesMapSerializer.serializeFlatMap(getGroupedAttributesMap());
 	}
@@ -145,14 +186,57 @@ public class QueryConcept extends DomainEntity<QueryConcept> implements FHIRGrap
 	}
 
 	public void serializeGroupedAttributesMap() {
-		setAttrMap(GroupedAttributesMapSerializer.serializeMap(getGroupedAttributesMap()));
-		setAttr(GroupedAttributesMapSerializer.serializeFlatMap(getGroupedAttributesMap()));
+		Map<Integer, Map<String, List<Object>>> groupedAttributes = getGroupedAttributesMap();
+		GroupedAttributes packed = GroupedAttributes.fromMap(groupedAttributes);
+		setAttrPacked(packed.encode());
+		setAttrRef(GroupedAttributesMapSerializer.serializeReferences(packed));
+		setAttrMap(null);
+		setAttr(GroupedAttributesMapSerializer.serializeFlatMap(groupedAttributes));
 	}
 
 	public void setAttrMap(String attrMap) {
 		this.attrMap = attrMap;
 	}
 
+	public String getAttrPacked() {
+		return attrPacked;
+	}
+
+	public void setAttrPacked(String attrPacked) {
+		this.attrPacked = attrPacked;
+	}
+
+	public Set<String> getAttrRef() {
+		return attrRef;
+	}
+
+	public void setAttrRef(Set<String> attrRef) {
+		this.attrRef = attrRef;
+	}
+
+	/**
+	 * @return The attribute references of this concept, from the attributes when the document was indexed before the attrRef field was added.
+	 * Reading them from the attributes needs the attrPacked or attrMap field loaded.
+	 */
+	@JsonIgnore
+	public Set<String> getAttributeReferences() {
+		if (attrRef != null) {
+			return attrRef;
+		}
+		return GroupedAttributesMapSerializer.serializeReferences(getGroupedAttributes());
+	}
+
+	public static String toAttributeReference(long destinationId, long typeId) {
+		return destinationId + "_" + typeId;
+	}
+
+	/**
+	 * @return The type id of an attribute reference.
+	 */
+	public static long getAttributeReferenceType(String attributeReference) {
+		return Long.parseLong(attributeReference.substring(attributeReference.indexOf('_') + 1));
+	}
+
 	private void updateConceptIdForm() {
 		this.conceptIdForm = toConceptIdForm(conceptIdL, stated);
 	}
@@ -232,10 +316,32 @@ public class QueryConcept extends DomainEntity<QueryConcept> implements FHIRGrap
 		this.stated = stated;
 	}
 
+	public Integer getDescendantCount() {
+		return descendantCount;
+	}
+
+	public void setDescendantCount(Integer descendantCount) {
+		this.descendantCount = descendantCount;
+	}
+
+	public Integer getChildCount() {
+		return childCount;
+	}
+
+	public void setChildCount(Integer childCount) {
+		this.childCount = childCount;
+	}
+
+	public boolean hierarchyCountsMatch(QueryConcept other) {
+		return Objects.equals(descendantCount, other.descendantCount) && Objects.equals(childCount, other.childCount);
+	}
+
 	public boolean fieldsMatch(QueryConcept other) {
 		if (!this.equals(other)
+				|| !this.isAttributeStorageCurrent() || !other.isAttributeStorageCurrent()
 				|| !this.getParents().equals(other.getParents())
-				|| !this.getAncestors().equals(other.getAncestors())) {
+				|| !this.getAncestors().equals(other.getAncestors())
+				|| !this.hierarchyCountsMatch(other)) {
 			return false;
 		}
 		final Map<Integer, Map<String, List<Object>>> groupedAttributesMap = orEmpty(this.getGroupedAttributesMap());
@@ -246,6 +352,11 @@ public class QueryConcept extends DomainEntity<QueryConcept> implements FHIRGrap
 		return groupedAttributesMap.equals(otherGroupedAttributesMap);
 	}
 
+	// Entries indexed before the packed attributes and reference fields were added are rewritten when compared
+	private boolean isAttributeStorageCurrent() {
+		return groupedAttributesMap != null || attrMap == null || attrMap.isEmpty();
+	}
+
 	private <K, V> Map<K, V> orEmpty(Map<K, V> map) {
 		return map != null ? map : new HashMap<>();
 	}
@@ -265,6 +376,8 @@ public class QueryConcept extends DomainEntity<QueryConcept> implements FHIRGrap
 				", parents=" + parents +
 				", ancestors=" + ancestors +
 				", stated=" + stated +
+				", descendantCount=" + descendantCount +
+				", childCount=" + childCount +
 				", attrMap=" + getAttrMap() +
 				'}';
 	}
@@ -370,6 +483,16 @@ public class QueryConcept extends DomainEntity<QueryConcept> implements FHIRGrap
 			return transformed;
 		}
 
+		private static Set<String> serializeReferences(GroupedAttributes groupedAttributes) {
+			Set<String> references = new HashSet<>();
+			groupedAttributes.forEachValue((group, type, conceptValue, concreteValue) -> {
+				if (concreteValue == null) {
+					references.add(toAttributeReference(conceptValue, type));
+				}
+			});
+			return references;
+		}
+
 		private static Map<String, Set<Object>> serializeFlatMap(Map<Integer, Map<String, List<Object>>> groupedAttributesMap) {
 			Map<String, Set<Object>> attributesMap = new HashMap<>();
 			Set<Object> allValues = new HashSet<>();
@@ -0,0 +1,158 @@
+package org.snomed.snowstorm.core.data.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.kaicode.elasticvc.api.BranchCriteria;
+import org.snomed.snowstorm.core.data.domain.ConceptMini;
+import org.snomed.snowstorm.core.pojo.LanguageDialect;
+import org.snomed.snowstorm.core.pojo.TermLangPojo;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+
+/**
+ * Holds the FSN and PT of concepts per branch version and requested language dialects,
+ * so that the type and target minis of loaded concepts do not need their descriptions and language refset members fetched every time.
+ * Keys include the branch head timepoint so entries of an older head are never served, they are reclaimed by size eviction.
+ */
+@Service
+public class ConceptMiniTermsCache {
+
+	@Value("${cache.concept-mini-terms.enabled}")
+	private boolean enabled;
+
+	@Value("${cache.concept-mini-terms.max-entries}")
+	private long maxEntries;
+
+	private Cache<Key, Terms> cache;
+
+	@PostConstruct
+	public void init() {
+		cache = Caffeine.newBuilder()
+				.maximumSize(maxEntries)
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * Sets the FSN and PT of minis which are in the cache.
+	 * @return The minis which were not in the cache and still need their descriptions joined.
+	 */
+	public Map<String, ConceptMini> applyCachedTerms(BranchCriteria branchCriteria, Map<String, ConceptMini> conceptMiniMap) {
+		if (!enabled || branchCriteria.getBranchPath() == null || conceptMiniMap.isEmpty()) {
+			return conceptMiniMap;
+		}
+		Map<Key, ConceptMini> keyMinis = new HashMap<>();
+		for (ConceptMini conceptMini : conceptMiniMap.values()) {
+			keyMinis.put(getKey(branchCriteria, conceptMini), conceptMini);
+		}
+		Map<Key, Terms> cachedTerms = cache.getAllPresent(keyMinis.keySet());
+		if (cachedTerms.isEmpty()) {
+			return conceptMiniMap;
+		}
+		Map<String, ConceptMini> uncachedMinis = new HashMap<>();
+		keyMinis.forEach((key, conceptMini) -> {
+			Terms terms = cachedTerms.get(key);
+			if (terms != null) {
+				conceptMini.setTerms(new TermLangPojo(terms.fsnTerm, terms.fsnLang), new TermLangPojo(terms.ptTerm, terms.ptLang));
+			} else {
+				uncachedMinis.put(conceptMini.getConceptId(), conceptMini);
+			}
+		});
+		return uncachedMinis;
+	}
+
+	/**
+	 * Caches the FSN and PT of minis which have had their active descriptions and language refset members joined.
+	 */
+	public void cacheTerms(BranchCriteria branchCriteria, Collection<ConceptMini> conceptMinis) {
+		if (!enabled || branchCriteria.getBranchPath() == null) {
+			return;
+		}
+		Map<Key, Terms> entries = new HashMap<>();
+		for (ConceptMini conceptMini : conceptMinis) {
+			TermLangPojo fsn = conceptMini.getFsn();
+			TermLangPojo pt = conceptMini.getPt();
+			entries.put(getKey(branchCriteria, conceptMini), new Terms(fsn.getTerm(), fsn.getLang(), pt.getTerm(), pt.getLang()));
+		}
+		cache.putAll(entries);
+	}
+
+	public Map<String, Long> getStats() {
+		CacheStats stats = cache.stats();
+		Map<String, Long> statsMap = new HashMap<>();
+		statsMap.put("entries", cache.estimatedSize());
+		statsMap.put("entries-max", maxEntries);
+		statsMap.put("hits", stats.hitCount());
+		statsMap.put("misses", stats.missCount());
+		statsMap.put("hit-rate-percent", Math.round(stats.hitRate() * 100));
+		statsMap.put("evictions", stats.evictionCount());
+		return statsMap;
+	}
+
+	public void clear() {
+		cache.invalidateAll();
+	}
+
+	private static Key getKey(BranchCriteria branchCriteria, ConceptMini conceptMini) {
+		return new Key(branchCriteria.getBranchPath(), branchCriteria.getTimepoint().getTime(),
+				getDialectsKey(conceptMini.getRequestedLanguageDialects()), conceptMini.getConceptId());
+	}
+
+	private static String getDialectsKey(List<LanguageDialect> languageDialects) {
+		if (languageDialects == null) {
+			return "";
+		}
+		StringBuilder builder = new StringBuilder();
+		for (LanguageDialect languageDialect : languageDialects) {
+			builder.append(languageDialect.getLanguageCode()).append('-').append(languageDialect.getLanguageReferenceSet()).append(',');
+		}
+		return builder.toString();
+	}
+
+	private static final class Key {
+
+		private final String path;
+		private final long timepoint;
+		private final String dialects;
+		private final String conceptId;
+
+		private Key(String path, long timepoint, String dialects, String conceptId) {
+			this.path = path;
+			this.timepoint = timepoint;
+			this.dialects = dialects;
+			this.conceptId = conceptId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			Key key = (Key) o;
+			return timepoint == key.timepoint && conceptId.equals(key.conceptId) && dialects.equals(key.dialects) && path.equals(key.path);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, timepoint, dialects, conceptId);
+		}
+	}
+
+	private static final class Terms {
+
+		private final String fsnTerm;
+		private final String fsnLang;
+		private final String ptTerm;
+		private final String ptLang;
+
+		private Terms(String fsnTerm, String fsnLang, String ptTerm, String ptLang) {
+			this.fsnTerm = fsnTerm;
+			this.fsnLang = fsnLang;
+			this.ptTerm = ptTerm;
+			this.ptLang = ptLang;
+		}
+	}
+}
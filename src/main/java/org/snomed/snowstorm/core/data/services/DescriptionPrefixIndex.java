@@ -0,0 +1,243 @@
+package org.snomed.snowstorm.core.data.services;
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.util.*;
+
+/**
+ * Read-only word prefix index of the descriptions of a branch version, held in primitive arrays.
+ * Descriptions are numbered in the browser search order, term length then description id.
+ * Elasticsearch breaks term length ties by relevance score instead, which can not be computed here, so descriptions with terms of the same length
+ * may be returned in a different order depending on whether the index of the branch version has been built yet. The set of matches is the same.
+ * The distinct folded words of all terms are held in a sorted array, so the words starting with a prefix are one contiguous range.
+ * The descriptions containing word i are the entries from postingOffsets[i] to postingOffsets[i + 1] of a single int array.
+ * A description matches a search when every search word is a prefix of one of its words, the same as the Elasticsearch simple query string
+ * used for standard mode searches.
+ */
+public final class DescriptionPrefixIndex {
+
+	// Rough heap cost of the object and array headers.
+	private static final int OVERHEAD_BYTES = 256;
+
+	private static final byte ACTIVE = 1;
+
+	private final long[] descriptionIds;
+	private final long[] conceptIds;
+	private final byte[] flags;
+	private final byte[] languageIndexes;
+	private final String[] languageCodes;
+	private final byte[] typeIndexes;
+	private final long[] typeIds;
+
+	private final String[] words;
+	private final int[] postingOffsets;
+	private final int[] postings;
+
+	private DescriptionPrefixIndex(long[] descriptionIds, long[] conceptIds, byte[] flags, byte[] languageIndexes, String[] languageCodes,
+			byte[] typeIndexes, long[] typeIds, String[] words, int[] postingOffsets, int[] postings) {
+		this.descriptionIds = descriptionIds;
+		this.conceptIds = conceptIds;
+		this.flags = flags;
+		this.languageIndexes = languageIndexes;
+		this.languageCodes = languageCodes;
+		this.typeIndexes = typeIndexes;
+		this.typeIds = typeIds;
+		this.words = words;
+		this.postingOffsets = postingOffsets;
+		this.postings = postings;
+	}
+
+	/**
+	 * @param searchWordAlternatives Folded search words, one list per character folding strategy. A description matching any list is returned.
+	 * @param active Description active filter, or null for any.
+	 * @param languageCodes Description language filter, or null/empty for any.
+	 * @param typeIds Description type filter, or null/empty for any.
+	 * @return Numbers of the matching descriptions in browser search order, for use with {@link #getDescriptionId(int)} and {@link #getConceptId(int)}.
+	 */
+	public int[] findMatches(Collection<List<String>> searchWordAlternatives, Boolean active, Collection<String> languageCodes, Collection<Long> typeIds) {
+		BitSet matches = new BitSet(descriptionIds.length);
+		for (List<String> searchWords : searchWordAlternatives) {
+			BitSet alternativeMatches = null;
+			for (String searchWord : searchWords) {
+				BitSet wordMatches = findPrefixMatches(searchWord);
+				if (alternativeMatches == null) {
+					alternativeMatches = wordMatches;
+				} else {
+					alternativeMatches.and(wordMatches);
+				}
+				if (alternativeMatches.isEmpty()) {
+					break;
+				}
+			}
+			if (alternativeMatches != null) {
+				matches.or(alternativeMatches);
+			}
+		}
+
+		boolean[] languageAllowed = getAllowed(this.languageCodes, languageCodes);
+		boolean[] typeAllowed = getAllowed(this.typeIds, typeIds);
+		IntArrayList results = new IntArrayList();
+		for (int d = matches.nextSetBit(0); d >= 0; d = matches.nextSetBit(d + 1)) {
+			if ((active == null || active == ((flags[d] & ACTIVE) != 0))
+					&& (languageAllowed == null || languageAllowed[languageIndexes[d]])
+					&& (typeAllowed == null || typeAllowed[typeIndexes[d]])) {
+				results.add(d);
+			}
+		}
+		return results.toIntArray();
+	}
+
+	public long getDescriptionId(int description) {
+		return descriptionIds[description];
+	}
+
+	public long getConceptId(int description) {
+		return conceptIds[description];
+	}
+
+	public int getDescriptionCount() {
+		return descriptionIds.length;
+	}
+
+	public int getWordCount() {
+		return words.length;
+	}
+
+	public long estimateSizeInBytes() {
+		long wordBytes = 0;
+		for (String word : words) {
+			// String and backing array headers plus one byte per latin character
+			wordBytes += 56 + word.length();
+		}
+		return OVERHEAD_BYTES
+				+ descriptionIds.length * (8L + 8L + 1 + 1 + 1)
+				+ wordBytes
+				+ (postingOffsets.length + postings.length) * 4L;
+	}
+
+	private BitSet findPrefixMatches(String prefix) {
+		BitSet matches = new BitSet(descriptionIds.length);
+		int index = Arrays.binarySearch(words, prefix);
+		if (index < 0) {
+			index = -index - 1;
+		}
+		for (; index < words.length && words[index].startsWith(prefix); index++) {
+			for (int i = postingOffsets[index]; i < postingOffsets[index + 1]; i++) {
+				matches.set(postings[i]);
+			}
+		}
+		return matches;
+	}
+
+	private static boolean[] getAllowed(String[] values, Collection<String> allowedValues) {
+		if (allowedValues == null || allowedValues.isEmpty()) {
+			return null;
+		}
+		boolean[] allowed = new boolean[values.length];
+		for (int i = 0; i < values.length; i++) {
+			allowed[i] = allowedValues.contains(values[i]);
+		}
+		return allowed;
+	}
+
+	private static boolean[] getAllowed(long[] values, Collection<Long> allowedValues) {
+		if (allowedValues == null || allowedValues.isEmpty()) {
+			return null;
+		}
+		boolean[] allowed = new boolean[values.length];
+		for (int i = 0; i < values.length; i++) {
+			allowed[i] = allowedValues.contains(values[i]);
+		}
+		return allowed;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static final class Builder {
+
+		private final LongArrayList descriptionIds = new LongArrayList();
+		private final LongArrayList conceptIds = new LongArrayList();
+		private final IntArrayList termLengths = new IntArrayList();
+		private final ByteArrayList flags = new ByteArrayList();
+		private final IntArrayList languageIndexes = new IntArrayList();
+		private final Map<String, Integer> languageCodes = new LinkedHashMap<>();
+		private final IntArrayList typeIndexes = new IntArrayList();
+		private final Map<Long, Integer> typeIds = new LinkedHashMap<>();
+		private final Map<String, IntArrayList> wordDescriptions = new HashMap<>();
+
+		private Builder() {
+		}
+
+		/**
+		 * @param words Folded and analysed words of the term.
+		 */
+		public Builder add(long descriptionId, long conceptId, boolean active, long typeId, String languageCode, int termLength, Collection<String> words) {
+			int description = descriptionIds.size();
+			descriptionIds.add(descriptionId);
+			conceptIds.add(conceptId);
+			termLengths.add(termLength);
+			flags.add(active ? ACTIVE : 0);
+			languageIndexes.add(indexOf(languageCodes, languageCode));
+			typeIndexes.add(indexOf(typeIds, typeId));
+			for (String word : new HashSet<>(words)) {
+				wordDescriptions.computeIfAbsent(word, w -> new IntArrayList()).add(description);
+			}
+			return this;
+		}
+
+		public DescriptionPrefixIndex build() {
+			int count = descriptionIds.size();
+			Integer[] order = new Integer[count];
+			for (int i = 0; i < count; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, Comparator.comparingInt((Integer i) -> termLengths.getInt(i)).thenComparingLong(descriptionIds::getLong));
+			int[] numbers = new int[count];
+			long[] sortedDescriptionIds = new long[count];
+			long[] sortedConceptIds = new long[count];
+			byte[] sortedFlags = new byte[count];
+			byte[] sortedLanguageIndexes = new byte[count];
+			byte[] sortedTypeIndexes = new byte[count];
+			for (int i = 0; i < count; i++) {
+				int added = order[i];
+				numbers[added] = i;
+				sortedDescriptionIds[i] = descriptionIds.getLong(added);
+				sortedConceptIds[i] = conceptIds.getLong(added);
+				sortedFlags[i] = flags.getByte(added);
+				sortedLanguageIndexes[i] = (byte) languageIndexes.getInt(added);
+				sortedTypeIndexes[i] = (byte) typeIndexes.getInt(added);
+			}
+
+			String[] words = wordDescriptions.keySet().toArray(new String[0]);
+			Arrays.sort(words);
+			int[] postingOffsets = new int[words.length + 1];
+			IntArrayList postings = new IntArrayList();
+			for (int w = 0; w < words.length; w++) {
+				int[] wordPostings = wordDescriptions.get(words[w]).toIntArray();
+				for (int i = 0; i < wordPostings.length; i++) {
+					wordPostings[i] = numbers[wordPostings[i]];
+				}
+				Arrays.sort(wordPostings);
+				postings.addElements(postings.size(), wordPostings);
+				postingOffsets[w + 1] = postings.size();
+			}
+
+			return new DescriptionPrefixIndex(sortedDescriptionIds, sortedConceptIds, sortedFlags, sortedLanguageIndexes,
+					languageCodes.keySet().toArray(new String[0]), sortedTypeIndexes, typeIds.keySet().stream().mapToLong(Long::longValue).toArray(),
+					words, postingOffsets, postings.toIntArray());
+		}
+
+		private static <T> int indexOf(Map<T, Integer> values, T value) {
+			Integer index = values.computeIfAbsent(value, v -> values.size());
+			// Held in a byte per description
+			if (index > Byte.MAX_VALUE) {
+				throw new IllegalStateException("Too many distinct values for description prefix index: " + values.keySet());
+			}
+			return index;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package org.snomed.snowstorm.core.data.services;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.kaicode.elasticvc.api.BranchCriteria;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.snowstorm.core.data.domain.Description;
+import org.snomed.snowstorm.core.util.TimerUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+import static io.kaicode.elasticvc.api.ComponentService.LARGE_PAGE;
+import static java.lang.Long.parseLong;
+import static org.snomed.snowstorm.ecl.HierarchyIndexService.VERSION_BRANCH_PATTERN;
+
+/**
+ * Holds in-memory word prefix indexes of the descriptions of code system version branches.
+ * Version branches do not change so typeahead searches can be answered from memory rather than the termFolded field.
+ * An index is built in the background the first time a version branch is searched, searches use Elasticsearch until it is ready.
+ */
+@Service
+public class DescriptionPrefixIndexService {
+
+	private static final long BYTES_PER_MB = 1024 * 1024;
+
+	@Autowired
+	private ElasticsearchOperations elasticsearchTemplate;
+
+	@Value("${search.description.prefix-index.enabled}")
+	private boolean enabled;
+
+	@Value("${search.description.prefix-index.max-size-mb}")
+	private long maxSizeMb;
+
+	private AsyncCache<IndexKey, DescriptionPrefixIndex> indexCache;
+
+	// Branch versions whose index failed to build or is over the size limit, with the reason. These use Elasticsearch rather than building again.
+	private final Map<IndexKey, String> unavailable = new ConcurrentHashMap<>();
+
+	private ExecutorService buildExecutor;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@PostConstruct
+	public void init() {
+		// One build at a time to limit load on Elasticsearch
+		buildExecutor = Executors.newFixedThreadPool(1);
+		indexCache = Caffeine.newBuilder()
+				.maximumWeight(maxSizeMb * BYTES_PER_MB)
+				.weigher((IndexKey key, DescriptionPrefixIndex index) -> (int) Math.min(index.estimateSizeInBytes(), Integer.MAX_VALUE))
+				.buildAsync();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		buildExecutor.shutdown();
+	}
+
+	/**
+	 * @return The description prefix index for this branch version if it is a code system version branch and the index has been built.
+	 * Starts building the index if needed.
+	 */
+	public Optional<DescriptionPrefixIndex> getIndex(BranchCriteria branchCriteria) {
+		String path = branchCriteria.getBranchPath();
+		if (!enabled || path == null || !VERSION_BRANCH_PATTERN.matcher(path).matches()) {
+			return Optional.empty();
+		}
+		IndexKey key = new IndexKey(path, branchCriteria.getTimepoint().getTime());
+		if (unavailable.containsKey(key)) {
+			return Optional.empty();
+		}
+		// Built on our own single thread, Caffeine keeps its default executor for its maintenance work
+		CompletableFuture<DescriptionPrefixIndex> future = indexCache.get(key, (k, executor) ->
+				CompletableFuture.supplyAsync(() -> buildIndexOrMarkUnavailable(k, branchCriteria), buildExecutor));
+		if (future.isDone() && !future.isCompletedExceptionally()) {
+			return Optional.ofNullable(future.join());
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * @return The index, or null if it is over the size limit. Failures and oversize indexes are remembered so they are not built again.
+	 */
+	private DescriptionPrefixIndex buildIndexOrMarkUnavailable(IndexKey key, BranchCriteria branchCriteria) {
+		evictOtherVersions(key);
+		DescriptionPrefixIndex index;
+		try {
+			index = buildIndex(key, branchCriteria);
+		} catch (RuntimeException e) {
+			logger.error("Failed to build description prefix index for {}, searches will use Elasticsearch.", key, e);
+			unavailable.put(key, "failed: " + e.getMessage());
+			throw e;
+		}
+		long maxBytes = maxSizeMb * BYTES_PER_MB;
+		if (index.estimateSizeInBytes() > maxBytes) {
+			logger.warn("Description prefix index for {} needs {} bytes which is over the limit of {}, searches will use Elasticsearch.",
+					key, index.estimateSizeInBytes(), maxBytes);
+			unavailable.put(key, "too large: " + index.estimateSizeInBytes() + " bytes");
+			// Null values are not cached
+			return null;
+		}
+		return index;
+	}
+
+	private DescriptionPrefixIndex buildIndex(IndexKey key, BranchCriteria branchCriteria) {
+		TimerUtil timer = new TimerUtil("Description prefix index " + key);
+		DescriptionPrefixIndex.Builder builder = DescriptionPrefixIndex.builder();
+		// Same tokenizer and lower casing as the standard analyzer of the termFolded field
+		try (StandardAnalyzer analyzer = new StandardAnalyzer(CharArraySet.EMPTY_SET);
+				SearchHitsIterator<Description> stream = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+				.withQuery(branchCriteria.getEntityBranchCriteria(Description.class))
+				.withFields(Description.Fields.DESCRIPTION_ID, Description.Fields.CONCEPT_ID, Description.Fields.ACTIVE, Description.Fields.TYPE_ID,
+						Description.Fields.LANGUAGE_CODE, Description.Fields.TERM_FOLDED, Description.Fields.TERM_LEN)
+				.withPageable(LARGE_PAGE)
+				.build(), Description.class)) {
+			stream.forEachRemaining(hit -> {
+				Description description = hit.getContent();
+				builder.add(parseLong(description.getDescriptionId()), parseLong(description.getConceptId()), description.isActive(),
+						parseLong(description.getTypeId()), description.getLanguageCode(), description.getTermLen(),
+						analyze(analyzer, description.getTermFolded()));
+			});
+		}
+		DescriptionPrefixIndex index = builder.build();
+		timer.finish();
+		logger.info("Description prefix index built for {} with {} descriptions and {} words using {} bytes.",
+				key, index.getDescriptionCount(), index.getWordCount(), index.estimateSizeInBytes());
+		return index;
+	}
+
+	/**
+	 * Forgets the indexes and failures of other versions of the same branch, older versions will not be used again.
+	 */
+	private void evictOtherVersions(IndexKey key) {
+		Predicate<IndexKey> otherVersion = other -> other.path.equals(key.path) && other.timepoint != key.timepoint;
+		indexCache.asMap().keySet().removeIf(otherVersion);
+		unavailable.keySet().removeIf(otherVersion);
+	}
+
+	private static List<String> analyze(StandardAnalyzer analyzer, String text) {
+		List<String> words = new ArrayList<>();
+		if (text == null) {
+			return words;
+		}
+		try (TokenStream tokenStream = analyzer.tokenStream(Description.Fields.TERM_FOLDED, text)) {
+			CharTermAttribute attr = tokenStream.addAttribute(CharTermAttribute.class);
+			tokenStream.reset();
+			while (tokenStream.incrementToken()) {
+				words.add(attr.toString());
+			}
+			tokenStream.end();
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to analyze term " + text, e);
+		}
+		return words;
+	}
+
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new HashMap<>();
+		Map<IndexKey, DescriptionPrefixIndex> indexes = new HashMap<>();
+		indexCache.asMap().forEach((key, future) -> {
+			// Skip indexes still being built
+			if (future.isDone() && !future.isCompletedExceptionally() && future.join() != null) {
+				indexes.put(key, future.join());
+			}
+		});
+		stats.put("indexes", (long) indexes.size());
+		stats.put("bytes-used", indexes.values().stream().mapToLong(DescriptionPrefixIndex::estimateSizeInBytes).sum());
+		stats.put("bytes-max", maxSizeMb * BYTES_PER_MB);
+		indexes.forEach((key, index) -> stats.put("bytes-" + key, index.estimateSizeInBytes()));
+		stats.put("unavailable", (long) unavailable.size());
+		return stats;
+	}
+
+	/**
+	 * Removes all indexes and forgets failed or oversize builds, so they are tried again.
+	 */
+	public void clear() {
+		indexCache.synchronous().invalidateAll();
+		unavailable.clear();
+	}
+
+	private static final class IndexKey {
+
+		private final String path;
+		private final long timepoint;
+
+		private IndexKey(String path, long timepoint) {
+			this.path = path;
+			this.timepoint = timepoint;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			IndexKey that = (IndexKey) o;
+			return timepoint == that.timepoint && path.equals(that.path);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, timepoint);
+		}
+
+		@Override
+		public String toString() {
+			return path + "@" + timepoint;
+		}
+	}
+}
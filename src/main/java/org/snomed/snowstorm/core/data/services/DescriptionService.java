@@ -2,6 +2,7 @@ package org.snomed.snowstorm.core.data.services;
 
 import ch.qos.logback.classic.Level;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Sets;
 import io.kaicode.elasticvc.api.BranchCriteria;
 import io.kaicode.elasticvc.api.BranchService;
@@ -96,11 +97,20 @@ public class DescriptionService extends ComponentService {
 	@Autowired
 	private DialectConfigurationService dialectConfigurationService;
 
+	@Autowired
+	private DescriptionPrefixIndexService descriptionPrefixIndexService;
+
+	@Autowired
+	private ConceptMiniTermsCache conceptMiniTermsCache;
+
 	private final Map<String, SemanticTagCacheEntry> semanticTagAggregationCache = new ConcurrentHashMap<>();
 
 	@Value("${search.description.aggregation.maxProcessableResultsSize}")
 	private int aggregationMaxProcessableResultsSize;
 
+	@Value("${search.description.aggregation.approximateSampleSize}")
+	private int aggregationApproximateSampleSize;
+
 	public enum SearchMode {
 		STANDARD, REGEX, WHOLE_WORD, WILDCARD;
 	}
@@ -199,7 +209,7 @@ public class DescriptionService extends ComponentService {
 
 		// Fetch all matching description and concept ids
 		// ids of concepts where all descriptions and concept criteria are met
-		DescriptionMatches descriptionMatches = findDescriptionAndConceptIds(criteria, Collections.EMPTY_SET, branchCriteria, timer);
+		DescriptionMatches descriptionMatches = findDescriptionAndConceptIds(criteria, Collections.EMPTY_SET, branchCriteria, timer, true);
 		BoolQueryBuilder descriptionQuery = descriptionMatches.getDescriptionQuery();
 
 		// Apply concept and acceptability filtering for final search
@@ -212,17 +222,9 @@ public class DescriptionService extends ComponentService {
 
 		// Fetch FSN semantic tag aggregation
 		BoolQueryBuilder fsnClauses = boolQuery();
-		String semanticTag = criteria.getSemanticTag();
-		Set<String> semanticTags = criteria.getSemanticTags();
-		boolean semanticTagFiltering = !Strings.isNullOrEmpty(semanticTag) || !CollectionUtils.isEmpty(semanticTags);
-		Set<String> allSemanticTags = new HashSet<>();
+		Set<String> allSemanticTags = getSemanticTags(criteria);
+		boolean semanticTagFiltering = !allSemanticTags.isEmpty();
 		if (semanticTagFiltering) {
-			if (!Strings.isNullOrEmpty(semanticTag)) {
-				allSemanticTags.add(semanticTag);
-			}
-			if (!CollectionUtils.isEmpty(semanticTags)) {
-				allSemanticTags.addAll(semanticTags);
-			}
 			fsnClauses.must(termsQuery(Description.Fields.TAG, allSemanticTags));
 		}
 		NativeSearchQueryBuilder fsnQueryBuilder = new NativeSearchQueryBuilder()
@@ -233,11 +235,11 @@ public class DescriptionService extends ComponentService {
 						.must(termsQuery(Description.Fields.CONCEPT_ID, conceptIds))
 				)
 				.addAggregation(AggregationBuilders.terms("semanticTags").field(Description.Fields.TAG).size(AGGREGATION_SEARCH_SIZE));
+		NativeSearchQuery semanticTagQuery = null;
 		if (!semanticTagFiltering) {
+			// Semantic tag aggregation does not change the concept ids so it can go in the same multi-search as the later stages
 			fsnQueryBuilder.withPageable(PAGE_OF_ONE);
-			SearchHits<Description> semanticTagResults = elasticsearchTemplate.search(fsnQueryBuilder.build(), Description.class);
-			allAggregations.add(semanticTagResults.getAggregations().get("semanticTags"));
-			timer.checkpoint("Semantic tag aggregation");
+			semanticTagQuery = fsnQueryBuilder.build();
 		} else {
 			// Apply semantic tag filter
 			fsnQueryBuilder
@@ -255,12 +257,13 @@ public class DescriptionService extends ComponentService {
 				semanticTagResults.stream().forEach((hit -> conceptSemanticTagMatches.add(parseLong(hit.getContent().getConceptId()))));
 				allAggregations.add(semanticTagResults.getAggregations().get("semanticTags"));
 			}
+			timer.checkpoint("Semantic tag filtering");
 
 			conceptIds = conceptSemanticTagMatches;
 		}
 
-		// Fetch concept refset membership aggregation
-		SearchHits<ReferenceSetMember> membershipResults = elasticsearchTemplate.search(new NativeSearchQueryBuilder()
+		// Concept refset membership aggregation
+		NativeSearchQuery membershipQuery = new NativeSearchQueryBuilder()
 				.withQuery(boolQuery()
 						.must(branchCriteria.getEntityBranchCriteria(ReferenceSetMember.class))
 						.must(termsQuery(ReferenceSetMember.Fields.ACTIVE, true))
@@ -268,11 +271,9 @@ public class DescriptionService extends ComponentService {
 				)
 				.withPageable(PAGE_OF_ONE)
 				.addAggregation(AggregationBuilders.terms("membership").field(REFSET_ID))
-				.build(), ReferenceSetMember.class);
-		allAggregations.add(membershipResults.getAggregations().get("membership"));
-		timer.checkpoint("Concept refset membership aggregation");
+				.build();
 
-		// Perform final paged description search with description property aggregations
+		// Final paged description search with description property aggregations
 		descriptionFilter.must(termsQuery(Description.Fields.CONCEPT_ID, conceptIds));
 		final NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder()
 				.withQuery(descriptionQuery.filter(descriptionFilter))
@@ -281,13 +282,45 @@ public class DescriptionService extends ComponentService {
 				.withPageable(pageRequest);
 		NativeSearchQuery aggregateQuery = addTermSort(queryBuilder.build());
 		aggregateQuery.setTrackTotalHits(true);
-		SearchHits<Description> descriptions = elasticsearchTemplate.search(aggregateQuery, Description.class);
+
+		// The remaining stages only depend on the concept ids so run them in one Elasticsearch round trip
+		List<NativeSearchQuery> queries = new ArrayList<>();
+		List<Class<?>> queryClasses = new ArrayList<>();
+		if (semanticTagQuery != null) {
+			queries.add(semanticTagQuery);
+			queryClasses.add(Description.class);
+		}
+		queries.add(membershipQuery);
+		queryClasses.add(ReferenceSetMember.class);
+		queries.add(aggregateQuery);
+		queryClasses.add(Description.class);
+		List<SearchHits<?>> results = elasticsearchTemplate.multiSearch(queries, queryClasses);
+		timer.checkpoint("Multi-search of " + queries.size() + " aggregation stages");
+
+		// The response has no time for each search, each stage is recorded with its size as it is read
+		int resultIndex = 0;
+		if (semanticTagQuery != null) {
+			SearchHits<?> semanticTagResults = results.get(resultIndex++);
+			allAggregations.add(semanticTagResults.getAggregations().get("semanticTags"));
+			timer.checkpoint("Semantic tag aggregation stage, " + semanticTagResults.getTotalHits() + " hits");
+		}
+		SearchHits<?> membershipResults = results.get(resultIndex++);
+		allAggregations.add(membershipResults.getAggregations().get("membership"));
+		timer.checkpoint("Refset membership aggregation stage, " + membershipResults.getTotalHits() + " hits");
+		@SuppressWarnings("unchecked")
+		SearchHits<Description> descriptions = (SearchHits<Description>) results.get(resultIndex);
 		allAggregations.addAll(descriptions.getAggregations().asList());
-		timer.checkpoint("Fetch descriptions including module and language aggregations");
+		timer.checkpoint("Module and language aggregations with descriptions stage, " + descriptions.getTotalHits() + " hits");
 		timer.finish();
 
 		// Merge aggregations
-		return PageWithBucketAggregationsFactory.createPage(descriptions, new Aggregations(allAggregations), pageRequest);
+		PageWithBucketAggregations<Description> page = PageWithBucketAggregationsFactory.createPage(descriptions, new Aggregations(allAggregations), pageRequest);
+		if (descriptionMatches.isApproximate()) {
+			// The search only covered the sample, report the number of matches instead
+			page = new PageWithBucketAggregations<>(page.getContent(), pageRequest, descriptionMatches.getTotalElements(), page.getBuckets(), page.getSearchAfterArray());
+			page.setBucketsApproximate(true);
+		}
+		return page;
 	}
 
 	void joinDescriptions(BranchCriteria branchCriteria, Map<String, Concept> conceptIdMap, Map<String, ConceptMini> conceptMiniMap,
@@ -295,12 +328,16 @@ public class DescriptionService extends ComponentService {
 
 		final NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder();
 
+		// Minis only need an FSN and PT, which may be cached. The terms depend on lang refset members.
+		final Map<String, ConceptMini> uncachedMiniMap = conceptMiniMap != null && fetchLangRefsetMembers ?
+				conceptMiniTermsCache.applyCachedTerms(branchCriteria, conceptMiniMap) : conceptMiniMap;
+
 		final Set<String> allConceptIds = new HashSet<>();
 		if (conceptIdMap != null) {
 			allConceptIds.addAll(conceptIdMap.keySet());
 		}
-		if (conceptMiniMap != null) {
-			allConceptIds.addAll(conceptMiniMap.keySet());
+		if (uncachedMiniMap != null) {
+			allConceptIds.addAll(uncachedMiniMap.keySet());
 		}
 		if (allConceptIds.isEmpty()) {
 			return;
@@ -325,8 +362,8 @@ public class DescriptionService extends ComponentService {
 						}
 					}
 					// Join Description to ConceptMinis for search result use case.
-					if (conceptMiniMap != null) {
-						final ConceptMini conceptMini = conceptMiniMap.get(descriptionConceptId);
+					if (uncachedMiniMap != null) {
+						final ConceptMini conceptMini = uncachedMiniMap.get(descriptionConceptId);
 						if (conceptMini != null && description.isActive()) {
 							conceptMini.addActiveDescription(description);
 						}
@@ -343,6 +380,9 @@ public class DescriptionService extends ComponentService {
 		if (fetchLangRefsetMembers) {
 			joinLangRefsetMembers(branchCriteria, allConceptIds, descriptionIdMap);
 			if (timer != null) timer.checkpoint("get lang refset " + getFetchCount(allConceptIds.size()));
+			if (uncachedMiniMap != null) {
+				conceptMiniTermsCache.cacheTerms(branchCriteria, uncachedMiniMap.values());
+			}
 		}
 
 		// Fetch Inactivation Indicators and Associations
@@ -479,21 +519,26 @@ public class DescriptionService extends ComponentService {
 
 	public void joinActiveDescriptions(String path, Map<String, ConceptMini> conceptMiniMap) {
 		BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria(path);
+		Map<String, ConceptMini> uncachedMiniMap = conceptMiniTermsCache.applyCachedTerms(branchCriteria, conceptMiniMap);
+		if (uncachedMiniMap.isEmpty()) {
+			return;
+		}
 		NativeSearchQuery searchQuery = new NativeSearchQueryBuilder()
 				.withQuery(boolQuery().must(branchCriteria.getEntityBranchCriteria(Description.class))
 						.must(termQuery(SnomedComponent.Fields.ACTIVE, true))
-						.must(termsQuery(Description.Fields.CONCEPT_ID, conceptMiniMap.keySet())))
+						.must(termsQuery(Description.Fields.CONCEPT_ID, uncachedMiniMap.keySet())))
 				.withPageable(LARGE_PAGE)
 				.build();
 		Map<String, Description> descriptionIdMap = new HashMap<>();
 		try (SearchHitsIterator<Description> stream = elasticsearchTemplate.searchForStream(searchQuery, Description.class)) {
 			stream.forEachRemaining(hit -> {
 				Description description = hit.getContent();
-				conceptMiniMap.get(description.getConceptId()).addActiveDescription(description);
+				uncachedMiniMap.get(description.getConceptId()).addActiveDescription(description);
 				descriptionIdMap.put(description.getId(), description);
 			});
 		}
-		joinLangRefsetMembers(branchCriteria, conceptMiniMap.keySet(), descriptionIdMap);
+		joinLangRefsetMembers(branchCriteria, uncachedMiniMap.keySet(), descriptionIdMap);
+		conceptMiniTermsCache.cacheTerms(branchCriteria, uncachedMiniMap.values());
 	}
 
 	public SortedMap<Long, Long> applyDescriptionFilter(Collection<Long> conceptIds, List<TermFilter> termFilters, List<LanguageFilter> languageFilters,
@@ -640,6 +685,15 @@ public class DescriptionService extends ComponentService {
 	}
 
 	DescriptionMatches findDescriptionAndConceptIds(DescriptionCriteria criteria, Set<Long> conceptIdsCriteria, BranchCriteria branchCriteria, TimerUtil timer) throws TooCostlyException {
+		return findDescriptionAndConceptIds(criteria, conceptIdsCriteria, branchCriteria, timer, false);
+	}
+
+	/**
+	 * @param allowApproximate When the number of matches is over the processable limit collect a sample of the best matching descriptions
+	 *                         rather than throwing TooCostlyException, if a sample size is configured.
+	 */
+	DescriptionMatches findDescriptionAndConceptIds(DescriptionCriteria criteria, Set<Long> conceptIdsCriteria, BranchCriteria branchCriteria, TimerUtil timer,
+			boolean allowApproximate) throws TooCostlyException {
 
 		// Build up the description criteria
 		final BoolQueryBuilder descriptionQuery = boolQuery();
@@ -662,35 +716,137 @@ public class DescriptionService extends ComponentService {
 		}
 
 		// First pass search to collect all description and concept ids.
+		// Plain typeahead searches on a code system version are answered from the in-memory prefix index when it is ready.
 		final Map<Long, Long> descriptionToConceptMap = new Long2ObjectLinkedOpenHashMap<>();
 		NativeSearchQueryBuilder searchQueryBuilder = new NativeSearchQueryBuilder()
 				.withQuery(descriptionQuery)
 				.withFields(Description.Fields.DESCRIPTION_ID, Description.Fields.CONCEPT_ID);
 
-		NativeSearchQuery query = searchQueryBuilder.withPageable(PAGE_OF_ONE).build();
-		query.setTrackTotalHits(true);
-		long totalElements = elasticsearchTemplate.search(query, Description.class).getTotalHits();
+		Set<List<String>> prefixIndexSearchWords = getPrefixIndexSearchWords(criteria, conceptIdsCriteria);
+		Optional<DescriptionPrefixIndex> prefixIndex = prefixIndexSearchWords != null ? descriptionPrefixIndexService.getIndex(branchCriteria) : Optional.empty();
+		int[] prefixIndexMatches = null;
+		long totalElements;
+		if (prefixIndex.isPresent()) {
+			prefixIndexMatches = prefixIndex.get().findMatches(prefixIndexSearchWords, criteria.getActive(), criteria.getSearchLanguageCodes(), criteria.getType());
+			totalElements = prefixIndexMatches.length;
+		} else {
+			NativeSearchQuery query = searchQueryBuilder.withPageable(PAGE_OF_ONE).build();
+			query.setTrackTotalHits(true);
+			totalElements = elasticsearchTemplate.search(query, Description.class).getTotalHits();
+		}
+		int collectLimit = Integer.MAX_VALUE;
 		if (totalElements > aggregationMaxProcessableResultsSize) {
-			throw new TooCostlyException(String.format("There are over %s results. Aggregating these results would be too costly.", aggregationMaxProcessableResultsSize));
+			if (!allowApproximate || aggregationApproximateSampleSize <= 0) {
+				throw new TooCostlyException(String.format("There are over %s results. Aggregating these results would be too costly.", aggregationMaxProcessableResultsSize));
+			}
+			collectLimit = aggregationApproximateSampleSize;
+			logger.info("Description search has {} results, over the processable limit. Using the first {} for approximate aggregations.", totalElements, collectLimit);
 		}
+		boolean approximate = collectLimit != Integer.MAX_VALUE;
 		timer.checkpoint("Count all check");
 
-		NativeSearchQuery searchQuery = searchQueryBuilder.withPageable(LARGE_PAGE).build();
-		addTermSort(searchQuery);
-		try (SearchHitsIterator<Description> stream = elasticsearchTemplate.searchForStream(
-				searchQuery, Description.class)) {
-			stream.forEachRemaining(hit -> {
-				Description description = hit.getContent();
-				descriptionToConceptMap.put(parseLong(description.getDescriptionId()), parseLong(description.getConceptId()));
-			});
+		// Matches are collected in term order and filtered a chunk at a time. A sample carries on until it has enough matches which pass
+		// every filter, including the semantic tag filter which is otherwise applied later, so that the filters do not shrink the sample.
+		Set<String> sampleSemanticTags = approximate ? getSemanticTags(criteria) : Collections.emptySet();
+		Set<Long> conceptIds = new LongLinkedOpenHashSet();
+		long matchesRead = 0;
+		long matchesPassed = 0;
+		boolean allMatchesRead;
+		SearchHitsIterator<Description> stream = null;
+		try {
+			Iterator<Map.Entry<Long, Long>> matches;
+			if (prefixIndexMatches != null) {
+				// Matches are already in term order, terms of the same length are in description id order rather than by score
+				matches = getPrefixIndexMatches(prefixIndex.get(), prefixIndexMatches);
+			} else {
+				NativeSearchQuery searchQuery = searchQueryBuilder.withPageable(LARGE_PAGE).build();
+				addTermSort(searchQuery);
+				stream = elasticsearchTemplate.searchForStream(searchQuery, Description.class);
+				matches = Iterators.transform(stream, hit -> new AbstractMap.SimpleImmutableEntry<>(
+						parseLong(hit.getContent().getDescriptionId()), parseLong(hit.getContent().getConceptId())));
+			}
+			while (matches.hasNext() && descriptionToConceptMap.size() < collectLimit) {
+				Map<Long, Long> chunk = new Long2ObjectLinkedOpenHashMap<>();
+				while (matches.hasNext() && chunk.size() < collectLimit) {
+					Map.Entry<Long, Long> match = matches.next();
+					chunk.put(match.getKey(), match.getValue());
+					matchesRead++;
+				}
+				Set<Long> chunkConceptIds = filterMatches(chunk, criteria, branchCriteria, sampleSemanticTags, timer);
+				for (Map.Entry<Long, Long> match : chunk.entrySet()) {
+					if (chunkConceptIds.contains(match.getValue())) {
+						matchesPassed++;
+						if (descriptionToConceptMap.size() < collectLimit) {
+							descriptionToConceptMap.put(match.getKey(), match.getValue());
+							conceptIds.add(match.getValue());
+						}
+					}
+				}
+			}
+			allMatchesRead = !matches.hasNext();
+		} finally {
+			if (stream != null) {
+				stream.close();
+			}
+		}
+		// Once every match has been read, and all those passing the filters kept, the results are complete
+		approximate = approximate && !(allMatchesRead && matchesPassed == descriptionToConceptMap.size());
+		timer.checkpoint(approximate ? "Collect sample of description and concept ids" : "Collect all description and concept ids");
+
+		Set<Long> descriptions;
+		if (criteria.isGroupByConcept()) {
+			descriptions = new LongLinkedOpenHashSet();
+			Set<Long> uniqueConceptIds = new LongOpenHashSet();
+			for (Map.Entry<Long, Long> entry : descriptionToConceptMap.entrySet()) {
+				if (uniqueConceptIds.add(entry.getValue())) {
+					descriptions.add(entry.getKey());
+				}
+			}
+		} else {
+			descriptions = descriptionToConceptMap.keySet();
 		}
-		timer.checkpoint("Collect all description and concept ids");
+
+		long total = descriptions.size();
+		if (approximate) {
+			// The proportion of the matches read which passed the filters, applied to all the matches
+			total = Math.round((double) matchesPassed / matchesRead * totalElements);
+			if (criteria.isGroupByConcept() && !descriptionToConceptMap.isEmpty()) {
+				total = Math.round((double) total * descriptions.size() / descriptionToConceptMap.size());
+			}
+		}
+
+		return new DescriptionMatches(descriptions, conceptIds, descriptionQuery, approximate, total);
+	}
+
+	private static Iterator<Map.Entry<Long, Long>> getPrefixIndexMatches(DescriptionPrefixIndex index, int[] matches) {
+		return Arrays.stream(matches)
+				.mapToObj(match -> (Map.Entry<Long, Long>) new AbstractMap.SimpleImmutableEntry<>(index.getDescriptionId(match), index.getConceptId(match)))
+				.iterator();
+	}
+
+	private static Set<String> getSemanticTags(DescriptionCriteria criteria) {
+		Set<String> semanticTags = new HashSet<>();
+		if (!Strings.isNullOrEmpty(criteria.getSemanticTag())) {
+			semanticTags.add(criteria.getSemanticTag());
+		}
+		if (!CollectionUtils.isEmpty(criteria.getSemanticTags())) {
+			semanticTags.addAll(criteria.getSemanticTags());
+		}
+		return semanticTags;
+	}
+
+	/**
+	 * Second pass filters on a set of matches: language refset acceptability, concept active, concept refset and, for a sample, semantic tag.
+	 * Matches which fail the language refset filter are removed from the map.
+	 * @return Ids of the concepts which pass the concept filters, in the order their descriptions were found.
+	 */
+	private Set<Long> filterMatches(Map<Long, Long> descriptionToConceptMap, DescriptionCriteria criteria, BranchCriteria branchCriteria, Set<String> semanticTags,
+			TimerUtil timer) {
 
 		// Second pass to apply lang refset filter
 		Set<Long> preferredIn = criteria.getPreferredIn();
 		Set<Long> acceptableIn = criteria.getAcceptableIn();
 		Set<Long> preferredOrAcceptableIn = criteria.getPreferredOrAcceptableIn();
-		Set<Long> conceptIds;
 		if (!CollectionUtils.isEmpty(preferredIn) || !CollectionUtils.isEmpty(acceptableIn)
 				|| !CollectionUtils.isEmpty(preferredOrAcceptableIn) || !CollectionUtils.isEmpty(criteria.getDisjunctionAcceptabilityCriteria())) {
 
@@ -766,7 +922,7 @@ public class DescriptionService extends ComponentService {
 		}
 
 		// Get unique set of concept ids keeping the order that the descriptions were found.
-		conceptIds = new LongLinkedOpenHashSet(descriptionToConceptMap.values());
+		Set<Long> conceptIds = new LongLinkedOpenHashSet(descriptionToConceptMap.values());
 		if (!conceptIds.isEmpty()) {
 
 			// Apply concept active filter
@@ -808,25 +964,58 @@ public class DescriptionService extends ComponentService {
 				conceptIds = filterOrderedSet(conceptIds, filteredConceptIds);
 				timer.checkpoint("Concept refset filtering");
 			}
-		}
 
-		Set<Long> descriptions;
-		if (criteria.isGroupByConcept()) {
-			descriptions = new LongLinkedOpenHashSet();
-			Set<Long> uniqueConceptIds = new LongOpenHashSet();
-			for (Map.Entry<Long, Long> entry : descriptionToConceptMap.entrySet()) {
-				if (uniqueConceptIds.add(entry.getValue())) {
-					descriptions.add(entry.getKey());
+			// Semantic tag filter, only applied here to a sample
+			if (!semanticTags.isEmpty()) {
+				Set<Long> filteredConceptIds = new LongOpenHashSet();
+				try (SearchHitsIterator<Description> stream = elasticsearchTemplate.searchForStream(
+						new NativeSearchQueryBuilder()
+								.withQuery(boolQuery()
+										.must(termsQuery(Description.Fields.ACTIVE, true))
+										.must(termsQuery(Description.Fields.TYPE_ID, Concepts.FSN))
+										.must(termsQuery(Description.Fields.TAG, semanticTags))
+										.filter(branchCriteria.getEntityBranchCriteria(Description.class))
+										.filter(termsQuery(Description.Fields.CONCEPT_ID, conceptIds))
+								)
+								.withSort(SortBuilders.fieldSort("_doc"))
+								.withFields(Description.Fields.CONCEPT_ID)
+								.withPageable(LARGE_PAGE)
+								.build(), Description.class)) {
+					stream.forEachRemaining(hit -> filteredConceptIds.add(parseLong(hit.getContent().getConceptId())));
 				}
+				conceptIds = filterOrderedSet(conceptIds, filteredConceptIds);
+				timer.checkpoint("Semantic tag filtering of sample");
 			}
-		} else {
-			descriptions = descriptionToConceptMap.keySet();
 		}
+		return conceptIds;
+	}
 
-		return new DescriptionMatches(descriptions, conceptIds, descriptionQuery);
+	/**
+	 * @return The folded search words for each character folding strategy if the criteria can be answered by a description prefix index, otherwise null.
+	 * Only standard mode word searches with description level filters qualify.
+	 */
+	private Set<List<String>> getPrefixIndexSearchWords(DescriptionCriteria criteria, Set<Long> conceptIdsCriteria) {
+		String term = criteria.getTerm();
+		if (term == null || criteria.getSearchMode() != SearchMode.STANDARD || IdentifierService.isConceptId(term) || containingNonAlphanumeric(term)
+				|| !CollectionUtils.isEmpty(criteria.getModules()) || !CollectionUtils.isEmpty(conceptIdsCriteria)) {
+			return null;
+		}
+		Map<String, Set<Character>> charactersNotFoldedSets = searchLanguagesConfiguration.getCharactersNotFoldedSets();
+		Set<String> languageFoldingStrategies = new HashSet<>(charactersNotFoldedSets.keySet());
+		languageFoldingStrategies.add("");
+		Set<List<String>> searchWords = new HashSet<>();
+		for (String languageFoldingStrategy : languageFoldingStrategies) {
+			String foldedSearchTerm = DescriptionHelper.foldTerm(term, charactersNotFoldedSets.getOrDefault(languageFoldingStrategy, Collections.emptySet()));
+			List<String> words = analyze(foldedSearchTerm, new StandardAnalyzer(CharArraySet.EMPTY_SET));
+			if (words.isEmpty()) {
+				return null;
+			}
+			searchWords.add(words);
+		}
+		return searchWords;
 	}
 
-	private Set<Long> filterOrderedSet(Set<Long> orderedIds, List<Long> idsToKeep) {
+	private Set<Long> filterOrderedSet(Set<Long> orderedIds, Collection<Long> idsToKeep) {
 		Set<Long> newSet = new LongLinkedOpenHashSet();
 		for (Long orderedId : orderedIds) {
 			if (idsToKeep.contains(orderedId)) {
@@ -1024,11 +1213,15 @@ public class DescriptionService extends ComponentService {
 		private final Set<Long> conceptIds;
 		private final Set<Long> descriptionIds;
 		private final BoolQueryBuilder descriptionQuery;
+		private final boolean approximate;
+		private final long totalElements;
 
-		private DescriptionMatches(Set<Long> descriptionIds, Set<Long> conceptIds, BoolQueryBuilder descriptionQuery) {
+		private DescriptionMatches(Set<Long> descriptionIds, Set<Long> conceptIds, BoolQueryBuilder descriptionQuery, boolean approximate, long totalElements) {
 			this.descriptionIds = descriptionIds;
 			this.conceptIds = conceptIds;
 			this.descriptionQuery = descriptionQuery;
+			this.approximate = approximate;
+			this.totalElements = totalElements;
 		}
 
 		Set<Long> getMatchedDescriptionIds() {
@@ -1042,5 +1235,15 @@ public class DescriptionService extends ComponentService {
 		public BoolQueryBuilder getDescriptionQuery() {
 			return descriptionQuery;
 		}
+
+		// Only a sample of the matches was collected
+		boolean isApproximate() {
+			return approximate;
+		}
+
+		// Number of matches, estimated from the sample when approximate
+		long getTotalElements() {
+			return totalElements;
+		}
 	}
 }
@@ -9,17 +9,25 @@ import static org.snomed.snowstorm.config.Config.AGGREGATION_SEARCH_SIZE;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
 
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.search.aggregations.Aggregation;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.ParsedComposite;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.snomed.snowstorm.core.data.domain.CodeSystem;
@@ -44,6 +52,9 @@ import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilde
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
 import io.kaicode.elasticvc.api.CommitListener;
 import io.kaicode.elasticvc.api.PathUtil;
 import io.kaicode.elasticvc.api.VersionControlHelper;
@@ -58,6 +69,8 @@ import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
  */
 public class MultiSearchService implements CommitListener {
 
+	private static final String CONCEPT_IDS_AGGREGATION = "conceptIds";
+
 	@Autowired
 	private DescriptionService descriptionService;
 
@@ -78,26 +91,21 @@ public class MultiSearchService implements CommitListener {
 	Map<String, String> publishedBranches = new HashMap<>();
 	
 	BoolQueryBuilder cachedBranchesQuery = null;
+	Map<String, BoolQueryBuilder> cachedBranchQueries = null;
 	LocalDate cacheDate = null;
 
 	public Page<Description> findDescriptions(DescriptionCriteria criteria, PageRequest pageRequest) {
-		
-		SearchHits<Description> searchHits = findDescriptionsHelper(criteria, pageRequest);
-		return new PageImpl<>(searchHits.get().map(SearchHit::getContent).collect(Collectors.toList()), pageRequest, searchHits.getTotalHits());
+		MergedSearchHits<Description> searchHits = findDescriptionsHelper(criteria, pageRequest, false);
+		return new PageImpl<>(searchHits.getContent(), pageRequest, searchHits.getTotalHits());
 	}
 	
 	public PageWithBucketAggregations<Description> findDescriptionsReferenceSets(DescriptionCriteria criteria, PageRequest pageRequest) {
 
-		// all search results are required to determine total refset bucket membership
-		SearchHits<Description> allSearchHits = findDescriptionsHelper(criteria, null);
-		// paged results are required for the list of descriptions returned
-		SearchHits<Description> searchHits = findDescriptionsHelper(criteria, pageRequest);
-		
+		// The concept ids of all search results are collected by an aggregation in the same searches as the page of results
+		MergedSearchHits<Description> searchHits = findDescriptionsHelper(criteria, pageRequest, true);
+
 		List<Aggregation> allAggregations = new ArrayList<>();
-		Set<Long> conceptIds = new HashSet<>();
-		for (SearchHit<Description> desc : allSearchHits) {
-			conceptIds.add(Long.parseLong(desc.getContent().getConceptId()));
-		}
+		Set<Long> conceptIds = searchHits.getConceptIds();
 		// Fetch concept refset membership aggregation
 		SearchHits<ReferenceSetMember> membershipResults = elasticsearchTemplate.search(new NativeSearchQueryBuilder()
 						.withQuery(boolQuery()
@@ -113,47 +121,181 @@ public class MultiSearchService implements CommitListener {
 			allAggregations.add(aggregations.get("membership"));
 		}
 
-		return PageWithBucketAggregationsFactory.createPage(searchHits, new Aggregations(allAggregations), pageRequest);
+		return PageWithBucketAggregationsFactory.createPage(searchHits.getContent(), searchHits.getTotalHits(), new Aggregations(allAggregations), pageRequest);
 	}
 	
-	private SearchHits<Description> findDescriptionsHelper(DescriptionCriteria criteria, PageRequest pageRequest) {
-		final BoolQueryBuilder branchesQuery = getBranchesQuery();
-		final BoolQueryBuilder descriptionQuery = boolQuery()
-				.must(branchesQuery);
+	private MergedSearchHits<Description> findDescriptionsHelper(DescriptionCriteria criteria, PageRequest pageRequest, boolean collectConceptIds) {
+		final Map<String, BoolQueryBuilder> branchQueries = getBranchQueries();
+		final BoolQueryBuilder descriptionClauses = boolQuery();
 
-		descriptionService.addTermClauses(criteria.getTerm(), criteria.getSearchMode(), criteria.getSearchLanguageCodes(), criteria.getType(), descriptionQuery);
+		descriptionService.addTermClauses(criteria.getTerm(), criteria.getSearchMode(), criteria.getSearchLanguageCodes(), criteria.getType(), descriptionClauses);
 
 		Boolean active = criteria.getActive();
 		if (active != null) {
-			descriptionQuery.must(termQuery(Description.Fields.ACTIVE, active));
+			descriptionClauses.must(termQuery(Description.Fields.ACTIVE, active));
 		}
 
 		Collection<String> modules = criteria.getModules();
 		if (!CollectionUtils.isEmpty(modules)) {
-			descriptionQuery.must(termsQuery(Description.Fields.MODULE_ID, modules));
+			descriptionClauses.must(termsQuery(Description.Fields.MODULE_ID, modules));
 		}
 
-		NativeSearchQueryBuilder queryBuilder;
-		// if pageRequest is null, get all (needed for bucket membership
-		if (pageRequest == null) {
-		  queryBuilder = new NativeSearchQueryBuilder()
-				.withQuery(descriptionQuery);
-		} else {
-		  queryBuilder = new NativeSearchQueryBuilder()
-						.withQuery(descriptionQuery)
-						.withPageable(pageRequest);
-		}
+		BoolQueryBuilder conceptFilter = null;
 		if (criteria.getConceptActive() != null) {
-			Set<Long> conceptsToFetch = getMatchedConcepts(criteria.getConceptActive(), branchesQuery, descriptionQuery);
-			queryBuilder.withFilter(boolQuery().must(termsQuery(Description.Fields.CONCEPT_ID, conceptsToFetch)));
+			BoolQueryBuilder branchesQuery = getBranchesQuery();
+			Set<Long> conceptsToFetch = getMatchedConcepts(criteria.getConceptActive(), branchesQuery, boolQuery().must(branchesQuery).must(descriptionClauses));
+			conceptFilter = boolQuery().must(termsQuery(Description.Fields.CONCEPT_ID, conceptsToFetch));
+		}
+
+		// One query per code system version, run together in one multi-search so that latency does not grow with the number of code systems
+		List<BoolQueryBuilder> queryClauses = new ArrayList<>();
+		List<NativeSearchQuery> queries = new ArrayList<>();
+		for (BoolQueryBuilder branchQuery : branchQueries.values()) {
+			BoolQueryBuilder query = boolQuery().must(branchQuery).must(descriptionClauses);
+			if (conceptFilter != null) {
+				query.filter(conceptFilter);
+			}
+			NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder()
+					.withQuery(query)
+					.withPageable(getMergePageRequest(pageRequest));
+			if (collectConceptIds) {
+				queryBuilder.addAggregation(getConceptIdsAggregation(null));
+			}
+			NativeSearchQuery searchQuery = queryBuilder.build();
+			searchQuery.setTrackTotalHits(true);
+			DescriptionService.addTermSort(searchQuery);
+			queryClauses.add(query);
+			queries.add(searchQuery);
+		}
+
+		List<SearchHits<Description>> branchSearchHits = multiSearch(queries, Description.class);
+		MergedSearchHits<Description> searchHits = mergeSearchHits(branchSearchHits, MultiSearchService::compareSortValues, pageRequest);
+		if (collectConceptIds) {
+			searchHits.setConceptIds(getConceptIds(queryClauses, branchSearchHits));
+		}
+		return searchHits;
+	}
+
+	private <T> List<SearchHits<T>> multiSearch(List<NativeSearchQuery> queries, Class<T> clazz) {
+		if (queries.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return elasticsearchTemplate.multiSearch(queries, clazz);
+	}
+
+	private static CompositeAggregationBuilder getConceptIdsAggregation(Map<String, Object> afterKey) {
+		return AggregationBuilders.composite(CONCEPT_IDS_AGGREGATION,
+						Collections.singletonList(new TermsValuesSourceBuilder(Description.Fields.CONCEPT_ID).field(Description.Fields.CONCEPT_ID)))
+				.size(ConceptService.LARGE_PAGE.getPageSize())
+				.aggregateAfter(afterKey);
+	}
+
+	/**
+	 * Collects the concept ids from the composite aggregation of each code system version.
+	 * Versions with more concepts than one page of buckets are paged through together, one multi-search per page.
+	 */
+	private Set<Long> getConceptIds(List<BoolQueryBuilder> queryClauses, List<SearchHits<Description>> branchSearchHits) {
+		Set<Long> conceptIds = new LongOpenHashSet();
+		// After key of each version with more buckets to read, by version index
+		Map<Integer, Map<String, Object>> afterKeys = new LinkedHashMap<>();
+		for (int i = 0; i < branchSearchHits.size(); i++) {
+			addConceptIds(i, branchSearchHits.get(i), conceptIds, afterKeys);
+		}
+		while (!afterKeys.isEmpty()) {
+			List<Integer> versionIndexes = new ArrayList<>(afterKeys.keySet());
+			List<NativeSearchQuery> queries = new ArrayList<>();
+			for (Integer versionIndex : versionIndexes) {
+				queries.add(new NativeSearchQueryBuilder()
+						.withQuery(queryClauses.get(versionIndex))
+						.withPageable(PageRequest.of(0, 1))
+						.addAggregation(getConceptIdsAggregation(afterKeys.get(versionIndex)))
+						.build());
+			}
+			afterKeys.clear();
+			List<SearchHits<Description>> nextSearchHits = multiSearch(queries, Description.class);
+			for (int i = 0; i < nextSearchHits.size(); i++) {
+				addConceptIds(versionIndexes.get(i), nextSearchHits.get(i), conceptIds, afterKeys);
+			}
+		}
+		return conceptIds;
+	}
+
+	private static void addConceptIds(int versionIndex, SearchHits<Description> searchHits, Set<Long> conceptIds,
+			Map<Integer, Map<String, Object>> afterKeys) {
+
+		if (!searchHits.hasAggregations()) {
+			return;
+		}
+		ParsedComposite conceptIdBuckets = searchHits.getAggregations().get(CONCEPT_IDS_AGGREGATION);
+		for (ParsedComposite.ParsedBucket bucket : conceptIdBuckets.getBuckets()) {
+			conceptIds.add(Long.parseLong(bucket.getKey().get(Description.Fields.CONCEPT_ID).toString()));
 		}
-		NativeSearchQuery query = queryBuilder.build();
-		query.setTrackTotalHits(true);
-		DescriptionService.addTermSort(query);
+		// A full page of buckets may have more after it
+		if (conceptIdBuckets.getBuckets().size() == ConceptService.LARGE_PAGE.getPageSize() && conceptIdBuckets.afterKey() != null) {
+			afterKeys.put(versionIndex, conceptIdBuckets.afterKey());
+		}
+	}
 
-		return elasticsearchTemplate.search(query, Description.class);
+	// Each code system version must return enough results to fill the requested page after merging
+	private static PageRequest getMergePageRequest(PageRequest pageRequest) {
+		return PageRequest.of(0, (int) pageRequest.getOffset() + pageRequest.getPageSize());
 	}
 
+	/**
+	 * K-way merge of the already sorted results of each code system version into the requested page.
+	 * The branch queries do not overlap so the total is the sum of their totals.
+	 */
+	private static <T> MergedSearchHits<T> mergeSearchHits(List<SearchHits<T>> branchSearchHits, Comparator<SearchHit<T>> order, PageRequest pageRequest) {
+
+		long totalHits = 0;
+		PriorityQueue<PeekingIterator<SearchHit<T>>> queue = new PriorityQueue<>((a, b) -> order.compare(a.peek(), b.peek()));
+		for (SearchHits<T> searchHits : branchSearchHits) {
+			totalHits += searchHits.getTotalHits();
+			PeekingIterator<SearchHit<T>> iterator = Iterators.peekingIterator(searchHits.getSearchHits().iterator());
+			if (iterator.hasNext()) {
+				queue.add(iterator);
+			}
+		}
+
+		List<T> content = new ArrayList<>();
+		Set<String> documentIds = new HashSet<>();
+		long skip = pageRequest.getOffset();
+		while (!queue.isEmpty() && content.size() < pageRequest.getPageSize()) {
+			PeekingIterator<SearchHit<T>> iterator = queue.poll();
+			SearchHit<T> hit = iterator.next();
+			if (iterator.hasNext()) {
+				queue.add(iterator);
+			}
+			if (!documentIds.add(hit.getId())) {
+				// Not expected as the branch queries do not overlap
+				continue;
+			}
+			if (skip > 0) {
+				skip--;
+			} else {
+				content.add(hit.getContent());
+			}
+		}
+		return new MergedSearchHits<>(content, totalHits);
+	}
+
+	// Compares the term length and score sort values of two description hits
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <T> int compareSortValues(SearchHit<T> a, SearchHit<T> b) {
+		List<Object> aValues = a.getSortValues();
+		List<Object> bValues = b.getSortValues();
+		for (int i = 0; i < Math.min(aValues.size(), bValues.size()); i++) {
+			Object aValue = aValues.get(i);
+			Object bValue = bValues.get(i);
+			int comparison = aValue instanceof Number && bValue instanceof Number ?
+					Double.compare(((Number) aValue).doubleValue(), ((Number) bValue).doubleValue()) :
+					((Comparable) aValue).compareTo(bValue);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return 0;
+	}
 
 	private Set<Long> getMatchedConcepts(Boolean conceptActiveFlag, BoolQueryBuilder branchesQuery, BoolQueryBuilder descriptionQuery) {
 		// return description and concept ids
@@ -186,6 +328,16 @@ public class MultiSearchService implements CommitListener {
 	}
 
 	private BoolQueryBuilder getBranchesQuery() {
+		updateBranchQueries();
+		return cachedBranchesQuery;
+	}
+
+	private Map<String, BoolQueryBuilder> getBranchQueries() {
+		updateBranchQueries();
+		return cachedBranchQueries;
+	}
+
+	private synchronized void updateBranchQueries() {
 		LocalDate today = LocalDate.now();
 		if (cachedBranchesQuery == null || !cacheDate.equals(today)) {
 			long startTime = System.currentTimeMillis();
@@ -193,24 +345,58 @@ public class MultiSearchService implements CommitListener {
 			//long endTime = System.currentTimeMillis();
 			//logger.info("Mutisearch finding published paths took " + (endTime - startTime) + "ms");
 			
-			cachedBranchesQuery = boolQuery();
+			BoolQueryBuilder branchesQuery = boolQuery();
+			Map<String, BoolQueryBuilder> branchQueries = new LinkedHashMap<>();
 			if (branchPaths.isEmpty()) {
-				cachedBranchesQuery.must(termQuery("path", "this-will-match-nothing"));
+				branchesQuery.must(termQuery("path", "this-will-match-nothing"));
 			}
-			for (String branchPath : branchPaths) {
+			Map<String, String> sharedPathOwners = getSharedPathOwners(branchPaths);
+			for (String branchPath : new TreeSet<>(branchPaths)) {
 				BoolQueryBuilder branchQuery = boolQuery();
 				if (!Branch.MAIN.equals(PathUtil.getParentPath(branchPath))) {
 					// Prevent content on MAIN being found in every other code system
 					branchQuery.mustNot(termQuery("path", Branch.MAIN));
 				}
+				// Content of other shared ancestors is only found through one version, so that the version queries do not overlap
+				for (String path = PathUtil.getParentPath(branchPath); path != null && !Branch.MAIN.equals(path); path = PathUtil.getParentPath(path)) {
+					String owner = sharedPathOwners.get(path);
+					if (owner != null && !owner.equals(branchPath)) {
+						branchQuery.mustNot(termQuery("path", path));
+					}
+				}
 				branchQuery.must(versionControlHelper.getBranchCriteria(branchPath).getEntityBranchCriteria(Description.class));
-				cachedBranchesQuery.should(branchQuery);
+				branchesQuery.should(branchQuery);
+				branchQueries.put(branchPath, branchQuery);
 			}
+			cachedBranchQueries = branchQueries;
+			cachedBranchesQuery = branchesQuery;
 			long endTime = System.currentTimeMillis();
 			logger.info("Mutisearch branches query took " + (endTime - startTime) + "ms");
 		}
 		cacheDate = today;
-		return cachedBranchesQuery;
+	}
+
+	/**
+	 * @return Each ancestor path seen by more than one version branch, with the version branch which includes its content.
+	 * That is the version of the code system on the path if there is one, otherwise the first version branch in path order.
+	 */
+	private static Map<String, String> getSharedPathOwners(Set<String> versionBranchPaths) {
+		Map<String, List<String>> versionsByAncestor = new HashMap<>();
+		for (String versionBranchPath : new TreeSet<>(versionBranchPaths)) {
+			for (String path = PathUtil.getParentPath(versionBranchPath); path != null; path = PathUtil.getParentPath(path)) {
+				versionsByAncestor.computeIfAbsent(path, key -> new ArrayList<>()).add(versionBranchPath);
+			}
+		}
+		Map<String, String> owners = new HashMap<>();
+		versionsByAncestor.forEach((path, versions) -> {
+			if (versions.size() > 1) {
+				owners.put(path, versions.stream()
+						.filter(version -> path.equals(PathUtil.getParentPath(version)))
+						.findFirst()
+						.orElse(versions.get(0)));
+			}
+		});
+		return owners;
 	}
 
 	public Set<String> getAllPublishedVersionBranchPaths() {
@@ -259,16 +445,22 @@ public class MultiSearchService implements CommitListener {
 	}
 
 	public Page<Concept> findConcepts(ConceptCriteria criteria, PageRequest pageRequest) {
-		final BoolQueryBuilder conceptQuery = boolQuery().must(getBranchesQuery());
-		conceptService.addClauses(criteria.getConceptIds(), criteria.getActive(), conceptQuery);
-		NativeSearchQuery query = new NativeSearchQueryBuilder()
-				.withQuery(conceptQuery)
-				.withPageable(pageRequest)
-				.build();
-		SearchHits<Concept> searchHits = elasticsearchTemplate.search(query, Concept.class);
+		final BoolQueryBuilder conceptClauses = boolQuery();
+		conceptService.addClauses(criteria.getConceptIds(), criteria.getActive(), conceptClauses);
+		List<NativeSearchQuery> queries = new ArrayList<>();
+		for (BoolQueryBuilder branchQuery : getBranchQueries().values()) {
+			NativeSearchQuery query = new NativeSearchQueryBuilder()
+					.withQuery(boolQuery().must(branchQuery).must(conceptClauses))
+					.withPageable(getMergePageRequest(pageRequest))
+					.build();
+			query.setTrackTotalHits(true);
+			queries.add(query);
+		}
+		// Score order, code system versions in path order where scores are equal
+		MergedSearchHits<Concept> searchHits = mergeSearchHits(multiSearch(queries, Concept.class),
+				Comparator.comparing((SearchHit<Concept> hit) -> hit.getScore()).reversed(), pageRequest);
 		//Populate the published version path back in
-		List<Concept> concepts = searchHits.get()
-				.map(SearchHit::getContent)
+		List<Concept> concepts = searchHits.getContent().stream()
 				.peek(c -> c.setPath(getPublishedVersionOfBranch(c.getPath())))
 				.collect(Collectors.toList());
 		return new PageImpl<>(concepts, pageRequest, searchHits.getTotalHits());
@@ -280,4 +472,33 @@ public class MultiSearchService implements CommitListener {
 			cachedBranchesQuery = null;
 		}
 	}
+
+	private static final class MergedSearchHits<T> {
+
+		private final List<T> content;
+		private final long totalHits;
+		private Set<Long> conceptIds = Collections.emptySet();
+
+		private MergedSearchHits(List<T> content, long totalHits) {
+			this.content = content;
+			this.totalHits = totalHits;
+		}
+
+		List<T> getContent() {
+			return content;
+		}
+
+		long getTotalHits() {
+			return totalHits;
+		}
+
+		// Only collected when requested
+		Set<Long> getConceptIds() {
+			return conceptIds;
+		}
+
+		void setConceptIds(Set<Long> conceptIds) {
+			this.conceptIds = conceptIds;
+		}
+	}
 }
@@ -5,6 +5,10 @@ import io.kaicode.elasticvc.api.BranchCriteria;
 import io.kaicode.elasticvc.api.VersionControlHelper;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.IncludeExclude;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedLongTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.sort.SortBuilders;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,6 +23,7 @@ import org.snomed.snowstorm.core.util.SearchAfterPage;
 import org.snomed.snowstorm.core.util.StreamUtil;
 import org.snomed.snowstorm.core.util.TimerUtil;
 import org.snomed.snowstorm.ecl.ConceptSelectorHelper;
+import org.snomed.snowstorm.ecl.ECLProfile;
 import org.snomed.snowstorm.ecl.ECLQueryService;
 import org.snomed.snowstorm.ecl.domain.expressionconstraint.SExpressionConstraint;
 import org.snomed.snowstorm.ecl.domain.expressionconstraint.SSubExpressionConstraint;
@@ -398,6 +403,7 @@ public class QueryService implements ApplicationContextAware {
 				.build();
 		final List<QueryConcept> concepts = elasticsearchTemplate.search(searchQuery, QueryConcept.class)
 				.stream().map(SearchHit::getContent).collect(Collectors.toList());
+		ECLProfile.recordRequest(concepts.size());
 		Set<Long> allAncestors = new HashSet<>();
 		for (QueryConcept concept : concepts) {
 			allAncestors.addAll(concept.getAncestors());
@@ -416,6 +422,7 @@ public class QueryService implements ApplicationContextAware {
 				.build();
 		final List<QueryConcept> concepts = elasticsearchTemplate.search(searchQuery, QueryConcept.class)
 				.stream().map(SearchHit::getContent).collect(Collectors.toList());
+		ECLProfile.recordRequest(concepts.size());
 		Set<Long> allParents = new HashSet<>();
 		for (QueryConcept concept : concepts) {
 			allParents.addAll(concept.getParents());
@@ -479,6 +486,16 @@ public class QueryService implements ApplicationContextAware {
 			throw new ServiceException(String.format("Mutiple documents found with the same conceptId '%s' on branch %s", e.getMessage(), branch), e);
 		}
 		Set<Long> conceptIdsToFind = new HashSet<>(conceptMap.keySet());
+		// Use the child counts held in the semantic index, concepts indexed before these were maintained are checked below
+		for (QueryConcept queryConcept : findStoredHierarchyCounts(conceptIdsToFind, form == Relationship.CharacteristicType.stated, branchCriteria)) {
+			if (queryConcept.getChildCount() != null) {
+				conceptMap.get(queryConcept.getConceptIdL()).setLeaf(form, queryConcept.getChildCount() == 0);
+				conceptIdsToFind.remove(queryConcept.getConceptIdL());
+			}
+		}
+		if (conceptIdsToFind.isEmpty()) {
+			return;
+		}
 		NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder()
 				.withQuery(new BoolQueryBuilder()
 						.must(branchCriteria.getEntityBranchCriteria(QueryConcept.class))
@@ -508,11 +525,94 @@ public class QueryService implements ApplicationContextAware {
 			return;
 		}
 
+		boolean stated = form == Relationship.CharacteristicType.stated;
+		Set<Long> uncountedConceptIds = concepts.stream().map(mini -> Long.parseLong(mini.getConceptId())).collect(Collectors.toSet());
+		// Use the descendant counts held in the semantic index, concepts indexed before these were maintained are counted using an aggregation
+		Map<Long, Long> descendantCounts = new HashMap<>();
+		for (QueryConcept queryConcept : findStoredHierarchyCounts(uncountedConceptIds, stated, branchCriteria)) {
+			if (queryConcept.getDescendantCount() != null) {
+				descendantCounts.put(queryConcept.getConceptIdL(), queryConcept.getDescendantCount().longValue());
+				uncountedConceptIds.remove(queryConcept.getConceptIdL());
+			}
+		}
+		descendantCounts.putAll(findDescendantCounts(uncountedConceptIds, stated, branchCriteria));
 		for (ConceptMini concept : concepts) {
-			SearchAfterPage<Long> page = searchForIds(createQueryBuilder(form).ecl("<" + concept.getId()), branchCriteria, PAGE_OF_ONE);
-			concept.setDescendantCount(page.getTotalElements());
-			concept.setLeaf(form, page.getTotalElements() == 0);
+			long descendantCount = descendantCounts.getOrDefault(Long.parseLong(concept.getConceptId()), 0L);
+			concept.setDescendantCount(descendantCount);
+			concept.setLeaf(form, descendantCount == 0);
+		}
+	}
+
+	private List<QueryConcept> findStoredHierarchyCounts(Set<Long> conceptIds, boolean stated, BranchCriteria branchCriteria) {
+		List<QueryConcept> queryConcepts = new ArrayList<>();
+		for (List<Long> batch : Iterables.partition(conceptIds, CLAUSE_LIMIT)) {
+			elasticsearchTemplate.search(new NativeSearchQueryBuilder()
+					.withQuery(boolQuery()
+							.must(branchCriteria.getEntityBranchCriteria(QueryConcept.class))
+							.must(termQuery(QueryConcept.Fields.STATED, stated))
+							.filter(termsQuery(QueryConcept.Fields.CONCEPT_ID, batch)))
+					.withFields(QueryConcept.Fields.CONCEPT_ID, QueryConcept.Fields.DESCENDANT_COUNT, QueryConcept.Fields.CHILD_COUNT)
+					.withPageable(PageRequest.of(0, batch.size()))
+					.build(), QueryConcept.class)
+					.forEach(hit -> queryConcepts.add(hit.getContent()));
+		}
+		return queryConcepts;
+	}
+
+	/**
+	 * Counts the descendants of many concepts in one request, using a terms aggregation on the ancestors of the semantic index restricted to the given concepts.
+	 * @return Descendant count by concept id, concepts without descendants are not included.
+	 */
+	public Map<Long, Long> findDescendantCounts(Set<Long> conceptIds, boolean stated, BranchCriteria branchCriteria) {
+		Map<Long, Long> descendantCounts = new HashMap<>();
+		if (conceptIds.isEmpty()) {
+			return descendantCounts;
+		}
+		SearchHits<QueryConcept> searchHits = elasticsearchTemplate.search(new NativeSearchQueryBuilder()
+				.withQuery(boolQuery()
+						.must(branchCriteria.getEntityBranchCriteria(QueryConcept.class))
+						.must(termQuery(QueryConcept.Fields.STATED, stated))
+						.filter(termsQuery(QueryConcept.Fields.ANCESTORS, conceptIds)))
+				.addAggregation(AggregationBuilders.terms("descendantCounts").field(QueryConcept.Fields.ANCESTORS)
+						.includeExclude(new IncludeExclude(conceptIds.stream().mapToLong(Long::longValue).toArray(), null))
+						.size(conceptIds.size()))
+				.withPageable(PAGE_OF_ONE)
+				.build(), QueryConcept.class);
+		if (searchHits.hasAggregations()) {
+			ParsedLongTerms counts = searchHits.getAggregations().get("descendantCounts");
+			for (Terms.Bucket bucket : counts.getBuckets()) {
+				descendantCounts.put(bucket.getKeyAsNumber().longValue(), bucket.getDocCount());
+			}
+		}
+		return descendantCounts;
+	}
+
+	/**
+	 * Counts the children of many concepts in one request, using a terms aggregation on the parents of the semantic index restricted to the given concepts.
+	 * @return Child count by concept id, concepts without children are not included.
+	 */
+	public Map<Long, Long> findChildCounts(Set<Long> conceptIds, boolean stated, BranchCriteria branchCriteria) {
+		Map<Long, Long> childCounts = new HashMap<>();
+		if (conceptIds.isEmpty()) {
+			return childCounts;
+		}
+		SearchHits<QueryConcept> searchHits = elasticsearchTemplate.search(new NativeSearchQueryBuilder()
+				.withQuery(boolQuery()
+						.must(branchCriteria.getEntityBranchCriteria(QueryConcept.class))
+						.must(termQuery(QueryConcept.Fields.STATED, stated))
+						.filter(termsQuery(QueryConcept.Fields.PARENTS, conceptIds)))
+				.addAggregation(AggregationBuilders.terms("childCounts").field(QueryConcept.Fields.PARENTS)
+						.includeExclude(new IncludeExclude(conceptIds.stream().mapToLong(Long::longValue).toArray(), null))
+						.size(conceptIds.size()))
+				.withPageable(PAGE_OF_ONE)
+				.build(), QueryConcept.class);
+		if (searchHits.hasAggregations()) {
+			ParsedLongTerms counts = searchHits.getAggregations().get("childCounts");
+			for (Terms.Bucket bucket : counts.getBuckets()) {
+				childCounts.put(bucket.getKeyAsNumber().longValue(), bucket.getDocCount());
+			}
 		}
+		return childCounts;
 	}
 
 	public void joinDescendantCount(Concept concept, Relationship.CharacteristicType form, List<LanguageDialect> languageDialects, BranchTimepoint branchTimepoint) {
@@ -3,6 +3,15 @@ package org.snomed.snowstorm.core.data.services;
 import io.kaicode.elasticvc.api.BranchCriteria;
 import io.kaicode.elasticvc.api.VersionControlHelper;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.filter.ParsedFilter;
+import org.elasticsearch.search.aggregations.bucket.terms.IncludeExclude;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedStringTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.snomed.snowstorm.config.Config;
 import org.snomed.snowstorm.core.data.domain.Concepts;
 import org.snomed.snowstorm.core.data.domain.QueryConcept;
 import org.snomed.snowstorm.core.data.services.pojo.MapPage;
@@ -11,14 +20,17 @@ import org.springframework.data.domain.PageRequest;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
 import org.springframework.data.elasticsearch.core.SearchHit;
 import org.springframework.data.elasticsearch.core.SearchHits;
+import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
 import org.springframework.stereotype.Service;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-import static java.lang.Long.parseLong;
+import static io.kaicode.elasticvc.api.ComponentService.LARGE_PAGE;
 import static org.elasticsearch.index.query.QueryBuilders.*;
 
 @Service
@@ -30,39 +42,149 @@ public class SemanticIndexService {
 	@Autowired
 	private VersionControlHelper versionControlHelper;
 
+	// Number of attribute types which may reference one concept
+	private static final int REFERENCE_TYPE_AGGREGATION_SIZE = 1_000;
+
 
 	public MapPage<Long, Set<Long>> findConceptReferences(String branch, Long conceptId, boolean stated, PageRequest pageRequest) {
+		return findConceptReferences(branch, conceptId, stated, null, pageRequest);
+	}
+
+	/**
+	 * Finds the concepts which reference a concept, using the reverse index of attribute values held in the semantic index.
+	 * @param typeId Optional type of reference, the is-a type for children.
+	 */
+	public MapPage<Long, Set<Long>> findConceptReferences(String branch, Long conceptId, boolean stated, Long typeId, PageRequest pageRequest) {
 		Map<Long, Set<Long>> referenceTypeToConceptMap = new HashMap<>();
 		BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria(branch);
+		BoolQueryBuilder referenceQuery;
+		if (typeId == null) {
+			referenceQuery = boolQuery()// New bool query where at least one should must match
+					.should(termQuery(QueryConcept.Fields.PARENTS, conceptId))
+					.should(prefixQuery(QueryConcept.Fields.ATTR_REFERENCES, conceptId + "_"))
+					.should(getLegacyReferenceQuery(conceptId, null));
+		} else if (Concepts.IS_A_LONG.equals(typeId)) {
+			referenceQuery = boolQuery().must(termQuery(QueryConcept.Fields.PARENTS, conceptId));
+		} else {
+			referenceQuery = boolQuery()
+					.should(termQuery(QueryConcept.Fields.ATTR_REFERENCES, QueryConcept.toAttributeReference(conceptId, typeId)))
+					.should(getLegacyReferenceQuery(conceptId, typeId));
+		}
 		NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder()
 				.withQuery(boolQuery()
 						.must(branchCriteria.getEntityBranchCriteria(QueryConcept.class))
 						.must(termQuery(QueryConcept.Fields.STATED, stated))
-						.must(boolQuery()// New bool query where at least one should must match
-								.should(termQuery(QueryConcept.Fields.PARENTS, conceptId))
-								.should(termQuery(QueryConcept.Fields.ATTR + "." + QueryConcept.ATTR_TYPE_WILDCARD, conceptId)))
+						.must(referenceQuery)
 				)
+				.withFields(QueryConcept.Fields.CONCEPT_ID, QueryConcept.Fields.PARENTS, QueryConcept.Fields.ATTR_REFERENCES)
+				.withSort(SortBuilders.fieldSort(QueryConcept.Fields.CONCEPT_ID))
 				.withPageable(pageRequest);
-		String conceptIdString = conceptId.toString();
+		String referencePrefix = conceptId + "_";
 		SearchHits<QueryConcept> queryConcepts = elasticsearchTemplate.search(queryBuilder.build(), QueryConcept.class);
 
+		Set<Long> legacyConceptIds = new LongOpenHashSet();
 		for (SearchHit<QueryConcept> hit : queryConcepts.getSearchHits()) {
-			if (hit.getContent().getAncestors().contains(conceptId)) {
+			QueryConcept queryConcept = hit.getContent();
+			if ((typeId == null || Concepts.IS_A_LONG.equals(typeId)) && queryConcept.getParents() != null && queryConcept.getParents().contains(conceptId)) {
 				referenceTypeToConceptMap.computeIfAbsent(Concepts.IS_A_LONG, id -> new LongOpenHashSet())
-						.add(hit.getContent().getConceptIdL());
-			} else {
-				Map<String, Set<Object>> attributes = hit.getContent().getAttr();
-				for (String attributeId : attributes.keySet()) {
-					if (attributeId.equals(QueryConcept.ATTR_TYPE_WILDCARD)) {
-						continue;
-					}
-					if (attributes.get(attributeId).contains(conceptIdString)) {
-						referenceTypeToConceptMap.computeIfAbsent(parseLong(attributeId), id -> new LongOpenHashSet())
-								.add(hit.getContent().getConceptIdL());
-					}
-				}
+						.add(queryConcept.getConceptIdL());
+			}
+			if (queryConcept.getAttrRef() == null) {
+				legacyConceptIds.add(queryConcept.getConceptIdL());
+			} else if (typeId == null || !Concepts.IS_A_LONG.equals(typeId)) {
+				addReferences(queryConcept, referencePrefix, typeId, referenceTypeToConceptMap);
+			}
+		}
+		if (!legacyConceptIds.isEmpty() && (typeId == null || !Concepts.IS_A_LONG.equals(typeId))) {
+			try (SearchHitsIterator<QueryConcept> legacyConcepts = elasticsearchTemplate.searchForStream(
+					getLegacyConceptsQuery(branchCriteria, stated, termsQuery(QueryConcept.Fields.CONCEPT_ID, legacyConceptIds)), QueryConcept.class)) {
+				legacyConcepts.forEachRemaining(hit -> addReferences(hit.getContent(), referencePrefix, typeId, referenceTypeToConceptMap));
 			}
 		}
 		return new MapPage<>(referenceTypeToConceptMap, pageRequest, queryConcepts.getTotalHits());
 	}
+
+	private static void addReferences(QueryConcept queryConcept, String referencePrefix, Long typeId, Map<Long, Set<Long>> referenceTypeToConceptMap) {
+		for (String attributeReference : queryConcept.getAttributeReferences()) {
+			if (attributeReference.startsWith(referencePrefix)) {
+				long referenceType = QueryConcept.getAttributeReferenceType(attributeReference);
+				if (typeId == null || typeId == referenceType) {
+					referenceTypeToConceptMap.computeIfAbsent(referenceType, id -> new LongOpenHashSet())
+							.add(queryConcept.getConceptIdL());
+				}
+			}
+		}
+	}
+
+	/*
+	 * Documents indexed before the attrRef field was added are only found through the attr field, until the semantic index is rebuilt.
+	 */
+	private static BoolQueryBuilder getLegacyReferenceQuery(Long conceptId, Long typeId) {
+		return boolQuery()
+				.must(termQuery(QueryConcept.Fields.ATTR + "." + (typeId != null ? typeId.toString() : QueryConcept.ATTR_TYPE_WILDCARD), conceptId))
+				.mustNot(existsQuery(QueryConcept.Fields.ATTR_REFERENCES));
+	}
+
+	// Loads the attributes of documents without attrRef so their references can be read from them
+	private static NativeSearchQuery getLegacyConceptsQuery(BranchCriteria branchCriteria, boolean stated, QueryBuilder conceptQuery) {
+		return new NativeSearchQueryBuilder()
+				.withQuery(boolQuery()
+						.must(branchCriteria.getEntityBranchCriteria(QueryConcept.class))
+						.must(termQuery(QueryConcept.Fields.STATED, stated))
+						.must(conceptQuery)
+						.mustNot(existsQuery(QueryConcept.Fields.ATTR_REFERENCES))
+				)
+				.withFields(QueryConcept.Fields.CONCEPT_ID, QueryConcept.Fields.ATTR_PACKED, QueryConcept.Fields.ATTR_MAP)
+				.withPageable(LARGE_PAGE)
+				.build();
+	}
+
+	/**
+	 * Counts the concepts which reference a concept by type of reference, from aggregations without loading the referencing concepts.
+	 */
+	public Map<Long, Long> countConceptReferences(String branch, Long conceptId, boolean stated) {
+		BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria(branch);
+		SearchHits<QueryConcept> searchHits = elasticsearchTemplate.search(new NativeSearchQueryBuilder()
+				.withQuery(boolQuery()
+						.must(branchCriteria.getEntityBranchCriteria(QueryConcept.class))
+						.must(termQuery(QueryConcept.Fields.STATED, stated))
+						.must(boolQuery()
+								.should(termQuery(QueryConcept.Fields.PARENTS, conceptId))
+								.should(prefixQuery(QueryConcept.Fields.ATTR_REFERENCES, conceptId + "_")))
+				)
+				.addAggregation(AggregationBuilders.filter("children", termQuery(QueryConcept.Fields.PARENTS, conceptId)))
+				.addAggregation(AggregationBuilders.terms("references").field(QueryConcept.Fields.ATTR_REFERENCES)
+						.includeExclude(new IncludeExclude(conceptId + "_[0-9]+", null))
+						.size(REFERENCE_TYPE_AGGREGATION_SIZE))
+				.withPageable(Config.PAGE_OF_ONE)
+				.build(), QueryConcept.class);
+
+		Map<Long, Long> referenceTypeCounts = new HashMap<>();
+		if (searchHits.hasAggregations()) {
+			ParsedFilter children = searchHits.getAggregations().get("children");
+			if (children.getDocCount() > 0) {
+				referenceTypeCounts.put(Concepts.IS_A_LONG, children.getDocCount());
+			}
+			ParsedStringTerms references = searchHits.getAggregations().get("references");
+			for (Terms.Bucket bucket : references.getBuckets()) {
+				referenceTypeCounts.put(QueryConcept.getAttributeReferenceType(bucket.getKeyAsString()), bucket.getDocCount());
+			}
+		}
+
+		// Documents indexed before the attrRef field was added are not in the aggregation
+		String referencePrefix = conceptId + "_";
+		try (SearchHitsIterator<QueryConcept> legacyConcepts = elasticsearchTemplate.searchForStream(
+				getLegacyConceptsQuery(branchCriteria, stated, getLegacyReferenceQuery(conceptId, null)), QueryConcept.class)) {
+			legacyConcepts.forEachRemaining(hit -> {
+				Set<Long> referenceTypes = new HashSet<>();
+				for (String attributeReference : hit.getContent().getAttributeReferences()) {
+					if (attributeReference.startsWith(referencePrefix)) {
+						referenceTypes.add(QueryConcept.getAttributeReferenceType(attributeReference));
+					}
+				}
+				referenceTypes.forEach(referenceType -> referenceTypeCounts.merge(referenceType, 1L, Long::sum));
+			});
+		}
+		return referenceTypeCounts;
+	}
 }
@@ -2,13 +2,17 @@ package org.snomed.snowstorm.core.data.services;
 
 import ch.qos.logback.classic.Level;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.Striped;
 import io.kaicode.elasticvc.api.*;
 import io.kaicode.elasticvc.domain.Branch;
 import io.kaicode.elasticvc.domain.Commit;
-import io.kaicode.elasticvc.domain.Entity;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
@@ -19,10 +23,15 @@ import org.snomed.snowstorm.config.Config;
 import org.snomed.snowstorm.core.data.domain.*;
 import org.snomed.snowstorm.core.data.repositories.QueryConceptRepository;
 import org.snomed.snowstorm.core.data.services.pojo.SAxiomRepresentation;
+import org.snomed.snowstorm.core.data.services.pojo.SemanticIndexDiff;
+import org.snomed.snowstorm.core.data.services.pojo.SemanticIndexRebuildJob;
+import org.snomed.snowstorm.core.data.services.pojo.SemanticIndexRebuildProgress;
+import org.snomed.snowstorm.core.data.services.transitiveclosure.Graph;
 import org.snomed.snowstorm.core.data.services.transitiveclosure.GraphBuilder;
 import org.snomed.snowstorm.core.data.services.transitiveclosure.GraphBuilderException;
-import org.snomed.snowstorm.core.data.services.transitiveclosure.Node;
 import org.snomed.snowstorm.core.util.TimerUtil;
+import org.snomed.snowstorm.ecl.ECLQueryService;
+import org.snomed.snowstorm.ecl.SemanticChanges;
 import org.snomed.snowstorm.mrcm.MRCMLoader;
 import org.snomed.snowstorm.mrcm.model.AttributeRange;
 import org.snomed.snowstorm.mrcm.model.MRCM;
@@ -35,18 +44,33 @@ import org.springframework.data.elasticsearch.core.SearchHitsIterator;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
 import org.springframework.data.elasticsearch.core.query.Query;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static java.lang.Long.parseLong;
 import static java.lang.String.format;
 import static org.elasticsearch.index.query.QueryBuilders.*;
+import static org.snomed.snowstorm.core.data.services.BranchMetadataHelper.INTERNAL_METADATA_KEY;
 import static org.snomed.snowstorm.core.data.domain.Concepts.CONCEPT_MODEL_OBJECT_ATTRIBUTE;
 
 @Service
@@ -58,8 +82,42 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 	@Value("${commit-hook.semantic-indexing.enabled:true}")
 	private boolean semanticIndexingEnabled;
 
+	@Value("${commit-hook.semantic-indexing.form-threads}")
+	private int formThreads;
+
+	private ExecutorService formExecutorService;
+
+	@Value("${commit-hook.semantic-indexing.writer-threads}")
+	private int writerThreads;
+
+	@Value("${commit-hook.semantic-indexing.writer-queue-batches}")
+	private int writerQueueBatches;
+
+	private ExecutorService writerExecutorService;
+
+	private final Map<String, List<SemanticIndexRebuildProgress>> rebuildProgress = new ConcurrentHashMap<>();
+
+	@Value("${commit-hook.semantic-indexing.rebuild-partition-size}")
+	private int rebuildPartitionSize;
+
+	private final Map<String, SemanticIndexRebuildJob> rebuildJobs = new ConcurrentHashMap<>();
+
+	// Guards the replaced versions the open commit records, the forms save from different threads. Owned here rather than locking the commit itself.
+	private final Striped<Lock> commitLocks = Striped.lock(64);
+
+	@Value("${commit-hook.semantic-indexing.verify-threads}")
+	private int verifyThreads;
+
+	private ExecutorService verifyExecutorService;
+
+	// Next part of a background rebuild, held in internal branch metadata as form name and last concept id completed
+	public static final String REBUILD_CHECKPOINT_METADATA_KEY = "semanticIndexRebuildCheckpoint";
+
 	private static final long IS_A_TYPE = parseLong(Concepts.ISA);
 
+	// Bound on the query clauses used to skip descendants which already have the ancestors gained by an updated concept
+	private static final int ANCESTOR_ADDITION_CLAUSE_LIMIT = 1000;
+
 	@Autowired
 	private ElasticsearchOperations elasticsearchTemplate;
 
@@ -81,8 +139,42 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 	@Autowired
 	private MRCMLoader mrcmLoader;
 
+	@Autowired
+	private ECLQueryService eclQueryService;
+
+	@Autowired
+	private QueryService queryService;
+
+	@Autowired
+	private ExecutorService executorService;
+
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
+	@PostConstruct
+	public void init() {
+		if (formThreads > 0) {
+			formExecutorService = Executors.newFixedThreadPool(formThreads);
+		}
+		if (writerThreads > 0) {
+			writerExecutorService = Executors.newFixedThreadPool(writerThreads);
+		}
+		if (verifyThreads > 0) {
+			verifyExecutorService = Executors.newFixedThreadPool(verifyThreads);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (formExecutorService != null) {
+			formExecutorService.shutdown();
+		}
+		if (writerExecutorService != null) {
+			writerExecutorService.shutdown();
+		}
+		if (verifyExecutorService != null) {
+			verifyExecutorService.shutdown();
+		}
+	}
 
 	@Override
 	public void preCommitCompletion(Commit commit) throws IllegalStateException {
@@ -100,6 +192,8 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 	public Map<String, Integer> rebuildStatedAndInferredSemanticIndex(String branchPath, boolean dryRun) throws ServiceException {
 		try (Commit commit = branchService.openCommit(branchPath, branchMetadataHelper.getBranchLockMetadata("Rebuilding semantic index."))) {
 			final Map<String, Integer> updateCounts = rebuildSemanticIndex(commit, dryRun);
+			// Cached ECL results can not be carried over a rebuild
+			eclQueryService.recordSemanticChanges(SemanticChanges.unknown(branchPath, commit.getTimepoint()));
 			if (!dryRun && updateCounts.values().stream().anyMatch(updateCount -> updateCount > 0)) {
 				commit.markSuccessful();
 			} else {
@@ -112,6 +206,270 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 		}
 	}
 
+	/**
+	 * @return Progress of each form of the latest semantic index rebuild of the branch, empty if the branch has not been rebuilt since startup.
+	 */
+	public List<SemanticIndexRebuildProgress> getRebuildProgress(String branchPath) {
+		return rebuildProgress.getOrDefault(branchPath, Collections.emptyList());
+	}
+
+	/**
+	 * Starts a background rebuild of the semantic index of the branch, or returns the running rebuild of the branch.
+	 * The concepts of each form are compared in id ranges, each range is saved in its own commit along with a checkpoint.
+	 * If the branch has a checkpoint from an earlier rebuild that did not complete the new rebuild carries on from there.
+	 * Finished jobs of the branch are forgotten when a new job starts.
+	 * @return The job id.
+	 */
+	public String rebuildStatedAndInferredSemanticIndexAsync(String branchPath) {
+		SemanticIndexRebuildJob job;
+		synchronized (rebuildJobs) {
+			Optional<SemanticIndexRebuildJob> runningJob = rebuildJobs.values().stream()
+					.filter(existingJob -> existingJob.getBranchPath().equals(branchPath) && existingJob.getStatus() == SemanticIndexRebuildJob.Status.RUNNING)
+					.findFirst();
+			if (runningJob.isPresent()) {
+				return runningJob.get().getId();
+			}
+			// Only the latest job of each branch is kept
+			rebuildJobs.values().removeIf(existingJob -> existingJob.getBranchPath().equals(branchPath));
+			job = new SemanticIndexRebuildJob(UUID.randomUUID().toString(), branchPath);
+			rebuildJobs.put(job.getId(), job);
+		}
+		rebuildProgress.put(branchPath, job.getProgress());
+		final SecurityContext securityContext = SecurityContextHolder.getContext();
+		executorService.submit(() -> {
+			// Bring user security context into new thread
+			SecurityContextHolder.setContext(securityContext);
+			try {
+				rebuildInPartitions(job);
+				job.finish(null);
+			} catch (ConversionException | GraphBuilderException | ServiceException | RuntimeException e) {
+				logger.error("Semantic index rebuild of {} failed, it can be resumed from checkpoint {}.", branchPath, job.getCheckpoint(), e);
+				job.getProgress().stream().filter(progress -> progress.getStatus() == SemanticIndexRebuildProgress.Status.RUNNING)
+						.forEach(progress -> progress.finish(false));
+				job.finish(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+			}
+		});
+		return job.getId();
+	}
+
+	/**
+	 * @return The rebuild job, only found through the branch it is rebuilding.
+	 */
+	public SemanticIndexRebuildJob getRebuildJobOrThrow(String branchPath, String jobId) {
+		SemanticIndexRebuildJob job = rebuildJobs.get(jobId);
+		if (job == null || !job.getBranchPath().equals(branchPath)) {
+			throw new NotFoundException("Semantic index rebuild job not found.");
+		}
+		return job;
+	}
+
+	private void rebuildInPartitions(SemanticIndexRebuildJob job) throws ConversionException, GraphBuilderException, ServiceException {
+		final String branchPath = job.getBranchPath();
+		Form startForm = Form.STATED;
+		long startAfter = 0;
+		String checkpoint = branchService.findLatest(branchPath).getMetadata().getMapOrCreate(INTERNAL_METADATA_KEY).get(REBUILD_CHECKPOINT_METADATA_KEY);
+		if (checkpoint != null) {
+			// Format is <form name>:<last concept id saved>
+			String[] parts = checkpoint.split(":");
+			Form checkpointForm = parts.length == 2 ? Arrays.stream(Form.values()).filter(form -> form.getName().equals(parts[0])).findFirst().orElse(null) : null;
+			Long checkpointAfter = parts.length == 2 ? Longs.tryParse(parts[1]) : null;
+			if (checkpointForm == null || checkpointAfter == null || checkpointAfter < 0) {
+				logger.warn("Semantic index rebuild checkpoint {} of {} is not valid, rebuilding from the start.", checkpoint, branchPath);
+			} else {
+				startForm = checkpointForm;
+				startAfter = checkpointAfter;
+				job.setResumedFromCheckpoint(checkpoint);
+				logger.info("Resuming semantic index rebuild of {} from checkpoint {}.", branchPath, checkpoint);
+			}
+		}
+
+		// As in the synchronous rebuild, other branches are rebuilt from their parent at the base point plus the content on the branch.
+		// Those changes are not split by concept id so each form is saved in a single commit.
+		final boolean completeRebuild = branchPath.equals("MAIN");
+		for (Form form : Form.values()) {
+			if (form.ordinal() < startForm.ordinal()) {
+				continue;
+			}
+			SemanticIndexRebuildProgress progress = new SemanticIndexRebuildProgress(branchPath, form.getName(), false);
+			job.getProgress().add(progress);
+			TimerUtil timer = new TimerUtil("TC index rebuild " + form.getName(), Level.INFO, 1);
+			SemanticIndexChanges changes = null;
+			Date graphHead = null;
+			long after = form == startForm ? startAfter : 0;
+			boolean lastPartition = false;
+			while (!lastPartition) {
+				try (Commit commit = branchService.openCommit(branchPath, branchMetadataHelper.getBranchLockMetadata("Rebuilding semantic index."))) {
+					Branch branch = commit.getBranch();
+					if (!completeRebuild && form == Form.STATED) {
+						// Both forms are recreated, once the stated form is saved the checkpoint moves on to the inferred form
+						removeQConceptChangesOnBranch(commit);
+					}
+					if (changes == null || !branch.getHead().equals(graphHead)) {
+						// First partition, or content has been committed by others since the graph was loaded
+						progress.setStage("Loading graph");
+						Set<String> relationshipAndAxiomDeletionsToProcess = Sets.union(branch.getVersionsReplaced(ReferenceSetMember.class), branch.getVersionsReplaced(Relationship.class));
+						changes = loadChanges(form, relationshipAndAxiomDeletionsToProcess, commit, getCommitCriteria(commit, true, completeRebuild), completeRebuild,
+								new ConcreteAttributeDataTypes(commit), timer);
+					}
+					long upper = Long.MAX_VALUE;
+					Range<Long> range = null;
+					if (completeRebuild) {
+						// Includes the partitions already saved
+						changes.previousStateCriteria = versionControlHelper.getBranchCriteria(branch);
+						upper = changes.getPartitionUpperBound(after, rebuildPartitionSize);
+						range = Range.openClosed(after, upper);
+					}
+					lastPartition = upper == Long.MAX_VALUE;
+					saveChanges(changes, commit, false, null, progress, range, timer);
+
+					// Saved with the partition so the checkpoint never runs ahead of the index
+					String nextCheckpoint = !lastPartition ? form.getName() + ":" + upper : form == Form.STATED ? Form.INFERRED.getName() + ":0" : null;
+					Map<String, String> internalMetadata = branch.getMetadata().getMapOrCreate(INTERNAL_METADATA_KEY);
+					if (nextCheckpoint != null) {
+						internalMetadata.put(REBUILD_CHECKPOINT_METADATA_KEY, nextCheckpoint);
+					} else {
+						internalMetadata.remove(REBUILD_CHECKPOINT_METADATA_KEY);
+					}
+					// Cached ECL results can not be carried over a rebuild
+					eclQueryService.recordSemanticChanges(SemanticChanges.unknown(branchPath, commit.getTimepoint()));
+					commit.markSuccessful();
+					graphHead = commit.getTimepoint();
+					after = upper;
+					job.partitionCompleted(nextCheckpoint);
+				}
+			}
+			progress.finish(true);
+			timer.finish();
+		}
+	}
+
+	/**
+	 * Compares the semantic index of the branch with the index computed from its relationships and axioms, without changing anything.
+	 * Reads the branch at its current head without taking the branch lock, so commits can continue while this runs.
+	 * Both forms are checked at the same time, each in concept id ranges on the verify pool. Differences are passed to the consumer
+	 * as they are found, one at a time, so memory use does not grow with the number of differences.
+	 * @return Number of differences found in each form.
+	 */
+	public Map<String, Integer> verifyStatedAndInferredSemanticIndex(String branchPath, Consumer<SemanticIndexDiff> diffConsumer) throws ServiceException {
+		BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria(branchPath);
+		ConcreteAttributeDataTypes concreteAttributeDataTypes = new ConcreteAttributeDataTypes(branchPath, () -> branchCriteria);
+		Consumer<SemanticIndexDiff> synchronizedConsumer = diff -> {
+			synchronized (diffConsumer) {
+				diffConsumer.accept(diff);
+			}
+		};
+		try {
+			Map<Form, Integer> formDiffCounts = updateStatedAndInferredForms(form -> {
+				TimerUtil timer = new TimerUtil("TC verify " + form.getName(), Level.INFO, 1);
+				SemanticIndexChanges changes = loadChanges(form, branchPath, branchCriteria, branchCriteria, null, Collections.emptySet(), true,
+						concreteAttributeDataTypes, timer);
+				int diffCount = verifyPartitions(changes, branchPath, synchronizedConsumer);
+				timer.finish();
+				logger.info("Semantic index verification of {} form on {} found {} differences.", form.getName(), branchPath, diffCount);
+				return diffCount;
+			});
+			Map<String, Integer> diffCounts = new HashMap<>();
+			formDiffCounts.forEach((form, count) -> diffCounts.put(form.getName(), count));
+			return diffCounts;
+		} catch (ConversionException | GraphBuilderException e) {
+			throw new ServiceException("Failed to verify semantic index. " + e.getMessage(), e);
+		}
+	}
+
+	private int verifyPartitions(SemanticIndexChanges changes, String branchPath, Consumer<SemanticIndexDiff> diffConsumer) throws ServiceException {
+		List<Callable<Integer>> partitions = new ArrayList<>();
+		long after = 0;
+		while (after != Long.MAX_VALUE) {
+			long upper = changes.getPartitionUpperBound(after, rebuildPartitionSize);
+			Range<Long> range = Range.openClosed(after, upper);
+			partitions.add(() -> verifyPartition(changes, branchPath, range, diffConsumer));
+			after = upper;
+		}
+
+		List<Future<Integer>> futures = new ArrayList<>();
+		for (Callable<Integer> partition : partitions) {
+			if (verifyExecutorService != null) {
+				futures.add(verifyExecutorService.submit(partition));
+			} else {
+				FutureTask<Integer> task = new FutureTask<>(partition);
+				task.run();
+				futures.add(task);
+			}
+		}
+		int diffCount = 0;
+		try {
+			for (Future<Integer> future : futures) {
+				diffCount += future.get();
+			}
+		} catch (InterruptedException e) {
+			futures.forEach(future -> future.cancel(true));
+			Thread.currentThread().interrupt();
+			throw new ServiceException("Interrupted while verifying semantic index.", e);
+		} catch (ExecutionException e) {
+			futures.forEach(future -> future.cancel(true));
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new ServiceException("Failed to verify semantic index. " + e.getCause().getMessage(), e.getCause());
+		}
+		return diffCount;
+	}
+
+	private int verifyPartition(SemanticIndexChanges changes, String branchPath, Range<Long> range, Consumer<SemanticIndexDiff> diffConsumer) throws GraphBuilderException {
+		final Form form = changes.form;
+		final Graph graph = changes.graph;
+		int diffCount = 0;
+		Set<Long> found = new LongOpenHashSet();
+		try (final SearchHitsIterator<QueryConcept> existingQueryConcepts = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+				.withQuery(boolQuery()
+						.must(changes.previousStateCriteria.getEntityBranchCriteria(QueryConcept.class))
+						.must(termsQuery(QueryConcept.Fields.STATED, form.isStated()))
+						.filter(rangeQuery(QueryConcept.Fields.CONCEPT_ID).gt(range.lowerEndpoint()).lte(range.upperEndpoint()))
+				)
+				.withPageable(LARGE_PAGE).build(), QueryConcept.class)) {
+			while (existingQueryConcepts.hasNext()) {
+				QueryConcept queryConcept = existingQueryConcepts.next().getContent();
+				Long conceptId = queryConcept.getConceptIdL();
+				found.add(conceptId);
+				int node = graph.getIndex(conceptId);
+				QueryConcept expected = node != -1 ? createQueryConcept(form, branchPath, changes.conceptAttributeChanges, false, graph, node) : null;
+				if (expected != null) {
+					changes.setHierarchyCounts(expected, node);
+				}
+				SemanticIndexDiff diff = null;
+				if (expected == null || (graph.getParentCount(node) == 0 && !expected.isRoot())) {
+					diff = new SemanticIndexDiff(form.getName(), conceptId, SemanticIndexDiff.Type.EXTRA);
+				} else if (!expected.getAncestors().equals(queryConcept.getAncestors())) {
+					diff = new SemanticIndexDiff(form.getName(), conceptId,
+							Sets.difference(expected.getAncestors(), queryConcept.getAncestors()).immutableCopy(),
+							Sets.difference(queryConcept.getAncestors(), expected.getAncestors()).immutableCopy());
+				} else if (!expected.getParents().equals(queryConcept.getParents())) {
+					diff = new SemanticIndexDiff(form.getName(), conceptId, SemanticIndexDiff.Type.WRONG_PARENTS);
+				} else if (!expected.hierarchyCountsMatch(queryConcept)) {
+					diff = new SemanticIndexDiff(form.getName(), conceptId, SemanticIndexDiff.Type.WRONG_HIERARCHY_COUNTS);
+				} else if (!expected.fieldsMatch(queryConcept)) {
+					diff = new SemanticIndexDiff(form.getName(), conceptId, SemanticIndexDiff.Type.WRONG_ATTRIBUTES);
+				}
+				if (diff != null) {
+					diffConsumer.accept(diff);
+					diffCount++;
+				}
+			}
+		}
+
+		// Concepts in the graph with no entry
+		long[] sortedIds = changes.getSortedIds();
+		for (int i = changes.getFirstIndexAfter(range.lowerEndpoint()); i < sortedIds.length && sortedIds[i] <= range.upperEndpoint(); i++) {
+			long conceptId = sortedIds[i];
+			int node = graph.getIndex(conceptId);
+			if (!found.contains(conceptId) && (graph.getParentCount(node) > 0 || conceptId == parseLong(Concepts.SNOMEDCT_ROOT))) {
+				diffConsumer.accept(new SemanticIndexDiff(form.getName(), conceptId, SemanticIndexDiff.Type.MISSING));
+				diffCount++;
+			}
+		}
+		return diffCount;
+	}
+
 	private void updateStatedAndInferredSemanticIndex(Commit commit) throws IllegalStateException, ConversionException, GraphBuilderException, ServiceException {
 		if (commit.isRebase()) {
 			rebuildSemanticIndex(commit, false);
@@ -119,12 +477,18 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 			// Update query index using changes in the current commit
 
 			// Process deletions from this commit only
+			// Copied because the commit collections change while the semantic index is saved
 			Set<String> relationshipAndAxiomDeletionsToProcess =
-					Sets.union(commit.getEntityVersionsReplaced().getOrDefault(ReferenceSetMember.class.getSimpleName(), Collections.emptySet()),
-							commit.getEntityVersionsReplaced().getOrDefault(Relationship.class.getSimpleName(), Collections.emptySet()));
-
-			updateSemanticIndex(Form.STATED, relationshipAndAxiomDeletionsToProcess, commit, false, false, false);
-			updateSemanticIndex(Form.INFERRED, relationshipAndAxiomDeletionsToProcess, commit, false, false, false);
+					new HashSet<>(Sets.union(commit.getEntityVersionsReplaced().getOrDefault(ReferenceSetMember.class.getSimpleName(), Collections.emptySet()),
+							commit.getEntityVersionsReplaced().getOrDefault(Relationship.class.getSimpleName(), Collections.emptySet())));
+
+			Branch branch = commit.getBranch();
+			SemanticChanges semanticChanges = new SemanticChanges(branch.getPath(), branch.getHead(), commit.getTimepoint());
+			ConcreteAttributeDataTypes concreteAttributeDataTypes = new ConcreteAttributeDataTypes(commit);
+			CommitCriteria criteria = getCommitCriteria(commit, false, false);
+			updateStatedAndInferredForms(form -> updateSemanticIndex(form, relationshipAndAxiomDeletionsToProcess, commit, criteria, false, false,
+					semanticChanges.getAffectedConceptIds(form.isStated()), concreteAttributeDataTypes, null));
+			eclQueryService.recordSemanticChanges(semanticChanges);
 		}
 		// If promotion the semantic changes will be promoted with the rest of the content.
 	}
@@ -141,23 +505,112 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 			}
 			removeQConceptChangesOnBranch(commit);
 		}
+		ConcreteAttributeDataTypes concreteAttributeDataTypes = new ConcreteAttributeDataTypes(commit);
+		CommitCriteria criteria = getCommitCriteria(commit, true, completeRebuild);
+		Map<Form, SemanticIndexRebuildProgress> progress = new EnumMap<>(Form.class);
+		for (Form form : Form.values()) {
+			progress.put(form, new SemanticIndexRebuildProgress(branch.getPath(), form.getName(), dryRun));
+		}
+		rebuildProgress.put(branch.getPath(), new ArrayList<>(progress.values()));
+		Map<Form, Integer> formUpdateCounts;
+		try {
+			formUpdateCounts = updateStatedAndInferredForms(form ->
+					updateSemanticIndex(form, relationshipAndAxiomDeletionsToProcess, commit, criteria, completeRebuild, dryRun, null, concreteAttributeDataTypes, progress.get(form)));
+		} catch (ConversionException | GraphBuilderException | ServiceException | RuntimeException e) {
+			progress.values().forEach(formProgress -> formProgress.finish(false));
+			throw e;
+		}
+		progress.values().forEach(formProgress -> formProgress.finish(true));
 		Map<String, Integer> updateCount = new HashMap<>();
-		updateCount.put(Form.STATED.getName(), updateSemanticIndex(Form.STATED, relationshipAndAxiomDeletionsToProcess, commit, true, completeRebuild, dryRun));
-		updateCount.put(Form.INFERRED.getName(), updateSemanticIndex(Form.INFERRED, relationshipAndAxiomDeletionsToProcess, commit, true, completeRebuild, dryRun));
+		updateCount.put(Form.STATED.getName(), formUpdateCounts.get(Form.STATED));
+		updateCount.put(Form.INFERRED.getName(), formUpdateCounts.get(Form.INFERRED));
 		return updateCount;
 	}
 
+	/**
+	 * Updates the stated and inferred forms at the same time, the inferred form on this thread and the stated form on the form pool.
+	 * The forms read and write separate QueryConcept documents. If the pool is busy the stated form runs on this thread afterwards.
+	 * @return Update count of each form.
+	 */
+	private Map<Form, Integer> updateStatedAndInferredForms(FormUpdate formUpdate) throws ConversionException, GraphBuilderException, ServiceException {
+		Map<Form, Integer> updateCounts = new EnumMap<>(Form.class);
+		if (formExecutorService == null) {
+			updateCounts.put(Form.STATED, formUpdate.update(Form.STATED));
+			updateCounts.put(Form.INFERRED, formUpdate.update(Form.INFERRED));
+			return updateCounts;
+		}
+
+		// Either the pool thread or this thread claims the stated form
+		AtomicBoolean statedClaimed = new AtomicBoolean();
+		Future<Integer> statedFuture = formExecutorService.submit(() -> statedClaimed.compareAndSet(false, true) ? formUpdate.update(Form.STATED) : null);
+		try {
+			updateCounts.put(Form.INFERRED, formUpdate.update(Form.INFERRED));
+		} catch (ConversionException | GraphBuilderException | ServiceException | RuntimeException e) {
+			// The commit will be rolled back so the stated form must finish first.
+			// A failure of the stated form is reported in preference, as it was when the forms ran in order.
+			if (!statedClaimed.compareAndSet(false, true)) {
+				getStatedUpdateCount(statedFuture);
+			}
+			throw e;
+		}
+
+		if (statedClaimed.compareAndSet(false, true)) {
+			statedFuture.cancel(false);
+			updateCounts.put(Form.STATED, formUpdate.update(Form.STATED));
+		} else {
+			updateCounts.put(Form.STATED, getStatedUpdateCount(statedFuture));
+		}
+		return updateCounts;
+	}
+
+	private Integer getStatedUpdateCount(Future<Integer> statedFuture) throws ConversionException, GraphBuilderException, ServiceException {
+		try {
+			return statedFuture.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while updating the stated semantic index.", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ConversionException) {
+				throw (ConversionException) cause;
+			} else if (cause instanceof GraphBuilderException) {
+				throw (GraphBuilderException) cause;
+			} else if (cause instanceof ServiceException) {
+				throw (ServiceException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException("Failed to update the stated semantic index.", cause);
+		}
+	}
+
+	/**
+	 * @param affectedConceptIds If not null, collects the ids of concepts with a changed entry along with their ancestors before and after the change.
+	 * @param progress If not null, updated as the rebuild progresses.
+	 */
 	private int updateSemanticIndex(Form form, Set<String> internalIdsOfDeletedComponents, Commit commit,
-			boolean rebuild, boolean completeRebuild, boolean dryRun) throws IllegalStateException, ConversionException, GraphBuilderException, ServiceException {
+			CommitCriteria criteria, boolean completeRebuild, boolean dryRun, LongSet affectedConceptIds, ConcreteAttributeDataTypes concreteAttributeDataTypes,
+			SemanticIndexRebuildProgress progress) throws IllegalStateException, ConversionException, GraphBuilderException, ServiceException {
 
 		if (dryRun && !completeRebuild) {
 			throw new IllegalArgumentException("dryRun flag can only be used when rebuilding the index of the MAIN branch.");
 		}
 
-		// Note: Searches within this method use a filter clause for collections of identifiers because these
-		//       can become larger than the maximum permitted query criteria.
-
 		TimerUtil timer = new TimerUtil("TC index " + form.getName(), Level.INFO, 1);
+		SemanticIndexChanges changes = loadChanges(form, internalIdsOfDeletedComponents, commit, criteria, completeRebuild, concreteAttributeDataTypes, timer);
+		if (changes == null) {
+			return 0;
+		}
+		int updateCount = saveChanges(changes, commit, dryRun, affectedConceptIds, progress, null, timer);
+		timer.finish();
+		return updateCount;
+	}
+
+	/**
+	 * Selects the previous state, new state and changes to compare when updating the semantic index in this commit.
+	 * Called before the forms are forked because the criteria read commit collections which the form writers change.
+	 */
+	private CommitCriteria getCommitCriteria(Commit commit, boolean rebuild, boolean completeRebuild) {
 		final Branch branch = commit.getBranch();
 		String branchPath = branch.getPath();
 
@@ -188,21 +641,55 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 			// Process changes in this commit
 			changesCriteria = versionControlHelper.getBranchCriteriaChangesAndDeletionsWithinOpenCommitOnly(commit);
 		}
-		timer.checkpoint("get branch criteria");
+		return new CommitCriteria(previousStateCriteria, newStateCriteria, changesCriteria);
+	}
+
+	/**
+	 * Loads the graph of concepts with changed modelling, or of all concepts in a complete rebuild.
+	 * @return The changes, or null if there is nothing to update.
+	 */
+	private SemanticIndexChanges loadChanges(Form form, Set<String> internalIdsOfDeletedComponents, Commit commit, CommitCriteria criteria, boolean completeRebuild,
+			ConcreteAttributeDataTypes concreteAttributeDataTypes, TimerUtil timer) throws ConversionException, GraphBuilderException, ServiceException {
+
+		// Note: Searches within this method use a filter clause for collections of identifiers because these
+		//       can become larger than the maximum permitted query criteria.
+		return loadChanges(form, commit.getBranch().getPath(), criteria.previousState, criteria.newState, criteria.changes, internalIdsOfDeletedComponents,
+				completeRebuild, concreteAttributeDataTypes, timer);
+	}
+
+	/**
+	 * Branch criteria including the open commit, for reads made while the forms are saving.
+	 * Taken under the same lock as the saves because the criteria read the versions replaced in the commit.
+	 */
+	private BranchCriteria getBranchCriteriaIncludingOpenCommit(Commit commit) {
+		Lock lock = commitLocks.get(commit);
+		lock.lock();
+		try {
+			return versionControlHelper.getBranchCriteriaIncludingOpenCommit(commit);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private SemanticIndexChanges loadChanges(Form form, String branchPath, BranchCriteria previousStateCriteria, BranchCriteria newStateCriteria,
+			BranchCriteria changesCriteria, Set<String> internalIdsOfDeletedComponents, boolean completeRebuild, ConcreteAttributeDataTypes concreteAttributeDataTypes,
+			TimerUtil timer) throws ConversionException, GraphBuilderException, ServiceException {
 
 		// Identify concepts with modeling changes  and load relevant parts of the existing node graph
 		final GraphBuilder graphBuilder = new GraphBuilder();
 		Set<Long> updatedConceptIds;
+		Map<Long, Set<Long>> existingAncestorsOfUpdatedConcepts = new Long2ObjectOpenHashMap<>();
 		boolean newGraph;
 		if (completeRebuild) {
 			updatedConceptIds = Collections.emptySet();
 			newGraph = true;
 			logger.info("Performing rebuild of {} semantic index", form.getName());
 		} else {
-			updatedConceptIds = buildRelevantPartsOfExistingGraph(graphBuilder, form, changesCriteria, previousStateCriteria, internalIdsOfDeletedComponents, timer);
+			updatedConceptIds = buildRelevantPartsOfExistingGraph(graphBuilder, form, changesCriteria, previousStateCriteria, internalIdsOfDeletedComponents,
+					existingAncestorsOfUpdatedConcepts, timer);
 			if (updatedConceptIds.isEmpty()) {
 				// Nothing to do
-				return 0;
+				return null;
 			}
 			// Strategy: Clear the modelling of updated concepts then add/remove edges and attributes based on the new commit
 			newGraph = graphBuilder.getNodeCount() == 0;
@@ -216,7 +703,7 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 		Set<Long> requiredActiveConcepts = new LongOpenHashSet();
 		Map<Long, AttributeChanges> conceptAttributeChanges = new Long2ObjectOpenHashMap<>();
 
-		final Map<String, ConcreteValue.DataType> concreteAttributeDataTypeMap = getConcreteAttributeDataTypeMap(commit);
+		final Map<String, ConcreteValue.DataType> concreteAttributeDataTypeMap = concreteAttributeDataTypes.get();
 		// Create consumer for relationship changes
 		BiConsumer<SnomedComponent<?>, Relationship> relationshipConsumer = (component, relationship) -> {
 			long conceptId = parseLong(relationship.getSourceId());
@@ -299,137 +786,407 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 			logger.warn("The following concepts have been referred to in relationships but are missing or inactive: {}", inactiveOrMissingConceptIds);
 		}
 
-		// Step: Save changes
-		Map<Long, Node> nodesToSave = new Long2ObjectOpenHashMap<>();
-		graphBuilder.getNodes().stream()
-				.filter(node -> newGraph || node.isAncestorOrSelfUpdated() || conceptAttributeChanges.containsKey(node.getId()))
-				.forEach(node -> nodesToSave.put(node.getId(), node));
-		Set<Long> nodesNotFound = new LongOpenHashSet(nodesToSave.keySet());
-		Set<QueryConcept> queryConceptsToSave = new HashSet<>();
-
-		// Collect ids of nodes and attribute updates and convert to conceptIdForm
-		Set<Long> conceptIdsToUpdate = new LongOpenHashSet(nodesToSave.keySet());
-		conceptIdsToUpdate.addAll(conceptAttributeChanges.keySet());
-
-		// If there is a loop found in the transitive closure we throw an exception,
-		// unless it's a rebase/extension upgrade; that must be fixed manually afterwards
-		// either by authoring or importing the new version of the extension.
-		boolean throwExceptionIfTransitiveClosureLoopFound = !commit.isRebase();
+		// Step: Build transitive closure
+		Graph graph = graphBuilder.build();
+		timer.checkpoint("Build transitive closure.");
+
+		// Step: Work out how the ancestors of each updated concept change
+		// Descendants only need their ancestors recomputing if an updated concept loses ancestors.
+		// Ancestors gained are added to the existing descendants while saving, descendants which already have them are not loaded.
+		Map<Long, Set<Long>> ancestorAdditions = new Long2ObjectOpenHashMap<>();
+		Set<Long> ancestorRemovalConceptIds = new LongOpenHashSet();
+		for (Map.Entry<Long, Set<Long>> entry : existingAncestorsOfUpdatedConcepts.entrySet()) {
+			Set<Long> existingAncestors = entry.getValue();
+			Set<Long> newAncestors = graph.getTransitiveClosure(graph.getIndex(entry.getKey()), branchPath, false);
+			if (!newAncestors.containsAll(existingAncestors)) {
+				ancestorRemovalConceptIds.add(entry.getKey());
+			} else if (newAncestors.size() > existingAncestors.size()) {
+				Set<Long> additions = new LongOpenHashSet(newAncestors);
+				additions.removeAll(existingAncestors);
+				ancestorAdditions.put(entry.getKey(), additions);
+			}
+		}
+		if (!ancestorRemovalConceptIds.isEmpty()) {
+			loadDescendantsIntoGraph(graphBuilder, graph, ancestorRemovalConceptIds, form, previousStateCriteria);
+			graph = graphBuilder.build();
+			timer.checkpoint(format("Build transitive closure including descendants of %s concepts losing ancestors.", ancestorRemovalConceptIds.size()));
+		}
+		logger.info("{} concepts gain ancestors, {} lose ancestors.", ancestorAdditions.size(), ancestorRemovalConceptIds.size());
+
+		BitSet nodesToSave = new BitSet(graph.getNodeCount());
+		Set<Long> nodesNotFound = new LongOpenHashSet();
+		for (int node = 0; node < graph.getNodeCount(); node++) {
+			if (newGraph || graph.isAncestorOrSelfUpdated(node) || conceptAttributeChanges.containsKey(graph.getId(node))) {
+				nodesToSave.set(node);
+				nodesNotFound.add(graph.getId(node));
+			}
+		}
 
-		final BoolQueryBuilder filter = boolQuery()
-				// Exclude those QueryConcepts which were removed in this commit
-				.mustNot(boolQuery()
-						.must(termQuery("path", branchPath))
-						.must(termQuery("end", commit.getTimepoint().getTime()))
-				);
+		// Concepts whose descendant or child counts may change, parents within the graph and the previous ancestors of updated concepts
+		LongSet hierarchyCountConceptIds = null;
 		if (!completeRebuild) {
-			filter.must(termsQuery(QueryConcept.Fields.CONCEPT_ID, conceptIdsToUpdate));
+			hierarchyCountConceptIds = new LongOpenHashSet();
+			for (int node = 0; node < graph.getNodeCount(); node++) {
+				hierarchyCountConceptIds.addAll(graph.getParentIds(node));
+			}
+			for (Set<Long> existingAncestors : existingAncestorsOfUpdatedConcepts.values()) {
+				hierarchyCountConceptIds.addAll(existingAncestors);
+			}
 		}
-		try (final SearchHitsIterator<QueryConcept> existingQueryConcepts = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
-				.withQuery(boolQuery()
-						.must(previousStateCriteria.getEntityBranchCriteria(QueryConcept.class))
-						.must(termsQuery(QueryConcept.Fields.STATED, form.isStated()))
-						.filter(filter)
-				)
-				.withPageable(LARGE_PAGE).build(), QueryConcept.class)) {
-			while (existingQueryConcepts.hasNext()) {
-				QueryConcept queryConcept = existingQueryConcepts.next().getContent();
-				Long conceptId = queryConcept.getConceptIdL();
-				Node node = nodesToSave.get(conceptId);
-				boolean save = false;
-				if (completeRebuild) {
-					if (node != null) {
-						QueryConcept newQueryConcept = createQueryConcept(form, branchPath, conceptAttributeChanges, throwExceptionIfTransitiveClosureLoopFound, node.getId(), node);
+		return new SemanticIndexChanges(form, completeRebuild, previousStateCriteria, updatedConceptIds, conceptAttributeChanges, graph, nodesToSave, nodesNotFound,
+				ancestorAdditions, ancestorRemovalConceptIds, hierarchyCountConceptIds);
+	}
+
+	/**
+	 * Compares the changes with the existing semantic index and saves the QueryConcepts which differ.
+	 * @param conceptIdRange If not null, only concepts with an id in this range are compared and saved.
+	 * @return The number of QueryConcepts saved.
+	 */
+	private int saveChanges(SemanticIndexChanges changes, Commit commit, boolean dryRun, LongSet affectedConceptIds, SemanticIndexRebuildProgress progress,
+			Range<Long> conceptIdRange, TimerUtil timer) throws GraphBuilderException {
+
+		final Form form = changes.form;
+		final boolean completeRebuild = changes.completeRebuild;
+		final Set<Long> updatedConceptIds = changes.updatedConceptIds;
+		final Map<Long, AttributeChanges> conceptAttributeChanges = changes.conceptAttributeChanges;
+		final Graph graph = changes.graph;
+		final BitSet nodesToSave = changes.nodesToSave;
+		final String branchPath = commit.getBranch().getPath();
+		// Found nodes are removed, so when saving one range at a time the nodes of the range are copied
+		final Set<Long> nodesNotFound;
+		if (conceptIdRange != null) {
+			nodesNotFound = new LongOpenHashSet();
+			for (Long nodeId : changes.nodesNotFound) {
+				if (conceptIdRange.contains(nodeId)) {
+					nodesNotFound.add(nodeId);
+				}
+			}
+		} else {
+			nodesNotFound = changes.nodesNotFound;
+		}
+
+		// Changed QueryConcepts are saved in batches while the comparison continues
+		SemanticIndexWriter writer = new SemanticIndexWriter(writerExecutorService, writerQueueBatches, Config.BATCH_SAVE_SIZE,
+				batch -> doSaveBatch(batch, commit), dryRun, affectedConceptIds, progress);
+		try {
+			if (!completeRebuild) {
+				writer.trackHierarchyCounts(changes.hierarchyCountConceptIds);
+			}
+			if (progress != null) {
+				progress.setStage("Comparing with existing semantic index");
+			}
+
+			// Collect ids of nodes and attribute updates and convert to conceptIdForm
+			Set<Long> conceptIdsToUpdate = new LongOpenHashSet(nodesNotFound);
+			conceptIdsToUpdate.addAll(conceptAttributeChanges.keySet());
+
+			// If there is a loop found in the transitive closure we throw an exception,
+			// unless it's a rebase/extension upgrade; that must be fixed manually afterwards
+			// either by authoring or importing the new version of the extension.
+			boolean throwExceptionIfTransitiveClosureLoopFound = !commit.isRebase();
+
+			final BoolQueryBuilder filter = boolQuery()
+					// Exclude those QueryConcepts which were removed in this commit
+					.mustNot(boolQuery()
+							.must(termQuery("path", branchPath))
+							.must(termQuery("end", commit.getTimepoint().getTime()))
+					);
+			if (!completeRebuild) {
+				filter.must(termsQuery(QueryConcept.Fields.CONCEPT_ID, conceptIdsToUpdate));
+			}
+			if (conceptIdRange != null) {
+				filter.must(rangeQuery(QueryConcept.Fields.CONCEPT_ID).gt(conceptIdRange.lowerEndpoint()).lte(conceptIdRange.upperEndpoint()));
+			}
+			try (final SearchHitsIterator<QueryConcept> existingQueryConcepts = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+					.withQuery(boolQuery()
+							.must(changes.previousStateCriteria.getEntityBranchCriteria(QueryConcept.class))
+							.must(termsQuery(QueryConcept.Fields.STATED, form.isStated()))
+							.filter(filter)
+					)
+					.withPageable(LARGE_PAGE).build(), QueryConcept.class)) {
+				while (existingQueryConcepts.hasNext()) {
+					QueryConcept queryConcept = existingQueryConcepts.next().getContent();
+					final QueryConcept existing = queryConcept;
+					Long conceptId = queryConcept.getConceptIdL();
+					int node = graph.getIndex(conceptId);
+					boolean nodeToSave = node != -1 && nodesToSave.get(node);
+					boolean save = false;
+					if (completeRebuild) {
+						if (nodeToSave) {
+							QueryConcept newQueryConcept = createQueryConcept(form, branchPath, conceptAttributeChanges, throwExceptionIfTransitiveClosureLoopFound, graph, node);
+							changes.setHierarchyCounts(newQueryConcept, node);
+							if (!queryConcept.fieldsMatch(newQueryConcept)) {
+								queryConcept = newQueryConcept;
+								save = true;
+							}
+						} else {
+							queryConcept.markDeleted();
+							save = true;
+						}
+					} else {
+						QueryConcept newQueryConcept = new QueryConcept(queryConcept);
+						if (nodeToSave) {
+							// TC changes
+							newQueryConcept.setParents(graph.getParentIds(node));
+							newQueryConcept.setAncestors(graph.getTransitiveClosure(node, branchPath, throwExceptionIfTransitiveClosureLoopFound));
+						}
+						if (updatedConceptIds.contains(conceptId)) {
+							applyAttributeChanges(newQueryConcept, conceptId, conceptAttributeChanges);
+						}
 						if (!queryConcept.fieldsMatch(newQueryConcept)) {
+							if (affectedConceptIds != null) {
+								affectedConceptIds.addAll(queryConcept.getAncestors());
+							}
 							queryConcept = newQueryConcept;
 							save = true;
 						}
-					} else {
-						queryConcept.markDeleted();
-						save = true;
 					}
-				} else {
-					QueryConcept newQueryConcept = new QueryConcept(queryConcept);
-					if (node != null) {
-						// TC changes
-						newQueryConcept.setParents(node.getParents().stream().map(Node::getId).collect(Collectors.toSet()));
-						newQueryConcept.setAncestors(new HashSet<>(node.getTransitiveClosure(branchPath, throwExceptionIfTransitiveClosureLoopFound)));
-					}
-					if (updatedConceptIds.contains(conceptId)) {
-						applyAttributeChanges(newQueryConcept, conceptId, conceptAttributeChanges);
+					if (save) {
+						writer.add(queryConcept, existing);
 					}
-					if (!queryConcept.fieldsMatch(newQueryConcept)) {
-						queryConcept = newQueryConcept;
-						save = true;
+					if (progress != null) {
+						progress.incrementConceptsCompared();
 					}
+					nodesNotFound.remove(conceptId);
+				}
+			}
+
+			timer.checkpoint("Collect existingDescendants from QueryConcept.");
+
+			if (!changes.ancestorAdditions.isEmpty()) {
+				addAncestorsToDescendants(changes, commit, writer, progress);
+				timer.checkpoint("Add new ancestors to descendants.");
+			}
+
+			// The remaining nodes are new - create new QueryConcepts
+			if (progress != null) {
+				progress.setStage("Creating new semantic concepts");
+			}
+			for (Long nodeId : nodesNotFound) {
+				int node = graph.getIndex(nodeId);
+				QueryConcept queryConcept = createQueryConcept(form, branchPath, conceptAttributeChanges, throwExceptionIfTransitiveClosureLoopFound, graph, node);
+				if (graph.getParentCount(node) == 0 && !queryConcept.isRoot()) {
+					// Concept is probably inactive, don't add to semantic index.
+					continue;
 				}
-				if (save) {
-					queryConceptsToSave.add(queryConcept);
+				if (completeRebuild) {
+					changes.setHierarchyCounts(queryConcept, node);
+				} else {
+					// Descendants created in the same commit are counted when the changes are applied
+					queryConcept.setDescendantCount(0);
+					queryConcept.setChildCount(0);
 				}
-				nodesNotFound.remove(conceptId);
+				queryConcept.setCreating(true);
+				writer.add(queryConcept);
 			}
-		}
 
-		timer.checkpoint("Collect existingDescendants from QueryConcept.");
+			Set<Long> savedBeforeCounted = Collections.emptySet();
+			if (!completeRebuild) {
+				savedBeforeCounted = applyHierarchyCountChanges(changes, commit, writer);
+				timer.checkpoint("Apply descendant and child count changes.");
+			}
 
-		// The remaining nodes are new - create new QueryConcepts
-		for (Long nodeId : nodesNotFound) {
-			Node node = nodesToSave.get(nodeId);
-			QueryConcept queryConcept = createQueryConcept(form, branchPath, conceptAttributeChanges, throwExceptionIfTransitiveClosureLoopFound, nodeId, node);
-			if (node.getParents().isEmpty() && !queryConcept.isRoot()) {
-				// Concept is probably inactive, don't add to semantic index.
-				continue;
+			if (progress != null) {
+				progress.setStage("Saving");
+			}
+			writer.finish();
+
+			if (!savedBeforeCounted.isEmpty()) {
+				resaveHierarchyCounts(changes, commit, writer, savedBeforeCounted, dryRun);
+				timer.checkpoint("Save corrected descendant and child counts.");
 			}
-			queryConcept.setCreating(true);
-			queryConceptsToSave.add(queryConcept);
+		} finally {
+			// Stops any batches still queued if the comparison failed
+			writer.abort();
 		}
+		logger.info("Semantic index change summary for {} form: {} concepts loaded into the graph. {}", form.getName(), graph.getNodeCount(), writer.getSummary());
+		if (dryRun && writer.getCount() > 0) {
+			logger.info("Semantic index rebuild is in dryRun mode so no changes will be persisted!");
+		}
+		timer.checkpoint("Save updated QueryConcepts");
+		logger.debug("{} concepts updated within the {} semantic index.", writer.getCount(), form.getName());
 
-		// Delete query concepts which have no parents
-		queryConceptsToSave.stream().filter(c -> c.getParents().isEmpty() && !c.isRoot()).forEach(Entity::markDeleted);
+		return writer.getCount();
+	}
 
-		queryConceptsToSave.forEach(QueryConcept::serializeGroupedAttributesMap);
+	/**
+	 * Adds the ancestors gained by updated concepts to their descendants outside the graph.
+	 * Only descendants missing some of the new ancestors are loaded. Descendants of concepts which lose ancestors are in the graph so are skipped.
+	 */
+	private void addAncestorsToDescendants(SemanticIndexChanges changes, Commit commit, SemanticIndexWriter writer, SemanticIndexRebuildProgress progress) {
+		final Map<Long, Set<Long>> ancestorAdditions = changes.ancestorAdditions;
+		final BoolQueryBuilder descendantFilter = boolQuery()
+				// Exclude those QueryConcepts which were removed in this commit
+				.mustNot(boolQuery()
+						.must(termQuery("path", commit.getBranch().getPath()))
+						.must(termQuery("end", commit.getTimepoint().getTime()))
+				);
+		int clauses = ancestorAdditions.size() + ancestorAdditions.values().stream().mapToInt(Set::size).sum();
+		if (clauses <= ANCESTOR_ADDITION_CLAUSE_LIMIT) {
+			// Descendants of an updated concept which lack at least one of its new ancestors
+			for (Map.Entry<Long, Set<Long>> entry : ancestorAdditions.entrySet()) {
+				BoolQueryBuilder hasAllAdditions = boolQuery();
+				entry.getValue().forEach(ancestor -> hasAllAdditions.must(termQuery(QueryConcept.Fields.ANCESTORS, ancestor)));
+				descendantFilter.should(boolQuery()
+						.must(termQuery(QueryConcept.Fields.ANCESTORS, entry.getKey()))
+						.mustNot(hasAllAdditions));
+			}
+			descendantFilter.minimumShouldMatch(1);
+		} else {
+			descendantFilter.must(termsQuery(QueryConcept.Fields.ANCESTORS, ancestorAdditions.keySet()));
+		}
+		if (!changes.ancestorRemovalConceptIds.isEmpty()) {
+			descendantFilter.mustNot(termsQuery(QueryConcept.Fields.ANCESTORS, changes.ancestorRemovalConceptIds));
+		}
 
-		final long countToCreate = queryConceptsToSave.stream().filter(QueryConcept::isCreating).count();
-		final Optional<QueryConcept> firstToCreate = queryConceptsToSave.stream().filter(QueryConcept::isCreating).findFirst();
-		String createMessage = firstToCreate.isPresent() ? String.format("%s semantic concepts created including %s.", countToCreate, firstToCreate.get()) :
-				"No semantic concepts need creating.";
+		try (final SearchHitsIterator<QueryConcept> descendants = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+				.withQuery(boolQuery()
+						.must(changes.previousStateCriteria.getEntityBranchCriteria(QueryConcept.class))
+						.must(termsQuery(QueryConcept.Fields.STATED, changes.form.isStated()))
+						.filter(descendantFilter)
+				)
+				.withPageable(LARGE_PAGE).build(), QueryConcept.class)) {
+			while (descendants.hasNext()) {
+				QueryConcept queryConcept = descendants.next().getContent();
+				if (changes.graph.getIndex(queryConcept.getConceptIdL()) != -1) {
+					continue;
+				}
+				Set<Long> ancestors = new LongOpenHashSet(queryConcept.getAncestors());
+				for (Long ancestor : queryConcept.getAncestors()) {
+					Set<Long> additions = ancestorAdditions.get(ancestor);
+					if (additions != null) {
+						ancestors.addAll(additions);
+					}
+				}
+				if (ancestors.size() > queryConcept.getAncestors().size()) {
+					QueryConcept newQueryConcept = new QueryConcept(queryConcept);
+					newQueryConcept.setAncestors(ancestors);
+					writer.add(newQueryConcept, queryConcept);
+				}
+				if (progress != null) {
+					progress.incrementConceptsCompared();
+				}
+			}
+		}
+	}
 
-		final long countToUpdate = queryConceptsToSave.stream().filter(q -> q.isChanged() && !q.isCreating()).count();
-		final Optional<QueryConcept> firstToUpdate = queryConceptsToSave.stream().filter(q -> q.isChanged() && !q.isCreating() && !q.isDeleted()).findFirst();
-		String updateMessage = firstToUpdate.isPresent() ? String.format("%s semantic concepts updated including %s.", countToUpdate, firstToUpdate.get()) :
-				"No semantic concepts need updating.";
+	/**
+	 * Applies the changes to descendant and child counts recorded by the writer during an incremental update.
+	 * QueryConcepts held back by the writer are given their counts and saved.
+	 * QueryConcepts of other concepts whose counts change are loaded and saved with new counts.
+	 * @return Ids of concepts whose counts change but which the writer had already saved, these must be saved again once the writer has finished.
+	 */
+	private Set<Long> applyHierarchyCountChanges(SemanticIndexChanges changes, Commit commit, SemanticIndexWriter writer) {
+		final Map<Long, QueryConcept> toCount = writer.takeDeferred();
+		final Long2IntOpenHashMap descendantCountChanges = writer.getDescendantCountChanges();
+		final Long2IntOpenHashMap childCountChanges = writer.getChildCountChanges();
+		final boolean stated = changes.form.isStated();
+
+		Set<Long> conceptIdsToLoad = new LongOpenHashSet();
+		descendantCountChanges.long2IntEntrySet().forEach(entry -> {
+			if (entry.getIntValue() != 0) {
+				conceptIdsToLoad.add(entry.getLongKey());
+			}
+		});
+		childCountChanges.long2IntEntrySet().forEach(entry -> {
+			if (entry.getIntValue() != 0) {
+				conceptIdsToLoad.add(entry.getLongKey());
+			}
+		});
+		conceptIdsToLoad.removeAll(toCount.keySet());
+		// Concepts already passed to the writer are saved again with their counts once the writer has finished
+		Set<Long> savedBeforeCounted = new LongOpenHashSet();
+		for (Long conceptId : conceptIdsToLoad) {
+			if (writer.isSaved(conceptId)) {
+				savedBeforeCounted.add(conceptId);
+			}
+		}
+		conceptIdsToLoad.removeAll(savedBeforeCounted);
+		for (List<Long> batch : Iterables.partition(conceptIdsToLoad, CLAUSE_LIMIT)) {
+			try (final SearchHitsIterator<QueryConcept> queryConcepts = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+					.withQuery(boolQuery()
+							.must(changes.previousStateCriteria.getEntityBranchCriteria(QueryConcept.class))
+							.must(termQuery(QueryConcept.Fields.STATED, stated))
+							.filter(termsQuery(QueryConcept.Fields.CONCEPT_ID, batch))
+							// Exclude those QueryConcepts which were removed in this commit
+							.mustNot(boolQuery()
+									.must(termQuery("path", commit.getBranch().getPath()))
+									.must(termQuery("end", commit.getTimepoint().getTime())))
+					)
+					.withPageable(LARGE_PAGE).build(), QueryConcept.class)) {
+				queryConcepts.forEachRemaining(hit -> {
+					QueryConcept queryConcept = hit.getContent();
+					toCount.put(queryConcept.getConceptIdL(), new QueryConcept(queryConcept));
+				});
+			}
+		}
 
-		final long countToDelete = queryConceptsToSave.stream().filter(QueryConcept::isDeleted).count();
-		final Optional<QueryConcept> firstToDelete = queryConceptsToSave.stream().filter(QueryConcept::isDeleted).findFirst();
-		String deleteMessage = firstToDelete.isPresent() ? String.format("%s semantic concepts deleted including %s.", countToDelete, firstToDelete.get()) :
-				"No semantic concepts need deleting.";
+		setHierarchyCounts(toCount.values(), changes, writer);
+		toCount.values().forEach(writer::addCounted);
+		return savedBeforeCounted;
+	}
 
-		logger.info("Semantic index change summary for {} form: {} concepts loaded into the graph. {} {} {}", form.getName(), graphBuilder.getNodes().size(),
-				createMessage, updateMessage, deleteMessage);
+	/**
+	 * Saves the concepts which were saved before their counts were known again, with the counts corrected.
+	 * The versions saved in this commit are loaded after the writer has finished so that the second save replaces the first.
+	 */
+	private void resaveHierarchyCounts(SemanticIndexChanges changes, Commit commit, SemanticIndexWriter writer, Set<Long> conceptIds, boolean dryRun) {
+		if (dryRun) {
+			logger.info("{} semantic concepts would be saved again with corrected counts.", conceptIds.size());
+			return;
+		}
+		final BranchCriteria newStateCriteria = getBranchCriteriaIncludingOpenCommit(commit);
+		for (List<Long> batch : Iterables.partition(conceptIds, CLAUSE_LIMIT)) {
+			List<QueryConcept> queryConcepts = new ArrayList<>();
+			try (final SearchHitsIterator<QueryConcept> hits = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+					.withQuery(boolQuery()
+							.must(newStateCriteria.getEntityBranchCriteria(QueryConcept.class))
+							.must(termQuery(QueryConcept.Fields.STATED, changes.form.isStated()))
+							.filter(termsQuery(QueryConcept.Fields.CONCEPT_ID, batch))
+					)
+					.withPageable(LARGE_PAGE).build(), QueryConcept.class)) {
+				hits.forEachRemaining(hit -> queryConcepts.add(new QueryConcept(hit.getContent())));
+			}
+			setHierarchyCounts(queryConcepts, changes, writer);
+			doSaveBatch(queryConcepts, commit);
+		}
+		logger.info("{} semantic concepts saved again with corrected counts.", conceptIds.size());
+	}
 
-		if (!queryConceptsToSave.isEmpty()) {
+	private void setHierarchyCounts(Collection<QueryConcept> queryConcepts, SemanticIndexChanges changes, SemanticIndexWriter writer) {
+		final Long2IntOpenHashMap descendantCountChanges = writer.getDescendantCountChanges();
+		final Long2IntOpenHashMap childCountChanges = writer.getChildCountChanges();
+		final boolean stated = changes.form.isStated();
+
+		// Entries saved before the counts were maintained are counted from the previous state
+		Set<Long> uncountedConceptIds = queryConcepts.stream()
+				.filter(queryConcept -> !queryConcept.isDeleted() && (queryConcept.getDescendantCount() == null || queryConcept.getChildCount() == null))
+				.map(QueryConcept::getConceptIdL)
+				.collect(Collectors.toSet());
+		Map<Long, Long> previousDescendantCounts = new HashMap<>();
+		Map<Long, Long> previousChildCounts = new HashMap<>();
+		if (!uncountedConceptIds.isEmpty()) {
+			previousDescendantCounts = queryService.findDescendantCounts(uncountedConceptIds, stated, changes.previousStateCriteria);
+			previousChildCounts = queryService.findChildCounts(uncountedConceptIds, stated, changes.previousStateCriteria);
+		}
 
-			if (dryRun) {
-				logger.info("Semantic index rebuild is in dryRun mode so no changes will be persisted!");
-			} else {
-				// Save in batches
-				for (List<QueryConcept> queryConcepts : Iterables.partition(queryConceptsToSave, Config.BATCH_SAVE_SIZE)) {
-					doSaveBatch(queryConcepts, commit);
-				}
+		for (QueryConcept queryConcept : queryConcepts) {
+			if (!queryConcept.isDeleted()) {
+				long conceptId = queryConcept.getConceptIdL();
+				int descendantCount = queryConcept.getDescendantCount() != null ? queryConcept.getDescendantCount() : previousDescendantCounts.getOrDefault(conceptId, 0L).intValue();
+				int childCount = queryConcept.getChildCount() != null ? queryConcept.getChildCount() : previousChildCounts.getOrDefault(conceptId, 0L).intValue();
+				queryConcept.setDescendantCount(descendantCount + descendantCountChanges.get(conceptId));
+				queryConcept.setChildCount(childCount + childCountChanges.get(conceptId));
 			}
 		}
-		timer.checkpoint("Save updated QueryConcepts");
-		logger.debug("{} concepts updated within the {} semantic index.", queryConceptsToSave.size(), form.getName());
-
-		timer.finish();
-		return queryConceptsToSave.size();
 	}
 
 	private QueryConcept createQueryConcept(Form form, String branchPath, Map<Long, AttributeChanges> conceptAttributeChanges,
-			boolean throwExceptionIfTransitiveClosureLoopFound, Long nodeId, Node node) throws GraphBuilderException {
+			boolean throwExceptionIfTransitiveClosureLoopFound, Graph graph, int node) throws GraphBuilderException {
 
-		final Set<Long> transitiveClosure = new HashSet<>(node.getTransitiveClosure(branchPath, throwExceptionIfTransitiveClosureLoopFound));
-		final Set<Long> parentIds = node.getParents().stream().map(Node::getId).collect(Collectors.toSet());
+		final long nodeId = graph.getId(node);
+		final Set<Long> transitiveClosure = graph.getTransitiveClosure(node, branchPath, throwExceptionIfTransitiveClosureLoopFound);
+		final Set<Long> parentIds = graph.getParentIds(node);
 		QueryConcept queryConcept = new QueryConcept(nodeId, parentIds, transitiveClosure, form.isStated());
 		applyAttributeChanges(queryConcept, nodeId, conceptAttributeChanges);
 		return queryConcept;
@@ -472,20 +1229,25 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 		return value;
 	}
 
-	private Map<String, ConcreteValue.DataType> getConcreteAttributeDataTypeMap(Commit commit) throws ServiceException {
-		MRCM mrcm = mrcmLoader.loadActiveMRCM(commit.getBranch().getPath(), versionControlHelper.getBranchCriteriaIncludingOpenCommit(commit));
+	private Map<String, ConcreteValue.DataType> getConcreteAttributeDataTypeMap(String branchPath, BranchCriteria branchCriteria) throws ServiceException {
+		MRCM mrcm = mrcmLoader.loadActiveMRCM(branchPath, branchCriteria);
 		return mrcm.getAttributeRanges().stream().filter(r -> r.getDataType() != null)
 				.collect(Collectors.toMap(AttributeRange::getReferencedComponentId, AttributeRange::getDataType, (r1, r2) -> r2));
 	}
 
+	/**
+	 * Loads the updated concepts, the destinations of their changed is-a relationships and all of their existing ancestors into the graph.
+	 * Descendants are not loaded here, see {@link #loadDescendantsIntoGraph}.
+	 * @param existingAncestorsOfUpdatedConcepts Collects the existing ancestors of each updated concept already in the semantic index.
+	 * @return Ids of the updated concepts.
+	 */
 	private Set<Long> buildRelevantPartsOfExistingGraph(GraphBuilder graphBuilder, Form form,
 			BranchCriteria changesCriteria, BranchCriteria existingContentCriteria,
-			Set<String> internalIdsOfDeletedComponents, TimerUtil timer) throws ConversionException {
+			Set<String> internalIdsOfDeletedComponents, Map<Long, Set<Long>> existingAncestorsOfUpdatedConcepts, TimerUtil timer) throws ConversionException {
 
 		Set<Long> updateSource = new LongOpenHashSet();
 		Set<Long> updateDestination = new LongOpenHashSet();
 		Set<Long> existingAncestors = new LongOpenHashSet();
-		Set<Long> existingDescendants = new LongOpenHashSet();
 
 		// Step: Collect source and destinations of changed is-a relationships
 		try (final SearchHitsIterator<Relationship> changedIsARelationships = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
@@ -584,35 +1346,26 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 						.must(termsQuery("stated", form.isStated()))
 						.filter(termsQuery(QueryConcept.Fields.CONCEPT_ID, Sets.union(updateSource, updateDestination)))
 				)
-				.withFields(QueryConcept.Fields.ANCESTORS)
+				.withFields(QueryConcept.Fields.CONCEPT_ID, QueryConcept.Fields.ANCESTORS)
 				.withPageable(LARGE_PAGE).build();
 		try (final SearchHitsIterator<QueryConcept> existingQueryConcepts = elasticsearchTemplate.searchForStream(query, QueryConcept.class)) {
-			existingQueryConcepts.forEachRemaining(hit -> existingAncestors.addAll(hit.getContent().getAncestors()));
+			existingQueryConcepts.forEachRemaining(hit -> {
+				QueryConcept queryConcept = hit.getContent();
+				existingAncestors.addAll(queryConcept.getAncestors());
+				if (updateSource.contains(queryConcept.getConceptIdL())) {
+					existingAncestorsOfUpdatedConcepts.put(queryConcept.getConceptIdL(), new LongOpenHashSet(queryConcept.getAncestors()));
+				}
+			});
 		}
 		timer.checkpoint("Collect existingAncestors from QueryConcept.");
 
-		// Step: Identify existing descendants
-		// Strategy: Find existing nodes where TC matches updated relationship source ids
-		try (final SearchHitsIterator<QueryConcept> existingQueryConcepts = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
-				.withQuery(boolQuery()
-						.must(existingContentCriteria.getEntityBranchCriteria(QueryConcept.class))
-						.must(termsQuery("stated", form.isStated()))
-						.filter(termsQuery("ancestors", updateSource))
-				)
-				.withFields(QueryConcept.Fields.CONCEPT_ID)
-				.withPageable(LARGE_PAGE).build(), QueryConcept.class)) {
-			existingQueryConcepts.forEachRemaining(hit -> existingDescendants.add(hit.getContent().getConceptIdL()));
-		}
-		timer.checkpoint("Collect existingDescendants from QueryConcept.");
-
-		logger.debug("{} existing ancestors and {} existing descendants of updated relationships identified.", existingAncestors.size(), existingDescendants.size());
+		logger.debug("{} existing ancestors of updated relationships identified.", existingAncestors.size());
 
 		// Step: Build existing graph
 		// Iterative update.
 		// Strategy: Load selection of existing nodes and use parents to build graph.
 		Set<Long> nodesToLoad = new LongOpenHashSet();
 		nodesToLoad.addAll(existingAncestors);
-		nodesToLoad.addAll(existingDescendants);
 		nodesToLoad.addAll(updateSource);
 		nodesToLoad.addAll(updateDestination);
 
@@ -632,6 +1385,40 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 		return updateSource;
 	}
 
+	/**
+	 * Loads the existing descendants of concepts which lose ancestors into the graph, with any of their ancestors not already loaded,
+	 * so that the ancestors of the descendants are recomputed from their parents.
+	 * Nodes already in the graph are not loaded again, their parents may have been replaced by the changes in this commit.
+	 */
+	private void loadDescendantsIntoGraph(GraphBuilder graphBuilder, Graph graph, Set<Long> conceptIds, Form form, BranchCriteria existingContentCriteria) {
+		Set<Long> descendants = new LongOpenHashSet();
+		try (final SearchHitsIterator<QueryConcept> existingQueryConcepts = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+				.withQuery(boolQuery()
+						.must(existingContentCriteria.getEntityBranchCriteria(QueryConcept.class))
+						.must(termsQuery("stated", form.isStated()))
+						.filter(termsQuery("ancestors", conceptIds))
+				)
+				.withFields(QueryConcept.Fields.CONCEPT_ID)
+				.withPageable(LARGE_PAGE).build(), QueryConcept.class)) {
+			existingQueryConcepts.forEachRemaining(hit -> {
+				long conceptId = hit.getContent().getConceptIdL();
+				if (graph.getIndex(conceptId) == -1) {
+					descendants.add(conceptId);
+				}
+			});
+		}
+
+		Set<Long> alternativeAncestors = new LongOpenHashSet();
+		buildGraphFromExistingNodes(descendants, form.isStated(), graphBuilder, existingContentCriteria,
+				queryConcept -> queryConcept.getAncestors().stream()
+						.filter(ancestor -> !descendants.contains(ancestor) && graph.getIndex(ancestor) == -1)
+						.forEach(alternativeAncestors::add));
+		if (!alternativeAncestors.isEmpty()) {
+			buildGraphFromExistingNodes(alternativeAncestors, form.isStated(), graphBuilder, existingContentCriteria, queryConcept -> {});
+		}
+		logger.info("{} existing descendants and {} alternative ancestors loaded.", descendants.size(), alternativeAncestors.size());
+	}
+
 	private void buildGraphFromExistingNodes(Set<Long> nodesToLoad, boolean stated, GraphBuilder graphBuilder, BranchCriteria branchCriteriaForAlreadyCommittedContent,
 			Consumer<QueryConcept> alternativeAncestorCollector) {
 
@@ -720,7 +1507,57 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 	}
 
 	private void doSaveBatch(Collection<QueryConcept> queryConcepts, Commit commit) {
-		doSaveBatchComponents(queryConcepts, commit, "conceptIdForm", queryConceptRepository);
+		// The forms are saved from different threads, the commit records replaced versions in collections which are not thread safe
+		Lock lock = commitLocks.get(commit);
+		lock.lock();
+		try {
+			doSaveBatchComponents(queryConcepts, commit, "conceptIdForm", queryConceptRepository);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static final class CommitCriteria {
+
+		private final BranchCriteria previousState;
+		private final BranchCriteria newState;
+		private final BranchCriteria changes;
+
+		private CommitCriteria(BranchCriteria previousState, BranchCriteria newState, BranchCriteria changes) {
+			this.previousState = previousState;
+			this.newState = newState;
+			this.changes = changes;
+		}
+	}
+
+	private interface FormUpdate {
+		int update(Form form) throws ConversionException, GraphBuilderException, ServiceException;
+	}
+
+	/**
+	 * Concrete attribute data types from the MRCM, loaded once per commit when first needed and shared by both forms.
+	 */
+	private class ConcreteAttributeDataTypes {
+
+		private final String branchPath;
+		private final Supplier<BranchCriteria> branchCriteria;
+		private Map<String, ConcreteValue.DataType> dataTypeMap;
+
+		private ConcreteAttributeDataTypes(Commit commit) {
+			this(commit.getBranch().getPath(), () -> getBranchCriteriaIncludingOpenCommit(commit));
+		}
+
+		private ConcreteAttributeDataTypes(String branchPath, Supplier<BranchCriteria> branchCriteria) {
+			this.branchPath = branchPath;
+			this.branchCriteria = branchCriteria;
+		}
+
+		private synchronized Map<String, ConcreteValue.DataType> get() throws ServiceException {
+			if (dataTypeMap == null) {
+				dataTypeMap = getConcreteAttributeDataTypeMap(branchPath, branchCriteria.get());
+			}
+			return dataTypeMap;
+		}
 	}
 
 	private Set<Long> getInactiveOrMissingConceptIds(Set<Long> requiredActiveConcepts, BranchCriteria branchCriteria) {
@@ -755,6 +1592,89 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 		return missingConceptIds;
 	}
 
+	/**
+	 * The graph and attribute changes of one form, loaded before the comparison with the existing semantic index.
+	 */
+	private static final class SemanticIndexChanges {
+
+		private final Form form;
+		private final boolean completeRebuild;
+		// Replaced before each partition of a background rebuild
+		private BranchCriteria previousStateCriteria;
+		private final Set<Long> updatedConceptIds;
+		private final Map<Long, AttributeChanges> conceptAttributeChanges;
+		private final Graph graph;
+		private final BitSet nodesToSave;
+		private final Set<Long> nodesNotFound;
+		// Ancestors gained by updated concepts which lose none, to be added to descendants outside the graph
+		private final Map<Long, Set<Long>> ancestorAdditions;
+		// Updated concepts which lose ancestors, their descendants are in the graph
+		private final Set<Long> ancestorRemovalConceptIds;
+		// Incremental updates only, QueryConcepts of these concepts are saved once their counts are known
+		private final LongSet hierarchyCountConceptIds;
+		private long[] sortedIds;
+		private int[] descendantCounts;
+		private int[] childCounts;
+
+		private SemanticIndexChanges(Form form, boolean completeRebuild, BranchCriteria previousStateCriteria, Set<Long> updatedConceptIds,
+				Map<Long, AttributeChanges> conceptAttributeChanges, Graph graph, BitSet nodesToSave, Set<Long> nodesNotFound,
+				Map<Long, Set<Long>> ancestorAdditions, Set<Long> ancestorRemovalConceptIds, LongSet hierarchyCountConceptIds) {
+
+			this.form = form;
+			this.completeRebuild = completeRebuild;
+			this.previousStateCriteria = previousStateCriteria;
+			this.updatedConceptIds = updatedConceptIds;
+			this.conceptAttributeChanges = conceptAttributeChanges;
+			this.graph = graph;
+			this.nodesToSave = nodesToSave;
+			this.nodesNotFound = nodesNotFound;
+			this.ancestorAdditions = ancestorAdditions;
+			this.ancestorRemovalConceptIds = ancestorRemovalConceptIds;
+			this.hierarchyCountConceptIds = hierarchyCountConceptIds;
+		}
+
+		/**
+		 * Sets the descendant and child counts of a QueryConcept from the graph, only valid when the graph holds the whole hierarchy.
+		 */
+		private synchronized void setHierarchyCounts(QueryConcept queryConcept, int node) {
+			if (descendantCounts == null) {
+				descendantCounts = graph.getDescendantCounts();
+				childCounts = graph.getChildCounts();
+			}
+			queryConcept.setDescendantCount(descendantCounts[node]);
+			queryConcept.setChildCount(childCounts[node]);
+		}
+
+		/**
+		 * @return The id of the last graph concept in the partition which starts after the given id, or Long.MAX_VALUE if this is the last partition.
+		 */
+		private long getPartitionUpperBound(long after, int partitionSize) {
+			long[] sortedIds = getSortedIds();
+			int from = getFirstIndexAfter(after);
+			int to = from + Math.max(1, partitionSize);
+			return to < sortedIds.length ? sortedIds[to - 1] : Long.MAX_VALUE;
+		}
+
+		private synchronized long[] getSortedIds() {
+			if (sortedIds == null) {
+				sortedIds = new long[graph.getNodeCount()];
+				for (int node = 0; node < sortedIds.length; node++) {
+					sortedIds[node] = graph.getId(node);
+				}
+				Arrays.sort(sortedIds);
+			}
+			return sortedIds;
+		}
+
+		/**
+		 * @return Position in the sorted ids of the first concept with an id greater than the one given.
+		 */
+		private int getFirstIndexAfter(long id) {
+			int index = Arrays.binarySearch(getSortedIds(), id);
+			return index >= 0 ? index + 1 : -index - 1;
+		}
+	}
+
 	private static final class AttributeChanges {
 
 		private static final Comparator<AttributeChange> comparator = Comparator
@@ -0,0 +1,316 @@
+package org.snomed.snowstorm.core.data.services;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.snomed.snowstorm.core.data.domain.QueryConcept;
+import org.snomed.snowstorm.core.data.services.pojo.SemanticIndexRebuildProgress;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Takes the QueryConcepts of one form of the semantic index as they are compared and saves them in batches,
+ * so that writing overlaps with the rest of the update and the changes are never all held in memory.
+ * Full batches are saved on the writer pool. The number of batches waiting or being saved is bounded,
+ * when the limit is reached the update waits for a writer. The last batch is saved on the calling thread.
+ */
+class SemanticIndexWriter {
+
+	private final ExecutorService executorService;
+	private final Semaphore batchesInFlight;
+	private final int maxBatchesInFlight;
+	private final int batchSize;
+	private final Consumer<List<QueryConcept>> batchSaver;
+	private final boolean dryRun;
+	private final LongSet affectedConceptIds;
+	private final SemanticIndexRebuildProgress progress;
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+	private volatile boolean aborted;
+	private boolean finished;
+
+	// Changes to descendant and child counts, only tracked during incremental updates
+	private Long2IntOpenHashMap descendantCountChanges;
+	private Long2IntOpenHashMap childCountChanges;
+	private LongSet deferredConceptIds;
+	private Map<Long, QueryConcept> deferred;
+	private LongSet savedConceptIds;
+
+	private List<QueryConcept> batch = new ArrayList<>();
+	private int count;
+	private int countToCreate;
+	private int countToUpdate;
+	private int countToDelete;
+	private QueryConcept firstToCreate;
+	private QueryConcept firstToUpdate;
+	private QueryConcept firstToDelete;
+
+	/**
+	 * @param executorService Writer pool, null to save every batch on the calling thread.
+	 * @param affectedConceptIds If not null, collects the ids of saved concepts along with their ancestors.
+	 * @param progress If not null, updated with the number of concepts to save and saved.
+	 */
+	SemanticIndexWriter(ExecutorService executorService, int maxBatchesInFlight, int batchSize, Consumer<List<QueryConcept>> batchSaver, boolean dryRun,
+			LongSet affectedConceptIds, SemanticIndexRebuildProgress progress) {
+
+		this.executorService = executorService;
+		this.maxBatchesInFlight = Math.max(1, maxBatchesInFlight);
+		this.batchesInFlight = new Semaphore(this.maxBatchesInFlight);
+		this.batchSize = batchSize;
+		this.batchSaver = batchSaver;
+		this.dryRun = dryRun;
+		this.affectedConceptIds = affectedConceptIds;
+		this.progress = progress;
+	}
+
+	/**
+	 * Tracks how the descendant and child counts of concepts change as QueryConcepts are added.
+	 * QueryConcepts of the given concepts are held back until their counts are known, see {@link #takeDeferred()}.
+	 */
+	void trackHierarchyCounts(LongSet deferredConceptIds) {
+		this.deferredConceptIds = deferredConceptIds;
+		descendantCountChanges = new Long2IntOpenHashMap();
+		childCountChanges = new Long2IntOpenHashMap();
+		deferred = new Long2ObjectOpenHashMap<>();
+		savedConceptIds = new LongOpenHashSet();
+	}
+
+	void add(QueryConcept queryConcept) {
+		add(queryConcept, null);
+	}
+
+	/**
+	 * @param previous The existing version of the QueryConcept or null if it is new, used when tracking hierarchy counts.
+	 */
+	void add(QueryConcept queryConcept, QueryConcept previous) {
+		// Delete query concepts which have no parents
+		if (queryConcept.getParents().isEmpty() && !queryConcept.isRoot()) {
+			queryConcept.markDeleted();
+		}
+		if (affectedConceptIds != null) {
+			affectedConceptIds.add(queryConcept.getConceptIdL());
+			affectedConceptIds.addAll(queryConcept.getAncestors());
+		}
+		if (descendantCountChanges != null) {
+			recordHierarchyChanges(queryConcept, previous);
+			Long conceptId = queryConcept.getConceptIdL();
+			if (deferredConceptIds.contains(conceptId)) {
+				deferred.put(conceptId, queryConcept);
+				return;
+			}
+			savedConceptIds.add(conceptId);
+		}
+		addToBatch(queryConcept);
+	}
+
+	/**
+	 * Adds a QueryConcept which was held back, or which only needs new counts, without tracking it.
+	 * Count changes do not change the ancestors so these are not recorded as affected concepts.
+	 */
+	void addCounted(QueryConcept queryConcept) {
+		addToBatch(queryConcept);
+	}
+
+	private void addToBatch(QueryConcept queryConcept) {
+		recordSummary(queryConcept);
+		count++;
+		if (progress != null) {
+			progress.incrementConceptsToSave();
+		}
+		if (dryRun) {
+			return;
+		}
+
+		batch.add(queryConcept);
+		if (batch.size() == batchSize) {
+			List<QueryConcept> fullBatch = batch;
+			batch = new ArrayList<>();
+			if (executorService != null) {
+				submit(fullBatch);
+			} else {
+				save(fullBatch);
+			}
+		}
+	}
+
+	private void recordHierarchyChanges(QueryConcept queryConcept, QueryConcept previous) {
+		Set<Long> ancestors = queryConcept.isDeleted() ? Collections.emptySet() : queryConcept.getAncestors();
+		Set<Long> parents = queryConcept.isDeleted() ? Collections.emptySet() : queryConcept.getParents();
+		Set<Long> previousAncestors = previous != null ? previous.getAncestors() : Collections.emptySet();
+		Set<Long> previousParents = previous != null ? previous.getParents() : Collections.emptySet();
+		recordChanges(descendantCountChanges, previousAncestors, ancestors);
+		recordChanges(childCountChanges, previousParents, parents);
+	}
+
+	private static void recordChanges(Long2IntOpenHashMap countChanges, Set<Long> before, Set<Long> after) {
+		for (Long id : after) {
+			if (!before.contains(id)) {
+				countChanges.addTo(id, 1);
+			}
+		}
+		for (Long id : before) {
+			if (!after.contains(id)) {
+				countChanges.addTo(id, -1);
+			}
+		}
+	}
+
+	/**
+	 * @return QueryConcepts held back until their counts are known. They must be passed to {@link #addCounted(QueryConcept)}.
+	 */
+	Map<Long, QueryConcept> takeDeferred() {
+		Map<Long, QueryConcept> taken = deferred;
+		deferred = new Long2ObjectOpenHashMap<>();
+		return taken;
+	}
+
+	Long2IntOpenHashMap getDescendantCountChanges() {
+		return descendantCountChanges;
+	}
+
+	Long2IntOpenHashMap getChildCountChanges() {
+		return childCountChanges;
+	}
+
+	/**
+	 * @return True if a QueryConcept of the concept has already been passed on for saving while tracking hierarchy counts.
+	 */
+	boolean isSaved(long conceptId) {
+		return savedConceptIds.contains(conceptId);
+	}
+
+	/**
+	 * Saves the last batch and waits for the writers to finish.
+	 */
+	void finish() {
+		throwIfAborted();
+		if (!batch.isEmpty()) {
+			save(batch);
+			batch = new ArrayList<>();
+		}
+		try {
+			batchesInFlight.acquire(maxBatchesInFlight);
+			batchesInFlight.release(maxBatchesInFlight);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while saving semantic index.", e);
+		}
+		throwIfFailed();
+		finished = true;
+	}
+
+	/**
+	 * Stops the writer after a failure of the update. Batches not yet started are dropped, no more are accepted
+	 * and the call waits for the batches being saved, so nothing is written once the update has given up.
+	 * Does nothing if the writer has finished.
+	 */
+	void abort() {
+		if (finished) {
+			return;
+		}
+		aborted = true;
+		batch = new ArrayList<>();
+		try {
+			batchesInFlight.acquire(maxBatchesInFlight);
+			batchesInFlight.release(maxBatchesInFlight);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void submit(List<QueryConcept> fullBatch) {
+		throwIfAborted();
+		throwIfFailed();
+		try {
+			batchesInFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while saving semantic index.", e);
+		}
+		try {
+			executorService.submit(() -> {
+				try {
+					if (!aborted) {
+						save(fullBatch);
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					batchesInFlight.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			batchesInFlight.release();
+			save(fullBatch);
+		}
+	}
+
+	private void save(List<QueryConcept> queryConcepts) {
+		queryConcepts.forEach(QueryConcept::serializeGroupedAttributesMap);
+		batchSaver.accept(queryConcepts);
+		if (progress != null) {
+			progress.addConceptsSaved(queryConcepts.size());
+		}
+	}
+
+	private void throwIfAborted() {
+		if (aborted) {
+			throw new IllegalStateException("Semantic index writer has been aborted.");
+		}
+	}
+
+	private void throwIfFailed() {
+		Throwable throwable = failure.get();
+		if (throwable instanceof RuntimeException) {
+			throw (RuntimeException) throwable;
+		} else if (throwable instanceof Error) {
+			throw (Error) throwable;
+		} else if (throwable != null) {
+			throw new IllegalStateException("Failed to save semantic index.", throwable);
+		}
+	}
+
+	private void recordSummary(QueryConcept queryConcept) {
+		if (queryConcept.isCreating()) {
+			countToCreate++;
+			if (firstToCreate == null) {
+				firstToCreate = queryConcept;
+			}
+		}
+		if (queryConcept.isChanged() && !queryConcept.isCreating()) {
+			countToUpdate++;
+			if (firstToUpdate == null && !queryConcept.isDeleted()) {
+				firstToUpdate = queryConcept;
+			}
+		}
+		if (queryConcept.isDeleted()) {
+			countToDelete++;
+			if (firstToDelete == null) {
+				firstToDelete = queryConcept;
+			}
+		}
+	}
+
+	String getSummary() {
+		String createMessage = firstToCreate != null ? String.format("%s semantic concepts created including %s.", countToCreate, firstToCreate) :
+				"No semantic concepts need creating.";
+		String updateMessage = firstToUpdate != null ? String.format("%s semantic concepts updated including %s.", countToUpdate, firstToUpdate) :
+				"No semantic concepts need updating.";
+		String deleteMessage = firstToDelete != null ? String.format("%s semantic concepts deleted including %s.", countToDelete, firstToDelete) :
+				"No semantic concepts need deleting.";
+		return String.join(" ", createMessage, updateMessage, deleteMessage);
+	}
+
+	int getCount() {
+		return count;
+	}
+}
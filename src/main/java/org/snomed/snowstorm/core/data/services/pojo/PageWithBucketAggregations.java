@@ -11,13 +11,14 @@ import org.springframework.data.domain.Pageable;
 import java.util.List;
 import java.util.Map;
 
-@JsonPropertyOrder({"buckets", "languageNames", "bucketConcepts"})
+@JsonPropertyOrder({"buckets", "bucketsApproximate", "languageNames", "bucketConcepts"})
 public class PageWithBucketAggregations<T> extends PageImpl<T> {
 
 	private Map<String, Map<String, Long>> buckets;
 	private Map<String, String> languageNames;
 	private Map<String, ConceptMini> bucketConcepts;
 	private Object[] searchAfterArray;
+	private boolean bucketsApproximate;
 
 	public PageWithBucketAggregations(List<T> content, Pageable pageable, long total, Map<String, Map<String, Long>> buckets) {
 		super(content, pageable, total);
@@ -44,6 +45,19 @@ public class PageWithBucketAggregations<T> extends PageImpl<T> {
 		return bucketConcepts;
 	}
 
+	/**
+	 * True when the search matched too many results to aggregate and the bucket counts come from a sample of the best matches.
+	 * The total is then the number of matches, estimated from the sample when filters other than the term apply.
+	 */
+	@JsonView(value = View.Component.class)
+	public boolean isBucketsApproximate() {
+		return bucketsApproximate;
+	}
+
+	public void setBucketsApproximate(boolean bucketsApproximate) {
+		this.bucketsApproximate = bucketsApproximate;
+	}
+
 	@JsonView(value = View.Component.class)
 	public Map<String, String> getLanguageNames() {
 		return languageNames;
@@ -9,6 +9,7 @@ import org.springframework.data.elasticsearch.core.SearchHit;
 import org.springframework.data.elasticsearch.core.SearchHits;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
@@ -35,6 +36,11 @@ public class PageWithBucketAggregationsFactory {
 		return new PageWithBucketAggregations<>(searchHits.get().map(SearchHit::getContent).collect(Collectors.toList()), pageable, searchHits.getTotalHits(), buckets, searchAfter);
 	}
 
+	// For content merged from more than one search, there is no single set of sort values to search after
+	public static <T> PageWithBucketAggregations<T> createPage(List<T> content, long totalHits, Aggregations aggregations, Pageable pageable) {
+		return new PageWithBucketAggregations<>(content, pageable, totalHits, createBuckets(aggregations), null);
+	}
+
 	private static Map<String, Map<String, Long>> createBuckets(Aggregations aggregations) {
 		Map<String, Map<String, Long>> bucketAggregations = new HashMap<>();
 		if (aggregations == null) {
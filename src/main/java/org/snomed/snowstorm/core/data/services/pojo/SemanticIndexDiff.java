@@ -0,0 +1,61 @@
+package org.snomed.snowstorm.core.data.services.pojo;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.Set;
+
+/**
+ * A semantic index entry which does not match the entry computed from the relationships and axioms of the branch.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SemanticIndexDiff {
+
+	public enum Type {
+		// Concept should be in the index but has no entry
+		MISSING,
+		// Entry for a concept which should not be in the index
+		EXTRA,
+		WRONG_ANCESTORS,
+		WRONG_PARENTS,
+		WRONG_ATTRIBUTES,
+		WRONG_HIERARCHY_COUNTS
+	}
+
+	private final String form;
+	private final Long conceptId;
+	private final Type type;
+	private Set<Long> missingAncestors;
+	private Set<Long> extraAncestors;
+
+	public SemanticIndexDiff(String form, Long conceptId, Type type) {
+		this.form = form;
+		this.conceptId = conceptId;
+		this.type = type;
+	}
+
+	public SemanticIndexDiff(String form, Long conceptId, Set<Long> missingAncestors, Set<Long> extraAncestors) {
+		this(form, conceptId, Type.WRONG_ANCESTORS);
+		this.missingAncestors = missingAncestors;
+		this.extraAncestors = extraAncestors;
+	}
+
+	public String getForm() {
+		return form;
+	}
+
+	public Long getConceptId() {
+		return conceptId;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public Set<Long> getMissingAncestors() {
+		return missingAncestors;
+	}
+
+	public Set<Long> getExtraAncestors() {
+		return extraAncestors;
+	}
+}
@@ -0,0 +1,89 @@
+package org.snomed.snowstorm.core.data.services.pojo;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Background rebuild of the semantic index of a branch, run one concept id range at a time.
+ * The checkpoint is also held in the branch metadata so that a failed or interrupted rebuild can be resumed by a new job.
+ */
+public class SemanticIndexRebuildJob {
+
+	public enum Status {
+		RUNNING, COMPLETED, FAILED
+	}
+
+	private final String id;
+	private final String branchPath;
+	private final Date startDate;
+	private Date endDate;
+	private volatile Status status;
+	private volatile String resumedFromCheckpoint;
+	private volatile String checkpoint;
+	private volatile int partitionsCompleted;
+	private volatile String errorMessage;
+	private final List<SemanticIndexRebuildProgress> progress = new CopyOnWriteArrayList<>();
+
+	public SemanticIndexRebuildJob(String id, String branchPath) {
+		this.id = id;
+		this.branchPath = branchPath;
+		startDate = new Date();
+		status = Status.RUNNING;
+	}
+
+	public void partitionCompleted(String checkpoint) {
+		this.checkpoint = checkpoint;
+		partitionsCompleted++;
+	}
+
+	public void finish(String errorMessage) {
+		this.errorMessage = errorMessage;
+		endDate = new Date();
+		status = errorMessage == null ? Status.COMPLETED : Status.FAILED;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getBranchPath() {
+		return branchPath;
+	}
+
+	public Date getStartDate() {
+		return startDate;
+	}
+
+	public Date getEndDate() {
+		return endDate;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public String getResumedFromCheckpoint() {
+		return resumedFromCheckpoint;
+	}
+
+	public void setResumedFromCheckpoint(String resumedFromCheckpoint) {
+		this.resumedFromCheckpoint = resumedFromCheckpoint;
+	}
+
+	public String getCheckpoint() {
+		return checkpoint;
+	}
+
+	public int getPartitionsCompleted() {
+		return partitionsCompleted;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	public List<SemanticIndexRebuildProgress> getProgress() {
+		return progress;
+	}
+}
@@ -0,0 +1,96 @@
+package org.snomed.snowstorm.core.data.services.pojo;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of the rebuild of one form of the semantic index on a branch.
+ */
+public class SemanticIndexRebuildProgress {
+
+	public enum Status {
+		RUNNING, COMPLETED, FAILED
+	}
+
+	private final String branchPath;
+	private final String form;
+	private final boolean dryRun;
+	private final Date startDate;
+	private Date endDate;
+	private volatile Status status;
+	private volatile String stage;
+	private final AtomicLong conceptsCompared = new AtomicLong();
+	private final AtomicLong conceptsToSave = new AtomicLong();
+	private final AtomicLong conceptsSaved = new AtomicLong();
+
+	public SemanticIndexRebuildProgress(String branchPath, String form, boolean dryRun) {
+		this.branchPath = branchPath;
+		this.form = form;
+		this.dryRun = dryRun;
+		startDate = new Date();
+		status = Status.RUNNING;
+		stage = "Loading graph";
+	}
+
+	public void setStage(String stage) {
+		this.stage = stage;
+	}
+
+	public void incrementConceptsCompared() {
+		conceptsCompared.incrementAndGet();
+	}
+
+	public void incrementConceptsToSave() {
+		conceptsToSave.incrementAndGet();
+	}
+
+	public void addConceptsSaved(int count) {
+		conceptsSaved.addAndGet(count);
+	}
+
+	public void finish(boolean success) {
+		endDate = new Date();
+		status = success ? Status.COMPLETED : Status.FAILED;
+		stage = null;
+	}
+
+	public String getBranchPath() {
+		return branchPath;
+	}
+
+	public String getForm() {
+		return form;
+	}
+
+	public boolean isDryRun() {
+		return dryRun;
+	}
+
+	public Date getStartDate() {
+		return startDate;
+	}
+
+	public Date getEndDate() {
+		return endDate;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public String getStage() {
+		return stage;
+	}
+
+	public long getConceptsCompared() {
+		return conceptsCompared.get();
+	}
+
+	public long getConceptsToSave() {
+		return conceptsToSave.get();
+	}
+
+	public long getConceptsSaved() {
+		return conceptsSaved.get();
+	}
+}
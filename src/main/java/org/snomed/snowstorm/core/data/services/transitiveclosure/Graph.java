@@ -0,0 +1,254 @@
+package org.snomed.snowstorm.core.data.services.transitiveclosure;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintStream;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Concept hierarchy held as int indexed nodes with parents in CSR arrays.
+ * Ancestors of every node are computed once, in topological order, each node reusing the ancestors of its parents.
+ * Nodes in, or below, a loop can not be ordered. Their ancestors are found by walking the graph when asked for,
+ * which is also where loops are reported.
+ */
+public class Graph {
+
+	private final long[] ids;
+	private final Long2IntOpenHashMap indexLookup;
+	private final int[] parentOffsets;
+	private final int[] parents;
+	private final BitSet updated;
+
+	// Ancestors of each ordered node are ancestors[ancestorStart[node]] up to ancestors[ancestorEnd[node]]
+	private final int[] ancestorStart;
+	private final int[] ancestorEnd;
+	private final int[] ancestors;
+	private final BitSet ordered;
+	private final BitSet ancestorOrSelfUpdated;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(Graph.class);
+
+	Graph(long[] ids, Long2IntOpenHashMap indexLookup, int[] parentOffsets, int[] parents, BitSet updated) {
+		this.ids = ids;
+		this.indexLookup = indexLookup;
+		this.parentOffsets = parentOffsets;
+		this.parents = parents;
+		this.updated = updated;
+
+		int nodeCount = ids.length;
+		ancestorStart = new int[nodeCount];
+		ancestorEnd = new int[nodeCount];
+		ordered = new BitSet(nodeCount);
+		ancestorOrSelfUpdated = new BitSet(nodeCount);
+
+		// Children in CSR form, used to release nodes once all their parents are done
+		int[] childOffsets = new int[nodeCount + 1];
+		for (int parent : parents) {
+			childOffsets[parent + 1]++;
+		}
+		for (int node = 0; node < nodeCount; node++) {
+			childOffsets[node + 1] += childOffsets[node];
+		}
+		int[] children = new int[parents.length];
+		int[] fill = new int[nodeCount];
+		int[] remainingParents = new int[nodeCount];
+		int[] queue = new int[nodeCount];
+		int queueEnd = 0;
+		for (int node = 0; node < nodeCount; node++) {
+			for (int i = parentOffsets[node]; i < parentOffsets[node + 1]; i++) {
+				int parent = parents[i];
+				children[childOffsets[parent] + fill[parent]++] = node;
+			}
+			remainingParents[node] = parentOffsets[node + 1] - parentOffsets[node];
+			if (remainingParents[node] == 0) {
+				queue[queueEnd++] = node;
+			}
+		}
+
+		// Kahn's algorithm, ancestors of a node are its parents plus their ancestors
+		IntArrayList ancestorList = new IntArrayList();
+		int[] lastSeenBy = new int[nodeCount];
+		for (int queueStart = 0; queueStart < queueEnd; queueStart++) {
+			int node = queue[queueStart];
+			int mark = node + 1;
+			boolean anyUpdated = updated.get(node);
+			ancestorStart[node] = ancestorList.size();
+			for (int i = parentOffsets[node]; i < parentOffsets[node + 1]; i++) {
+				int parent = parents[i];
+				if (lastSeenBy[parent] != mark) {
+					lastSeenBy[parent] = mark;
+					ancestorList.add(parent);
+				}
+				for (int a = ancestorStart[parent]; a < ancestorEnd[parent]; a++) {
+					int ancestor = ancestorList.getInt(a);
+					if (lastSeenBy[ancestor] != mark) {
+						lastSeenBy[ancestor] = mark;
+						ancestorList.add(ancestor);
+					}
+				}
+				anyUpdated |= ancestorOrSelfUpdated.get(parent);
+			}
+			ancestorEnd[node] = ancestorList.size();
+			ordered.set(node);
+			if (anyUpdated) {
+				ancestorOrSelfUpdated.set(node);
+			}
+			for (int i = childOffsets[node]; i < childOffsets[node + 1]; i++) {
+				int child = children[i];
+				if (--remainingParents[child] == 0) {
+					queue[queueEnd++] = child;
+				}
+			}
+		}
+		ancestors = ancestorList.toIntArray();
+	}
+
+	public int getNodeCount() {
+		return ids.length;
+	}
+
+	public long getId(int node) {
+		return ids[node];
+	}
+
+	/**
+	 * @return The node index of the concept or -1 if the concept is not in the graph.
+	 */
+	public int getIndex(long id) {
+		return indexLookup.get(id);
+	}
+
+	public int getParentCount(int node) {
+		return parentOffsets[node + 1] - parentOffsets[node];
+	}
+
+	public Set<Long> getParentIds(int node) {
+		Set<Long> parentIds = new LongOpenHashSet(getParentCount(node));
+		for (int i = parentOffsets[node]; i < parentOffsets[node + 1]; i++) {
+			parentIds.add(ids[parents[i]]);
+		}
+		return parentIds;
+	}
+
+	/**
+	 * @return For each node, the number of nodes which have it as an ancestor.
+	 */
+	public int[] getDescendantCounts() {
+		int[] descendantCounts = new int[ids.length];
+		for (int node = 0; node < ids.length; node++) {
+			if (ordered.get(node)) {
+				for (int a = ancestorStart[node]; a < ancestorEnd[node]; a++) {
+					descendantCounts[ancestors[a]]++;
+				}
+			} else {
+				BitSet visited = new BitSet();
+				collectAncestors(node, visited);
+				// A node in a loop is not its own descendant
+				visited.clear(node);
+				visited.stream().forEach(ancestor -> descendantCounts[ancestor]++);
+			}
+		}
+		return descendantCounts;
+	}
+
+	/**
+	 * @return For each node, the number of nodes which have it as a parent.
+	 */
+	public int[] getChildCounts() {
+		int[] childCounts = new int[ids.length];
+		for (int parent : parents) {
+			childCounts[parent]++;
+		}
+		return childCounts;
+	}
+
+	public boolean isAncestorOrSelfUpdated(int node) {
+		if (ordered.get(node)) {
+			return ancestorOrSelfUpdated.get(node);
+		}
+		if (updated.get(node)) {
+			return true;
+		}
+		BitSet visited = new BitSet();
+		collectAncestors(node, visited);
+		return visited.intersects(updated);
+	}
+
+	public Set<Long> getTransitiveClosure(int node, String path, boolean throwExceptionIfLoopFound) throws GraphBuilderException {
+		if (ordered.get(node)) {
+			Set<Long> ancestorIds = new LongOpenHashSet(ancestorEnd[node] - ancestorStart[node]);
+			for (int a = ancestorStart[node]; a < ancestorEnd[node]; a++) {
+				ancestorIds.add(ids[ancestors[a]]);
+			}
+			return ancestorIds;
+		}
+
+		long id = ids[node];
+		Set<Long> parentIds = throwExceptionIfLoopFound ? new LinkedHashSet<>() : new LongOpenHashSet();
+		collectAncestorIds(node, parentIds);
+		if (parentIds.contains(id)) {
+			String message = String.format("Loop found in transitive closure for concept %s on branch %s. The concept %s is in its own set of ancestors: %s", id, path, id, parentIds);
+			if (throwExceptionIfLoopFound) {
+				dumpTransitiveClosure(node);
+				throw new GraphBuilderException(message);
+			} else {
+				LOGGER.warn(message);
+			}
+			parentIds.remove(id);
+		}
+		return parentIds;
+	}
+
+	private void collectAncestorIds(int node, Set<Long> parentIds) {
+		for (int i = parentOffsets[node]; i < parentOffsets[node + 1]; i++) {
+			int parent = parents[i];
+			if (parentIds.add(ids[parent])) {
+				collectAncestorIds(parent, parentIds);
+			}
+		}
+	}
+
+	private void collectAncestors(int node, BitSet visited) {
+		for (int i = parentOffsets[node]; i < parentOffsets[node + 1]; i++) {
+			int parent = parents[i];
+			if (!visited.get(parent)) {
+				visited.set(parent);
+				collectAncestors(parent, visited);
+			}
+		}
+	}
+
+	private void dumpTransitiveClosure(int node) {
+		Set<Long> covered = new HashSet<>();
+		PrintStream printStream = System.out;
+		printStream.println();
+		printStream.println("Dumping transitive closure for concept " + ids[node] + ", order is BOTTOM UP!");
+		doDumpTransitiveClosure(node, covered, "- ", printStream);
+		printStream.println();
+	}
+
+	private void doDumpTransitiveClosure(int node, Set<Long> covered, String indent, PrintStream printStream) {
+		long id = ids[node];
+		printStream.print(indent + id);
+		if (covered.contains(id)) {
+			if (getParentCount(node) > 0) {
+				printStream.print("(parents already output)");
+			}
+			printStream.println();
+		} else {
+			covered.add(id);
+			indent = "|" + indent;
+			printStream.println();
+			for (int i = parentOffsets[node]; i < parentOffsets[node + 1]; i++) {
+				doDumpTransitiveClosure(parents[i], covered, indent, printStream);
+			}
+		}
+	}
+}
@@ -1,42 +1,108 @@
 package org.snomed.snowstorm.core.data.services.transitiveclosure;
 
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collection;
-import java.util.Map;
+import java.util.BitSet;
 
+/**
+ * Collects is-a edges using int node indexes and primitive lists, then builds a compact {@link Graph}.
+ */
 public class GraphBuilder {
 
-	private final Map<Long, Node> nodeLookup = new Long2ObjectOpenHashMap<>();
+	private final Long2IntOpenHashMap indexLookup = new Long2IntOpenHashMap();
+	private final LongArrayList ids = new LongArrayList();
+
+	// Edges in the order added, as node indexes
+	private final IntArrayList edgeSources = new IntArrayList();
+	private final IntArrayList edgeTargets = new IntArrayList();
+
+	// Per node, edges added before this position are ignored because the parents of the node were cleared
+	private final IntArrayList clearedBefore = new IntArrayList();
+	private final BitSet updated = new BitSet();
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(GraphBuilder.class);
 
-	public void addParent(Long sourceId, Long destinationId) {
+	public GraphBuilder() {
+		indexLookup.defaultReturnValue(-1);
+	}
+
+	public void addParent(long sourceId, long destinationId) {
 		LOGGER.debug("{} -> {}", sourceId, destinationId);
-		Node createNode = getCreateNode(sourceId);
-		createNode.addParent(getCreateNode(destinationId));
+		int source = getCreateNode(sourceId);
+		edgeSources.add(source);
+		edgeTargets.add(getCreateNode(destinationId));
 	}
 
-	private Node getCreateNode(Long id) {
-		Node node = nodeLookup.get(id);
-		if (node == null) {
-			node = new Node(id);
-			nodeLookup.put(node.getId(), node);
+	private int getCreateNode(long id) {
+		int node = indexLookup.get(id);
+		if (node == -1) {
+			node = ids.size();
+			indexLookup.put(id, node);
+			ids.add(id);
+			clearedBefore.add(0);
 		}
 		return node;
 	}
 
-	public Collection<Node> getNodes() {
-		return nodeLookup.values();
+	public int getNodeCount() {
+		return ids.size();
 	}
 
-	public int getNodeCount() {
-		return nodeLookup.size();
+	public void clearParentsAndMarkUpdated(long sourceId) {
+		int node = getCreateNode(sourceId);
+		updated.set(node);
+		clearedBefore.set(node, edgeSources.size());
 	}
 
-	public void clearParentsAndMarkUpdated(Long sourceId) {
-		getCreateNode(sourceId).markUpdated().getParents().clear();
+	/**
+	 * @return The graph, with the parents of each node in CSR form, ordered by concept id without duplicates.
+	 */
+	public Graph build() {
+		int nodeCount = ids.size();
+		long[] nodeIds = ids.toLongArray();
+
+		int[] parentOffsets = new int[nodeCount + 1];
+		for (int edge = 0; edge < edgeSources.size(); edge++) {
+			int source = edgeSources.getInt(edge);
+			if (edge >= clearedBefore.getInt(source)) {
+				parentOffsets[source + 1]++;
+			}
+		}
+		for (int node = 0; node < nodeCount; node++) {
+			parentOffsets[node + 1] += parentOffsets[node];
+		}
+		int[] parents = new int[parentOffsets[nodeCount]];
+		int[] fill = new int[nodeCount];
+		for (int edge = 0; edge < edgeSources.size(); edge++) {
+			int source = edgeSources.getInt(edge);
+			if (edge >= clearedBefore.getInt(source)) {
+				parents[parentOffsets[source] + fill[source]++] = edgeTargets.getInt(edge);
+			}
+		}
+
+		// Sort the parents of each node by concept id and drop duplicate edges, compacting in place
+		int write = 0;
+		for (int node = 0; node < nodeCount; node++) {
+			int from = parentOffsets[node];
+			int to = parentOffsets[node + 1];
+			IntArrays.quickSort(parents, from, to, (a, b) -> Long.compare(nodeIds[a], nodeIds[b]));
+			parentOffsets[node] = write;
+			for (int i = from; i < to; i++) {
+				if (i == from || parents[i] != parents[i - 1]) {
+					parents[write++] = parents[i];
+				}
+			}
+		}
+		parentOffsets[nodeCount] = write;
+		if (write < parents.length) {
+			parents = IntArrays.trim(parents, write);
+		}
+
+		return new Graph(nodeIds, new Long2IntOpenHashMap(indexLookup), parentOffsets, parents, (BitSet) updated.clone());
 	}
 }
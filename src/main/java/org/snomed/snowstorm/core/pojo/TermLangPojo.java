@@ -3,7 +3,9 @@ package org.snomed.snowstorm.core.pojo;
 import com.fasterxml.jackson.annotation.JsonView;
 import org.snomed.snowstorm.rest.View;
 
-public class TermLangPojo {
+import java.io.Serializable;
+
+public class TermLangPojo implements Serializable {
 
 	private String term;
 	private String lang;
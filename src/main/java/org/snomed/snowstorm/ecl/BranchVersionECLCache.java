@@ -1,6 +1,16 @@
 package org.snomed.snowstorm.ecl;
 
-import org.springframework.data.domain.Page;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.snomed.langauges.ecl.domain.expressionconstraint.SubExpressionConstraint;
+import org.snomed.langauges.ecl.domain.refinement.Operator;
+import org.snomed.snowstorm.ecl.domain.expressionconstraint.SCompoundExpressionConstraint;
+import org.snomed.snowstorm.ecl.domain.expressionconstraint.SExpressionConstraint;
+import org.snomed.snowstorm.ecl.domain.expressionconstraint.SSubExpressionConstraint;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.elasticsearch.core.SearchAfterPageRequest;
 
@@ -10,15 +20,37 @@ import java.util.concurrent.atomic.AtomicLong;
 
 public class BranchVersionECLCache {
 
+	// Rough heap cost of the cache entry and key objects.
+	private static final int ENTRY_OVERHEAD_BYTES = 192;
+
 	private final Date head;
 
-	private final Map<ECLCacheEntry, Page<Long>> eclToConceptsCache;
+	private final Cache<ECLCacheEntry, CachedConceptIds> eclToConceptsCache;
+
+	private final ECLResultsCache resultsCache;
 
 	private final Map<Calendar, AtomicLong> dayHits = new ConcurrentHashMap<>();
 
-	protected BranchVersionECLCache(Date branchHeadTimestamp) {
+	private final AtomicLong evictions = new AtomicLong();
+
+	private volatile long lastAccessed;
+
+	protected BranchVersionECLCache(Date branchHeadTimestamp, long maxBytes, ECLResultsCache resultsCache) {
 		head = branchHeadTimestamp;
-		eclToConceptsCache = new ConcurrentHashMap<>();
+		this.resultsCache = resultsCache;
+		// Caffeine's eviction policy takes both the size of the result and how recently and frequently it has been used into account.
+		eclToConceptsCache = Caffeine.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher(BranchVersionECLCache::estimateSizeInBytes)
+				.removalListener((ECLCacheEntry key, CachedConceptIds value, RemovalCause cause) -> {
+					if (cause.wasEvicted()) {
+						recordEviction();
+					}
+				})
+				// Run maintenance on the calling thread so that memory use is accurate straight after a put
+				.executor(Runnable::run)
+				.build();
+		lastAccessed = System.currentTimeMillis();
 	}
 
 	public Date getHead() {
@@ -30,20 +62,144 @@ public class BranchVersionECLCache {
 		return !head.equals(timepoint);
 	}
 
-	public Page<Long> get(String ecl, boolean stated, PageRequest pageRequest) {
+	public CachedConceptIds get(String ecl, boolean stated, PageRequest pageRequest) {
+		lastAccessed = System.currentTimeMillis();
+		ECLCacheEntry key = new ECLCacheEntry(ecl, stated, pageRequest);
+		return eclToConceptsCache.getIfPresent(key);
+	}
+
+	public void put(String ecl, boolean stated, PageRequest pageRequest, CachedConceptIds conceptIds) {
+		put(ecl, stated, pageRequest, conceptIds, null);
+	}
+
+	/**
+	 * @param hierarchyConceptIds Concepts used by the expression if it only depends on the hierarchy, otherwise null.
+	 *                            Allows the entry to be carried over to the next version of the branch.
+	 */
+	public void put(String ecl, boolean stated, PageRequest pageRequest, CachedConceptIds conceptIds, long[] hierarchyConceptIds) {
+		lastAccessed = System.currentTimeMillis();
 		ECLCacheEntry key = new ECLCacheEntry(ecl, stated, pageRequest);
-		Page<Long> longs = eclToConceptsCache.get(key);
-		return longs;
+		key.hierarchyConceptIds = hierarchyConceptIds;
+		eclToConceptsCache.put(key, conceptIds);
+		resultsCache.enforceMaxSize();
 	}
 
-	public void put(String ecl, boolean stated, PageRequest pageRequest, Page<Long> page) {
-		eclToConceptsCache.put(new ECLCacheEntry(ecl, stated, pageRequest), page);
+	/**
+	 * Copies entries from the previous version of the branch which can not have been changed by the semantic changes.
+	 * @return The number of entries carried over.
+	 */
+	int carryOverUnaffectedEntries(BranchVersionECLCache previous, SemanticChanges semanticChanges) {
+		int carriedOver = 0;
+		for (Map.Entry<ECLCacheEntry, CachedConceptIds> entry : previous.eclToConceptsCache.asMap().entrySet()) {
+			ECLCacheEntry key = entry.getKey();
+			if (key.hierarchyConceptIds != null && !semanticChanges.affects(key.stated, key.hierarchyConceptIds)) {
+				eclToConceptsCache.put(key, entry.getValue());
+				carriedOver++;
+			}
+		}
+		return carriedOver;
+	}
+
+	/**
+	 * Results of expressions made only of concept ids, hierarchy operators and compounds of those
+	 * only change if one of the concepts used, or a descendant of one, has a changed semantic index entry.
+	 * @return Concepts used by the expression, or null if the result may depend on anything other than the hierarchy of those concepts.
+	 */
+	static long[] getHierarchyConceptIds(SExpressionConstraint expressionConstraint) {
+		LongSet conceptIds = new LongOpenHashSet();
+		return collectHierarchyConceptIds(expressionConstraint, conceptIds) ? conceptIds.toLongArray() : null;
+	}
+
+	private static boolean collectHierarchyConceptIds(Object expressionConstraint, LongSet conceptIds) {
+		if (expressionConstraint instanceof SSubExpressionConstraint) {
+			SSubExpressionConstraint constraint = (SSubExpressionConstraint) expressionConstraint;
+			if (constraint.isAnyFiltersOrSupplements() || constraint.getOperator() == Operator.memberOf) {
+				return false;
+			}
+			if (constraint.getConceptId() != null) {
+				try {
+					conceptIds.add(Long.parseLong(constraint.getConceptId()));
+					return true;
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			}
+			// Nested expressions are only accepted as brackets, without an operator
+			return constraint.getOperator() == null && collectHierarchyConceptIds(constraint.getNestedExpressionConstraint(), conceptIds);
+		} else if (expressionConstraint instanceof SCompoundExpressionConstraint) {
+			SCompoundExpressionConstraint compound = (SCompoundExpressionConstraint) expressionConstraint;
+			List<SubExpressionConstraint> subConstraints = new ArrayList<>();
+			if (compound.getConjunctionExpressionConstraints() != null) {
+				subConstraints.addAll(compound.getConjunctionExpressionConstraints());
+			} else if (compound.getDisjunctionExpressionConstraints() != null) {
+				subConstraints.addAll(compound.getDisjunctionExpressionConstraints());
+			} else if (compound.getExclusionExpressionConstraints() != null) {
+				subConstraints.add(compound.getExclusionExpressionConstraints().getFirst());
+				subConstraints.add(compound.getExclusionExpressionConstraints().getSecond());
+			}
+			if (subConstraints.isEmpty()) {
+				return false;
+			}
+			for (SubExpressionConstraint subConstraint : subConstraints) {
+				if (!collectHierarchyConceptIds(subConstraint, conceptIds)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		// Refinements, dotted attributes and wildcards depend on more than the hierarchy
+		return false;
 	}
 
 	static String normaliseEclString(String ecl) {
 		return ecl.toLowerCase().replaceAll("\\|[^|]*\\|", "").replace("  ", " ").replace(" and ", ", ").trim();
 	}
 
+	static int estimateSizeInBytes(ECLCacheEntry key, CachedConceptIds conceptIds) {
+		long bytes = ENTRY_OVERHEAD_BYTES + key.ecl.length() * 2L + conceptIds.estimateSizeInBytes();
+		return (int) Math.min(bytes, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return Estimated heap used by the results held in this cache, in bytes.
+	 */
+	public long getBytesUsed() {
+		return eclToConceptsCache.policy().eviction()
+				.map(eviction -> eviction.weightedSize().orElse(0L))
+				.orElse(0L);
+	}
+
+	public long getLastAccessed() {
+		return lastAccessed;
+	}
+
+	/**
+	 * Evicts the entry least likely to be used again.
+	 * @return true if an entry was evicted.
+	 */
+	boolean evictColdest() {
+		Optional<Policy.Eviction<ECLCacheEntry, CachedConceptIds>> eviction = eclToConceptsCache.policy().eviction();
+		if (eviction.isEmpty()) {
+			return false;
+		}
+		Set<ECLCacheEntry> coldest = eviction.get().coldest(1).keySet();
+		if (coldest.isEmpty()) {
+			return false;
+		}
+		eclToConceptsCache.invalidateAll(coldest);
+		recordEviction();
+		return true;
+	}
+
+	void clear() {
+		eclToConceptsCache.invalidateAll();
+	}
+
+	private void recordEviction() {
+		evictions.incrementAndGet();
+		resultsCache.recordEviction();
+	}
+
 	public void recordHit() {
 		final Calendar today = getToday();
 		AtomicLong hitCount = dayHits.get(today);
@@ -62,7 +218,9 @@ public class BranchVersionECLCache {
 
 	public Map<String, Long> getStats() {
 		Map<String, Long> stats = new HashMap<>();
-		stats.put("size", (long) eclToConceptsCache.size());
+		stats.put("size", eclToConceptsCache.estimatedSize());
+		stats.put("bytes-used", getBytesUsed());
+		stats.put("evictions", evictions.get());
 		stats.put("hits-today", dayHits.getOrDefault(getToday(), new AtomicLong()).longValue());
 		addStat(stats, 7);
 		addStat(stats, 30);
@@ -90,13 +248,16 @@ public class BranchVersionECLCache {
 		return today;
 	}
 
-	private static final class ECLCacheEntry {
+	static final class ECLCacheEntry {
 
 		private final String ecl;
 		private final boolean stated;
 		private final PageRequest pageRequest;
 		private final Object[] searchAfter;
 
+		// Not part of the key, see getHierarchyConceptIds
+		private long[] hierarchyConceptIds;
+
 		public ECLCacheEntry(String ecl, boolean stated, PageRequest pageRequest) {
 			this.ecl = ecl != null ? normaliseEclString(ecl) : "";
 			this.stated = stated;
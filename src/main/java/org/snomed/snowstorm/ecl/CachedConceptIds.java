@@ -0,0 +1,244 @@
+package org.snomed.snowstorm.ecl;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.snomed.snowstorm.core.util.SearchAfterPage;
+import org.snomed.snowstorm.core.util.SearchAfterPageImpl;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.elasticsearch.core.SearchAfterPageRequest;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.snomed.snowstorm.ecl.ConceptSelectorHelper.CONCEPT_ID_SEARCH_AFTER_EXTRACTOR;
+
+/**
+ * Compact form of an ECL result held in the cache.
+ * Concept ids are kept in a primitive array, in result order, rather than as a list of boxed Longs.
+ * Paging, search-after and filtering work directly on the array so only the ids of the returned page are boxed.
+ */
+public final class CachedConceptIds {
+
+	// Rough heap cost of this object and the array header.
+	private static final int OVERHEAD_BYTES = 64;
+
+	private final long[] conceptIds;
+
+	// Most results are sorted by concept id descending, which allows lookups by binary search.
+	private final boolean sortedDescending;
+
+	// Null if this holds the full result rather than one page of it.
+	private final Pageable pageable;
+
+	private final long totalElements;
+
+	// Set if the cached page supported search-after
+	private final Object[] searchAfter;
+
+	private CachedConceptIds(long[] conceptIds, Pageable pageable, long totalElements, Object[] searchAfter) {
+		this.conceptIds = conceptIds;
+		this.sortedDescending = isSortedDescending(conceptIds);
+		this.pageable = pageable;
+		this.totalElements = totalElements;
+		this.searchAfter = searchAfter;
+	}
+
+	/**
+	 * @param page Page of results selected by ECL.
+	 * @param pageRequest The page requested, null if the page holds the full result.
+	 */
+	public static CachedConceptIds of(Page<Long> page, PageRequest pageRequest) {
+		long[] ids = toArray(page.getContent());
+		if (pageRequest == null) {
+			return new CachedConceptIds(ids, null, ids.length, null);
+		}
+		Object[] searchAfter = page instanceof SearchAfterPage ? ((SearchAfterPage<Long>) page).getSearchAfter() : null;
+		return new CachedConceptIds(ids, page.getPageable(), page.getTotalElements(), searchAfter);
+	}
+
+	/**
+	 * @return The cached page or, if the full result is cached, the requested page of it.
+	 */
+	public Page<Long> getPage(PageRequest pageRequest) {
+		if (pageable != null) {
+			if (searchAfter != null) {
+				return new SearchAfterPageImpl<>(Collections.unmodifiableList(LongArrayList.wrap(conceptIds)), pageable, totalElements, searchAfter);
+			}
+			return new PageImpl<>(Collections.unmodifiableList(LongArrayList.wrap(conceptIds)), pageable, totalElements);
+		}
+		return toPage(conceptIds, sortedDescending, pageRequest);
+	}
+
+	/**
+	 * Intersects the full result with the concept id filter and returns the requested page, keeping the result order.
+	 */
+	public Page<Long> getFilteredPage(Collection<Long> conceptIdFilter, PageRequest pageRequest) {
+		if (pageable != null) {
+			throw new IllegalStateException("Only a full result can be filtered.");
+		}
+		return toPage(filter(conceptIdFilter), sortedDescending, pageRequest);
+	}
+
+	long[] filter(Collection<Long> conceptIdFilter) {
+		if (conceptIdFilter.isEmpty() || conceptIds.length == 0) {
+			return new long[0];
+		}
+		LongSet filterSet = conceptIdFilter instanceof LongSet ? (LongSet) conceptIdFilter : new LongOpenHashSet(conceptIdFilter);
+		LongArrayList matches = new LongArrayList();
+		if (sortedDescending && (long) filterSet.size() * log2(conceptIds.length) < conceptIds.length) {
+			// Small filter, look up each id
+			for (long conceptId : filterSet) {
+				if (indexOf(conceptId) >= 0) {
+					matches.add(conceptId);
+				}
+			}
+			long[] matchArray = matches.toLongArray();
+			Arrays.sort(matchArray);
+			reverse(matchArray);
+			return matchArray;
+		}
+		for (long conceptId : conceptIds) {
+			if (filterSet.contains(conceptId)) {
+				matches.add(conceptId);
+			}
+		}
+		return matches.toLongArray();
+	}
+
+	/**
+	 * @return This full result, or a copy of it with the ids sorted by concept id descending.
+	 */
+	public CachedConceptIds sortedDescending() {
+		if (sortedDescending) {
+			return this;
+		}
+		long[] sorted = conceptIds.clone();
+		Arrays.sort(sorted);
+		reverse(sorted);
+		return new CachedConceptIds(sorted, pageable, totalElements, searchAfter);
+	}
+
+	public boolean contains(long conceptId) {
+		return indexOf(conceptId) >= 0;
+	}
+
+	public int size() {
+		return conceptIds.length;
+	}
+
+	public boolean isFullResult() {
+		return pageable == null;
+	}
+
+	public int estimateSizeInBytes() {
+		long bytes = OVERHEAD_BYTES + conceptIds.length * 8L;
+		return (int) Math.min(bytes, Integer.MAX_VALUE);
+	}
+
+	private int indexOf(long conceptId) {
+		return indexOf(conceptIds, sortedDescending, conceptId);
+	}
+
+	static Page<Long> toPage(long[] ids, boolean sortedDescending, PageRequest pageRequest) {
+		if (pageRequest == null) {
+			if (ids.length == 0) {
+				return new PageImpl<>(Collections.emptyList(), Pageable.unpaged(), 0);
+			}
+			// Full result, no copy
+			return new LongArrayPage(ids, PageRequest.of(0, ids.length));
+		}
+
+		int offset;
+		if (pageRequest instanceof SearchAfterPageRequest) {
+			Object[] searchAfter = ((SearchAfterPageRequest) pageRequest).getSearchAfter();
+			Long searchAfterId = getSearchAfterConceptId(searchAfter);
+			// Page starts after the search-after item. An unknown item gives an empty page.
+			int index = searchAfterId != null ? indexOf(ids, sortedDescending, searchAfterId) : -1;
+			offset = index >= 0 ? index + 1 : ids.length;
+		} else {
+			offset = (int) Math.min(pageRequest.getOffset(), ids.length);
+		}
+		int end = (int) Math.min((long) offset + pageRequest.getPageSize(), ids.length);
+		long[] pageOfIds = Arrays.copyOfRange(ids, offset, end);
+		Long lastItem = pageOfIds.length > 0 ? pageOfIds[pageOfIds.length - 1] : null;
+		return new SearchAfterPageImpl<>(LongArrayList.wrap(pageOfIds), pageRequest, ids.length, CONCEPT_ID_SEARCH_AFTER_EXTRACTOR.apply(lastItem));
+	}
+
+	private static Long getSearchAfterConceptId(Object[] searchAfter) {
+		if (searchAfter == null || searchAfter.length != 1 || searchAfter[0] == null) {
+			return null;
+		}
+		Object value = searchAfter[0];
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		try {
+			return Long.parseLong(value.toString());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static int indexOf(long[] ids, boolean sortedDescending, long conceptId) {
+		if (sortedDescending) {
+			int low = 0;
+			int high = ids.length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				long midValue = ids[mid];
+				if (midValue > conceptId) {
+					low = mid + 1;
+				} else if (midValue < conceptId) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+		for (int i = 0; i < ids.length; i++) {
+			if (ids[i] == conceptId) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isSortedDescending(long[] ids) {
+		for (int i = 1; i < ids.length; i++) {
+			if (ids[i - 1] <= ids[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long[] toArray(Collection<Long> ids) {
+		if (ids instanceof LongArrayList) {
+			return ((LongArrayList) ids).toLongArray();
+		}
+		long[] array = new long[ids.size()];
+		int i = 0;
+		for (Long id : ids) {
+			array[i++] = id;
+		}
+		return array;
+	}
+
+	private static void reverse(long[] array) {
+		for (int i = 0, j = array.length - 1; i < j; i++, j--) {
+			long tmp = array[i];
+			array[i] = array[j];
+			array[j] = tmp;
+		}
+	}
+
+	private static int log2(int value) {
+		return 32 - Integer.numberOfLeadingZeros(value);
+	}
+}
@@ -4,6 +4,7 @@ import com.google.common.collect.Sets;
 import io.kaicode.elasticvc.api.BranchCriteria;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongComparators;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import org.apache.commons.lang3.NotImplementedException;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
@@ -35,22 +36,28 @@ public class ConceptSelectorHelper {
 	public static final String MISSING = "missing";
 	public static final Long MISSING_LONG = 111L;
 
+	// Largest set of concept ids worth passing down as a filter rather than selecting everything and intersecting afterwards
+	public static final int FILTER_PUSH_DOWN_MAX_SIZE = 10_000;
+
 	public static final Function<Long, Object[]> CONCEPT_ID_SEARCH_AFTER_EXTRACTOR =
 			conceptId -> conceptId == null ? null : SearchAfterHelper.convertToTokenAndBack(new Object[]{conceptId});
 
 	private ConceptSelectorHelper() {
 	}
 
+	/**
+	 * Selects all concepts matching a sub-expression.
+	 * The result is memoised per branch version, shared with top level queries and other sub-expressions.
+	 */
 	public static Page<Long> select(SExpressionConstraint sExpressionConstraint, RefinementBuilder refinementBuilder) {
-		return select(sExpressionConstraint, refinementBuilder.getBranchCriteria(), refinementBuilder.isStated(),
-				null, null, refinementBuilder.getEclContentService(), false);
+		return refinementBuilder.getEclContentService().selectAllWithCaching(sExpressionConstraint, refinementBuilder.getBranchCriteria(), refinementBuilder.isStated());
 	}
 
 	public static Page<Long> select(SExpressionConstraint sExpressionConstraint, BranchCriteria branchCriteria, boolean stated,
 			Collection<Long> conceptIdFilter, PageRequest pageRequest, ECLContentService eclContentService, boolean triedCache) {
 
 		BoolQueryBuilder query = getBranchAndStatedQuery(branchCriteria.getEntityBranchCriteria(QueryConcept.class), stated);
-		RefinementBuilder refinementBuilder = new RefinementBuilderImpl(query, branchCriteria, stated, eclContentService);
+		RefinementBuilder refinementBuilder = new RefinementBuilderImpl(query, branchCriteria, stated, eclContentService, conceptIdFilter);
 
 		// This can add an inclusionFilter to the refinementBuilder or run pre-selections to apply filters
 
@@ -58,7 +65,12 @@ public class ConceptSelectorHelper {
 		sExpressionConstraint.addCriteria(refinementBuilder, prefetchResult::set, triedCache);
 
 		if (prefetchResult.isSet()) {
-			return getPage(pageRequest, prefetchResult.getIds());
+			List<Long> ids = prefetchResult.getIds();
+			if (conceptIdFilter != null) {
+				Set<Long> filter = conceptIdFilter instanceof Set ? (Set<Long>) conceptIdFilter : new LongOpenHashSet(conceptIdFilter);
+				ids = ids.stream().filter(filter::contains).collect(toList());
+			}
+			return getPage(pageRequest, ids);
 		} else {
 			return fetchIds(query, conceptIdFilter, refinementBuilder, pageRequest);
 		}
@@ -103,7 +115,7 @@ public class ConceptSelectorHelper {
 			searchQueryBuilder.withPageable(LARGE_PAGE);
 			List<Long> addIds = new LongArrayList();
 			try (SearchHitsIterator<QueryConcept> stream = conceptSelector.streamQueryResults(searchQueryBuilder.build())) {
-				stream.forEachRemaining(hit -> {
+				ECLProfile.forEachDocument(stream, hit -> {
 					addIds.add(hit.getContent().getConceptIdL());
 				});
 			}
@@ -150,7 +162,7 @@ public class ConceptSelectorHelper {
 			searchQueryBuilder.withPageable(LARGE_PAGE);
 			List<Long> addIds = new LongArrayList();
 			try (SearchHitsIterator<QueryConcept> stream = eclContentService.streamQueryResults(searchQueryBuilder.build())) {
-				stream.forEachRemaining(hit -> {
+				ECLProfile.forEachDocument(stream, hit -> {
 					if (inclusionFilter == null || inclusionFilter.apply(hit.getContent())) {
 						addIds.add(hit.getContent().getConceptIdL());
 					}
@@ -184,6 +196,7 @@ public class ConceptSelectorHelper {
 	private static String[] getRequiredFields(Function<QueryConcept, Boolean> inclusionFilter) {
 		Set<String> fields = Sets.newHashSet(QueryConcept.Fields.CONCEPT_ID);
 		if (inclusionFilter != null) {
+			fields.add(QueryConcept.Fields.ATTR_PACKED);
 			fields.add(QueryConcept.Fields.ATTR_MAP);
 		}
 		return fields.toArray(new String[]{});
@@ -0,0 +1,49 @@
+package org.snomed.snowstorm.ecl;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+/**
+ * The result of one expression in a batch ECL evaluation.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ECLBatchResult {
+
+	private final String ecl;
+	private Long total;
+	private List<Long> conceptIds;
+	private String error;
+
+	public ECLBatchResult(String ecl) {
+		this.ecl = ecl;
+	}
+
+	public String getEcl() {
+		return ecl;
+	}
+
+	public Long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return The matching concepts, limited to the requested concepts when testing membership, otherwise to the first page.
+	 */
+	public List<Long> getConceptIds() {
+		return conceptIds;
+	}
+
+	void setResult(long total, List<Long> conceptIds) {
+		this.total = total;
+		this.conceptIds = conceptIds;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	void setError(String error) {
+		this.error = error;
+	}
+}
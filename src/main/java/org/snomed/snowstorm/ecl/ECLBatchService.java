@@ -0,0 +1,210 @@
+package org.snomed.snowstorm.ecl;
+
+import io.kaicode.elasticvc.api.BranchCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.langauges.ecl.ECLException;
+import org.snomed.langauges.ecl.ECLQueryBuilder;
+import org.snomed.langauges.ecl.domain.expressionconstraint.SubExpressionConstraint;
+import org.snomed.snowstorm.core.util.TimerUtil;
+import org.snomed.snowstorm.ecl.domain.expressionconstraint.*;
+import org.snomed.snowstorm.ecl.validation.ECLValidator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Evaluates many ECL expressions against one branch version in a single request.
+ * Duplicate expressions are run once. Sub-expressions that have to be prefetched and are shared by more than one expression
+ * are selected first, through the ECL results cache, so that the expressions using them do not repeat the work.
+ * Expressions then run in parallel on a bounded pool.
+ */
+@Service
+public class ECLBatchService {
+
+	@Autowired
+	private ECLQueryService eclQueryService;
+
+	@Autowired
+	private ECLQueryBuilder eclQueryBuilder;
+
+	@Autowired
+	private ECLContentService eclContentService;
+
+	@Autowired
+	private ECLValidator eclValidator;
+
+	@Value("${ecl.batch.threads}")
+	private int threads;
+
+	@Value("${ecl.batch.max-expressions}")
+	private int maxExpressions;
+
+	private ExecutorService executorService;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@PostConstruct
+	public void init() {
+		executorService = Executors.newFixedThreadPool(threads);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executorService.shutdown();
+	}
+
+	/**
+	 * @param conceptIds Concepts to test for membership of each expression. If null the first page of each result is returned.
+	 * @param limit Size of the first page, when not testing membership.
+	 * @return One result per expression, in the order given.
+	 */
+	public List<ECLBatchResult> evaluate(List<String> ecls, BranchCriteria branchCriteria, boolean stated, Collection<Long> conceptIds, int limit) {
+		if (ecls.size() > maxExpressions) {
+			throw new IllegalArgumentException(String.format("A batch can contain at most %s expressions.", maxExpressions));
+		}
+		TimerUtil timer = new TimerUtil("ECL batch of " + ecls.size());
+
+		// Parse and remove duplicates
+		Map<String, ECLBatchResult> results = new LinkedHashMap<>();
+		Map<String, SExpressionConstraint> expressions = new LinkedHashMap<>();
+		for (String ecl : ecls) {
+			if (results.containsKey(ecl)) {
+				continue;
+			}
+			ECLBatchResult result = new ECLBatchResult(ecl);
+			results.put(ecl, result);
+			try {
+				SExpressionConstraint expressionConstraint = (SExpressionConstraint) eclQueryBuilder.createQuery(ecl);
+				if (ECLQueryService.isMemberFieldsSearch(expressionConstraint)) {
+					result.setError("ECL requesting specific refset member fields, can not return concept ids.");
+				} else {
+					expressions.put(ecl, expressionConstraint);
+				}
+			} catch (RuntimeException e) {
+				result.setError(getErrorMessage(e));
+			}
+		}
+
+		if (conceptIds == null) {
+			// When testing membership the concepts are passed down as a filter and there is little to share
+			Set<String> shared = findSharedPrefetches(expressions.values());
+			runAll(shared, ecl -> {
+				try {
+					eclContentService.selectAllWithCaching((SExpressionConstraint) eclQueryBuilder.createQuery(ecl), branchCriteria, stated);
+				} catch (RuntimeException e) {
+					// Reported against the expressions using it
+					logger.debug("Failed to select shared sub-expression {}", ecl, e);
+				}
+			});
+			timer.checkpoint(String.format("Selected %s shared sub-expressions", shared.size()));
+		}
+
+		Set<Long> conceptIdFilter = conceptIds != null ? new HashSet<>(conceptIds) : null;
+		runAll(expressions.keySet(), ecl -> {
+			ECLBatchResult result = results.get(ecl);
+			try {
+				// Concepts which do not exist or are inactive are reported as they are for a single expression
+				eclValidator.validate(ecl, branchCriteria.getBranchPath());
+				Page<Long> page;
+				if (conceptIdFilter != null) {
+					page = eclQueryService.selectConceptIds(ecl, branchCriteria, stated, conceptIdFilter);
+				} else {
+					page = eclQueryService.selectConceptIds(ecl, branchCriteria, stated, PageRequest.of(0, limit));
+				}
+				result.setResult(page.getTotalElements(), page.getContent());
+			} catch (RuntimeException e) {
+				// One expression failing must not fail the batch
+				if (!(e instanceof ECLException || e instanceof IllegalArgumentException)) {
+					logger.warn("Failed to evaluate ECL {} in batch.", ecl, e);
+				}
+				result.setError(getErrorMessage(e));
+			}
+		});
+		timer.finish();
+
+		List<ECLBatchResult> ordered = new ArrayList<>();
+		for (String ecl : ecls) {
+			ordered.add(results.get(ecl));
+		}
+		return ordered;
+	}
+
+	private static String getErrorMessage(RuntimeException e) {
+		return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+	}
+
+	/**
+	 * @return Sub-expressions that are prefetched when running the expressions and appear in more than one of them.
+	 */
+	static Set<String> findSharedPrefetches(Collection<SExpressionConstraint> expressions) {
+		Map<String, Integer> usage = new HashMap<>();
+		for (SExpressionConstraint expression : expressions) {
+			Set<String> prefetches = new HashSet<>();
+			collectPrefetches(expression, prefetches);
+			prefetches.forEach(ecl -> usage.merge(ecl, 1, Integer::sum));
+		}
+		Set<String> shared = new LinkedHashSet<>();
+		usage.forEach((ecl, count) -> {
+			if (count > 1) {
+				shared.add(ecl);
+			}
+		});
+		return shared;
+	}
+
+	private static void collectPrefetches(Object constraint, Set<String> prefetches) {
+		if (constraint instanceof SSubExpressionConstraint) {
+			SSubExpressionConstraint sub = (SSubExpressionConstraint) constraint;
+			if (sub.isAnyFiltersOrSupplements()) {
+				// Filters are applied to the unfiltered selection, which is cached
+				prefetches.add(sub.cloneWithoutFiltersOrSupplements().toEclString());
+			}
+			if (sub.getNestedExpressionConstraint() != null) {
+				collectPrefetches(sub.getNestedExpressionConstraint(), prefetches);
+			}
+		} else if (constraint instanceof SCompoundExpressionConstraint) {
+			SCompoundExpressionConstraint compound = (SCompoundExpressionConstraint) constraint;
+			List<SubExpressionConstraint> operands = new ArrayList<>();
+			if (compound.getConjunctionExpressionConstraints() != null) {
+				operands.addAll(compound.getConjunctionExpressionConstraints());
+			} else if (compound.getDisjunctionExpressionConstraints() != null) {
+				operands.addAll(compound.getDisjunctionExpressionConstraints());
+			} else {
+				operands.add(compound.getExclusionExpressionConstraints().getFirst());
+				operands.add(compound.getExclusionExpressionConstraints().getSecond());
+			}
+			for (SubExpressionConstraint operand : operands) {
+				collectPrefetches(operand, prefetches);
+			}
+		} else if (constraint instanceof SRefinedExpressionConstraint) {
+			collectPrefetches(((SRefinedExpressionConstraint) constraint).getSubexpressionConstraint(), prefetches);
+		}
+	}
+
+	private void runAll(Collection<String> ecls, Consumer<String> task) {
+		List<Future<?>> futures = new ArrayList<>();
+		for (String ecl : ecls) {
+			futures.add(executorService.submit(() -> task.accept(ecl)));
+		}
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while evaluating ECL batch.", e);
+			} catch (ExecutionException e) {
+				logger.error("Failed to evaluate ECL in batch.", e.getCause());
+				throw new IllegalStateException("Failed to evaluate ECL in batch.", e.getCause());
+			}
+		}
+	}
+}
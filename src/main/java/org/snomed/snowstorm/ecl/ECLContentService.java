@@ -10,6 +10,7 @@ import org.elasticsearch.index.query.TermsQueryBuilder;
 import org.snomed.langauges.ecl.domain.ConceptReference;
 import org.snomed.langauges.ecl.domain.expressionconstraint.SubExpressionConstraint;
 import org.snomed.langauges.ecl.domain.filter.*;
+import org.snomed.langauges.ecl.domain.refinement.Operator;
 import org.snomed.snowstorm.core.data.domain.*;
 import org.snomed.snowstorm.core.data.services.DescriptionService;
 import org.snomed.snowstorm.core.data.services.QueryService;
@@ -26,6 +27,7 @@ import org.springframework.context.annotation.Lazy;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
 import org.springframework.data.elasticsearch.core.SearchHits;
 import org.springframework.data.elasticsearch.core.SearchHitsIterator;
@@ -35,6 +37,7 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 
 import static io.kaicode.elasticvc.api.ComponentService.LARGE_PAGE;
@@ -69,6 +72,12 @@ public class ECLContentService {
 	@Lazy
 	private ECLQueryService eclQueryService;
 
+	@Autowired
+	private HierarchyIndexService hierarchyIndexService;
+
+	@Autowired
+	private ECLParallelExecutor parallelExecutor;
+
 	private SExpressionConstraint historyMaxECL;
 
 	private static final List<Long> HISTORY_PROFILE_MIN = Collections.singletonList(parseLong(Concepts.REFSET_SAME_AS_ASSOCIATION));
@@ -84,16 +93,36 @@ public class ECLContentService {
 	}
 
 	public List<Long> fetchAllIdsWithCaching(SSubExpressionConstraint sSubExpressionConstraint, BranchCriteria branchCriteria, boolean stated) {
-		return eclQueryService.doSelectConceptIds(sSubExpressionConstraint, branchCriteria, stated, null, null).getContent();
+		return selectAllWithCaching(sSubExpressionConstraint, branchCriteria, stated).getContent();
+	}
+
+	/**
+	 * Selects the full result of a sub-expression using the branch version ECL cache,
+	 * so that results are shared between queries which have parts in common.
+	 */
+	public Page<Long> selectAllWithCaching(SExpressionConstraint expressionConstraint, BranchCriteria branchCriteria, boolean stated) {
+		return eclQueryService.doSelectConceptIds(expressionConstraint, branchCriteria, stated, null, null);
+	}
+
+	/**
+	 * Runs independent parts of the current query at the same time, within the per-query parallelism limit.
+	 * @return The result of each task, in the order given.
+	 */
+	public <T> List<T> runInParallel(List<Callable<T>> tasks) {
+		return parallelExecutor.invokeAll(tasks);
 	}
 
 	public Page<QueryConcept> queryForPage(NativeSearchQuery searchQuery) {
 		searchQuery.setTrackTotalHits(true);
 		Pageable pageable = searchQuery.getPageable();
 		SearchHits<QueryConcept> searchHits = elasticsearchTemplate.search(searchQuery, QueryConcept.class);
+		ECLProfile.recordRequest(searchHits.getSearchHits().size());
 		return PageHelper.toSearchAfterPage(searchHits, pageable);
 	}
 
+	/**
+	 * @return Stream of the results, read it using {@link ECLProfile#forEachDocument} so that the documents read are profiled.
+	 */
 	public SearchHitsIterator<QueryConcept> streamQueryResults(NativeSearchQuery searchQuery) {
 		return elasticsearchTemplate.searchForStream(searchQuery, QueryConcept.class);
 	}
@@ -121,12 +150,21 @@ public class ECLContentService {
 			masterMemberQuery.filter(termsQuery(ReferenceSetMember.Fields.REFSET_ID, refsets));
 		}
 
-		return memberService.findMembersForECLResponse(masterMemberQuery, memberFilterConstraints, memberFieldsToReturn, stated, branchCriteria, pageRequest, eclContentService);
+		try (ECLProfile.Step step = ECLProfile.step("member-fields", null)) {
+			SearchAfterPage<ReferenceSetMember> page = memberService.findMembersForECLResponse(masterMemberQuery, memberFilterConstraints, memberFieldsToReturn, stated,
+					branchCriteria, pageRequest, eclContentService);
+			recordDelegatedRequest(step, page.getNumberOfElements());
+			return page;
+		}
 	}
 
 	public Set<Long> findConceptIdsInReferenceSet(Collection<Long> referenceSetIds, List<MemberFilterConstraint> memberFilterConstraints, RefinementBuilder refinementBuilder) {
-		BoolQueryBuilder masterMemberQuery = buildECLMemberQuery(memberFilterConstraints, refinementBuilder.isStated(), refinementBuilder.getBranchCriteria());
-		return memberService.findConceptsInReferenceSet(referenceSetIds, memberFilterConstraints, refinementBuilder, masterMemberQuery);
+		try (ECLProfile.Step step = ECLProfile.step("member-of", null)) {
+			BoolQueryBuilder masterMemberQuery = buildECLMemberQuery(memberFilterConstraints, refinementBuilder.isStated(), refinementBuilder.getBranchCriteria());
+			Set<Long> conceptIds = memberService.findConceptsInReferenceSet(referenceSetIds, memberFilterConstraints, refinementBuilder, masterMemberQuery);
+			recordDelegatedRequest(step, conceptIds.size());
+			return conceptIds;
+		}
 	}
 
 	private BoolQueryBuilder buildECLMemberQuery(List<MemberFilterConstraint> memberFilterConstraints, boolean stated, BranchCriteria branchCriteria) {
@@ -152,7 +190,11 @@ public class ECLContentService {
 	public List<Long> findRelationshipDestinationIds(Collection<Long> sourceConceptIds, List<Long> attributeTypeIds, BranchCriteria branchCriteria, boolean stated) {
 		if (!stated) {
 			// Use relationships - it's faster
-			return relationshipService.findRelationshipDestinationIds(sourceConceptIds, attributeTypeIds, branchCriteria, false);
+			try (ECLProfile.Step step = ECLProfile.step("attribute-values", null)) {
+				List<Long> destinationIds = relationshipService.findRelationshipDestinationIds(sourceConceptIds, attributeTypeIds, branchCriteria, false);
+				recordDelegatedRequest(step, destinationIds.size());
+				return destinationIds;
+			}
 		}
 
 		// For the stated view we'll use the semantic index to access relationships from both stated relationships or axioms.
@@ -185,8 +227,9 @@ public class ECLContentService {
 				.build();
 
 		Set<Long> destinationIds = new LongArraySet();
-		try (SearchHitsIterator<QueryConcept> stream = elasticsearchTemplate.searchForStream(query, QueryConcept.class)) {
-			stream.forEachRemaining(hit -> {
+		try (ECLProfile.Step step = ECLProfile.step("attribute-values", null);
+				SearchHitsIterator<QueryConcept> stream = elasticsearchTemplate.searchForStream(query, QueryConcept.class)) {
+			ECLProfile.forEachDocument(stream, hit -> {
 				QueryConcept queryConcept = hit.getContent();
 				if (attributeTypeIds != null) {
 					for (Long attributeTypeId : attributeTypeIds) {
@@ -200,6 +243,7 @@ public class ECLContentService {
 					queryConcept.getAttr().values().forEach(destinationSet -> destinationSet.forEach(destinationId -> addDestinationId(destinationId, destinationIds)));
 				}
 			});
+			step.setResults(destinationIds.size());
 		}
 
 		// Stream search doesn't sort for us
@@ -209,6 +253,12 @@ public class ECLContentService {
 		return sortedIds;
 	}
 
+	// Work done by other services is counted as a single request returning the result
+	private static void recordDelegatedRequest(ECLProfile.Step step, long results) {
+		ECLProfile.recordRequest(results);
+		step.setResults(results);
+	}
+
 	private void addDestinationId(Object destinationId, Set<Long> destinationIds) {
 		if (destinationId instanceof String) {
 			destinationIds.add(parseLong((String)destinationId));
@@ -216,11 +266,93 @@ public class ECLContentService {
 	}
 
 	public Set<Long> findAncestorIdsAsUnion(BranchCriteria branchCriteria, boolean stated, Collection<Long> conceptIds) {
-		return queryService.findAncestorIdsAsUnion(branchCriteria, stated, conceptIds);
+		try (ECLProfile.Step step = ECLProfile.step("ancestors", null)) {
+			Optional<HierarchyIndex> hierarchyIndex = hierarchyIndexService.getIndex(branchCriteria, stated);
+			Set<Long> ancestorIds;
+			if (hierarchyIndex.isPresent()) {
+				ancestorIds = new LongOpenHashSet(hierarchyIndex.get().getAncestors(conceptIds, false));
+				step.setCache("hierarchy-index");
+			} else {
+				// The query service records the documents read
+				ancestorIds = queryService.findAncestorIdsAsUnion(branchCriteria, stated, conceptIds);
+			}
+			step.setResults(ancestorIds.size());
+			return ancestorIds;
+		}
 	}
 
 	public Set<Long> findParentIdsAsUnion(BranchCriteria branchCriteria, boolean stated, Collection<Long> conceptIds) {
-		return queryService.findParentIdsAsUnion(branchCriteria, stated, conceptIds);
+		try (ECLProfile.Step step = ECLProfile.step("parents", null)) {
+			Optional<HierarchyIndex> hierarchyIndex = hierarchyIndexService.getIndex(branchCriteria, stated);
+			Set<Long> parentIds;
+			if (hierarchyIndex.isPresent()) {
+				parentIds = new LongOpenHashSet(hierarchyIndex.get().getParents(conceptIds, false));
+				step.setCache("hierarchy-index");
+			} else {
+				// The query service records the documents read
+				parentIds = queryService.findParentIdsAsUnion(branchCriteria, stated, conceptIds);
+			}
+			step.setResults(parentIds.size());
+			return parentIds;
+		}
+	}
+
+	/**
+	 * Selects the result of a hierarchy operator from the in-memory hierarchy index, if there is one for this branch version.
+	 * @return Empty if the index is not available or the requested sort order is not supported.
+	 */
+	public Optional<Page<Long>> selectFromHierarchyIndex(Operator operator, Collection<Long> conceptIds, BranchCriteria branchCriteria, boolean stated,
+			Collection<Long> conceptIdFilter, PageRequest pageRequest) {
+
+		if (pageRequest != null) {
+			Sort.Order order = pageRequest.getSort().getOrderFor(QueryConcept.Fields.CONCEPT_ID);
+			if (pageRequest.getSort().isSorted() && (order == null || order.isAscending())) {
+				// The index only gives concept id descending order
+				return Optional.empty();
+			}
+		}
+		Optional<HierarchyIndex> hierarchyIndexOptional = hierarchyIndexService.getIndex(branchCriteria, stated);
+		if (hierarchyIndexOptional.isEmpty()) {
+			return Optional.empty();
+		}
+		HierarchyIndex hierarchyIndex = hierarchyIndexOptional.get();
+		try (ECLProfile.Step step = ECLProfile.step("hierarchy-index", operator.getText() + " " + conceptIds)) {
+			long[] ids;
+			switch (operator) {
+				case descendantof:
+					ids = hierarchyIndex.getDescendants(conceptIds, false);
+					break;
+				case descendantorselfof:
+					ids = hierarchyIndex.getDescendants(conceptIds, true);
+					break;
+				case childof:
+					ids = hierarchyIndex.getChildren(conceptIds, false);
+					break;
+				case childorselfof:
+					ids = hierarchyIndex.getChildren(conceptIds, true);
+					break;
+				case ancestorof:
+					ids = hierarchyIndex.getAncestors(conceptIds, false);
+					break;
+				case ancestororselfof:
+					ids = hierarchyIndex.getAncestors(conceptIds, true);
+					break;
+				case parentof:
+					ids = hierarchyIndex.getParents(conceptIds, false);
+					break;
+				case parentorselfof:
+					ids = hierarchyIndex.getParents(conceptIds, true);
+					break;
+				default:
+					return Optional.empty();
+			}
+			if (conceptIdFilter != null) {
+				LongOpenHashSet filter = new LongOpenHashSet(conceptIdFilter);
+				ids = Arrays.stream(ids).filter(filter::contains).toArray();
+			}
+			step.setResults(ids.length);
+			return Optional.of(CachedConceptIds.toPage(ids, true, pageRequest));
+		}
 	}
 
 	public Set<Long> applyConceptFilters(List<ConceptFilterConstraint> conceptFilters, Set<Long> conceptIdsToFilter, BranchCriteria branchCriteria, boolean stated) {
@@ -250,8 +382,10 @@ public class ECLContentService {
 				.withFields(Concept.Fields.CONCEPT_ID)
 				.withPageable(LARGE_PAGE);
 		Set<Long> conceptIds = new LongOpenHashSet();
-		try (SearchHitsIterator<Concept> stream = elasticsearchTemplate.searchForStream(queryBuilder.build(), Concept.class)) {
-			stream.forEachRemaining(hit -> conceptIds.add(hit.getContent().getConceptIdAsLong()));
+		try (ECLProfile.Step step = ECLProfile.step("concept-filter", null);
+				SearchHitsIterator<Concept> stream = elasticsearchTemplate.searchForStream(queryBuilder.build(), Concept.class)) {
+			ECLProfile.forEachDocument(stream, hit -> conceptIds.add(hit.getContent().getConceptIdAsLong()));
+			step.setResults(conceptIds.size());
 		}
 
 		return conceptIds;
@@ -275,8 +409,12 @@ public class ECLContentService {
 		List<DescriptionTypeFilter> descriptionTypeFilters = orEmpty(descriptionFilter.getDescriptionTypeFilters());
 		List<DialectFilter> dialectFilters = orEmpty(descriptionFilter.getDialectFilters());
 
-		return descriptionService.applyDescriptionFilter(conceptIds, termFilters, languageFilters, descriptionTypeFilters, dialectFilters,
-				branchCriteria, eclQueryService, masterDescriptionQuery);
+		try (ECLProfile.Step step = ECLProfile.step("description-filter", null)) {
+			SortedMap<Long, Long> descriptionToConceptMap = descriptionService.applyDescriptionFilter(conceptIds, termFilters, languageFilters, descriptionTypeFilters,
+					dialectFilters, branchCriteria, eclQueryService, masterDescriptionQuery);
+			recordDelegatedRequest(step, descriptionToConceptMap.size());
+			return descriptionToConceptMap;
+		}
 	}
 
 	private void applyFieldFilters(List<FieldFilter> fieldFilters, BoolQueryBuilder filterQuery, BranchCriteria branchCriteria, boolean stated, String eclContentFilter) {
@@ -378,8 +516,10 @@ public class ECLContentService {
 				.withPageable(LARGE_PAGE);
 
 		Set<Long> conceptIds = new LongOpenHashSet();
-		try (SearchHitsIterator<ReferenceSetMember> stream = elasticsearchTemplate.searchForStream(queryBuilder.build(), ReferenceSetMember.class)) {
-			stream.forEachRemaining(hit -> conceptIds.add(parseLong(hit.getContent().getReferencedComponentId())));
+		try (ECLProfile.Step step = ECLProfile.step("history-supplement", null);
+				SearchHitsIterator<ReferenceSetMember> stream = elasticsearchTemplate.searchForStream(queryBuilder.build(), ReferenceSetMember.class)) {
+			ECLProfile.forEachDocument(stream, hit -> conceptIds.add(parseLong(hit.getContent().getReferencedComponentId())));
+			step.setResults(conceptIds.size());
 		}
 		return conceptIds;
 	}
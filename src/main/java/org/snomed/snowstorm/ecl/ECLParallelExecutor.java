@@ -0,0 +1,150 @@
+package org.snomed.snowstorm.ecl;
+
+import org.snomed.snowstorm.core.data.services.RuntimeServiceException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Runs independent parts of one ECL query, such as the operands of a disjunction, at the same time.
+ * The calling thread works through the tasks together with at most max-per-query - 1 threads from a shared bounded pool.
+ * Helpers that have not started by the time the caller runs out of work are cancelled, so a busy pool never holds up a query.
+ * Parallel sections do not nest, tasks that ask for more parallelism run their work on their own thread.
+ * When a task fails, or the calling thread is interrupted, remaining tasks are not started and running helpers are interrupted.
+ */
+@Service
+public class ECLParallelExecutor {
+
+	@Value("${ecl.parallel.threads}")
+	private int threads;
+
+	@Value("${ecl.parallel.max-per-query}")
+	private int maxPerQuery;
+
+	private ExecutorService executorService;
+
+	// Set while a thread is working through a parallel section
+	private static final ThreadLocal<Boolean> IN_PARALLEL_SECTION = new ThreadLocal<>();
+
+	public ECLParallelExecutor() {
+	}
+
+	ECLParallelExecutor(int threads, int maxPerQuery) {
+		this.threads = threads;
+		this.maxPerQuery = maxPerQuery;
+	}
+
+	@PostConstruct
+	public void init() {
+		if (threads > 0 && maxPerQuery > 1) {
+			executorService = Executors.newFixedThreadPool(threads);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executorService != null) {
+			executorService.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return The result of each task, in the order given.
+	 */
+	public <T> List<T> invokeAll(List<Callable<T>> tasks) {
+		if (executorService == null || tasks.size() < 2 || IN_PARALLEL_SECTION.get() != null) {
+			List<T> results = new ArrayList<>();
+			for (Callable<T> task : tasks) {
+				results.add(call(task));
+			}
+			return results;
+		}
+
+		AtomicInteger next = new AtomicInteger();
+		AtomicReferenceArray<T> results = new AtomicReferenceArray<>(tasks.size());
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Callable<Void> worker = () -> {
+			IN_PARALLEL_SECTION.set(true);
+			try {
+				int i;
+				while (failure.get() == null && !Thread.currentThread().isInterrupted() && (i = next.getAndIncrement()) < tasks.size()) {
+					try {
+						results.set(i, tasks.get(i).call());
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			} finally {
+				IN_PARALLEL_SECTION.remove();
+			}
+			return null;
+		};
+
+		// Either the helper or the caller claims each helper, so a helper never starts after the caller stops waiting
+		List<AtomicBoolean> claims = new ArrayList<>();
+		List<Future<Void>> helpers = new ArrayList<>();
+		int helperCount = Math.min(maxPerQuery, tasks.size()) - 1;
+		for (int i = 0; i < helperCount; i++) {
+			AtomicBoolean claim = new AtomicBoolean();
+			claims.add(claim);
+			helpers.add(executorService.submit(ECLProfile.wrap(() -> claim.compareAndSet(false, true) ? worker.call() : null)));
+		}
+		call(worker);
+
+		for (int i = 0; i < helpers.size(); i++) {
+			Future<Void> helper = helpers.get(i);
+			if (claims.get(i).compareAndSet(false, true)) {
+				// Never started
+				helper.cancel(false);
+				continue;
+			}
+			try {
+				helper.get();
+			} catch (InterruptedException e) {
+				helpers.forEach(future -> future.cancel(true));
+				Thread.currentThread().interrupt();
+				failure.compareAndSet(null, e);
+			} catch (ExecutionException e) {
+				failure.compareAndSet(null, e.getCause());
+			} catch (CancellationException e) {
+				// Cancelled after an interrupt
+			}
+		}
+		if (failure.get() == null && Thread.currentThread().isInterrupted()) {
+			failure.set(new InterruptedException());
+		}
+
+		Throwable throwable = failure.get();
+		if (throwable instanceof RuntimeException) {
+			throw (RuntimeException) throwable;
+		} else if (throwable instanceof Error) {
+			throw (Error) throwable;
+		} else if (throwable != null) {
+			throw new RuntimeServiceException("Failed to execute ECL.", throwable);
+		}
+		List<T> list = new ArrayList<>(tasks.size());
+		for (int i = 0; i < tasks.size(); i++) {
+			list.add(results.get(i));
+		}
+		return list;
+	}
+
+	private static <T> T call(Callable<T> task) {
+		try {
+			return task.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeServiceException("Failed to execute ECL.", e);
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package org.snomed.snowstorm.ecl;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+
+/**
+ * Records where the time goes while an ECL query runs.
+ * Each step of the execution, such as the selection of a sub-expression or the application of a filter,
+ * is recorded with its wall time, result count, Elasticsearch requests, documents fetched and cache use.
+ * Profiling is per thread and only happens between {@link #start(String)} and {@link #finish()}, otherwise steps cost nothing.
+ * Work handed to other threads is recorded under the current step when the task is wrapped using {@link #wrap(Callable)}.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ECLProfile {
+
+	// Open steps of the current thread, innermost first
+	private static final ThreadLocal<Deque<Step>> CURRENT = new ThreadLocal<>();
+
+	private final Step root;
+	private ECLQueryPlan plan;
+
+	private ECLProfile(String ecl, Deque<Step> stack) {
+		root = new Step(stack, "query", ecl);
+		stack.push(root);
+	}
+
+	/**
+	 * Starts profiling ECL executed on this thread.
+	 */
+	public static ECLProfile start(String ecl) {
+		Deque<Step> stack = new ArrayDeque<>();
+		ECLProfile profile = new ECLProfile(ecl, stack);
+		CURRENT.set(stack);
+		return profile;
+	}
+
+	/**
+	 * Stops profiling on this thread.
+	 */
+	public void finish() {
+		root.close();
+		CURRENT.remove();
+	}
+
+	/**
+	 * Opens a step within the current step, to be closed when the work is done.
+	 * @return The new step, or a step that records nothing if profiling is not active.
+	 */
+	public static Step step(String type, String description) {
+		Deque<Step> stack = CURRENT.get();
+		if (stack == null) {
+			return Step.NONE;
+		}
+		Step step = new Step(stack, type, description);
+		stack.peek().addChild(step);
+		stack.push(step);
+		return step;
+	}
+
+	/**
+	 * @return The task, set up to record its steps under the current step of this thread when run on another thread.
+	 */
+	public static <T> Callable<T> wrap(Callable<T> task) {
+		Deque<Step> stack = CURRENT.get();
+		if (stack == null) {
+			return task;
+		}
+		Step parent = stack.peek();
+		return () -> {
+			Deque<Step> taskStack = new ArrayDeque<>();
+			taskStack.push(parent);
+			CURRENT.set(taskStack);
+			try {
+				return task.call();
+			} finally {
+				CURRENT.remove();
+			}
+		};
+	}
+
+	/**
+	 * Counts an Elasticsearch request against the current step.
+	 * @param documents Number of documents returned.
+	 */
+	public static void recordRequest(long documents) {
+		Deque<Step> stack = CURRENT.get();
+		if (stack != null) {
+			stack.peek().recordRequest(documents);
+		}
+	}
+
+	/**
+	 * Reads the rest of an Elasticsearch stream, then counts the request against the current step with the number of documents read.
+	 * Documents read before a failure are still counted.
+	 */
+	public static <T> void forEachDocument(Iterator<T> stream, Consumer<T> action) {
+		long documents = 0;
+		try {
+			while (stream.hasNext()) {
+				action.accept(stream.next());
+				documents++;
+			}
+		} finally {
+			recordRequest(documents);
+		}
+	}
+
+	public Step getRoot() {
+		return root;
+	}
+
+	public ECLQueryPlan getPlan() {
+		return plan;
+	}
+
+	public void setPlan(ECLQueryPlan plan) {
+		this.plan = plan;
+	}
+
+	public long getTotalEsRequests() {
+		return root.getTotalEsRequests();
+	}
+
+	public long getTotalDocuments() {
+		return root.getTotalDocuments();
+	}
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class Step implements AutoCloseable {
+
+		// Returned when profiling is not active
+		private static final Step NONE = new Step(null, null, null);
+
+		// Open steps of the thread running this step, null if not recording
+		private final Deque<Step> stack;
+		private final String type;
+		private final String ecl;
+		private final long startNanos;
+		private Double timeMillis;
+		private Long results;
+		private String cache;
+		private long esRequests;
+		private long documents;
+		private List<Step> children;
+
+		private Step(Deque<Step> stack, String type, String ecl) {
+			this.stack = stack;
+			this.type = type;
+			this.ecl = ecl;
+			startNanos = stack != null ? System.nanoTime() : 0;
+		}
+
+		// Steps running on other threads may add children and requests concurrently
+		private synchronized void recordRequest(long documents) {
+			esRequests++;
+			this.documents += documents;
+		}
+
+		private synchronized void addChild(Step step) {
+			if (children == null) {
+				children = new ArrayList<>();
+			}
+			children.add(step);
+		}
+
+		public void setResults(long results) {
+			if (stack != null) {
+				this.results = results;
+			}
+		}
+
+		/**
+		 * @param cache "hit", "miss" or "bypassed".
+		 */
+		public void setCache(String cache) {
+			if (stack != null) {
+				this.cache = cache;
+			}
+		}
+
+		@Override
+		public void close() {
+			if (stack != null && timeMillis == null) {
+				timeMillis = (System.nanoTime() - startNanos) / 1_000_000d;
+				// Close any steps left open by an exception
+				while (!stack.isEmpty()) {
+					if (stack.pop() == this) {
+						break;
+					}
+				}
+			}
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getEcl() {
+			return ecl;
+		}
+
+		public Double getTimeMillis() {
+			return timeMillis;
+		}
+
+		public Long getResults() {
+			return results;
+		}
+
+		public String getCache() {
+			return cache;
+		}
+
+		public long getEsRequests() {
+			return esRequests;
+		}
+
+		public long getDocuments() {
+			return documents;
+		}
+
+		@JsonIgnore
+		public long getTotalEsRequests() {
+			return esRequests + (children != null ? children.stream().mapToLong(Step::getTotalEsRequests).sum() : 0);
+		}
+
+		@JsonIgnore
+		public long getTotalDocuments() {
+			return documents + (children != null ? children.stream().mapToLong(Step::getTotalDocuments).sum() : 0);
+		}
+
+		public List<Step> getChildren() {
+			return children;
+		}
+	}
+}
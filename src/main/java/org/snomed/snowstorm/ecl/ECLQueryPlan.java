@@ -0,0 +1,137 @@
+package org.snomed.snowstorm.ecl;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import org.snomed.snowstorm.ecl.domain.expressionconstraint.SExpressionConstraint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The expression chosen by the ECL query planner, with the cardinality estimates and rewrites that led to it.
+ * Serialised as the ECL explain output.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ECLQueryPlan {
+
+	private final String ecl;
+	private final SExpressionConstraint expressionConstraint;
+	private final Node root;
+	private final List<String> rewrites;
+
+	ECLQueryPlan(String ecl, SExpressionConstraint expressionConstraint, Node root, List<String> rewrites) {
+		this.ecl = ecl;
+		this.expressionConstraint = expressionConstraint;
+		this.root = root;
+		this.rewrites = rewrites;
+	}
+
+	static ECLQueryPlan unchanged(SExpressionConstraint expressionConstraint) {
+		return new ECLQueryPlan(expressionConstraint.toEclString(), expressionConstraint, null, new ArrayList<>());
+	}
+
+	/**
+	 * @return The expression to execute, which may differ from the original.
+	 */
+	@JsonIgnore
+	public SExpressionConstraint getExpressionConstraint() {
+		return expressionConstraint;
+	}
+
+	public String getEcl() {
+		return ecl;
+	}
+
+	public Node getRoot() {
+		return root;
+	}
+
+	public List<String> getRewrites() {
+		return rewrites;
+	}
+
+	@JsonIgnore
+	public boolean isRewritten() {
+		return !rewrites.isEmpty();
+	}
+
+	/**
+	 * One expression constraint within the plan.
+	 */
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class Node {
+
+		private final String type;
+		private String ecl;
+		private String strategy;
+		private Long estimate;
+		private String estimateSource;
+		private List<Node> children;
+
+		// The constraint this node was planned from
+		private final Object constraint;
+
+		Node(String type, String ecl, Object constraint) {
+			this.type = type;
+			this.ecl = ecl;
+			this.constraint = constraint;
+		}
+
+		void addChild(Node child) {
+			if (children == null) {
+				children = new ArrayList<>();
+			}
+			children.add(child);
+		}
+
+		void setEstimate(long estimate, String estimateSource) {
+			this.estimate = estimate;
+			this.estimateSource = estimateSource;
+		}
+
+		boolean isEstimated() {
+			return estimate != null;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getEcl() {
+			return ecl;
+		}
+
+		void setEcl(String ecl) {
+			this.ecl = ecl;
+		}
+
+		public String getStrategy() {
+			return strategy;
+		}
+
+		void setStrategy(String strategy) {
+			this.strategy = strategy;
+		}
+
+		public Long getEstimate() {
+			return estimate;
+		}
+
+		public String getEstimateSource() {
+			return estimateSource;
+		}
+
+		public List<Node> getChildren() {
+			return children;
+		}
+
+		void setChildren(List<Node> children) {
+			this.children = children;
+		}
+
+		@JsonIgnore
+		Object getConstraint() {
+			return constraint;
+		}
+	}
+}
@@ -0,0 +1,440 @@
+package org.snomed.snowstorm.ecl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.kaicode.elasticvc.api.BranchCriteria;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.snomed.langauges.ecl.ECLQueryBuilder;
+import org.snomed.langauges.ecl.domain.expressionconstraint.SubExpressionConstraint;
+import org.snomed.langauges.ecl.domain.refinement.Operator;
+import org.snomed.snowstorm.core.data.domain.QueryConcept;
+import org.snomed.snowstorm.core.data.domain.ReferenceSetMember;
+import org.snomed.snowstorm.core.data.domain.SnomedComponent;
+import org.snomed.snowstorm.ecl.domain.expressionconstraint.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static java.lang.Long.parseLong;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.snomed.snowstorm.ecl.ConceptSelectorHelper.FILTER_PUSH_DOWN_MAX_SIZE;
+import static org.snomed.snowstorm.ecl.ConceptSelectorHelper.getBranchAndStatedQuery;
+
+/**
+ * Cost-based planning of ECL execution.
+ * Cardinality of sub-expressions is estimated from cached results, the in-memory hierarchy index or cheap count queries.
+ * Conjunctions that have to be prefetched are reordered so that the most selective constraint comes first,
+ * its result is then passed down as a concept id filter when selecting the others.
+ * A selective constraint in a conjunction with a disjunction that has to be prefetched is distributed over the disjunction,
+ * for example "A AND (B OR C)" becomes "(A AND B) OR (A AND C)", to avoid prefetching all of B and C.
+ */
+@Service
+public class ECLQueryPlanner {
+
+	// Typical number of ancestors of a concept, used when there is nothing better
+	private static final long ANCESTOR_ESTIMATE = 20;
+
+	private static final int MAX_DISTRIBUTED_DISJUNCTS = 8;
+
+	@Autowired
+	private ElasticsearchOperations elasticsearchTemplate;
+
+	@Autowired
+	private ECLQueryBuilder eclQueryBuilder;
+
+	@Autowired
+	private HierarchyIndexService hierarchyIndexService;
+
+	@Value("${ecl.planner.enabled}")
+	private boolean enabled;
+
+	// Count query results by branch version, form and criteria
+	private final Cache<String, Long> countCache = Caffeine.newBuilder()
+			.maximumSize(10_000)
+			.expireAfterAccess(1, TimeUnit.HOURS)
+			.build();
+
+	/**
+	 * @param branchVersionCache ECL results cache of the branch version, used for exact counts. May be null.
+	 */
+	public ECLQueryPlan plan(SExpressionConstraint expressionConstraint, BranchCriteria branchCriteria, boolean stated, BranchVersionECLCache branchVersionCache) {
+		if (!enabled) {
+			return ECLQueryPlan.unchanged(expressionConstraint);
+		}
+		return doPlan(expressionConstraint, new Context(branchCriteria, stated, branchVersionCache, false));
+	}
+
+	/**
+	 * Plans the expression and estimates every node, for the explain output.
+	 */
+	public ECLQueryPlan explain(SExpressionConstraint expressionConstraint, BranchCriteria branchCriteria, boolean stated, BranchVersionECLCache branchVersionCache) {
+		return doPlan(expressionConstraint, new Context(branchCriteria, stated, branchVersionCache, true));
+	}
+
+	/**
+	 * @return Estimated number of concepts matching the expression.
+	 */
+	public long estimate(SExpressionConstraint expressionConstraint, BranchCriteria branchCriteria, boolean stated, BranchVersionECLCache branchVersionCache) {
+		return estimate(expressionConstraint, new Context(branchCriteria, stated, branchVersionCache, false)).count;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	private ECLQueryPlan doPlan(SExpressionConstraint expressionConstraint, Context context) {
+		ECLQueryPlan.Node root = planNode(expressionConstraint, context);
+		if (context.explain) {
+			estimateAll(root, context);
+		}
+		SExpressionConstraint planned = expressionConstraint;
+		String ecl = expressionConstraint.toEclString();
+		if (!context.rewrites.isEmpty()) {
+			ecl = root.getEcl();
+			planned = (SExpressionConstraint) eclQueryBuilder.createQuery(ecl);
+		}
+		return new ECLQueryPlan(ecl, planned, context.explain ? root : null, context.rewrites);
+	}
+
+	private ECLQueryPlan.Node planNode(Object constraint, Context context) {
+		if (constraint instanceof SSubExpressionConstraint) {
+			SSubExpressionConstraint sub = (SSubExpressionConstraint) constraint;
+			String ecl = sub.toEclString();
+			if (sub.isAnyFiltersOrSupplements()) {
+				return node("filtered", ecl, sub, "prefetch then apply filters");
+			} else if (sub.getOperator() == Operator.memberOf) {
+				return node("member-of", ecl, sub, "reference set member lookup");
+			} else if (sub.isWildcard()) {
+				return node("wildcard", ecl, sub, "semantic index query");
+			} else if (sub.getConceptId() != null) {
+				if (sub.getOperator() == null) {
+					return node("concept", ecl, sub, "semantic index query");
+				}
+				boolean indexed = hierarchyIndexService.getIndex(context.branchCriteria, context.stated).isPresent();
+				return node("hierarchy", ecl, sub, indexed ? "hierarchy index" : "semantic index query");
+			} else {
+				ECLQueryPlan.Node child = planNode(sub.getNestedExpressionConstraint(), context);
+				String operatorText = sub.getOperator() != null ? sub.getOperator().getText() + " " : "";
+				ECLQueryPlan.Node node = node("nested", operatorText + "(" + child.getEcl() + ")", sub,
+						sub.getOperator() != null ? "select nested expression then apply operator" : null);
+				node.addChild(child);
+				return node;
+			}
+		} else if (constraint instanceof SCompoundExpressionConstraint) {
+			SCompoundExpressionConstraint compound = (SCompoundExpressionConstraint) constraint;
+			if (compound.getConjunctionExpressionConstraints() != null) {
+				return planConjunction(compound, context);
+			} else if (compound.getDisjunctionExpressionConstraints() != null) {
+				List<ECLQueryPlan.Node> children = planAll(compound.getDisjunctionExpressionConstraints(), context);
+				boolean prefetch = anyNeedsPrefetch(compound.getDisjunctionExpressionConstraints());
+				ECLQueryPlan.Node node = node("disjunction", join(children, " OR "), compound,
+						prefetch ? "prefetch each and combine" : "single semantic index query");
+				node.setChildren(children);
+				return node;
+			} else {
+				List<SubExpressionConstraint> operands = List.of(compound.getExclusionExpressionConstraints().getFirst(),
+						compound.getExclusionExpressionConstraints().getSecond());
+				List<ECLQueryPlan.Node> children = planAll(operands, context);
+				boolean prefetch = anyNeedsPrefetch(operands);
+				ECLQueryPlan.Node node = node("exclusion", join(children, " MINUS "), compound,
+						prefetch ? "prefetch first, then exclude matches of second within it" : "single semantic index query");
+				node.setChildren(children);
+				return node;
+			}
+		} else if (constraint instanceof SRefinedExpressionConstraint) {
+			return node("refined", ((SRefinedExpressionConstraint) constraint).toEclString(), constraint, "semantic index query with attribute criteria");
+		} else if (constraint instanceof SDottedExpressionConstraint) {
+			return node("dotted", ((SDottedExpressionConstraint) constraint).toEclString(), constraint, "select attribute values");
+		}
+		return node("unknown", String.valueOf(constraint), constraint, null);
+	}
+
+	private ECLQueryPlan.Node planConjunction(SCompoundExpressionConstraint compound, Context context) {
+		List<SubExpressionConstraint> operands = compound.getConjunctionExpressionConstraints();
+		List<ECLQueryPlan.Node> children = planAll(operands, context);
+		if (!anyNeedsPrefetch(operands)) {
+			ECLQueryPlan.Node node = node("conjunction", join(children, " AND "), compound, "single semantic index query");
+			node.setChildren(children);
+			return node;
+		}
+
+		// Order is significant when prefetching, the result of each operand restricts the selection of the next
+		List<ECLQueryPlan.Node> ordered = new ArrayList<>(children);
+		ordered.sort(Comparator.comparingLong(child -> estimateNode(child, context)));
+
+		ECLQueryPlan.Node distributed = distributeOverDisjunction(ordered, context);
+		if (distributed != null) {
+			return distributed;
+		}
+
+		if (!ordered.equals(children)) {
+			context.rewrites.add("Conjunction reordered smallest first: " + ordered.stream()
+					.map(child -> child.getEcl() + " (~" + child.getEstimate() + ")").collect(Collectors.joining(", ")));
+		}
+		ECLQueryPlan.Node node = node("conjunction", join(ordered, " AND "), compound, "prefetch most selective first, pass result down as filter");
+		node.setChildren(ordered);
+		return node;
+	}
+
+	/**
+	 * Rewrites "A AND (B OR C)" as "(A AND B) OR (A AND C)" when A is selective and the disjunction would have to be prefetched.
+	 * @param ordered Operands of the conjunction, smallest first.
+	 * @return The rewritten node or null if not worthwhile.
+	 */
+	private ECLQueryPlan.Node distributeOverDisjunction(List<ECLQueryPlan.Node> ordered, Context context) {
+		ECLQueryPlan.Node selective = ordered.get(0);
+		if (estimateNode(selective, context) > FILTER_PUSH_DOWN_MAX_SIZE) {
+			return null;
+		}
+		ECLQueryPlan.Node disjunctionOperand = null;
+		for (ECLQueryPlan.Node operand : ordered) {
+			if (operand != selective && isPrefetchedDisjunction(operand)) {
+				disjunctionOperand = operand;
+				break;
+			}
+		}
+		if (disjunctionOperand == null) {
+			return null;
+		}
+
+		List<ECLQueryPlan.Node> others = new ArrayList<>(ordered);
+		others.remove(disjunctionOperand);
+		ECLQueryPlan.Node disjunction = disjunctionOperand.getChildren().get(0);
+		List<ECLQueryPlan.Node> newDisjuncts = new ArrayList<>();
+		for (ECLQueryPlan.Node disjunct : disjunction.getChildren()) {
+			List<ECLQueryPlan.Node> conjuncts = new ArrayList<>(others);
+			conjuncts.add(disjunct);
+			ECLQueryPlan.Node conjunction = node("conjunction", "(" + join(conjuncts, " AND ") + ")", null,
+					"prefetch most selective first, pass result down as filter");
+			conjunction.setChildren(conjuncts);
+			conjunction.setEstimate(Math.min(estimateNode(selective, context), estimateNode(disjunct, context)), "derived");
+			newDisjuncts.add(conjunction);
+		}
+		context.rewrites.add(String.format("Selective constraint %s (~%s) distributed over disjunction %s.",
+				selective.getEcl(), selective.getEstimate(), disjunctionOperand.getEcl()));
+		ECLQueryPlan.Node node = node("disjunction", join(newDisjuncts, " OR "), null, "prefetch each and combine");
+		node.setChildren(newDisjuncts);
+		return node;
+	}
+
+	private boolean isPrefetchedDisjunction(ECLQueryPlan.Node operand) {
+		if (!"nested".equals(operand.getType()) || ((SSubExpressionConstraint) operand.getConstraint()).getOperator() != null) {
+			return false;
+		}
+		ECLQueryPlan.Node child = operand.getChildren().get(0);
+		if (!"disjunction".equals(child.getType()) || !(child.getConstraint() instanceof SCompoundExpressionConstraint)) {
+			return false;
+		}
+		List<SubExpressionConstraint> disjuncts = ((SCompoundExpressionConstraint) child.getConstraint()).getDisjunctionExpressionConstraints();
+		return disjuncts.size() <= MAX_DISTRIBUTED_DISJUNCTS && anyNeedsPrefetch(disjuncts);
+	}
+
+	private List<ECLQueryPlan.Node> planAll(List<SubExpressionConstraint> constraints, Context context) {
+		List<ECLQueryPlan.Node> nodes = new ArrayList<>();
+		for (SubExpressionConstraint constraint : constraints) {
+			nodes.add(planNode(constraint, context));
+		}
+		return nodes;
+	}
+
+	private boolean anyNeedsPrefetch(List<SubExpressionConstraint> constraints) {
+		return constraints.stream().anyMatch(constraint -> ((SSubExpressionConstraint) constraint).isAnyFiltersOrSupplements());
+	}
+
+	private void estimateAll(ECLQueryPlan.Node node, Context context) {
+		estimateNode(node, context);
+		if (node.getChildren() != null) {
+			node.getChildren().forEach(child -> estimateAll(child, context));
+		}
+	}
+
+	private long estimateNode(ECLQueryPlan.Node node, Context context) {
+		if (!node.isEstimated()) {
+			if (node.getConstraint() != null) {
+				Estimate estimate = estimate(node.getConstraint(), context);
+				node.setEstimate(estimate.count, estimate.source);
+			} else {
+				node.setEstimate(context.getTotal(), "default");
+			}
+		}
+		return node.getEstimate();
+	}
+
+	private Estimate estimate(Object constraint, Context context) {
+		String ecl = constraint instanceof SExpressionConstraint ? ((SExpressionConstraint) constraint).toEclString() : String.valueOf(constraint);
+		Estimate estimate = context.estimates.get(ecl);
+		if (estimate == null) {
+			estimate = doEstimate(constraint, ecl, context);
+			context.estimates.put(ecl, estimate);
+		}
+		return estimate;
+	}
+
+	private Estimate doEstimate(Object constraint, String ecl, Context context) {
+		// Exact if the full result is already cached
+		if (context.branchVersionCache != null) {
+			CachedConceptIds cached = context.branchVersionCache.get(ecl, context.stated, null);
+			if (cached != null) {
+				return new Estimate(cached.size(), "cache");
+			}
+		}
+
+		if (constraint instanceof SSubExpressionConstraint) {
+			SSubExpressionConstraint sub = (SSubExpressionConstraint) constraint;
+			Estimate estimate = estimateIgnoringFilters(sub, context);
+			if (sub.isAnyFiltersOrSupplements()) {
+				return new Estimate(estimate.count, estimate.source + ", upper bound");
+			}
+			return estimate;
+		} else if (constraint instanceof SCompoundExpressionConstraint) {
+			SCompoundExpressionConstraint compound = (SCompoundExpressionConstraint) constraint;
+			if (compound.getConjunctionExpressionConstraints() != null) {
+				long min = compound.getConjunctionExpressionConstraints().stream().mapToLong(operand -> estimate(operand, context).count).min().orElse(0);
+				return new Estimate(min, "derived");
+			} else if (compound.getDisjunctionExpressionConstraints() != null) {
+				long sum = compound.getDisjunctionExpressionConstraints().stream().mapToLong(operand -> estimate(operand, context).count).sum();
+				return new Estimate(Math.min(sum, context.getTotal()), "derived");
+			} else {
+				return new Estimate(estimate(compound.getExclusionExpressionConstraints().getFirst(), context).count, "derived");
+			}
+		} else if (constraint instanceof SRefinedExpressionConstraint) {
+			Estimate estimate = estimate(((SRefinedExpressionConstraint) constraint).getSubexpressionConstraint(), context);
+			return new Estimate(estimate.count, "derived, upper bound");
+		}
+		return new Estimate(context.getTotal(), "default");
+	}
+
+	private Estimate estimateIgnoringFilters(SSubExpressionConstraint sub, Context context) {
+		Operator operator = sub.getOperator();
+		if (sub.isWildcard()) {
+			return new Estimate(context.getTotal(), "count");
+		}
+		if (sub.getConceptId() != null) {
+			long conceptId = parseLong(sub.getConceptId());
+			if (operator == null) {
+				return new Estimate(1, "exact");
+			} else if (operator == Operator.memberOf) {
+				return new Estimate(context.countMembers(conceptId), "count");
+			}
+			return estimateHierarchy(operator, conceptId, context);
+		}
+		Estimate nested = estimate(sub.getNestedExpressionConstraint(), context);
+		if (operator == null) {
+			return nested;
+		}
+		switch (operator) {
+			case ancestorof:
+			case ancestororselfof:
+			case parentof:
+			case parentorselfof:
+				return new Estimate(Math.min(nested.count * ANCESTOR_ESTIMATE, context.getTotal()), "derived");
+			default:
+				return new Estimate(context.getTotal(), "default");
+		}
+	}
+
+	private Estimate estimateHierarchy(Operator operator, long conceptId, Context context) {
+		Optional<HierarchyIndex> hierarchyIndex = hierarchyIndexService.getIndex(context.branchCriteria, context.stated);
+		if (hierarchyIndex.isPresent()) {
+			HierarchyIndex index = hierarchyIndex.get();
+			Set<Long> focus = Collections.singleton(conceptId);
+			switch (operator) {
+				case descendantof:
+					return new Estimate(index.getDescendants(focus, false).length, "hierarchy index");
+				case descendantorselfof:
+					return new Estimate(index.getDescendants(focus, true).length, "hierarchy index");
+				case childof:
+					return new Estimate(index.getChildren(focus, false).length, "hierarchy index");
+				case childorselfof:
+					return new Estimate(index.getChildren(focus, true).length, "hierarchy index");
+				case ancestorof:
+					return new Estimate(index.getAncestors(focus, false).length, "hierarchy index");
+				case ancestororselfof:
+					return new Estimate(index.getAncestors(focus, true).length, "hierarchy index");
+				case parentof:
+					return new Estimate(index.getParents(focus, false).length, "hierarchy index");
+				case parentorselfof:
+					return new Estimate(index.getParents(focus, true).length, "hierarchy index");
+			}
+		}
+		switch (operator) {
+			case descendantof:
+				return new Estimate(context.countQueryConcepts(QueryConcept.Fields.ANCESTORS, conceptId), "count");
+			case descendantorselfof:
+				return new Estimate(context.countQueryConcepts(QueryConcept.Fields.ANCESTORS, conceptId) + 1, "count");
+			case childof:
+				return new Estimate(context.countQueryConcepts(QueryConcept.Fields.PARENTS, conceptId), "count");
+			case childorselfof:
+				return new Estimate(context.countQueryConcepts(QueryConcept.Fields.PARENTS, conceptId) + 1, "count");
+			default:
+				return new Estimate(ANCESTOR_ESTIMATE, "default");
+		}
+	}
+
+	private static ECLQueryPlan.Node node(String type, String ecl, Object constraint, String strategy) {
+		ECLQueryPlan.Node node = new ECLQueryPlan.Node(type, ecl, constraint);
+		node.setStrategy(strategy);
+		return node;
+	}
+
+	private static String join(List<ECLQueryPlan.Node> nodes, String operator) {
+		return nodes.stream().map(ECLQueryPlan.Node::getEcl).collect(Collectors.joining(operator));
+	}
+
+	private static final class Estimate {
+
+		private final long count;
+		private final String source;
+
+		private Estimate(long count, String source) {
+			this.count = count;
+			this.source = source;
+		}
+	}
+
+	private final class Context {
+
+		private final BranchCriteria branchCriteria;
+		private final boolean stated;
+		private final BranchVersionECLCache branchVersionCache;
+		private final boolean explain;
+		private final Map<String, Estimate> estimates = new HashMap<>();
+		private final List<String> rewrites = new ArrayList<>();
+
+		private Context(BranchCriteria branchCriteria, boolean stated, BranchVersionECLCache branchVersionCache, boolean explain) {
+			this.branchCriteria = branchCriteria;
+			this.stated = stated;
+			this.branchVersionCache = branchVersionCache;
+			this.explain = explain;
+		}
+
+		private long getTotal() {
+			return count("total", getBranchAndStatedQuery(branchCriteria.getEntityBranchCriteria(QueryConcept.class), stated), QueryConcept.class);
+		}
+
+		private long countQueryConcepts(String field, long conceptId) {
+			return count(field + ":" + conceptId, getBranchAndStatedQuery(branchCriteria.getEntityBranchCriteria(QueryConcept.class), stated)
+					.must(termQuery(field, conceptId)), QueryConcept.class);
+		}
+
+		private long countMembers(long refsetId) {
+			BoolQueryBuilder query = branchCriteria.getEntityBranchCriteria(ReferenceSetMember.class)
+					.must(termQuery(ReferenceSetMember.Fields.REFSET_ID, refsetId))
+					.must(termQuery(SnomedComponent.Fields.ACTIVE, true));
+			// Members are the same in both forms
+			return count("members:" + refsetId, query, ReferenceSetMember.class);
+		}
+
+		private long count(String criteria, QueryBuilder query, Class<?> type) {
+			String key = branchCriteria.getBranchPath() + "@" + branchCriteria.getTimepoint().getTime() + "|" + stated + "|" + criteria;
+			return countCache.get(key, k -> elasticsearchTemplate.count(new NativeSearchQueryBuilder().withQuery(query).build(), type));
+		}
+	}
+}
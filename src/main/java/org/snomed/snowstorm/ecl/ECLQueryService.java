@@ -2,7 +2,6 @@ package org.snomed.snowstorm.ecl;
 
 import ch.qos.logback.classic.Level;
 import io.kaicode.elasticvc.api.BranchCriteria;
-import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,14 +21,16 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.elasticsearch.core.SearchAfterPageRequest;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
-import java.util.function.LongPredicate;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 import static java.lang.Long.parseLong;
 
@@ -39,6 +40,8 @@ import static java.lang.Long.parseLong;
 @Service
 public class ECLQueryService {
 
+	private static final long BYTES_PER_MB = 1024 * 1024;
+
 	@Autowired
 	private ECLQueryBuilder eclQueryBuilder;
 
@@ -48,18 +51,40 @@ public class ECLQueryService {
 	@Autowired
 	private ECLContentService eclContentService;
 
+	@Autowired
+	private ECLQueryPlanner eclQueryPlanner;
+
 	@Value("${timer.ecl.duration-threshold}")
 	private int eclDurationLoggingThreshold;
 
 	@Value("${cache.ecl.enabled}")
 	private boolean eclCacheEnabled;
 
-	private final ECLResultsCache resultsCache;
+	@Value("${cache.ecl.max-size-mb}")
+	private long eclCacheMaxSizeMb;
+
+	@Value("${cache.ecl.branch-max-size-mb}")
+	private long eclCacheBranchMaxSizeMb;
+
+	@Value("${cache.ecl.carry-over.enabled}")
+	private boolean eclCacheCarryOverEnabled;
+
+	private ECLResultsCache resultsCache;
 
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
-	public ECLQueryService() {
-		resultsCache = new ECLResultsCache();
+	@PostConstruct
+	public void init() {
+		resultsCache = new ECLResultsCache(eclCacheMaxSizeMb * BYTES_PER_MB, eclCacheBranchMaxSizeMb * BYTES_PER_MB);
+	}
+
+	/**
+	 * Called when a commit changes the semantic index so that cached results the commit can not have changed are kept.
+	 */
+	public void recordSemanticChanges(SemanticChanges semanticChanges) {
+		if (eclCacheEnabled && eclCacheCarryOverEnabled) {
+			resultsCache.recordSemanticChanges(semanticChanges);
+		}
 	}
 
 	public Page<Long> selectConceptIds(String ecl, BranchCriteria branchCriteria, boolean stated, PageRequest pageRequest) throws ECLException {
@@ -89,6 +114,71 @@ public class ECLQueryService {
 		return doSelectConceptIds(expressionConstraint, branchCriteria, stated, conceptIdFilter, pageRequest);
 	}
 
+	/**
+	 * Selects all concepts matching the expression and passes them to the consumer in batches, sorted by concept id descending.
+	 * A single concept or wildcard with a hierarchy or member operator is selected one batch at a time using search-after so memory use is bounded by the batch size.
+	 * Other expressions are selected from prefetched sets, so their full result is selected once, held compactly, and batches are taken from there.
+	 */
+	public void streamConceptIds(String ecl, BranchCriteria branchCriteria, boolean stated, int batchSize, Consumer<List<Long>> batchConsumer) throws ECLException {
+		SExpressionConstraint expressionConstraint = (SExpressionConstraint) eclQueryBuilder.createQuery(ecl);
+		if (isMemberFieldsSearch(expressionConstraint)) {
+			throw new RuntimeServiceException("ECL requesting specific refset member fields, can not return concept ids.");
+		}
+		expressionConstraint = eclPreprocessingService.replaceIncorrectConcreteAttributeValue(expressionConstraint, branchCriteria.getBranchPath());
+		ecl = expressionConstraint.toEclString();
+
+		CachedConceptIds cachedConceptIds = null;
+		SExpressionConstraint planned = null;
+		if (isSelectedInBatches(expressionConstraint)) {
+			if (eclCacheEnabled) {
+				BranchVersionECLCache branchVersionCache = resultsCache.getOrCreateBranchVersionCache(branchCriteria.getBranchPath(), branchCriteria.getTimepoint());
+				cachedConceptIds = branchVersionCache.get(ecl, stated, null);
+			}
+			if (cachedConceptIds == null) {
+				planned = eclQueryPlanner.plan(expressionConstraint, branchCriteria, stated, null).getExpressionConstraint();
+			}
+		} else {
+			// Also added to the results cache, if enabled
+			Page<Long> fullResult = doSelectConceptIds(expressionConstraint, branchCriteria, stated, null, null);
+			cachedConceptIds = CachedConceptIds.of(fullResult, null);
+		}
+		if (cachedConceptIds != null) {
+			cachedConceptIds = cachedConceptIds.sortedDescending();
+		}
+
+		Sort sort = Sort.sort(QueryConcept.class).by(QueryConcept::getConceptIdL).descending();
+		PageRequest pageRequest = PageRequest.of(0, batchSize, sort);
+		while (true) {
+			Page<Long> page;
+			if (cachedConceptIds != null) {
+				page = cachedConceptIds.getPage(pageRequest);
+			} else {
+				PageRequest batchPageRequest = pageRequest;
+				page = planned.select(branchCriteria, stated, null, batchPageRequest, eclContentService, true)
+						.orElseGet(() -> getWildcardPage(branchCriteria, stated, null, batchPageRequest));
+			}
+			List<Long> ids = page.getContent();
+			if (ids.isEmpty()) {
+				break;
+			}
+			batchConsumer.accept(ids);
+			if (ids.size() < batchSize) {
+				break;
+			}
+			pageRequest = SearchAfterPageRequest.of(ConceptSelectorHelper.CONCEPT_ID_SEARCH_AFTER_EXTRACTOR.apply(ids.get(ids.size() - 1)), batchSize, sort);
+		}
+	}
+
+	// One Elasticsearch query, with no prefetched sets, can select each batch of these
+	private static boolean isSelectedInBatches(SExpressionConstraint expressionConstraint) {
+		if (expressionConstraint instanceof SSubExpressionConstraint) {
+			SSubExpressionConstraint constraint = (SSubExpressionConstraint) expressionConstraint;
+			return constraint.getNestedExpressionConstraint() == null && !constraint.isAnyFiltersOrSupplements()
+					&& (constraint.getConceptId() != null || constraint.isWildcard());
+		}
+		return false;
+	}
+
 	public static boolean isMemberFieldsSearch(SExpressionConstraint expressionConstraint) {
 		if (expressionConstraint instanceof SSubExpressionConstraint) {
 			SSubExpressionConstraint constraint = (SSubExpressionConstraint) expressionConstraint;
@@ -129,8 +219,15 @@ public class ECLQueryService {
 	public Page<Long> doSelectConceptIds(SExpressionConstraint expressionConstraint, BranchCriteria branchCriteria, boolean stated, Collection<Long> conceptIdFilter,
 			PageRequest pageRequest) {
 
-		// - Optimisation idea -
-		// Changing something like "(id) AND (<<id OR >>id)"  to  "(id AND <<id) OR (id AND >>id)" will run in a fraction of the time because there will be no large fetches
+		try (ECLProfile.Step step = ECLProfile.step("select", expressionConstraint.toEclString())) {
+			Page<Long> page = doSelectConceptIds(expressionConstraint, branchCriteria, stated, conceptIdFilter, pageRequest, step);
+			step.setResults(page.getTotalElements());
+			return page;
+		}
+	}
+
+	private Page<Long> doSelectConceptIds(SExpressionConstraint expressionConstraint, BranchCriteria branchCriteria, boolean stated, Collection<Long> conceptIdFilter,
+			PageRequest pageRequest, ECLProfile.Step step) {
 
 		TimerUtil eclSlowQueryTimer = getEclSlowQueryTimer();
 		String ecl = expressionConstraint.toEclString();
@@ -143,46 +240,56 @@ public class ECLQueryService {
 			BranchVersionECLCache branchVersionCache = resultsCache.getOrCreateBranchVersionCache(path, branchCriteria.getTimepoint());
 
 			PageRequest queryPageRequest = pageRequest;
-			LongPredicate filter = null;
 			if (conceptIdFilter != null) {
 				// Fetch all, without conceptIdFilter or paging. Apply filter and paging afterwards.
 				// This may be expensive, but it's the only way to allow the cache to help with this sort of query.
 				queryPageRequest = null;
-				final LongOpenHashSet fastSet = new LongOpenHashSet(conceptIdFilter);
-				filter = fastSet::contains;
 			}
 
-			Page<Long> cachedPage = branchVersionCache.get(ecl, stated, queryPageRequest);
-			if (cachedPage != null) {
+			CachedConceptIds cachedConceptIds = branchVersionCache.get(ecl, stated, queryPageRequest);
+			if (cachedConceptIds == null && isFilterMoreSelective(expressionConstraint, branchCriteria, stated, conceptIdFilter, branchVersionCache)) {
+				// Fetching everything to cache it would cost far more than selecting within the small filter
+				step.setCache("bypassed");
+				SExpressionConstraint planned = eclQueryPlanner.plan(expressionConstraint, branchCriteria, stated, branchVersionCache).getExpressionConstraint();
+				pageOptional = planned.select(branchCriteria, stated, conceptIdFilter, pageRequest, eclContentService, true);
+			} else if (cachedConceptIds != null) {
 				final int pageNumber = pageRequest != null ? pageRequest.getPageNumber() : 0;
 				final int pageSize = pageRequest != null ? pageRequest.getPageSize() : -1;
 				logger.info("ECL cache hit {}@{} \"{}\" {}:{}", path, branchCriteria.getTimepoint().getTime(), ecl, pageNumber, pageSize);
 				branchVersionCache.recordHit();
+				step.setCache("hit");
 
-				pageOptional = Optional.of(cachedPage);
+				// Paging and filtering run on the compact cached form
+				if (conceptIdFilter != null) {
+					pageOptional = Optional.of(cachedConceptIds.getFilteredPage(conceptIdFilter, pageRequest));
+				} else {
+					pageOptional = Optional.of(cachedConceptIds.getPage(queryPageRequest));
+				}
 			} else {
 				// Select 1
+				step.setCache("miss");
 				// When is pageRequest null?
-				pageOptional = expressionConstraint.select(branchCriteria, stated, null, queryPageRequest, eclContentService, true);
+				SExpressionConstraint planned = eclQueryPlanner.plan(expressionConstraint, branchCriteria, stated, branchVersionCache).getExpressionConstraint();
+				pageOptional = planned.select(branchCriteria, stated, null, queryPageRequest, eclContentService, true);
 				if (pageOptional.isPresent()) {
-					// Cache results
+					// Cache results under the original expression
 					final Page<Long> page = pageOptional.get();
-					branchVersionCache.put(ecl, stated, queryPageRequest, page);
+					cachedConceptIds = CachedConceptIds.of(page, queryPageRequest);
+					long[] hierarchyConceptIds = eclCacheCarryOverEnabled ? BranchVersionECLCache.getHierarchyConceptIds(expressionConstraint) : null;
+					branchVersionCache.put(ecl, stated, queryPageRequest, cachedConceptIds, hierarchyConceptIds);
 					eclSlowQueryTimer.checkpoint(String.format("ecl:'%s', with %s results in this page, now cached for this branch/commit/page.", ecl,
 							pageOptional.get().getNumberOfElements()));
-				}
-			}
 
-			if (pageOptional.isPresent()) {
-				// Filter results
-				if (filter != null) {
-					final List<Long> filteredList = pageOptional.get().get().filter(filter::test).collect(Collectors.toList());
-					pageOptional = Optional.of(ConceptSelectorHelper.getPage(pageRequest, filteredList));
+					// Filter results
+					if (conceptIdFilter != null) {
+						pageOptional = Optional.of(cachedConceptIds.getFilteredPage(conceptIdFilter, pageRequest));
+					}
 				}
 			}
 		} else {
 			// Select 2
-			pageOptional = expressionConstraint.select(branchCriteria, stated, conceptIdFilter, pageRequest, eclContentService, true);
+			SExpressionConstraint planned = eclQueryPlanner.plan(expressionConstraint, branchCriteria, stated, null).getExpressionConstraint();
+			pageOptional = planned.select(branchCriteria, stated, conceptIdFilter, pageRequest, eclContentService, true);
 			if (pageOptional.isPresent()) {
 				eclSlowQueryTimer.checkpoint(String.format("ecl:'%s', with %s results in this page, cache not enabled.", ecl, pageOptional.get().getNumberOfElements()));
 			}
@@ -196,6 +303,48 @@ public class ECLQueryService {
 		return pageOptional.get();
 	}
 
+	/**
+	 * @return true if the concept id filter is small and the full result of the expression is estimated to be much larger.
+	 */
+	private boolean isFilterMoreSelective(SExpressionConstraint expressionConstraint, BranchCriteria branchCriteria, boolean stated,
+			Collection<Long> conceptIdFilter, BranchVersionECLCache branchVersionCache) {
+
+		if (conceptIdFilter == null || conceptIdFilter.size() > ConceptSelectorHelper.FILTER_PUSH_DOWN_MAX_SIZE || !eclQueryPlanner.isEnabled()) {
+			return false;
+		}
+		long estimate = eclQueryPlanner.estimate(expressionConstraint, branchCriteria, stated, branchVersionCache);
+		return estimate > ConceptSelectorHelper.FILTER_PUSH_DOWN_MAX_SIZE && estimate > conceptIdFilter.size() * 10L;
+	}
+
+	/**
+	 * Runs the expression with profiling.
+	 * @return The plan and a record of each step of the execution with its time, results, Elasticsearch requests and cache use.
+	 */
+	public ECLProfile profile(String ecl, BranchCriteria branchCriteria, boolean stated, PageRequest pageRequest) throws ECLException {
+		ECLQueryPlan plan = explain(ecl, branchCriteria, stated);
+		ECLProfile profile = ECLProfile.start(ecl);
+		try {
+			Page<Long> page = selectConceptIds(ecl, branchCriteria, stated, pageRequest);
+			profile.getRoot().setResults(page.getTotalElements());
+		} finally {
+			profile.finish();
+		}
+		profile.setPlan(plan);
+		return profile;
+	}
+
+	/**
+	 * Plans the expression without running it.
+	 * @return The plan with cardinality estimates for each constraint and any rewrites the planner would make.
+	 */
+	public ECLQueryPlan explain(String ecl, BranchCriteria branchCriteria, boolean stated) throws ECLException {
+		SExpressionConstraint expressionConstraint = (SExpressionConstraint) eclQueryBuilder.createQuery(ecl);
+		expressionConstraint = eclPreprocessingService.replaceIncorrectConcreteAttributeValue(expressionConstraint, branchCriteria.getBranchPath());
+		BranchVersionECLCache branchVersionCache = eclCacheEnabled ?
+				resultsCache.getOrCreateBranchVersionCache(branchCriteria.getBranchPath(), branchCriteria.getTimepoint()) : null;
+		return eclQueryPlanner.explain(expressionConstraint, branchCriteria, stated, branchVersionCache);
+	}
+
 	private Page<Long> getWildcardPage(BranchCriteria branchCriteria, boolean stated, Collection<Long> conceptIdFilter, PageRequest pageRequest) {
 		// Wildcard expression. Grab a page of concepts with no criteria.
 		BoolQueryBuilder query = ConceptSelectorHelper.getBranchAndStatedQuery(branchCriteria.getEntityBranchCriteria(QueryConcept.class), stated);
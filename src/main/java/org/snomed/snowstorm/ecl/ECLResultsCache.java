@@ -3,30 +3,56 @@ package org.snomed.snowstorm.ecl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Holds ECL results per branch version within a fixed memory budget.
+ * Each branch version cache has its own quota and evicts entries based on size, recency and frequency of use.
+ * If the total across all branches exceeds the overall budget the coldest entries of the least recently used branches are evicted.
+ * When a branch moves on by a commit with recorded semantic changes, entries which the commit can not have changed are carried over.
+ */
 public class ECLResultsCache {
 
 	private final Map<String, BranchVersionECLCache> cacheMap;
 
+	private final long maxBytes;
+
+	private final long branchMaxBytes;
+
+	private final Map<String, SemanticChanges> semanticChangesMap = new ConcurrentHashMap<>();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong carriedOver = new AtomicLong();
+
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
-	public ECLResultsCache() {
+	public ECLResultsCache(long maxBytes, long branchMaxBytes) {
 		cacheMap = new ConcurrentHashMap<>();
+		this.maxBytes = maxBytes;
+		this.branchMaxBytes = Math.min(branchMaxBytes, maxBytes);
 	}
 
 	public BranchVersionECLCache getOrCreateBranchVersionCache(String path, Date timepoint) {
 		BranchVersionECLCache branchVersionCache = cacheMap.get(path);
 		if (branchVersionCache == null || branchVersionCache.isExpired(timepoint)) {
 
-			if (branchVersionCache != null) {
-				logger.info("ECL cache expired {}@{}", path, timepoint.getTime());
-			}
+			BranchVersionECLCache previousCache = branchVersionCache;
+			branchVersionCache = new BranchVersionECLCache(timepoint, branchMaxBytes, this);
 
-			branchVersionCache = new BranchVersionECLCache(timepoint);
+			if (previousCache != null) {
+				SemanticChanges semanticChanges = semanticChangesMap.get(path);
+				if (semanticChanges != null && semanticChanges.isCarryOverPossible(previousCache.getHead(), timepoint)) {
+					int count = branchVersionCache.carryOverUnaffectedEntries(previousCache, semanticChanges);
+					carriedOver.addAndGet(count);
+					logger.info("ECL cache expired {}@{}, {} entries carried over.", path, timepoint.getTime(), count);
+				} else {
+					logger.info("ECL cache expired {}@{}", path, timepoint.getTime());
+				}
+				previousCache.clear();
+			}
 
 			// Replacing the existing item will allow the old cache entry to be garbage collected
 			cacheMap.put(path, branchVersionCache);
@@ -34,12 +60,61 @@ public class ECLResultsCache {
 		return branchVersionCache;
 	}
 
+	/**
+	 * Records the semantic index changes of a commit so that unaffected entries can be carried over to the new branch version.
+	 * Only the latest commit per branch is kept.
+	 */
+	public void recordSemanticChanges(SemanticChanges semanticChanges) {
+		semanticChangesMap.merge(semanticChanges.getPath(), semanticChanges, SemanticChanges::merge);
+	}
+
+	/**
+	 * Evicts entries from the least recently used branches until the total size of all branch caches is within the overall budget.
+	 */
+	synchronized void enforceMaxSize() {
+		long bytesUsed = getBytesUsed();
+		if (bytesUsed <= maxBytes) {
+			return;
+		}
+		List<BranchVersionECLCache> branchCaches = new ArrayList<>(cacheMap.values());
+		branchCaches.sort(Comparator.comparing(BranchVersionECLCache::getLastAccessed));
+		for (BranchVersionECLCache branchCache : branchCaches) {
+			while (bytesUsed > maxBytes && branchCache.evictColdest()) {
+				bytesUsed = getBytesUsed();
+			}
+			if (bytesUsed <= maxBytes) {
+				break;
+			}
+		}
+	}
+
+	void recordEviction() {
+		evictions.incrementAndGet();
+	}
+
+	public long getBytesUsed() {
+		return cacheMap.values().stream().mapToLong(BranchVersionECLCache::getBytesUsed).sum();
+	}
+
 	public Map<String, BranchVersionECLCache> getCacheMap() {
 		return new HashMap<>(cacheMap);
 	}
 
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new HashMap<>();
+		stats.put("branches", (long) cacheMap.size());
+		stats.put("bytes-used", getBytesUsed());
+		stats.put("bytes-max", maxBytes);
+		stats.put("bytes-max-per-branch", branchMaxBytes);
+		stats.put("evictions", evictions.get());
+		stats.put("carried-over", carriedOver.get());
+		return stats;
+	}
+
 	public void clearCache() {
+		cacheMap.values().forEach(BranchVersionECLCache::clear);
 		cacheMap.clear();
+		semanticChangesMap.clear();
 		logger.info("ECL cache cleared.");
 	}
 }
@@ -0,0 +1,185 @@
+package org.snomed.snowstorm.ecl;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.util.*;
+
+/**
+ * Read-only copy of the semantic index hierarchy of one form of a branch version, held in primitive arrays.
+ * Concepts are numbered by their position in a sorted array of concept ids.
+ * Parents, children, ancestors and descendants are each stored in compressed sparse row form:
+ * the related concepts of concept i are the entries from offsets[i] to offsets[i + 1] of a single int array.
+ * Lookups do not touch Elasticsearch and results come back sorted by concept id descending, the default ECL order.
+ */
+public final class HierarchyIndex {
+
+	// Rough heap cost of the object and array headers.
+	private static final int OVERHEAD_BYTES = 256;
+
+	private final long[] conceptIds;
+
+	private final int[] parentOffsets;
+	private final int[] parents;
+
+	private final int[] childOffsets;
+	private final int[] children;
+
+	private final int[] ancestorOffsets;
+	private final int[] ancestors;
+
+	private final int[] descendantOffsets;
+	private final int[] descendants;
+
+	private HierarchyIndex(long[] conceptIds, int[] parentOffsets, int[] parents, int[] ancestorOffsets, int[] ancestors) {
+		this.conceptIds = conceptIds;
+		this.parentOffsets = parentOffsets;
+		this.parents = parents;
+		this.ancestorOffsets = ancestorOffsets;
+		this.ancestors = ancestors;
+		childOffsets = new int[conceptIds.length + 1];
+		children = new int[parents.length];
+		transpose(parentOffsets, parents, childOffsets, children);
+		descendantOffsets = new int[conceptIds.length + 1];
+		descendants = new int[ancestors.length];
+		transpose(ancestorOffsets, ancestors, descendantOffsets, descendants);
+	}
+
+	public long[] getDescendants(Collection<Long> conceptIds, boolean includeSelf) {
+		return collect(conceptIds, descendantOffsets, descendants, includeSelf);
+	}
+
+	public long[] getChildren(Collection<Long> conceptIds, boolean includeSelf) {
+		return collect(conceptIds, childOffsets, children, includeSelf);
+	}
+
+	public long[] getAncestors(Collection<Long> conceptIds, boolean includeSelf) {
+		return collect(conceptIds, ancestorOffsets, ancestors, includeSelf);
+	}
+
+	public long[] getParents(Collection<Long> conceptIds, boolean includeSelf) {
+		return collect(conceptIds, parentOffsets, parents, includeSelf);
+	}
+
+	public boolean contains(long conceptId) {
+		return Arrays.binarySearch(conceptIds, conceptId) >= 0;
+	}
+
+	public int getConceptCount() {
+		return conceptIds.length;
+	}
+
+	public long estimateSizeInBytes() {
+		return OVERHEAD_BYTES
+				+ conceptIds.length * 8L
+				+ (parentOffsets.length + childOffsets.length + ancestorOffsets.length + descendantOffsets.length) * 4L
+				+ (parents.length + children.length + ancestors.length + descendants.length) * 4L;
+	}
+
+	private long[] collect(Collection<Long> focusConceptIds, int[] offsets, int[] related, boolean includeSelf) {
+		BitSet matches = new BitSet(conceptIds.length);
+		for (Long focusConceptId : focusConceptIds) {
+			int index = Arrays.binarySearch(conceptIds, focusConceptId);
+			if (index < 0) {
+				continue;
+			}
+			if (includeSelf) {
+				matches.set(index);
+			}
+			for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+				matches.set(related[i]);
+			}
+		}
+		// Walk backwards for concept id descending order
+		long[] result = new long[matches.cardinality()];
+		int r = 0;
+		for (int index = matches.previousSetBit(conceptIds.length - 1); index >= 0; index = matches.previousSetBit(index - 1)) {
+			result[r++] = conceptIds[index];
+		}
+		return result;
+	}
+
+	private static void transpose(int[] offsets, int[] targets, int[] transposedOffsets, int[] transposed) {
+		int nodeCount = transposedOffsets.length - 1;
+		for (int target : targets) {
+			transposedOffsets[target + 1]++;
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			transposedOffsets[i + 1] += transposedOffsets[i];
+		}
+		int[] position = Arrays.copyOf(transposedOffsets, nodeCount);
+		for (int source = 0; source < nodeCount; source++) {
+			for (int i = offsets[source]; i < offsets[source + 1]; i++) {
+				transposed[position[targets[i]]++] = source;
+			}
+		}
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static final class Builder {
+
+		private final LongArrayList conceptIds = new LongArrayList();
+		private final List<long[]> parentIds = new ArrayList<>();
+		private final List<long[]> ancestorIds = new ArrayList<>();
+
+		private Builder() {
+		}
+
+		public Builder add(long conceptId, Collection<Long> parents, Collection<Long> ancestors) {
+			conceptIds.add(conceptId);
+			parentIds.add(toArray(parents));
+			ancestorIds.add(toArray(ancestors));
+			return this;
+		}
+
+		public HierarchyIndex build() {
+			int count = conceptIds.size();
+			Integer[] order = new Integer[count];
+			for (int i = 0; i < count; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, Comparator.comparingLong(conceptIds::getLong));
+			long[] sortedIds = new long[count];
+			for (int i = 0; i < count; i++) {
+				sortedIds[i] = conceptIds.getLong(order[i]);
+			}
+
+			int[] parentOffsets = new int[count + 1];
+			IntArrayList parents = new IntArrayList();
+			int[] ancestorOffsets = new int[count + 1];
+			IntArrayList ancestors = new IntArrayList();
+			for (int i = 0; i < count; i++) {
+				addIndexes(sortedIds, parentIds.get(order[i]), parents);
+				parentOffsets[i + 1] = parents.size();
+				addIndexes(sortedIds, ancestorIds.get(order[i]), ancestors);
+				ancestorOffsets[i + 1] = ancestors.size();
+			}
+			return new HierarchyIndex(sortedIds, parentOffsets, parents.toIntArray(), ancestorOffsets, ancestors.toIntArray());
+		}
+
+		private static void addIndexes(long[] sortedIds, long[] relatedIds, IntArrayList indexes) {
+			for (long relatedId : relatedIds) {
+				int index = Arrays.binarySearch(sortedIds, relatedId);
+				// Concepts missing from this form of the index are left out, as they would be by a semantic index query
+				if (index >= 0) {
+					indexes.add(index);
+				}
+			}
+		}
+
+		private static long[] toArray(Collection<Long> ids) {
+			if (ids == null) {
+				return new long[0];
+			}
+			long[] array = new long[ids.size()];
+			int i = 0;
+			for (Long id : ids) {
+				array[i++] = id;
+			}
+			return array;
+		}
+	}
+}
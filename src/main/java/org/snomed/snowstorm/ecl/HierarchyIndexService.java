@@ -0,0 +1,162 @@
+package org.snomed.snowstorm.ecl;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.kaicode.elasticvc.api.BranchCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.snowstorm.core.data.domain.QueryConcept;
+import org.snomed.snowstorm.core.util.TimerUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import static io.kaicode.elasticvc.api.ComponentService.LARGE_PAGE;
+import static org.snomed.snowstorm.ecl.ConceptSelectorHelper.getBranchAndStatedQuery;
+
+/**
+ * Holds in-memory hierarchy indexes of code system version branches, one per form.
+ * Version branches do not change so their hierarchy can be answered from memory rather than the semantic index.
+ * An index is built in the background the first time a version branch is queried, queries use Elasticsearch until it is ready.
+ */
+@Service
+public class HierarchyIndexService {
+
+	// Code system versions are created on a child branch named after the effective date, for example MAIN/2023-01-31
+	public static final Pattern VERSION_BRANCH_PATTERN = Pattern.compile(".*/\\d{4}-\\d{2}-\\d{2}");
+
+	private static final long BYTES_PER_MB = 1024 * 1024;
+
+	@Autowired
+	private ElasticsearchOperations elasticsearchTemplate;
+
+	@Value("${ecl.hierarchy-index.enabled}")
+	private boolean enabled;
+
+	@Value("${ecl.hierarchy-index.max-size-mb}")
+	private long maxSizeMb;
+
+	private AsyncCache<IndexKey, HierarchyIndex> indexCache;
+
+	private ExecutorService buildExecutor;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@PostConstruct
+	public void init() {
+		// One build at a time to limit load on Elasticsearch
+		buildExecutor = Executors.newFixedThreadPool(1);
+		indexCache = Caffeine.newBuilder()
+				.maximumWeight(maxSizeMb * BYTES_PER_MB)
+				.weigher((IndexKey key, HierarchyIndex index) -> (int) Math.min(index.estimateSizeInBytes(), Integer.MAX_VALUE))
+				.buildAsync();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		buildExecutor.shutdown();
+	}
+
+	/**
+	 * @return The hierarchy index for this branch version and form if it is a code system version branch and the index has been built.
+	 * Starts building the index if needed.
+	 */
+	public Optional<HierarchyIndex> getIndex(BranchCriteria branchCriteria, boolean stated) {
+		String path = branchCriteria.getBranchPath();
+		if (!enabled || path == null || !VERSION_BRANCH_PATTERN.matcher(path).matches()) {
+			return Optional.empty();
+		}
+		IndexKey key = new IndexKey(path, branchCriteria.getTimepoint().getTime(), stated);
+		// Builds run on the build executor, cache maintenance stays on the default executor
+		CompletableFuture<HierarchyIndex> future = indexCache.get(key, (k, executor) ->
+				CompletableFuture.supplyAsync(() -> buildIndex(k, branchCriteria), buildExecutor));
+		if (future.isDone() && !future.isCompletedExceptionally()) {
+			return Optional.of(future.join());
+		}
+		return Optional.empty();
+	}
+
+	private HierarchyIndex buildIndex(IndexKey key, BranchCriteria branchCriteria) {
+		TimerUtil timer = new TimerUtil("Hierarchy index " + key);
+		HierarchyIndex.Builder builder = HierarchyIndex.builder();
+		try (SearchHitsIterator<QueryConcept> stream = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+				.withQuery(getBranchAndStatedQuery(branchCriteria.getEntityBranchCriteria(QueryConcept.class), key.stated))
+				.withFields(QueryConcept.Fields.CONCEPT_ID, QueryConcept.Fields.PARENTS, QueryConcept.Fields.ANCESTORS)
+				.withPageable(LARGE_PAGE)
+				.build(), QueryConcept.class)) {
+			stream.forEachRemaining(hit -> {
+				QueryConcept queryConcept = hit.getContent();
+				builder.add(queryConcept.getConceptIdL(), queryConcept.getParents(), queryConcept.getAncestors());
+			});
+		}
+		HierarchyIndex index = builder.build();
+		timer.finish();
+		logger.info("Hierarchy index built for {} with {} concepts using {} bytes.", key, index.getConceptCount(), index.estimateSizeInBytes());
+
+		// Older versions of the same branch will not be used again
+		indexCache.asMap().keySet().removeIf(other -> other.path.equals(key.path) && other.stated == key.stated && other.timepoint != key.timepoint);
+		return index;
+	}
+
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new HashMap<>();
+		Map<IndexKey, HierarchyIndex> indexes = new HashMap<>();
+		indexCache.asMap().forEach((key, future) -> {
+			// Skip indexes still being built
+			if (future.isDone() && !future.isCompletedExceptionally()) {
+				indexes.put(key, future.join());
+			}
+		});
+		stats.put("indexes", (long) indexes.size());
+		stats.put("bytes-used", indexes.values().stream().mapToLong(HierarchyIndex::estimateSizeInBytes).sum());
+		stats.put("bytes-max", maxSizeMb * BYTES_PER_MB);
+		indexes.forEach((key, index) -> stats.put("bytes-" + key, index.estimateSizeInBytes()));
+		return stats;
+	}
+
+	public void clear() {
+		indexCache.synchronous().invalidateAll();
+	}
+
+	private static final class IndexKey {
+
+		private final String path;
+		private final long timepoint;
+		private final boolean stated;
+
+		private IndexKey(String path, long timepoint, boolean stated) {
+			this.path = path;
+			this.timepoint = timepoint;
+			this.stated = stated;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			IndexKey that = (IndexKey) o;
+			return timepoint == that.timepoint && stated == that.stated && path.equals(that.path);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, timepoint, stated);
+		}
+
+		@Override
+		public String toString() {
+			return path + "@" + timepoint + (stated ? "-stated" : "-inferred");
+		}
+	}
+}
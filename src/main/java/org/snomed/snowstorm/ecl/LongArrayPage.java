@@ -0,0 +1,120 @@
+package org.snomed.snowstorm.ecl;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Page of concept ids backed by a primitive array.
+ * Unlike PageImpl the content is not copied into a list of boxed Longs.
+ */
+class LongArrayPage implements Page<Long> {
+
+	private final List<Long> content;
+	private final Pageable pageable;
+	private final long total;
+
+	LongArrayPage(long[] conceptIds, Pageable pageable) {
+		this.content = Collections.unmodifiableList(LongArrayList.wrap(conceptIds));
+		this.pageable = pageable;
+		this.total = conceptIds.length;
+	}
+
+	@Override
+	public int getTotalPages() {
+		return getSize() == 0 ? 1 : (int) Math.ceil((double) total / (double) getSize());
+	}
+
+	@Override
+	public long getTotalElements() {
+		return total;
+	}
+
+	@Override
+	public <U> Page<U> map(Function<? super Long, ? extends U> converter) {
+		return new PageImpl<>(content.stream().map(converter).collect(Collectors.toList()), pageable, total);
+	}
+
+	@Override
+	public int getNumber() {
+		return pageable.isPaged() ? pageable.getPageNumber() : 0;
+	}
+
+	@Override
+	public int getSize() {
+		return pageable.isPaged() ? pageable.getPageSize() : content.size();
+	}
+
+	@Override
+	public int getNumberOfElements() {
+		return content.size();
+	}
+
+	@Override
+	public List<Long> getContent() {
+		return content;
+	}
+
+	@Override
+	public boolean hasContent() {
+		return !content.isEmpty();
+	}
+
+	@Override
+	public Sort getSort() {
+		return pageable.getSort();
+	}
+
+	@Override
+	public boolean isFirst() {
+		return !hasPrevious();
+	}
+
+	@Override
+	public boolean isLast() {
+		return !hasNext();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return getNumber() + 1 < getTotalPages();
+	}
+
+	@Override
+	public boolean hasPrevious() {
+		return getNumber() > 0;
+	}
+
+	@Override
+	public Pageable getPageable() {
+		return pageable;
+	}
+
+	@Override
+	public Pageable nextPageable() {
+		return hasNext() ? pageable.next() : Pageable.unpaged();
+	}
+
+	@Override
+	public Pageable previousPageable() {
+		return hasPrevious() ? pageable.previousOrFirst() : Pageable.unpaged();
+	}
+
+	@Override
+	public Iterator<Long> iterator() {
+		return content.iterator();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Page %s of %d containing concept ids", getNumber() + 1, getTotalPages());
+	}
+}
@@ -0,0 +1,102 @@
+package org.snomed.snowstorm.ecl;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+import java.util.Date;
+
+/**
+ * Concepts affected by a single commit to the semantic index of a branch.
+ * Used to keep ECL cache entries which the commit can not have changed.
+ * The affected concepts are those with a changed semantic index entry, their ancestors before the change and their ancestors after.
+ */
+public class SemanticChanges {
+
+	private final String path;
+
+	// Branch head before the commit
+	private final Date previousHead;
+
+	// Timepoint of the commit
+	private final Date head;
+
+	private final LongSet statedConceptIds;
+
+	private final LongSet inferredConceptIds;
+
+	// False if the semantic index may have changed in ways not recorded here, for example during a rebuild
+	private final boolean complete;
+
+	private SemanticChanges(String path, Date previousHead, Date head, boolean complete) {
+		this.path = path;
+		this.previousHead = previousHead;
+		this.head = head;
+		this.complete = complete;
+		statedConceptIds = new LongOpenHashSet();
+		inferredConceptIds = new LongOpenHashSet();
+	}
+
+	public SemanticChanges(String path, Date previousHead, Date head) {
+		this(path, previousHead, head, true);
+	}
+
+	public static SemanticChanges unknown(String path, Date head) {
+		return new SemanticChanges(path, null, head, false);
+	}
+
+	/**
+	 * @return Modifiable set of affected concepts in the given form.
+	 */
+	public LongSet getAffectedConceptIds(boolean stated) {
+		return stated ? statedConceptIds : inferredConceptIds;
+	}
+
+	/**
+	 * @return true if these changes take the branch from the given version to the given timepoint
+	 * and all changes to the semantic index are known.
+	 */
+	boolean isCarryOverPossible(Date fromHead, Date toHead) {
+		return complete && previousHead != null && previousHead.equals(fromHead) && head.equals(toHead);
+	}
+
+	/**
+	 * @return true if any of the concepts used by a hierarchy-only ECL expression are affected.
+	 */
+	boolean affects(boolean stated, long[] hierarchyConceptIds) {
+		LongSet affected = getAffectedConceptIds(stated);
+		for (long conceptId : hierarchyConceptIds) {
+			if (affected.contains(conceptId)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Combines changes recorded against the same commit.
+	 */
+	SemanticChanges merge(SemanticChanges other) {
+		if (!head.equals(other.head)) {
+			// Only the latest commit is kept
+			return other.head.after(head) ? other : this;
+		}
+		SemanticChanges merged = new SemanticChanges(path, previousHead != null ? previousHead : other.previousHead, head, complete && other.complete);
+		merged.statedConceptIds.addAll(statedConceptIds);
+		merged.statedConceptIds.addAll(other.statedConceptIds);
+		merged.inferredConceptIds.addAll(inferredConceptIds);
+		merged.inferredConceptIds.addAll(other.inferredConceptIds);
+		return merged;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public Date getHead() {
+		return head;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+}
@@ -5,6 +5,7 @@ import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.snomed.snowstorm.core.data.domain.QueryConcept;
 import org.snomed.snowstorm.ecl.ECLContentService;
 
+import java.util.Collection;
 import java.util.function.Function;
 
 public interface RefinementBuilder {
@@ -23,6 +24,11 @@ public interface RefinementBuilder {
 
 	ECLContentService getEclContentService();
 
+	/**
+	 * @return Concepts the final result will be limited to, or null. Allows selections made along the way to be restricted early.
+	 */
+	Collection<Long> getConceptIdFilter();
+
 	void inclusionFilterRequired();
 
 	boolean isInclusionFilterRequired();
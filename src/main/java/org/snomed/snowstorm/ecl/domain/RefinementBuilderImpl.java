@@ -5,6 +5,7 @@ import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.snomed.snowstorm.core.data.domain.QueryConcept;
 import org.snomed.snowstorm.ecl.ECLContentService;
 
+import java.util.Collection;
 import java.util.function.Function;
 
 public class RefinementBuilderImpl implements RefinementBuilder {
@@ -14,15 +15,22 @@ public class RefinementBuilderImpl implements RefinementBuilder {
 	private final BranchCriteria branchCriteria;
 	private final boolean stated;
 	private final ECLContentService eclContentService;
+	private final Collection<Long> conceptIdFilter;
 	private Function<QueryConcept, Boolean> inclusionFilter;
 	private boolean inclusionFilterRequired;
 
 	public RefinementBuilderImpl(BoolQueryBuilder query, BranchCriteria branchCriteria, boolean stated, ECLContentService eclContentService) {
+		this(query, branchCriteria, stated, eclContentService, null);
+	}
+
+	public RefinementBuilderImpl(BoolQueryBuilder query, BranchCriteria branchCriteria, boolean stated, ECLContentService eclContentService,
+			Collection<Long> conceptIdFilter) {
 		this.query = query;
 		this.path = branchCriteria.getBranchPath();
 		this.branchCriteria = branchCriteria;
 		this.stated = stated;
 		this.eclContentService = eclContentService;
+		this.conceptIdFilter = conceptIdFilter;
 	}
 
 	public BoolQueryBuilder getQuery() {
@@ -55,6 +63,11 @@ public class RefinementBuilderImpl implements RefinementBuilder {
 		return eclContentService;
 	}
 
+	@Override
+	public Collection<Long> getConceptIdFilter() {
+		return conceptIdFilter;
+	}
+
 	@Override
 	public void inclusionFilterRequired() {
 		this.inclusionFilterRequired = true;
@@ -5,6 +5,7 @@ import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.snomed.snowstorm.core.data.domain.QueryConcept;
 import org.snomed.snowstorm.ecl.ECLContentService;
 
+import java.util.Collection;
 import java.util.function.Function;
 
 public class SubRefinementBuilder implements RefinementBuilder {
@@ -52,6 +53,11 @@ public class SubRefinementBuilder implements RefinementBuilder {
 		return refinementBuilder.getEclContentService();
 	}
 
+	@Override
+	public Collection<Long> getConceptIdFilter() {
+		return refinementBuilder.getConceptIdFilter();
+	}
+
 	@Override
 	public void inclusionFilterRequired() {
 		refinementBuilder.inclusionFilterRequired();
@@ -1,18 +1,18 @@
 package org.snomed.snowstorm.ecl.domain.expressionconstraint;
 
+import org.snomed.snowstorm.core.data.domain.GroupedAttributes;
+
 import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 public class MatchContext {
 
-	private Map<Integer, Map<String, List<Object>>> conceptAttributes;
+	private GroupedAttributes conceptAttributes;
 	private boolean withinGroup;
 	private MatchContext parentContext;
 	private Set<Integer> matchingGroups;
 
-	MatchContext(Map<Integer, Map<String, List<Object>>> conceptAttributes) {
+	MatchContext(GroupedAttributes conceptAttributes) {
 		this.conceptAttributes = conceptAttributes;
 	}
 
@@ -25,7 +25,7 @@ public class MatchContext {
 		return withinGroup;
 	}
 
-	public Map<Integer, Map<String, List<Object>>> getConceptAttributes() {
+	public GroupedAttributes getConceptAttributes() {
 		return parentContext != null ? parentContext.getConceptAttributes() : conceptAttributes;
 	}
 
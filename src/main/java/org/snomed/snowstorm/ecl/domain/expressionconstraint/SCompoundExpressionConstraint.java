@@ -15,14 +15,15 @@ import org.snomed.snowstorm.ecl.domain.SubRefinementBuilder;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.function.Consumer;
 
 import static com.google.common.collect.Sets.newHashSet;
-import static com.google.common.collect.Sets.union;
 import static java.util.stream.Collectors.toSet;
 import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
 
@@ -69,14 +70,18 @@ public class SCompoundExpressionConstraint extends CompoundExpressionConstraint
 		if (conjunctionExpressionConstraints != null) {
 			if (anyWithFiltersOrSupplements(conjunctionExpressionConstraints)) {
 				// Prefetch all
+				// The query planner puts the most selective constraint first, its result restricts the selection of the others
 				Set<Long> result = null;
 				for (SubExpressionConstraint conjunctionExpressionConstraint : conjunctionExpressionConstraints) {
-					List<Long> ids = ConceptSelectorHelper.select((SSubExpressionConstraint) conjunctionExpressionConstraint, refinementBuilder).getContent();
-					Set<Long> resultSet = new LongLinkedOpenHashSet(ids);
+					Collection<Long> conceptIdFilter = result != null ? result : refinementBuilder.getConceptIdFilter();
+					List<Long> ids = selectAll((SSubExpressionConstraint) conjunctionExpressionConstraint, refinementBuilder, conceptIdFilter);
 					if (result == null) {
-						result = resultSet;
+						result = new LongLinkedOpenHashSet(ids);
 					} else {
-						result = union(result, resultSet);
+						result.retainAll(new LongOpenHashSet(ids));
+					}
+					if (result.isEmpty()) {
+						break;
 					}
 				}
 				filteredOrSupplementedContentCallback.accept(result != null ? sortedList(result) : null);
@@ -88,10 +93,13 @@ public class SCompoundExpressionConstraint extends CompoundExpressionConstraint
 			}
 		} else if (disjunctionExpressionConstraints != null) {
 			if (anyWithFiltersOrSupplements(disjunctionExpressionConstraints)) {
-				// Prefetch all
-				Set<Long> result = null;
+				// Prefetch all, operands are independent so are selected in parallel
+				List<Callable<List<Long>>> selections = new ArrayList<>();
 				for (SubExpressionConstraint disjunctionExpressionConstraint : disjunctionExpressionConstraints) {
-					List<Long> ids = ConceptSelectorHelper.select((SSubExpressionConstraint) disjunctionExpressionConstraint, refinementBuilder).getContent();
+					selections.add(() -> selectAll((SSubExpressionConstraint) disjunctionExpressionConstraint, refinementBuilder, refinementBuilder.getConceptIdFilter()));
+				}
+				Set<Long> result = null;
+				for (List<Long> ids : refinementBuilder.getEclContentService().runInParallel(selections)) {
 					if (result == null) {
 						result = new LongOpenHashSet(ids);
 					} else {
@@ -114,8 +122,11 @@ public class SCompoundExpressionConstraint extends CompoundExpressionConstraint
 			SSubExpressionConstraint second = (SSubExpressionConstraint) exclusionExpressionConstraints.getSecond();
 
 			if (first.isAnyFiltersOrSupplements() || second.isAnyFiltersOrSupplements()) {
-				List<Long> ids = new LongArrayList(ConceptSelectorHelper.select(first, refinementBuilder).getContent());
-				ids.removeAll(ConceptSelectorHelper.select(second, refinementBuilder).getContent());
+				List<Long> ids = new LongArrayList(selectAll(first, refinementBuilder, refinementBuilder.getConceptIdFilter()));
+				if (!ids.isEmpty()) {
+					// Only concepts in the first set need to be excluded
+					ids.removeAll(new LongOpenHashSet(selectAll(second, refinementBuilder, ids)));
+				}
 				filteredOrSupplementedContentCallback.accept(ids);
 
 			} else {
@@ -127,6 +138,18 @@ public class SCompoundExpressionConstraint extends CompoundExpressionConstraint
 		}
 	}
 
+	/**
+	 * Selects all concepts matching the constraint.
+	 * A small concept id filter is passed down into the selection, otherwise the full result is selected through the cache.
+	 */
+	private List<Long> selectAll(SSubExpressionConstraint constraint, RefinementBuilder refinementBuilder, Collection<Long> conceptIdFilter) {
+		if (conceptIdFilter != null && conceptIdFilter.size() <= ConceptSelectorHelper.FILTER_PUSH_DOWN_MAX_SIZE) {
+			return ConceptSelectorHelper.select(constraint, refinementBuilder.getBranchCriteria(), refinementBuilder.isStated(),
+					conceptIdFilter, null, refinementBuilder.getEclContentService(), false).getContent();
+		}
+		return ConceptSelectorHelper.select(constraint, refinementBuilder).getContent();
+	}
+
 	private LongArrayList sortedList(Set<Long> result) {
 		LongArrayList longs = new LongArrayList(result);
 		longs.sort(null);
@@ -8,14 +8,18 @@ import org.snomed.snowstorm.ecl.ConceptSelectorHelper;
 import org.snomed.snowstorm.ecl.ECLContentService;
 import org.snomed.snowstorm.ecl.deserializer.ECLModelDeserializer;
 import org.snomed.snowstorm.ecl.domain.RefinementBuilder;
+import org.snomed.snowstorm.ecl.domain.RefinementBuilderImpl;
+import org.snomed.snowstorm.ecl.domain.refinement.SEclAttribute;
 import org.snomed.snowstorm.ecl.domain.refinement.SEclRefinement;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.function.Consumer;
 
 import static com.google.common.collect.Sets.newHashSet;
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
 
 public class SRefinedExpressionConstraint extends RefinedExpressionConstraint implements SExpressionConstraint {
 
@@ -53,13 +57,36 @@ public class SRefinedExpressionConstraint extends RefinedExpressionConstraint im
 	public void addCriteria(RefinementBuilder refinementBuilder, Consumer<List<Long>> filteredOrSupplementedContentCallback, boolean triedCache) {
 		triedCache = false;// The subExpressionConstraint has not been through the cache
 
-		((SSubExpressionConstraint)subexpressionConstraint).addCriteria(refinementBuilder, (ids) -> {}, triedCache);
+		// The focus concepts and attribute ranges are independent, select them in parallel.
+		// Each task works against its own builder or returns its result, which are applied here on the calling thread.
+		List<SEclAttribute> attributes = new ArrayList<>();
+		((SEclRefinement) eclRefinement).collectAttributes(attributes);
+		RefinementBuilder focusBuilder = new RefinementBuilderImpl(boolQuery(), refinementBuilder.getBranchCriteria(), refinementBuilder.isStated(),
+				refinementBuilder.getEclContentService(), refinementBuilder.getConceptIdFilter());
+		List<Callable<Runnable>> selections = new ArrayList<>();
+		boolean finalTriedCache = triedCache;
+		selections.add(() -> {
+			((SSubExpressionConstraint) subexpressionConstraint).addCriteria(focusBuilder, (ids) -> {}, finalTriedCache);
+			return null;
+		});
+		for (SEclAttribute attribute : attributes) {
+			selections.add(() -> attribute.selectAttributeRange(refinementBuilder));
+		}
+		List<Runnable> selectedRanges = refinementBuilder.getEclContentService().runInParallel(selections);
+		selectedRanges.stream().filter(Objects::nonNull).forEach(Runnable::run);
+
+		refinementBuilder.getQuery().must(focusBuilder.getQuery());
+		if (focusBuilder.isInclusionFilterRequired()) {
+			refinementBuilder.inclusionFilterRequired();
+		}
+		if (focusBuilder.getInclusionFilter() != null) {
+			refinementBuilder.setInclusionFilter(focusBuilder.getInclusionFilter());
+		}
 		((SEclRefinement)eclRefinement).addCriteria(refinementBuilder);
 
 		if (refinementBuilder.isInclusionFilterRequired()) {
 			refinementBuilder.setInclusionFilter(queryConcept -> {
-				Map<Integer, Map<String, List<Object>>> conceptAttributes = queryConcept.getGroupedAttributesMap();
-				MatchContext matchContext = new MatchContext(conceptAttributes);
+				MatchContext matchContext = new MatchContext(queryConcept.getGroupedAttributes());
 				return ((SEclRefinement) eclRefinement).isMatch(matchContext);
 			});
 		}
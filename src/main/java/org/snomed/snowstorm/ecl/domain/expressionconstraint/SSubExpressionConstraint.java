@@ -4,6 +4,7 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import io.kaicode.elasticvc.api.BranchCriteria;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.snomed.langauges.ecl.domain.ConceptReference;
@@ -50,9 +51,21 @@ public class SSubExpressionConstraint extends SubExpressionConstraint implements
 		if (isUnconstrained()) {
 			return Optional.empty();
 		}
+		if (isHierarchyOperatorOnConcept()) {
+			// Answered from memory on code system version branches
+			Optional<Page<Long>> page = eclContentService.selectFromHierarchyIndex(operator, Collections.singleton(parseLong(conceptId)),
+					branchCriteria, stated, conceptIdFilter, pageRequest);
+			if (page.isPresent()) {
+				return page;
+			}
+		}
 		return Optional.of(ConceptSelectorHelper.select(this, branchCriteria, stated, conceptIdFilter, pageRequest, eclContentService, triedCache));
 	}
 
+	private boolean isHierarchyOperatorOnConcept() {
+		return conceptId != null && operator != null && operator != Operator.memberOf && !isAnyFiltersOrSupplements();
+	}
+
 	@JsonIgnore
 	public boolean isUnconstrained() {
 		return wildcard
@@ -148,7 +161,7 @@ public class SSubExpressionConstraint extends SubExpressionConstraint implements
 		super.setNestedExpressionConstraint(nestedExpressionConstraint);
 	}
 
-	private SSubExpressionConstraint cloneWithoutFiltersOrSupplements() {
+	public SSubExpressionConstraint cloneWithoutFiltersOrSupplements() {
 		SSubExpressionConstraint clone = new SSubExpressionConstraint(operator);
 		clone.setConceptId(conceptId);
 		clone.setTerm(term);
@@ -187,6 +200,13 @@ public class SSubExpressionConstraint extends SubExpressionConstraint implements
 			}
 			conceptIdSortedSet = new LongLinkedOpenHashSet(prefetchedConceptIds);
 
+			Collection<Long> conceptIdFilter = refinementBuilder.getConceptIdFilter();
+			if (conceptIdFilter != null && getHistorySupplement() == null) {
+				// Only concepts within the filter can be returned so apply it before the more costly filters.
+				// Not possible with a history supplement because concepts outside the filter may bring in historic concepts within it.
+				conceptIdSortedSet.retainAll(conceptIdFilter instanceof Set ? conceptIdFilter : new LongOpenHashSet(conceptIdFilter));
+			}
+
 			if (!conceptIdSortedSet.isEmpty()) {
 
 				// Apply filter constraints
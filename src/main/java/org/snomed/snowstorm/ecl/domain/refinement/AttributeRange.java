@@ -1,5 +1,7 @@
 package org.snomed.snowstorm.ecl.domain.refinement;
 
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import org.snomed.langauges.ecl.domain.filter.TypedSearchTerm;
 
 import java.util.ArrayList;
@@ -13,10 +15,12 @@ class AttributeRange {
 	private final boolean attributeTypeWildcard;
 	private final List<Long> attributeTypeIds;
 	private final Set<String> possibleAttributeTypes;
+	private final LongSet possibleAttributeTypeIds;
 	private final Integer cardinalityMin;
 	private final Integer cardinalityMax;
 	private final String operator;
 	private List<String> possibleAttributeValues;
+	private LongSet possibleAttributeValueIds;
 	private boolean isConcrete;
 	private boolean isNumeric;
 	private boolean isSearchTerm;
@@ -29,6 +33,7 @@ class AttributeRange {
 		this.attributeTypeWildcard = attributeTypeWildcard;
 		this.attributeTypeIds = attributeTypeIds;
 		this.possibleAttributeTypes = possibleAttributeTypes;
+		this.possibleAttributeTypeIds = attributeTypeIds != null ? new LongOpenHashSet(attributeTypeIds) : null;
 		this.operator = operator;
 		this.cardinalityMin = cardinalityMin;
 		this.cardinalityMax = cardinalityMax;
@@ -39,6 +44,10 @@ class AttributeRange {
 
 		final AttributeRange range = new AttributeRange(attributeTypeWildcard, attributeTypeIds, attributeTypeFields, operator, cardinalityMin, cardinalityMax);
 		range.possibleAttributeValues = possibleAttributeValues;
+		if (possibleAttributeValues != null) {
+			range.possibleAttributeValueIds = new LongOpenHashSet(possibleAttributeValues.size());
+			possibleAttributeValues.forEach(value -> range.possibleAttributeValueIds.add(Long.parseLong(value)));
+		}
 		return range;
 	}
 
@@ -64,8 +73,19 @@ class AttributeRange {
 		return range;
 	}
 
-	boolean isTypeWithinRange(String conceptId) {
-		return attributeTypeWildcard || possibleAttributeTypes.contains(conceptId);
+	boolean isTypeWithinRange(long typeId) {
+		return attributeTypeWildcard || possibleAttributeTypeIds.contains(typeId);
+	}
+
+	/**
+	 * @param conceptValue Concept id value, only used when concreteValue is null.
+	 * @param concreteValue Concrete value or null.
+	 */
+	boolean isValueWithinRange(long conceptValue, Object concreteValue) {
+		if (concreteValue == null && !isConcrete) {
+			return operator.equals("=") == (possibleAttributeValueIds == null || possibleAttributeValueIds.contains(conceptValue));
+		}
+		return isValueWithinRange(concreteValue != null ? concreteValue : Long.toString(conceptValue));
 	}
 
 	boolean isValueWithinRange(Object conceptAttributeValue) {
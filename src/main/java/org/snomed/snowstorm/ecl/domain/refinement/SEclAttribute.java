@@ -7,6 +7,7 @@ import org.snomed.langauges.ecl.domain.filter.SearchType;
 import org.snomed.langauges.ecl.domain.filter.TypedSearchTerm;
 import org.snomed.langauges.ecl.domain.refinement.EclAttribute;
 import org.snomed.langauges.ecl.domain.refinement.EclAttributeGroup;
+import org.snomed.snowstorm.core.data.domain.GroupedAttributes;
 import org.snomed.snowstorm.core.data.domain.QueryConcept;
 import org.snomed.snowstorm.ecl.ConceptSelectorHelper;
 import org.snomed.snowstorm.ecl.deserializer.ECLModelDeserializer;
@@ -205,47 +206,63 @@ public class SEclAttribute extends EclAttribute implements SRefinement {
 		return conceptIds;
 	}
 
+	/**
+	 * Selects the attribute types and values ahead of adding criteria, without changing this attribute or the refinement builder,
+	 * so that the attributes of a refinement can be selected in parallel.
+	 * @return Sets the selected range on this attribute, to be run on the thread which adds the criteria.
+	 */
+	public Runnable selectAttributeRange(RefinementBuilder refinementBuilder) {
+		AttributeRange range = createAttributeRange(refinementBuilder);
+		return () -> attributeRange = range;
+	}
+
 	private AttributeRange getAttributeRange() {
 		if (attributeRange == null) {
-			Optional<Page<Long>> attributeTypesOptional = ((SSubExpressionConstraint) attributeName).select(refinementBuilder);
-
-			boolean attributeTypeWildcard = !attributeTypesOptional.isPresent();
-			List<Long> attributeTypeIds;
-			Set<String> attributeTypeProperties;
-			if (attributeTypeWildcard) {
-				attributeTypeIds = null;
-				attributeTypeProperties = Collections.singleton(QueryConcept.ATTR_TYPE_WILDCARD);
-			} else {
-				attributeTypeIds = attributeTypesOptional.get().getContent();
-				attributeTypeProperties = attributeTypeIds.stream().map(Object::toString).collect(Collectors.toSet());
-				if (attributeTypeProperties.isEmpty()) {
-					// Attribute type is not a wildcard but empty selection
-					// Force query to return nothing
-					attributeTypeProperties.add(ConceptSelectorHelper.MISSING);
-				}
+			attributeRange = createAttributeRange(refinementBuilder);
+		}
+		return attributeRange;
+	}
+
+	private AttributeRange createAttributeRange(RefinementBuilder refinementBuilder) {
+		AttributeRange attributeRange = null;
+		Optional<Page<Long>> attributeTypesOptional = ((SSubExpressionConstraint) attributeName).select(refinementBuilder);
+
+		boolean attributeTypeWildcard = !attributeTypesOptional.isPresent();
+		List<Long> attributeTypeIds;
+		Set<String> attributeTypeProperties;
+		if (attributeTypeWildcard) {
+			attributeTypeIds = null;
+			attributeTypeProperties = Collections.singleton(QueryConcept.ATTR_TYPE_WILDCARD);
+		} else {
+			attributeTypeIds = attributeTypesOptional.get().getContent();
+			attributeTypeProperties = attributeTypeIds.stream().map(Object::toString).collect(Collectors.toSet());
+			if (attributeTypeProperties.isEmpty()) {
+				// Attribute type is not a wildcard but empty selection
+				// Force query to return nothing
+				attributeTypeProperties.add(ConceptSelectorHelper.MISSING);
 			}
+		}
 
-			if (!isConcreteValueQuery()) {
-				List<Long> possibleAttributeValuesLong = ((SSubExpressionConstraint) value).select(refinementBuilder).map(Slice::getContent).orElse(null);
-				List<String> possibleAttributeValues = possibleAttributeValuesLong != null ? possibleAttributeValuesLong.stream().map(String::valueOf).collect(Collectors.toList()) : null;
-				attributeRange = AttributeRange.newConceptRange(attributeTypeWildcard, attributeTypeIds, attributeTypeProperties, getExpressionComparisonOperator(),
-						possibleAttributeValues, cardinalityMin, cardinalityMax);
-			} else {
-				if (getNumericComparisonOperator() != null) {
-					if (attributeTypeWildcard) {
-						attributeTypeProperties = Collections.singleton(QueryConcept.ATTR_NUMERIC_TYPE_WILDCARD);
-					}
-					attributeRange = AttributeRange.newConcreteNumberRange(attributeTypeWildcard, attributeTypeIds, attributeTypeProperties, getNumericComparisonOperator(),
-							getNumericValue(), cardinalityMin, cardinalityMax);
-
-				} else if (getStringComparisonOperator() != null) {
-					attributeRange = AttributeRange.newConcreteStringRange(attributeTypeWildcard, attributeTypeIds, attributeTypeProperties, getStringComparisonOperator(),
-							getStringValues(), cardinalityMin, cardinalityMax);
-				} else if (getBooleanComparisonOperator() != null) {
-					// Treat boolean value ECL as string because all attribute values are stored as strings in the semantic index.
-					attributeRange = AttributeRange.newConcreteStringRange(attributeTypeWildcard, attributeTypeIds, attributeTypeProperties, getBooleanComparisonOperator(),
-							Collections.singletonList(new TypedSearchTerm(SearchType.MATCH, getBooleanValue() ? "true" : "false")), cardinalityMin, cardinalityMax);
+		if (!isConcreteValueQuery()) {
+			List<Long> possibleAttributeValuesLong = ((SSubExpressionConstraint) value).select(refinementBuilder).map(Slice::getContent).orElse(null);
+			List<String> possibleAttributeValues = possibleAttributeValuesLong != null ? possibleAttributeValuesLong.stream().map(String::valueOf).collect(Collectors.toList()) : null;
+			attributeRange = AttributeRange.newConceptRange(attributeTypeWildcard, attributeTypeIds, attributeTypeProperties, getExpressionComparisonOperator(),
+					possibleAttributeValues, cardinalityMin, cardinalityMax);
+		} else {
+			if (getNumericComparisonOperator() != null) {
+				if (attributeTypeWildcard) {
+					attributeTypeProperties = Collections.singleton(QueryConcept.ATTR_NUMERIC_TYPE_WILDCARD);
 				}
+				attributeRange = AttributeRange.newConcreteNumberRange(attributeTypeWildcard, attributeTypeIds, attributeTypeProperties, getNumericComparisonOperator(),
+						getNumericValue(), cardinalityMin, cardinalityMax);
+
+			} else if (getStringComparisonOperator() != null) {
+				attributeRange = AttributeRange.newConcreteStringRange(attributeTypeWildcard, attributeTypeIds, attributeTypeProperties, getStringComparisonOperator(),
+						getStringValues(), cardinalityMin, cardinalityMax);
+			} else if (getBooleanComparisonOperator() != null) {
+				// Treat boolean value ECL as string because all attribute values are stored as strings in the semantic index.
+				attributeRange = AttributeRange.newConcreteStringRange(attributeTypeWildcard, attributeTypeIds, attributeTypeProperties, getBooleanComparisonOperator(),
+						Collections.singletonList(new TypedSearchTerm(SearchType.MATCH, getBooleanValue() ? "true" : "false")), cardinalityMin, cardinalityMax);
 			}
 		}
 		return attributeRange;
@@ -253,26 +270,20 @@ public class SEclAttribute extends EclAttribute implements SRefinement {
 
 	void checkConceptConstraints(MatchContext matchContext) {
 		AttributeRange range = getAttributeRange();
-		Map<Integer, Map<String, List<Object>>> conceptAttributes = matchContext.getConceptAttributes();
+		GroupedAttributes conceptAttributes = matchContext.getConceptAttributes();
 		boolean withinGroup = matchContext.isWithinGroup();
 		// Count occurrence of this attribute within each group
 		final AtomicInteger attributeMatchCount = new AtomicInteger(0);
 		final Map<Integer, AtomicInteger> groupAttributeMatchCounts = new HashMap<>();
 
-		for (Map.Entry<Integer, Map<String, List<Object>>> attributeGroup : conceptAttributes.entrySet()) {
-			attributeGroup.getValue().entrySet().stream()
-					.filter(entrySet -> range.isTypeWithinRange(entrySet.getKey()))
-					.forEach((Map.Entry<String, List<Object>> entrySet) ->
-							entrySet.getValue().forEach(conceptAttributeValue -> {
-								if (range.isValueWithinRange(conceptAttributeValue)) {
-									// Increment count for attribute match in the concept
-									attributeMatchCount.incrementAndGet();
-									// Increment count for attribute match in this relationship group
-									groupAttributeMatchCounts.computeIfAbsent(attributeGroup.getKey(), i -> new AtomicInteger()).incrementAndGet();
-								}
-							})
-					);
-		}
+		conceptAttributes.forEachValue((group, type, conceptValue, concreteValue) -> {
+			if (range.isTypeWithinRange(type) && range.isValueWithinRange(conceptValue, concreteValue)) {
+				// Increment count for attribute match in the concept
+				attributeMatchCount.incrementAndGet();
+				// Increment count for attribute match in this relationship group
+				groupAttributeMatchCounts.computeIfAbsent(group, i -> new AtomicInteger()).incrementAndGet();
+			}
+		});
 
 		// Gather the group number of groups with this attribute
 		Set<Integer> matchingGroups = new HashSet<>();
@@ -36,6 +36,10 @@ public class SEclAttributeGroup extends EclAttributeGroup implements SRefinement
 		return ((SEclAttributeSet) attributeSet).getConceptIds();
 	}
 
+	void collectAttributes(List<SEclAttribute> attributes) {
+		((SEclAttributeSet) attributeSet).collectAttributes(attributes);
+	}
+
 	boolean isMatch(MatchContext matchContext) {
 		MatchContext groupMatchContext = new MatchContext(matchContext, true);
 		((SEclAttributeSet) attributeSet).isMatch(groupMatchContext);
@@ -70,6 +70,16 @@ public class SEclAttributeSet extends EclAttributeSet implements SRefinement {
 		return super.getParentGroup();
 	}
 
+	void collectAttributes(List<SEclAttribute> attributes) {
+		((SSubAttributeSet) subAttributeSet).collectAttributes(attributes);
+		if (!isEmpty(conjunctionAttributeSet)) {
+			conjunctionAttributeSet.forEach(sub -> ((SSubAttributeSet) sub).collectAttributes(attributes));
+		}
+		if (!isEmpty(disjunctionAttributeSet)) {
+			disjunctionAttributeSet.forEach(sub -> ((SSubAttributeSet) sub).collectAttributes(attributes));
+		}
+	}
+
 	private Collection<? extends String> getConceptIds(List<SubAttributeSet> subAttributeSets) {
 		return subAttributeSets.stream()
 				.map(SSubAttributeSet.class::cast)
@@ -55,6 +55,19 @@ public class SEclRefinement extends EclRefinement implements SRefinement {
 		return conceptIds;
 	}
 
+	/**
+	 * Adds every attribute within this refinement to the list.
+	 */
+	public void collectAttributes(List<SEclAttribute> attributes) {
+		((SSubRefinement) subRefinement).collectAttributes(attributes);
+		if (!isEmpty(conjunctionSubRefinements)) {
+			conjunctionSubRefinements.forEach(sub -> ((SSubRefinement) sub).collectAttributes(attributes));
+		}
+		if (!isEmpty(disjunctionSubRefinements)) {
+			disjunctionSubRefinements.forEach(sub -> ((SSubRefinement) sub).collectAttributes(attributes));
+		}
+	}
+
 	private Set<String> getConceptIds(List<SubRefinement> subRefinements) {
 		return subRefinements.stream()
 				.map(SSubRefinement.class::cast)
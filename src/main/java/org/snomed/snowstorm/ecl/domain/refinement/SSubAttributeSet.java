@@ -32,6 +32,14 @@ public class SSubAttributeSet extends SubAttributeSet implements SRefinement {
 		return ((SEclAttributeSet) attributeSet).getConceptIds();
 	}
 
+	void collectAttributes(List<SEclAttribute> attributes) {
+		if (attribute != null) {
+			attributes.add((SEclAttribute) attribute);
+		} else {
+			((SEclAttributeSet) attributeSet).collectAttributes(attributes);
+		}
+	}
+
 	public void checkConceptConstraints(MatchContext matchContext) {
 		if (attribute != null) {
 			((SEclAttribute)attribute).checkConceptConstraints(matchContext);
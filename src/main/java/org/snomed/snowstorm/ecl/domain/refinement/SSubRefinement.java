@@ -37,6 +37,16 @@ public class SSubRefinement extends SubRefinement implements SRefinement {
 		}
 	}
 
+	void collectAttributes(List<SEclAttribute> attributes) {
+		if (eclAttributeSet != null) {
+			((SEclAttributeSet) eclAttributeSet).collectAttributes(attributes);
+		} else if (eclAttributeGroup != null) {
+			((SEclAttributeGroup) eclAttributeGroup).collectAttributes(attributes);
+		} else {
+			((SEclRefinement) eclRefinement).collectAttributes(attributes);
+		}
+	}
+
 	boolean isMatch(MatchContext matchContext) {
 		if (eclAttributeSet != null) {
 			return ((SEclAttributeSet)eclAttributeSet).isMatch(matchContext.clear());
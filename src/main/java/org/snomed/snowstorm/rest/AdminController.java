@@ -1,12 +1,17 @@
 package org.snomed.snowstorm.rest;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.kaicode.rest.util.branchpathrewrite.BranchPathUriUtil;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import org.snomed.snowstorm.core.data.services.*;
+import org.snomed.snowstorm.core.data.services.pojo.SemanticIndexRebuildJob;
+import org.snomed.snowstorm.core.data.services.pojo.SemanticIndexRebuildProgress;
 import org.snomed.snowstorm.core.data.services.traceability.TraceabilityLogBackfiller;
 import org.snomed.snowstorm.ecl.BranchVersionECLCache;
 import org.snomed.snowstorm.ecl.ECLQueryService;
+import org.snomed.snowstorm.ecl.ECLResultsCache;
+import org.snomed.snowstorm.ecl.HierarchyIndexService;
 import org.snomed.snowstorm.fix.ContentFixService;
 import org.snomed.snowstorm.fix.ContentFixType;
 import org.snomed.snowstorm.fix.TechnicalFixService;
@@ -15,11 +20,17 @@ import org.snomed.snowstorm.mrcm.MRCMUpdateService;
 import org.snomed.snowstorm.rest.pojo.ResponseMessage;
 import org.snomed.snowstorm.rest.pojo.UpdatedDocumentCount;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -31,6 +42,9 @@ public class AdminController {
 	@Autowired
 	private SemanticIndexUpdateService queryConceptUpdateService;
 
+	@Autowired
+	private ObjectMapper objectMapper;
+
 	@Autowired
 	private ConceptDefinitionStatusUpdateService definitionStatusUpdateService;
 
@@ -58,6 +72,15 @@ public class AdminController {
 	@Autowired
 	private ECLQueryService eclQueryService;
 
+	@Autowired
+	private HierarchyIndexService hierarchyIndexService;
+
+	@Autowired
+	private DescriptionPrefixIndexService descriptionPrefixIndexService;
+
+	@Autowired
+	private ConceptMiniTermsCache conceptMiniTermsCache;
+
 	@Operation(summary = "Rebuild the description index.",
 			description = "Use this if the search configuration for international character handling of a language has been " +
 					"set or updated after importing content of that language. " +
@@ -96,6 +119,64 @@ public class AdminController {
 		return new UpdatedDocumentCount(updateCount);
 	}
 
+	@Operation(summary = "Start a background rebuild of the semantic index of the branch.",
+			description = "Runs the rebuild as a job which compares and saves the concepts of each form in id ranges, each range in its own commit. " +
+					"A checkpoint is saved in the branch metadata with every range so that a rebuild which failed or was interrupted by a restart " +
+					"carries on from the last checkpoint when started again. If a rebuild of the branch is already running that job is returned. " +
+					"The job location is returned in the Location header.")
+	@PostMapping(value = "/{branch}/actions/rebuild-semantic-index-job")
+	@PreAuthorize("hasPermission('ADMIN', #branch)")
+	public ResponseEntity<Void> startRebuildBranchTransitiveClosureJob(@PathVariable String branch) {
+		String jobId = queryConceptUpdateService.rebuildStatedAndInferredSemanticIndexAsync(BranchPathUriUtil.decodePath(branch));
+		return ControllerHelper.getCreatedResponse(jobId);
+	}
+
+	@Operation(summary = "Retrieve a background semantic index rebuild job.",
+			description = "Reports the status of the job, the last checkpoint saved and the progress of each form.")
+	@GetMapping(value = "/{branch}/actions/rebuild-semantic-index-job/{jobId}")
+	@PreAuthorize("hasPermission('ADMIN', #branch)")
+	public SemanticIndexRebuildJob getRebuildBranchTransitiveClosureJob(@PathVariable String branch, @PathVariable String jobId) {
+		return queryConceptUpdateService.getRebuildJobOrThrow(BranchPathUriUtil.decodePath(branch), jobId);
+	}
+
+	@Operation(summary = "Progress of the latest semantic index rebuild of the branch.",
+			description = "Reports the stage of each form along with the number of concepts compared, to save and saved. " +
+					"Empty if the branch has not been rebuilt since startup.")
+	@GetMapping(value = "/{branch}/actions/rebuild-semantic-index")
+	@PreAuthorize("hasPermission('ADMIN', #branch)")
+	public List<SemanticIndexRebuildProgress> getRebuildBranchTransitiveClosureProgress(@PathVariable String branch) {
+		return queryConceptUpdateService.getRebuildProgress(BranchPathUriUtil.decodePath(branch));
+	}
+
+	@Operation(summary = "Verify the semantic index of the branch.",
+			description = "NOT SUPPORTED IN SWAGGER UI. Recomputes the semantic index from the relationships and axioms of the branch and compares it with the " +
+					"existing index, without changing anything. The branch is not locked so content can be committed while this runs. " +
+					"Streams one JSON object per line for each entry which is MISSING, EXTRA, or has WRONG_ANCESTORS, WRONG_PARENTS, WRONG_ATTRIBUTES " +
+					"or WRONG_HIERARCHY_COUNTS, where the descendant or child count differs. " +
+					"Entries indexed before descendant and child counts were added have no counts, so they are reported as WRONG_HIERARCHY_COUNTS " +
+					"until the semantic index of the branch is rebuilt. " +
+					"An empty response means the index matches.")
+	@GetMapping(value = "/{branch}/actions/verify-semantic-index")
+	@PreAuthorize("hasPermission('ADMIN', #branch)")
+	public void verifySemanticIndex(@PathVariable String branch, HttpServletResponse response) throws ServiceException, IOException {
+		response.setContentType("application/x-ndjson");
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+		try {
+			queryConceptUpdateService.verifyStatedAndInferredSemanticIndex(BranchPathUriUtil.decodePath(branch), diff -> {
+				try {
+					writer.write(objectMapper.writeValueAsString(diff));
+					writer.newLine();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		writer.flush();
+	}
+
 	@Operation(summary = "Force update of definition statuses of all concepts based on axioms.",
 			description = "You are unlikely to need this action. " +
 					"If something has wrong with processing content updates on the branch the definition statuses " +
@@ -271,11 +352,15 @@ public class AdminController {
 		return new ResponseMessage(message);
 	}
 
+	@Operation(summary = "ECL results cache statistics.",
+			description = "The 'total' entry gives memory use and evictions across all branches. The other entries give statistics per branch.")
 	@GetMapping(value = "/cache/ecl/stats")
 	@PreAuthorize("hasPermission('ADMIN', 'global')")
 	public Map<String, Map<String, Long>> getECLCacheStats() {
-		final Map<String, BranchVersionECLCache> cacheMap = eclQueryService.getResultsCache().getCacheMap();
+		final ECLResultsCache resultsCache = eclQueryService.getResultsCache();
+		final Map<String, BranchVersionECLCache> cacheMap = resultsCache.getCacheMap();
 		Map<String, Map<String, Long>> stats = new LinkedHashMap<>();
+		stats.put("total", resultsCache.getStats());
 		for (String branch : new TreeSet<>(cacheMap.keySet())) {
 			stats.put(branch, cacheMap.get(branch).getStats());
 		}
@@ -288,4 +373,46 @@ public class AdminController {
 		eclQueryService.clearCache();
 	}
 
+	@Operation(summary = "In-memory hierarchy index statistics.",
+			description = "Gives the memory used by the hierarchy indexes of code system version branches, in total and per branch version and form.")
+	@GetMapping(value = "/cache/ecl/hierarchy-index/stats")
+	@PreAuthorize("hasPermission('ADMIN', 'global')")
+	public Map<String, Long> getHierarchyIndexStats() {
+		return hierarchyIndexService.getStats();
+	}
+
+	@PostMapping(value = "/cache/ecl/hierarchy-index/clear")
+	@PreAuthorize("hasPermission('ADMIN', 'global')")
+	public void clearHierarchyIndex() {
+		hierarchyIndexService.clear();
+	}
+
+	@Operation(summary = "In-memory description prefix index statistics.",
+			description = "Gives the memory used by the description typeahead indexes of code system version branches, in total and per branch version.")
+	@GetMapping(value = "/cache/description/prefix-index/stats")
+	@PreAuthorize("hasPermission('ADMIN', 'global')")
+	public Map<String, Long> getDescriptionPrefixIndexStats() {
+		return descriptionPrefixIndexService.getStats();
+	}
+
+	@PostMapping(value = "/cache/description/prefix-index/clear")
+	@PreAuthorize("hasPermission('ADMIN', 'global')")
+	public void clearDescriptionPrefixIndex() {
+		descriptionPrefixIndexService.clear();
+	}
+
+	@Operation(summary = "Concept FSN and PT cache statistics.",
+			description = "Gives the number of cached concept terms and the hit rate since startup.")
+	@GetMapping(value = "/cache/concept-mini-terms/stats")
+	@PreAuthorize("hasPermission('ADMIN', 'global')")
+	public Map<String, Long> getConceptMiniTermsCacheStats() {
+		return conceptMiniTermsCache.getStats();
+	}
+
+	@PostMapping(value = "/cache/concept-mini-terms/clear")
+	@PreAuthorize("hasPermission('ADMIN', 'global')")
+	public void clearConceptMiniTermsCache() {
+		conceptMiniTermsCache.clear();
+	}
+
 }
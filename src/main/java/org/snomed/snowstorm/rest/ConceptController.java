@@ -2,6 +2,7 @@ package org.snomed.snowstorm.rest;
 
 import ch.qos.logback.classic.Level;
 import com.fasterxml.jackson.annotation.JsonView;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.kaicode.elasticvc.api.BranchCriteria;
 import io.kaicode.elasticvc.api.VersionControlHelper;
 import io.kaicode.rest.util.branchpathrewrite.BranchPathUriUtil;
@@ -18,10 +19,16 @@ import org.snomed.snowstorm.core.data.services.*;
 import org.snomed.snowstorm.core.data.services.pojo.*;
 import org.snomed.snowstorm.core.pojo.BranchTimepoint;
 import org.snomed.snowstorm.core.pojo.LanguageDialect;
+import org.snomed.snowstorm.core.pojo.TermLangPojo;
 import org.snomed.snowstorm.core.util.PageHelper;
 import org.snomed.snowstorm.core.util.SearchAfterPage;
 import org.snomed.snowstorm.core.util.SearchAfterPageImpl;
 import org.snomed.snowstorm.core.util.TimerUtil;
+import org.snomed.snowstorm.ecl.ECLBatchResult;
+import org.snomed.snowstorm.ecl.ECLBatchService;
+import org.snomed.snowstorm.ecl.ECLProfile;
+import org.snomed.snowstorm.ecl.ECLQueryPlan;
+import org.snomed.snowstorm.ecl.ECLQueryService;
 import org.snomed.snowstorm.ecl.validation.ECLValidator;
 import org.snomed.snowstorm.rest.converter.SearchAfterHelper;
 import org.snomed.snowstorm.rest.pojo.*;
@@ -43,7 +50,13 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.util.Assert;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -59,6 +72,8 @@ import static org.springframework.util.CollectionUtils.isEmpty;
 @RequestMapping(produces = "application/json")
 public class ConceptController {
 	private static final PageRequest PAGE_REQUEST = PageRequest.of(0, 10);
+	private static final int EXPORT_BATCH_SIZE = 10_000;
+	private static final int EXPORT_BATCH_SIZE_WITH_TERMS = 1_000;
 
 	@Autowired
 	private ConceptService conceptService;
@@ -84,6 +99,15 @@ public class ConceptController {
 	@Autowired
 	private ECLValidator eclValidator;
 
+	@Autowired
+	private ECLQueryService eclQueryService;
+
+	@Autowired
+	private ECLBatchService eclBatchService;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
 	@Autowired
 	private DroolsValidationService validationService;
 
@@ -203,6 +227,143 @@ public class ConceptController {
 		}
 	}
 
+	@Operation(summary = "Explain how an ECL expression would be executed.",
+			description = "Shows the estimated number of concepts matching each part of the expression and any rewrites made by the query planner. " +
+					"The expression is not run.")
+	@GetMapping(value = "/{branch}/concepts/ecl-plan")
+	public ECLQueryPlan explainECL(
+			@PathVariable String branch,
+			@RequestParam String ecl,
+			@RequestParam(defaultValue = "false") boolean stated) {
+
+		branch = BranchPathUriUtil.decodePath(branch);
+		eclValidator.validate(ecl, branch);
+		BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria(branch);
+		return eclQueryService.explain(ecl, branchCriteria, stated);
+	}
+
+	@Operation(summary = "Run an ECL expression with profiling.",
+			description = "Returns the query plan and each step of the execution with its wall time, number of results, Elasticsearch requests, " +
+					"documents fetched and whether the ECL results cache was hit. Use this to find which part of a slow expression dominates. " +
+					"The results themselves are not returned.")
+	@GetMapping(value = "/{branch}/concepts/ecl-profile")
+	public ECLProfile profileECL(
+			@PathVariable String branch,
+			@RequestParam String ecl,
+			@RequestParam(defaultValue = "false") boolean stated,
+			@RequestParam(required = false, defaultValue = "0") int offset,
+			@RequestParam(required = false, defaultValue = "50") int limit) {
+
+		branch = BranchPathUriUtil.decodePath(branch);
+		eclValidator.validate(ecl, branch);
+		ControllerHelper.validatePageSize(offset, limit);
+		BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria(branch);
+		return eclQueryService.profile(ecl, branchCriteria, stated, ControllerHelper.getPageRequest(offset, limit));
+	}
+
+	@Operation(summary = "Evaluate many ECL expressions in one request.",
+			description = "Expressions are run against the same branch version, in parallel, with duplicates run once and shared sub-expressions selected once. " +
+					"If 'conceptIds' is given each result lists which of those concepts match the expression, for membership testing. " +
+					"Otherwise each result has the total and the first 'limit' concept ids. " +
+					"An expression that can not be run has an error message in its result rather than failing the batch.")
+	@PostMapping(value = "/{branch}/concepts/ecl-batch")
+	@ReadOnlyApiWhenEnabled
+	public List<ECLBatchResult> evaluateECLBatch(@PathVariable String branch, @RequestBody ECLBatchRequest batchRequest) {
+		branch = BranchPathUriUtil.decodePath(branch);
+		if (isEmpty(batchRequest.getEcls())) {
+			throw new IllegalArgumentException("At least one expression is required.");
+		}
+		ControllerHelper.validatePageSize(0, batchRequest.getLimit());
+		BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria(branch);
+		return eclBatchService.evaluate(batchRequest.getEcls(), branchCriteria, batchRequest.isStated(), batchRequest.getConceptIds(), batchRequest.getLimit());
+	}
+
+	@Operation(summary = "Export all concepts matching an ECL expression.",
+			description = "NOT SUPPORTED IN SWAGGER UI. Streams the whole result without paging, sorted by concept id descending. " +
+					"Format 'ndjson' writes one JSON object per line, 'csv' writes comma separated values with a header row and terms in double quotes. " +
+					"Terms are the FSN and PT chosen using the Accept-Language header. " +
+					"Results are written in batches as they are selected so memory use does not grow with the size of the result.")
+	@GetMapping(value = "/{branch}/concepts/ecl-export")
+	public void exportECL(
+			@PathVariable String branch,
+			@RequestParam String ecl,
+			@RequestParam(defaultValue = "false") boolean stated,
+			@RequestParam(defaultValue = "ndjson") String format,
+			@RequestParam(defaultValue = "false") boolean includeTerms,
+			@RequestHeader(value = "Accept-Language", defaultValue = Config.DEFAULT_ACCEPT_LANG_HEADER) String acceptLanguageHeader,
+			HttpServletResponse response) throws IOException {
+
+		branch = BranchPathUriUtil.decodePath(branch);
+		boolean csv = "csv".equals(format);
+		if (!csv && !"ndjson".equals(format)) {
+			throw new IllegalArgumentException("Format must be 'ndjson' or 'csv'.");
+		}
+		eclValidator.validate(ecl, branch);
+		BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria(branch);
+		List<LanguageDialect> languageDialects = ControllerHelper.parseAcceptLanguageHeaderWithDefaultFallback(acceptLanguageHeader);
+
+		response.setContentType(csv ? "text/csv" : "application/x-ndjson");
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+		if (csv) {
+			writer.write(includeTerms ? "id,fsn,pt" : "id");
+			writer.newLine();
+		}
+		int batchSize = includeTerms ? EXPORT_BATCH_SIZE_WITH_TERMS : EXPORT_BATCH_SIZE;
+		try {
+			// Writing blocks while the client catches up, so a slow client holds back selection of the next batch
+			eclQueryService.streamConceptIds(ecl, branchCriteria, stated, batchSize, ids -> {
+				try {
+					Map<String, ConceptMini> conceptMinis = includeTerms ?
+							conceptService.findConceptMinis(branchCriteria, ids, languageDialects).getResultsMap() : null;
+					for (Long id : ids) {
+						String conceptId = id.toString();
+						ConceptMini conceptMini = conceptMinis != null ? conceptMinis.get(conceptId) : null;
+						writeExportRow(writer, csv, conceptId, conceptMini, includeTerms);
+					}
+					writer.flush();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		writer.flush();
+	}
+
+	private void writeExportRow(BufferedWriter writer, boolean csv, String conceptId, ConceptMini conceptMini, boolean includeTerms) throws IOException {
+		String fsn = includeTerms ? getTerm(conceptMini != null ? conceptMini.getFsn() : null) : null;
+		String pt = includeTerms ? getTerm(conceptMini != null ? conceptMini.getPt() : null) : null;
+		if (csv) {
+			writer.write(conceptId);
+			if (includeTerms) {
+				writer.write(",");
+				writer.write(quoteCsvField(fsn));
+				writer.write(",");
+				writer.write(quoteCsvField(pt));
+			}
+		} else {
+			Map<String, String> row = new LinkedHashMap<>();
+			row.put("id", conceptId);
+			if (includeTerms) {
+				row.put("fsn", fsn);
+				row.put("pt", pt);
+			}
+			writer.write(objectMapper.writeValueAsString(row));
+		}
+		writer.newLine();
+	}
+
+	// Terms are quoted so that a comma, new line or quote in a term does not break the row
+	private static String quoteCsvField(String value) {
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String getTerm(TermLangPojo termLangPojo) {
+		return termLangPojo != null && termLangPojo.getTerm() != null ? termLangPojo.getTerm() : "";
+	}
+
 	@GetMapping(value = "/{branch}/concepts/{conceptId}", produces = {"application/json", "text/csv"})
 	public ConceptMini findConcept(
 			@PathVariable String branch,
@@ -382,6 +543,7 @@ public class ConceptController {
 			@PathVariable String branch,
 			@PathVariable Long conceptId,
 			@RequestParam(defaultValue = "false") boolean stated,
+			@Parameter(description = "Only return references of this type.") @RequestParam(required = false) Long typeId,
 			@RequestParam(required = false, defaultValue = "0") int offset,
 			@RequestParam(required = false, defaultValue = "1000") int limit,
 			@RequestHeader(value = "Accept-Language", defaultValue = Config.DEFAULT_ACCEPT_LANG_HEADER) String acceptLanguageHeader) {
@@ -389,7 +551,7 @@ public class ConceptController {
 		branch = BranchPathUriUtil.decodePath(branch);
 		ControllerHelper.validatePageSize(offset, limit);
 
-		MapPage<Long, Set<Long>> conceptReferencesPage = semanticIndexService.findConceptReferences(branch, conceptId, stated, ControllerHelper.getPageRequest(offset, limit));
+		MapPage<Long, Set<Long>> conceptReferencesPage = semanticIndexService.findConceptReferences(branch, conceptId, stated, typeId, ControllerHelper.getPageRequest(offset, limit));
 		Map<Long, Set<Long>> conceptReferences = conceptReferencesPage.getMap();
 
 		// Join concept minis with FSN and PT
@@ -410,6 +572,28 @@ public class ConceptController {
 		return new ConceptReferencesResult(typeSets, conceptReferencesPage.getPageable(), conceptReferencesPage.getTotalElements());
 	}
 
+	@Operation(summary = "Count the concepts which reference this concept, by type of reference, in the inferred or stated form (including stated axioms).")
+	@GetMapping(value = "/{branch}/concepts/{conceptId}/references/counts")
+	public Collection<TypeReferenceCount> countConceptReferences(
+			@PathVariable String branch,
+			@PathVariable Long conceptId,
+			@RequestParam(defaultValue = "false") boolean stated,
+			@RequestHeader(value = "Accept-Language", defaultValue = Config.DEFAULT_ACCEPT_LANG_HEADER) String acceptLanguageHeader) {
+
+		branch = BranchPathUriUtil.decodePath(branch);
+		Map<Long, Long> referenceTypeCounts = semanticIndexService.countConceptReferences(branch, conceptId, stated);
+		List<LanguageDialect> languageDialects = ControllerHelper.parseAcceptLanguageHeaderWithDefaultFallback(acceptLanguageHeader);
+		Map<String, ConceptMini> conceptMiniMap = conceptService.findConceptMinis(branch, referenceTypeCounts.keySet(), languageDialects).getResultsMap();
+		List<TypeReferenceCount> typeCounts = new ArrayList<>();
+		// A type concept may be missing from the branch, it is returned with only its id
+		referenceTypeCounts.forEach((typeId, count) -> typeCounts.add(new TypeReferenceCount(
+				conceptMiniMap.getOrDefault(typeId.toString(), new ConceptMini(typeId.toString(), languageDialects)), count)));
+		// Types without a concept mini, or without an FSN, sort last
+		typeCounts.sort(Comparator.comparing((TypeReferenceCount typeCount) -> typeCount.getReferenceType() != null ? typeCount.getReferenceType().getFsnTerm() : null,
+				Comparator.nullsLast(Comparator.naturalOrder())));
+		return typeCounts;
+	}
+
 	@PostMapping(value = "/browser/{branch}/concepts")
 	@PreAuthorize("hasPermission('AUTHOR', #branch)")
 	@JsonView(value = View.Component.class)
@@ -122,6 +122,7 @@ public class DescriptionController {
 		page.getContent().forEach(d -> results.add(new BrowserDescriptionSearchResult(d.getTerm(), d.isActive(), d.getLanguageCode(), d.getModuleId(), conceptMinis.get(d.getConceptId()))));
 
 		PageWithBucketAggregations<BrowserDescriptionSearchResult> pageWithBucketAggregations = new PageWithBucketAggregations<>(results, page.getPageable(), page.getTotalElements(), page.getBuckets());
+		pageWithBucketAggregations.setBucketsApproximate(page.isBucketsApproximate());
 		addBucketConcepts(branch, languageDialects, pageWithBucketAggregations);
 		addLanguageNames(pageWithBucketAggregations);
 		return pageWithBucketAggregations;
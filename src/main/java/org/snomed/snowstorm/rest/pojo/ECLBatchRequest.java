@@ -0,0 +1,47 @@
+package org.snomed.snowstorm.rest.pojo;
+
+import java.util.List;
+import java.util.Set;
+
+public class ECLBatchRequest {
+
+	private List<String> ecls;
+	private Set<Long> conceptIds;
+	private boolean stated;
+	private int limit = 100;
+
+	public ECLBatchRequest() {
+	}
+
+	public List<String> getEcls() {
+		return ecls;
+	}
+
+	public void setEcls(List<String> ecls) {
+		this.ecls = ecls;
+	}
+
+	public Set<Long> getConceptIds() {
+		return conceptIds;
+	}
+
+	public void setConceptIds(Set<Long> conceptIds) {
+		this.conceptIds = conceptIds;
+	}
+
+	public boolean isStated() {
+		return stated;
+	}
+
+	public void setStated(boolean stated) {
+		this.stated = stated;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+}
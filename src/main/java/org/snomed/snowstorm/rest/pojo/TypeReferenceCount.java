@@ -0,0 +1,24 @@
+package org.snomed.snowstorm.rest.pojo;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import org.snomed.snowstorm.core.data.domain.ConceptMini;
+
+@JsonPropertyOrder({"referenceType", "count"})
+public class TypeReferenceCount {
+
+	private final ConceptMini referenceType;
+	private final long count;
+
+	public TypeReferenceCount(ConceptMini referenceType, long count) {
+		this.referenceType = referenceType;
+		this.count = count;
+	}
+
+	public ConceptMini getReferenceType() {
+		return referenceType;
+	}
+
+	public long getCount() {
+		return count;
+	}
+}
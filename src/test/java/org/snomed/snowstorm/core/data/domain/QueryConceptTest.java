@@ -8,12 +8,15 @@ import org.junit.jupiter.api.Test;
 import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 
 class QueryConceptTest {
 
@@ -74,4 +77,42 @@ class QueryConceptTest {
 		assertEquals(groupedAttributesMap, queryConcept2.getGroupedAttributesMap());
 	}
 
+	@Test
+	void testGroupedAttributesEncoding() {
+		QueryConcept queryConcept = new QueryConcept();
+		queryConcept.setConceptIdL(123L);
+		queryConcept.addAttribute(0, 116680003L, "138875005");
+		queryConcept.addAttribute(1, 123L, "456");
+		queryConcept.addAttribute(1, 123L, "789");
+		queryConcept.addAttribute(2, 234L, 500);
+		queryConcept.addAttribute(2, 234L, -3);
+		queryConcept.addAttribute(3, 345L, 2.5f);
+		queryConcept.addAttribute(4, 2345L, "\"test\"");
+		queryConcept.addAttribute(4, 2345L, "0123");
+		Map<Integer, Map<String, List<Object>>> groupedAttributesMap = queryConcept.getGroupedAttributesMap();
+
+		queryConcept.serializeGroupedAttributesMap();
+		assertNotNull(queryConcept.getAttrPacked());
+
+		QueryConcept loaded = new QueryConcept();
+		loaded.setAttrPacked(queryConcept.getAttrPacked());
+		assertEquals(groupedAttributesMap, loaded.getGroupedAttributesMap());
+
+		List<String> values = new ArrayList<>();
+		loaded.getGroupedAttributes().forEachValue((group, type, conceptValue, concreteValue) ->
+				values.add(group + ":" + type + "=" + (concreteValue != null ? concreteValue.getClass().getSimpleName() + " " + concreteValue : conceptValue)));
+		Collections.sort(values);
+		assertEquals("[0:116680003=138875005, 1:123=456, 1:123=789, 2:234=Integer -3, 2:234=Integer 500, 3:345=Float 2.5, " +
+				"4:2345=String \"test\", 4:2345=String 0123]", values.toString());
+
+		// Documents indexed before the packed field are still read
+		QueryConcept legacy = new QueryConcept();
+		legacy.setAttrMap("1:123=456,789|2:234=#500");
+		List<String> legacyValues = new ArrayList<>();
+		legacy.getGroupedAttributes().forEachValue((group, type, conceptValue, concreteValue) ->
+				legacyValues.add(group + ":" + type + "=" + (concreteValue != null ? concreteValue : conceptValue)));
+		Collections.sort(legacyValues);
+		assertEquals("[1:123=456, 1:123=789, 2:234=500]", legacyValues.toString());
+	}
+
 }
@@ -0,0 +1,58 @@
+package org.snomed.snowstorm.core.data.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DescriptionPrefixIndexTest {
+
+	private static final long FSN = 900000000000003001L;
+	private static final long SYNONYM = 900000000000013009L;
+
+	@Test
+	void testPrefixSearch() {
+		DescriptionPrefixIndex index = DescriptionPrefixIndex.builder()
+				.add(300, 30, true, SYNONYM, "en", 17, List.of("clinical", "finding"))
+				.add(100, 10, true, FSN, "en", 26, List.of("clinical", "finding", "finding"))
+				.add(200, 20, true, SYNONYM, "en", 5, List.of("fever"))
+				.add(400, 40, false, SYNONYM, "en", 14, List.of("finding", "site"))
+				.add(500, 50, true, SYNONYM, "de", 7, List.of("befund"))
+				.build();
+
+		assertEquals(5, index.getDescriptionCount());
+		assertEquals(5, index.getWordCount());
+
+		// Results in term length order
+		assertEquals(List.of(200L, 400L, 300L, 100L), descriptionIds(index, index.findMatches(Set.of(List.of("f")), null, null, null)));
+		assertEquals(List.of(400L, 300L, 100L), descriptionIds(index, index.findMatches(Set.of(List.of("fin")), null, null, null)));
+
+		// Every search word must match, in any order
+		assertEquals(List.of(300L, 100L), descriptionIds(index, index.findMatches(Set.of(List.of("fin", "clin")), null, null, null)));
+		assertEquals(List.of(), descriptionIds(index, index.findMatches(Set.of(List.of("fin", "fev")), null, null, null)));
+
+		// Any folding alternative can match
+		assertEquals(List.of(200L, 500L), descriptionIds(index, index.findMatches(Set.of(List.of("fev"), List.of("bef")), null, null, null)));
+
+		// Description filters
+		assertEquals(List.of(300L, 100L), descriptionIds(index, index.findMatches(Set.of(List.of("fin")), true, null, null)));
+		assertEquals(List.of(400L, 300L), descriptionIds(index, index.findMatches(Set.of(List.of("fin")), null, null, Set.of(SYNONYM))));
+		assertEquals(List.of(500L), descriptionIds(index, index.findMatches(Set.of(List.of("bef")), null, Set.of("de"), null)));
+		assertEquals(List.of(), descriptionIds(index, index.findMatches(Set.of(List.of("bef")), null, Set.of("en"), null)));
+
+		assertEquals(10, index.getConceptId(index.findMatches(Set.of(List.of("clinical", "finding")), null, null, Set.of(FSN))[0]));
+		assertTrue(index.estimateSizeInBytes() > 0);
+	}
+
+	private List<Long> descriptionIds(DescriptionPrefixIndex index, int[] matches) {
+		List<Long> descriptionIds = new ArrayList<>();
+		for (int match : matches) {
+			descriptionIds.add(index.getDescriptionId(match));
+		}
+		return descriptionIds;
+	}
+
+}
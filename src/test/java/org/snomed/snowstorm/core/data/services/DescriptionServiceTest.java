@@ -1,6 +1,8 @@
 package org.snomed.snowstorm.core.data.services;
 
+import io.kaicode.elasticvc.api.BranchCriteria;
 import io.kaicode.elasticvc.api.BranchService;
+import io.kaicode.elasticvc.api.VersionControlHelper;
 import io.kaicode.elasticvc.domain.Commit;
 import org.elasticsearch.common.util.set.Sets;
 import org.junit.jupiter.api.BeforeEach;
@@ -8,14 +10,17 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.snomed.snowstorm.AbstractTest;
 import org.snomed.snowstorm.TestConfig;
+import org.snomed.snowstorm.config.Config;
 import org.snomed.snowstorm.config.SearchLanguagesConfiguration;
 import org.snomed.snowstorm.core.data.domain.*;
 import org.snomed.snowstorm.core.data.services.pojo.DescriptionCriteria;
 import org.snomed.snowstorm.core.data.services.pojo.PageWithBucketAggregations;
+import org.snomed.snowstorm.core.util.TimerUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -43,12 +48,24 @@ class DescriptionServiceTest extends AbstractTest {
 	@Autowired
 	private DescriptionService descriptionService;
 
+	@Autowired
+	private ConceptMiniTermsCache conceptMiniTermsCache;
+
 	@Autowired
 	private ReferenceSetMemberService referenceSetMemberService;
 
 	@Autowired
 	private SearchLanguagesConfiguration searchLanguagesConfiguration;
 
+	@Autowired
+	private CodeSystemService codeSystemService;
+
+	@Autowired
+	private DescriptionPrefixIndexService descriptionPrefixIndexService;
+
+	@Autowired
+	private VersionControlHelper versionControlHelper;
+
 	private ServiceTestUtil testUtil;
 
 	@BeforeEach
@@ -263,6 +280,109 @@ class DescriptionServiceTest extends AbstractTest {
 		assertEquals("{723592007=1}", getAggregationString("membership", soPizzaAggs));
 	}
 
+	@Test
+	void testJoinActiveDescriptionsUsesTermsCache() throws ServiceException {
+		String path = "MAIN";
+		Concept root = new Concept(SNOMEDCT_ROOT);
+		Concept pizza_2 = new Concept("100002").addRelationship(new Relationship(ISA, SNOMEDCT_ROOT)).addFSN("Pizza (food)")
+				.addDescription(new Description("Pizza").setTypeId(Concepts.SYNONYM).addAcceptability(Concepts.US_EN_LANG_REFSET, Concepts.PREFERRED_CONSTANT));
+		List<Concept> concepts = newArrayList(root, pizza_2);
+		setModulesAndLanguage(concepts);
+		conceptService.batchCreate(concepts, path);
+
+		long hits = conceptMiniTermsCache.getStats().get("hits");
+		Map<String, ConceptMini> minis = Map.of("100002", new ConceptMini("100002", Config.DEFAULT_LANGUAGE_DIALECTS));
+		descriptionService.joinActiveDescriptions(path, minis);
+		assertEquals("Pizza (food)", minis.get("100002").getFsnTerm());
+		assertEquals(hits, (long) conceptMiniTermsCache.getStats().get("hits"));
+
+		// Second lookup comes from the cache without descriptions
+		minis = Map.of("100002", new ConceptMini("100002", Config.DEFAULT_LANGUAGE_DIALECTS));
+		descriptionService.joinActiveDescriptions(path, minis);
+		assertEquals("Pizza (food)", minis.get("100002").getFsnTerm());
+		assertEquals("Pizza", minis.get("100002").getPt().getTerm());
+		assertTrue(minis.get("100002").getActiveDescriptions().isEmpty());
+		assertEquals(hits + 1, (long) conceptMiniTermsCache.getStats().get("hits"));
+
+		// A commit on the branch moves the head timepoint so its entries are no longer used
+		conceptService.update(pizza_2.addDescription(new Description("Pizza pie").setTypeId(Concepts.SYNONYM).setLanguageCode("en").setModuleId(Concepts.CORE_MODULE)), path);
+		minis = Map.of("100002", new ConceptMini("100002", Config.DEFAULT_LANGUAGE_DIALECTS));
+		descriptionService.joinActiveDescriptions(path, minis);
+		assertFalse(minis.get("100002").getActiveDescriptions().isEmpty());
+	}
+
+	@Test
+	void testDescriptionSearchAggregationsApproximateWhenTooCostly() throws ServiceException {
+		String path = "MAIN";
+		Concept root = new Concept(SNOMEDCT_ROOT);
+		Concept pizza_2 = new Concept("100002").addRelationship(new Relationship(ISA, SNOMEDCT_ROOT)).addFSN("Pizza (pizza)");
+		Concept cheesePizza_3 = new Concept("100003").addRelationship(new Relationship(ISA, pizza_2.getId())).addFSN("Cheese Pizza (pizza)");
+		Concept reallyCheesyPizza_4 = new Concept("100004").addRelationship(new Relationship(ISA, cheesePizza_3.getId())).addFSN("Really Cheesy Pizza (pizza)");
+		List<Concept> concepts = newArrayList(root, pizza_2, cheesePizza_3, reallyCheesyPizza_4);
+		setModulesAndLanguage(concepts);
+		conceptService.batchCreate(concepts, path);
+
+		PageWithBucketAggregations<Description> page = descriptionService.findDescriptionsWithAggregations(path, "pizza", PageRequest.of(0, 10));
+		assertEquals(3, page.getTotalElements());
+		assertFalse(page.isBucketsApproximate());
+
+		int maxProcessableResultsSize = (int) ReflectionTestUtils.getField(descriptionService, "aggregationMaxProcessableResultsSize");
+		int approximateSampleSize = (int) ReflectionTestUtils.getField(descriptionService, "aggregationApproximateSampleSize");
+		try {
+			ReflectionTestUtils.setField(descriptionService, "aggregationMaxProcessableResultsSize", 2);
+			ReflectionTestUtils.setField(descriptionService, "aggregationApproximateSampleSize", 1);
+			page = descriptionService.findDescriptionsWithAggregations(path, "pizza", PageRequest.of(0, 10));
+			assertTrue(page.isBucketsApproximate());
+			assertEquals(1, page.getContent().size());
+			// Without second pass filters the total is the number of matches, not the size of the sample
+			assertEquals(3, page.getTotalElements());
+			assertEquals("Pizza (pizza)", page.getContent().get(0).getTerm());
+			assertEquals("{pizza=1}", getAggregationString("semanticTags", page.getBuckets()));
+
+			ReflectionTestUtils.setField(descriptionService, "aggregationApproximateSampleSize", 0);
+			assertThrows(TooCostlyException.class, () -> descriptionService.findDescriptionsWithAggregations(path, "pizza", PageRequest.of(0, 10)));
+		} finally {
+			ReflectionTestUtils.setField(descriptionService, "aggregationMaxProcessableResultsSize", maxProcessableResultsSize);
+			ReflectionTestUtils.setField(descriptionService, "aggregationApproximateSampleSize", approximateSampleSize);
+		}
+	}
+
+	@Test
+	void testDescriptionSearchApproximateSampleFilledAfterFilters() throws ServiceException {
+		String path = "MAIN";
+		Concept root = new Concept(SNOMEDCT_ROOT);
+		// Shortest term so first in the term order, but removed by the semantic tag filter
+		Concept pizzaDish_1 = new Concept("100001").addRelationship(new Relationship(ISA, SNOMEDCT_ROOT)).addFSN("Pizza (dish)");
+		Concept pizza_2 = new Concept("100002").addRelationship(new Relationship(ISA, SNOMEDCT_ROOT)).addFSN("Pizza (pizza)");
+		Concept cheesePizza_3 = new Concept("100003").addRelationship(new Relationship(ISA, pizza_2.getId())).addFSN("Cheese Pizza (pizza)");
+		List<Concept> concepts = newArrayList(root, pizzaDish_1, pizza_2, cheesePizza_3);
+		setModulesAndLanguage(concepts);
+		conceptService.batchCreate(concepts, path);
+
+		int maxProcessableResultsSize = (int) ReflectionTestUtils.getField(descriptionService, "aggregationMaxProcessableResultsSize");
+		int approximateSampleSize = (int) ReflectionTestUtils.getField(descriptionService, "aggregationApproximateSampleSize");
+		try {
+			ReflectionTestUtils.setField(descriptionService, "aggregationMaxProcessableResultsSize", 2);
+			ReflectionTestUtils.setField(descriptionService, "aggregationApproximateSampleSize", 1);
+			PageWithBucketAggregations<Description> page = descriptionService.findDescriptionsWithAggregations(path,
+					new DescriptionCriteria().term("pizza").semanticTag("pizza"), PageRequest.of(0, 10));
+			// The sample carries on past the filtered match
+			assertTrue(page.isBucketsApproximate());
+			assertEquals(1, page.getContent().size());
+			assertEquals("Pizza (pizza)", page.getContent().get(0).getTerm());
+			assertEquals("{pizza=1}", getAggregationString("semanticTags", page.getBuckets()));
+
+			// A sample which reads every match is complete
+			ReflectionTestUtils.setField(descriptionService, "aggregationApproximateSampleSize", 2);
+			page = descriptionService.findDescriptionsWithAggregations(path, new DescriptionCriteria().term("pizza").semanticTag("pizza"), PageRequest.of(0, 10));
+			assertFalse(page.isBucketsApproximate());
+			assertEquals(2, page.getTotalElements());
+		} finally {
+			ReflectionTestUtils.setField(descriptionService, "aggregationMaxProcessableResultsSize", maxProcessableResultsSize);
+			ReflectionTestUtils.setField(descriptionService, "aggregationApproximateSampleSize", approximateSampleSize);
+		}
+	}
+
 	@Test
 	void testDescriptionSearchGroupByConcept() throws ServiceException {
 		String path = "MAIN";
@@ -574,6 +694,72 @@ class DescriptionServiceTest extends AbstractTest {
 		assertEquals(2, descriptionService.findDescriptionsWithAggregations(path, descriptionCriteria.term("origin place"), PageRequest.of(0, 10)).getTotalElements());
 	}
 
+	@Test
+	void testDescriptionPrefixIndexMatchesElasticsearchOnVersionBranch() throws Exception {
+		createFootConceptsAndVersion();
+		BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria("MAIN/2020-01-31");
+		DescriptionCriteria criteria = new DescriptionCriteria().term("foo cra").active(true);
+
+		// Elasticsearch only
+		ReflectionTestUtils.setField(descriptionPrefixIndexService, "enabled", false);
+		DescriptionService.DescriptionMatches fromElasticsearch;
+		try {
+			fromElasticsearch = descriptionService.findDescriptionAndConceptIds(criteria, Collections.emptySet(), branchCriteria, new TimerUtil("test"));
+		} finally {
+			ReflectionTestUtils.setField(descriptionPrefixIndexService, "enabled", true);
+		}
+
+		waitForPrefixIndex(branchCriteria);
+		DescriptionService.DescriptionMatches fromIndex = descriptionService.findDescriptionAndConceptIds(criteria, Collections.emptySet(), branchCriteria, new TimerUtil("test"));
+
+		assertEquals(Sets.newHashSet(100003L, 100004L), fromElasticsearch.getMatchedConceptIds());
+		assertEquals(fromElasticsearch.getMatchedConceptIds(), fromIndex.getMatchedConceptIds());
+		assertEquals(3, fromElasticsearch.getMatchedDescriptionIds().size());
+		assertEquals(fromElasticsearch.getMatchedDescriptionIds(), fromIndex.getMatchedDescriptionIds());
+		assertEquals(fromElasticsearch.getTotalElements(), fromIndex.getTotalElements());
+	}
+
+	@Test
+	void testDescriptionPrefixIndexOverSizeLimitNotBuiltAgain() throws Exception {
+		createFootConceptsAndVersion();
+		BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria("MAIN/2020-01-31");
+		long maxSizeMb = (long) ReflectionTestUtils.getField(descriptionPrefixIndexService, "maxSizeMb");
+		ReflectionTestUtils.setField(descriptionPrefixIndexService, "maxSizeMb", 0L);
+		try {
+			assertFalse(descriptionPrefixIndexService.getIndex(branchCriteria).isPresent());
+			for (int i = 0; i < 50 && descriptionPrefixIndexService.getStats().get("unavailable") == 0; i++) {
+				Thread.sleep(100);
+			}
+			assertEquals(1L, (long) descriptionPrefixIndexService.getStats().get("unavailable"));
+
+			// Searches still work, using Elasticsearch
+			assertFalse(descriptionPrefixIndexService.getIndex(branchCriteria).isPresent());
+			DescriptionService.DescriptionMatches matches = descriptionService.findDescriptionAndConceptIds(new DescriptionCriteria().term("foo cra").active(true),
+					Collections.emptySet(), branchCriteria, new TimerUtil("test"));
+			assertEquals(Sets.newHashSet(100003L, 100004L), matches.getMatchedConceptIds());
+		} finally {
+			ReflectionTestUtils.setField(descriptionPrefixIndexService, "maxSizeMb", maxSizeMb);
+			descriptionPrefixIndexService.clear();
+		}
+	}
+
+	private void createFootConceptsAndVersion() throws ServiceException {
+		descriptionPrefixIndexService.clear();
+		testUtil.createConceptWithPathIdAndTerm("MAIN", "100001", "Heart");
+		testUtil.createConceptWithPathIdAndTerm("MAIN", "100002", "Foot bone");
+		testUtil.createConceptWithPathIdAndTerms("MAIN", "100003", "Foot cramps", "Foot cramp");
+		testUtil.createConceptWithPathIdAndTerm("MAIN", "100004", "Cramp of foot");
+		codeSystemService.createCodeSystem(new CodeSystem("SNOMEDCT", "MAIN"));
+		codeSystemService.createVersion(codeSystemService.find("SNOMEDCT"), 20200131, "");
+	}
+
+	private void waitForPrefixIndex(BranchCriteria branchCriteria) throws InterruptedException {
+		for (int i = 0; i < 50 && !descriptionPrefixIndexService.getIndex(branchCriteria).isPresent(); i++) {
+			Thread.sleep(100);
+		}
+		assertTrue("Description prefix index built", descriptionPrefixIndexService.getIndex(branchCriteria).isPresent());
+	}
+
 	private String getAggregationString(String name, Map<String, Map<String, Long>> buckets) {
 		return buckets.containsKey(name) ? buckets.get(name).toString() : null;
 	}
@@ -9,15 +9,22 @@ import org.snomed.snowstorm.core.data.domain.CodeSystem;
 import org.snomed.snowstorm.core.data.domain.Concept;
 import org.snomed.snowstorm.core.data.domain.Concepts;
 import org.snomed.snowstorm.core.data.domain.Description;
+import org.snomed.snowstorm.core.data.domain.ReferenceSetMember;
 import org.snomed.snowstorm.core.data.services.pojo.DescriptionCriteria;
+import org.snomed.snowstorm.core.data.services.pojo.PageWithBucketAggregations;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 @ExtendWith(SpringExtension.class)
 @ContextConfiguration(classes = TestConfig.class)
@@ -35,6 +42,9 @@ class MultiSearchServiceTest extends AbstractTest {
 	@Autowired
 	private ConceptService conceptService;
 
+	@Autowired
+	private ReferenceSetMemberService referenceSetMemberService;
+
 	private ServiceTestUtil testUtil;
 
 	@BeforeEach
@@ -92,6 +102,46 @@ class MultiSearchServiceTest extends AbstractTest {
 
 	}
 
+	@Test
+	void testFindDescriptionsPagedAcrossCodeSystems() throws ServiceException {
+		CodeSystem codeSystemInternational = new CodeSystem("SNOMEDCT", "MAIN");
+		codeSystemService.createCodeSystem(codeSystemInternational);
+		testUtil.createConceptWithPathIdAndTerm("MAIN", "100001", "Heart finding");
+		testUtil.createConceptWithPathIdAndTerm("MAIN", "100002", "Lung finding");
+		testUtil.createConceptWithPathIdAndTerm("MAIN", "100003", "Foot finding");
+		testUtil.createConceptWithPathIdAndTerm("MAIN", "100004", "Heart");
+		codeSystemService.createVersion(codeSystemInternational, 20190731, "");
+
+		CodeSystem codeSystemBE = new CodeSystem("SNOMEDCT-BE", "MAIN/SNOMEDCT-BE");
+		codeSystemService.createCodeSystem(codeSystemBE);
+		testUtil.createConceptWithPathIdAndTerm("MAIN/SNOMEDCT-BE", "200001", "Hand finding");
+		testUtil.createConceptWithPathIdAndTerm("MAIN/SNOMEDCT-BE", "200002", "Knee finding");
+		referenceSetMemberService.createMember("MAIN/SNOMEDCT-BE", new ReferenceSetMember(Concepts.CORE_MODULE, Concepts.REFSET_SIMPLE, "200001"));
+		codeSystemService.createVersion(codeSystemBE, 20190930, "");
+
+		// The version of this code system also sees the BE content, which must only be returned and counted once
+		CodeSystem codeSystemXX = new CodeSystem("SNOMEDCT-XX", "MAIN/SNOMEDCT-BE/SNOMEDCT-XX");
+		codeSystemService.createCodeSystem(codeSystemXX);
+		testUtil.createConceptWithPathIdAndTerm("MAIN/SNOMEDCT-BE/SNOMEDCT-XX", "300001", "Wrist finding");
+		codeSystemService.createVersion(codeSystemXX, 20191031, "");
+
+		DescriptionCriteria criteria = new DescriptionCriteria().term("finding");
+		List<String> terms = new ArrayList<>();
+		for (int page = 0; page < 4; page++) {
+			Page<Description> descriptions = multiSearchService.findDescriptions(criteria, PageRequest.of(page, 2));
+			assertEquals(6, descriptions.getTotalElements());
+			descriptions.getContent().forEach(description -> terms.add(description.getTerm()));
+		}
+		assertEquals(6, terms.size());
+		assertEquals(6, new HashSet<>(terms).size());
+
+		PageWithBucketAggregations<Description> page = multiSearchService.findDescriptionsReferenceSets(criteria, PageRequest.of(0, 2));
+		assertEquals(6, page.getTotalElements());
+		assertEquals(2, page.getContent().size());
+		assertTrue(page.getBuckets().containsKey("membership"));
+		assertEquals(1L, (long) page.getBuckets().get("membership").get(Concepts.REFSET_SIMPLE));
+	}
+
 	private Page<Description> runSearch(String term) {
 		DescriptionCriteria criteria = new DescriptionCriteria().term(term);
 		return multiSearchService.findDescriptions(criteria, PageRequest.of(0, 10));
@@ -1,6 +1,7 @@
 package org.snomed.snowstorm.core.data.services;
 
 import com.google.common.collect.Lists;
+import io.kaicode.elasticvc.api.VersionControlHelper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -39,6 +40,9 @@ class QueryServiceTest extends AbstractTest {
 	@Autowired
 	private CodeSystemService codeSystemService;
 
+	@Autowired
+	private VersionControlHelper versionControlHelper;
+
 	private static final PageRequest PAGE_REQUEST = PageRequest.of(0, 50);
 	public static final String PATH = "MAIN";
 	public static final int TEST_ET = 20210131;
@@ -83,6 +87,18 @@ class QueryServiceTest extends AbstractTest {
 		
 	}
 
+	@Test
+	void testJoinDescendantCountAndLeafFlag() {
+		List<ConceptMini> minis = Lists.newArrayList(
+				new ConceptMini(pizza_2, null), new ConceptMini(cheesePizza_3, null), new ConceptMini(reallyCheesyPizza_5, null));
+		service.joinDescendantCountAndLeafFlag(minis, Relationship.CharacteristicType.inferred, versionControlHelper.getBranchCriteria(PATH));
+		assertEquals(3L, minis.get(0).getDescendantCount());
+		assertEquals(2L, minis.get(1).getDescendantCount());
+		assertEquals(0L, minis.get(2).getDescendantCount());
+		assertFalse(minis.get(0).getIsLeafInferred());
+		assertTrue(minis.get(2).getIsLeafInferred());
+	}
+
 	@Test
 	void testSearchResultOrdering() {
 		List<ConceptMini> matches = service.search(service.createQueryBuilder(false).activeFilter(true).descriptionTerm("Piz"), PATH, PAGE_REQUEST).getContent();
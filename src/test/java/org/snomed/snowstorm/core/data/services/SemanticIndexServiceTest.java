@@ -8,18 +8,27 @@ import org.snomed.otf.owltoolkit.constants.Concepts;
 import org.snomed.snowstorm.AbstractTest;
 import org.snomed.snowstorm.TestConfig;
 import org.snomed.snowstorm.core.data.domain.Concept;
+import org.snomed.snowstorm.core.data.domain.QueryConcept;
 import org.snomed.snowstorm.core.data.domain.Relationship;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
+import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import static io.kaicode.elasticvc.api.VersionControlHelper.LARGE_PAGE;
 import static java.lang.Long.parseLong;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.snomed.snowstorm.core.data.domain.Concepts.ISA;
 import static org.snomed.snowstorm.core.data.domain.Concepts.SNOMEDCT_ROOT;
 
@@ -33,6 +42,9 @@ class SemanticIndexServiceTest extends AbstractTest {
 	@Autowired
 	private ConceptService conceptService;
 
+	@Autowired
+	private ElasticsearchRestTemplate elasticsearchTemplate;
+
 	public static final String PATH = "MAIN";
 
 	@BeforeEach
@@ -59,4 +71,46 @@ class SemanticIndexServiceTest extends AbstractTest {
 
 		assertEquals(0, semanticIndexService.findConceptReferences(PATH, parseLong(ISA), true, LARGE_PAGE).getTotalElements());
 	}
+
+	@Test
+	void findConceptReferencesByType() {
+		Map<Long, Set<Long>> attributeReferences = semanticIndexService.findConceptReferences(PATH, 100005L, false, parseLong(Concepts.ALL_OR_PART_OF), LARGE_PAGE).getMap();
+		assertEquals(1, attributeReferences.size());
+		assertEquals("[100003]", Arrays.toString(attributeReferences.get(parseLong(Concepts.ALL_OR_PART_OF)).toArray()));
+
+		Map<Long, Set<Long>> children = semanticIndexService.findConceptReferences(PATH, 100002L, false, parseLong(ISA), LARGE_PAGE).getMap();
+		assertEquals(1, children.size());
+		assertEquals(2, children.get(parseLong(ISA)).size());
+
+		Map<Long, Long> counts = semanticIndexService.countConceptReferences(PATH, 100005L, false);
+		assertEquals(2, counts.size());
+		assertEquals(1L, (long) counts.get(parseLong(ISA)));
+		assertEquals(1L, (long) counts.get(parseLong(Concepts.ALL_OR_PART_OF)));
+		assertEquals(0, semanticIndexService.countConceptReferences(PATH, 100008L, false).size());
+	}
+
+	@Test
+	void findConceptReferencesIndexedBeforeAttributeReferences() {
+		// Remove the attrRef field, as in a document indexed before it was added
+		List<UpdateQuery> updateQueries = new ArrayList<>();
+		try (SearchHitsIterator<QueryConcept> stream = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+				.withQuery(termQuery(QueryConcept.Fields.CONCEPT_ID, 100003L)).build(), QueryConcept.class)) {
+			stream.forEachRemaining(hit -> updateQueries.add(UpdateQuery.builder(hit.getContent().getInternalId())
+					.withScript("ctx._source.remove('" + QueryConcept.Fields.ATTR_REFERENCES + "')").build()));
+		}
+		assertFalse(updateQueries.isEmpty());
+		elasticsearchTemplate.bulkUpdate(updateQueries, elasticsearchTemplate.getIndexCoordinatesFor(QueryConcept.class));
+		elasticsearchTemplate.indexOps(QueryConcept.class).refresh();
+
+		Map<Long, Set<Long>> conceptReferences = semanticIndexService.findConceptReferences(PATH, 100005L, false, LARGE_PAGE).getMap();
+		assertEquals(2, conceptReferences.size());
+		assertEquals("[100003]", Arrays.toString(conceptReferences.get(parseLong(Concepts.ALL_OR_PART_OF)).toArray()));
+
+		Map<Long, Set<Long>> attributeReferences = semanticIndexService.findConceptReferences(PATH, 100005L, false, parseLong(Concepts.ALL_OR_PART_OF), LARGE_PAGE).getMap();
+		assertEquals("[100003]", Arrays.toString(attributeReferences.get(parseLong(Concepts.ALL_OR_PART_OF)).toArray()));
+
+		Map<Long, Long> counts = semanticIndexService.countConceptReferences(PATH, 100005L, false);
+		assertEquals(1L, (long) counts.get(parseLong(ISA)));
+		assertEquals(1L, (long) counts.get(parseLong(Concepts.ALL_OR_PART_OF)));
+	}
 }
@@ -4,6 +4,7 @@ import com.google.common.collect.Lists;
 import io.kaicode.elasticvc.api.BranchService;
 import io.kaicode.elasticvc.api.CommitListener;
 import io.kaicode.elasticvc.domain.Commit;
+import io.kaicode.elasticvc.domain.Metadata;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
@@ -13,6 +14,8 @@ import org.snomed.snowstorm.TestConfig;
 import org.snomed.snowstorm.config.Config;
 import org.snomed.snowstorm.core.data.domain.*;
 import org.snomed.snowstorm.core.data.repositories.QueryConceptRepository;
+import org.snomed.snowstorm.core.data.services.pojo.SemanticIndexDiff;
+import org.snomed.snowstorm.core.data.services.pojo.SemanticIndexRebuildJob;
 import org.snomed.snowstorm.core.data.services.classification.BranchClassificationStatusService;
 import org.snomed.snowstorm.core.data.services.traceability.TraceabilityLogService;
 import org.snomed.snowstorm.core.data.services.transitiveclosure.GraphBuilderException;
@@ -247,6 +250,9 @@ class SemanticIndexUpdateServiceTest extends AbstractTest {
 		Map<String, Integer> stringIntegerMap = updateService.rebuildStatedAndInferredSemanticIndex(branch, false);
 		assertEquals(0, stringIntegerMap.get(Form.STATED.getName()));
 		assertEquals(0, stringIntegerMap.get(Form.INFERRED.getName()));
+		List<SemanticIndexDiff> diffs = new ArrayList<>();
+		updateService.verifyStatedAndInferredSemanticIndex(branch, diffs::add);
+		assertEquals(0, diffs.size());
 
 		// Extreme hack, without version control, to break the semantic index
 		// Remove attributes from existing semantic entry
@@ -259,6 +265,7 @@ class SemanticIndexUpdateServiceTest extends AbstractTest {
 		QueryConcept queryConcept = hit.getContent();
 		assertEquals(2, queryConcept.getAttr().size());
 		queryConcept.setAttrMap(null);
+		queryConcept.setAttrPacked(null);
 		queryConcept.setAttr(null);
 		queryConcept.serializeGroupedAttributesMap();
 		assertEquals(1, queryConcept.getAttr().size());
@@ -270,6 +277,14 @@ class SemanticIndexUpdateServiceTest extends AbstractTest {
 		deletedEntry.setPath(branch);
 		queryConceptRepository.save(deletedEntry);
 
+		// Verification reports the differences without fixing them
+		Map<String, Integer> diffCounts = updateService.verifyStatedAndInferredSemanticIndex(branch, diffs::add);
+		assertEquals(0, diffCounts.get(Form.STATED.getName()));
+		assertEquals(2, diffCounts.get(Form.INFERRED.getName()));
+		Map<Long, SemanticIndexDiff.Type> diffTypes = diffs.stream().collect(Collectors.toMap(SemanticIndexDiff::getConceptId, SemanticIndexDiff::getType));
+		assertEquals(SemanticIndexDiff.Type.WRONG_ATTRIBUTES, diffTypes.get(hamPizza.getConceptIdAsLong()));
+		assertEquals(SemanticIndexDiff.Type.EXTRA, diffTypes.get(500000000L));
+
 		stringIntegerMap = updateService.rebuildStatedAndInferredSemanticIndex(branch, false);
 		assertEquals(0, stringIntegerMap.get(Form.STATED.getName()));
 		assertEquals(2, stringIntegerMap.get(Form.INFERRED.getName()));
@@ -326,6 +341,11 @@ class SemanticIndexUpdateServiceTest extends AbstractTest {
 
 		assertTC(n12, n23, n22, n21, root);// n12 ends up under n23, inheriting it's TC
 		assertTC(n13, n12, n23, n22, n21, root);
+
+		// Descendant and child counts moved with the subtree
+		List<SemanticIndexDiff> diffs = new ArrayList<>();
+		updateService.verifyStatedAndInferredSemanticIndex(branch, diffs::add);
+		assertEquals(0, diffs.size());
 	}
 
 	@Test
@@ -360,6 +380,155 @@ class SemanticIndexUpdateServiceTest extends AbstractTest {
 		assertTC(accc, a, aa, aaa, ac, acc, ab, root);
 	}
 
+	@Test
+	void testAddedAncestorsAppliedToDescendantsWithoutRewritingUnchanged() throws ServiceException {
+		Concept root = new Concept(SNOMEDCT_ROOT);
+
+		Concept a = new Concept("100001001").addRelationship(new Relationship(ISA, SNOMEDCT_ROOT));
+		Concept b = new Concept("100002001").addRelationship(new Relationship(ISA, SNOMEDCT_ROOT));
+		Concept c = new Concept("100003001").addRelationship(new Relationship(ISA, a.getId()));
+		Concept cc = new Concept("100003002").addRelationship(new Relationship(ISA, c.getId()));
+		Concept ccc = new Concept("100003003").addRelationship(new Relationship(ISA, cc.getId()));
+		// Already under 'b' by another route
+		Concept cd = new Concept("100003004")
+				.addRelationship(new Relationship(ISA, c.getId()))
+				.addRelationship(new Relationship(ISA, b.getId()));
+
+		String branch = "MAIN";
+		conceptService.batchCreate(Lists.newArrayList(root, a, b, c, cc, ccc, cd), branch);
+		assertTC(ccc, cc, c, a, root);
+		Date cdIndexStart = getInferredQueryConcept(cd.getId()).getStart();
+
+		// 'c' gains a second parent, no ancestors are lost
+		c.addRelationship(new Relationship(ISA, b.getId()));
+		conceptService.update(c, branch);
+
+		assertTC(c, a, b, root);
+		assertTC(cc, c, a, b, root);
+		assertTC(ccc, cc, c, a, b, root);
+		assertTC(cd, c, a, b, root);
+		assertEquals(cdIndexStart, getInferredQueryConcept(cd.getId()).getStart(), "Descendant which already had the new ancestor is not rewritten.");
+
+		// 'c' moves back under 'a' only, ancestors are lost so the descendants are recomputed
+		c.getRelationships().removeIf(relationship -> relationship.getDestinationId().equals(b.getId()));
+		conceptService.update(c, branch);
+
+		assertTC(c, a, root);
+		assertTC(ccc, cc, c, a, root);
+		assertTC(cd, c, a, b, root);
+	}
+
+	@Test
+	void testHierarchyCountsAfterAddingAndRemovingIsA() throws ServiceException {
+		Concept root = new Concept(SNOMEDCT_ROOT);
+
+		Concept a = new Concept("100001001").addRelationship(new Relationship(ISA, SNOMEDCT_ROOT));
+		Concept b = new Concept("100002001").addRelationship(new Relationship(ISA, SNOMEDCT_ROOT));
+		Concept c = new Concept("100003001").addRelationship(new Relationship(ISA, a.getId()));
+		Concept cc = new Concept("100003002").addRelationship(new Relationship(ISA, c.getId()));
+
+		String branch = "MAIN";
+		conceptService.batchCreate(Lists.newArrayList(root, a, b, c, cc), branch);
+		assertHierarchyCounts(root, 4, 2);
+		assertHierarchyCounts(a, 2, 1);
+		assertHierarchyCounts(b, 0, 0);
+		assertHierarchyCounts(c, 1, 1);
+		assertHierarchyCounts(cc, 0, 0);
+
+		// 'c' gains a second parent, 'b' gains 'c' and its descendant
+		c.addRelationship(new Relationship(ISA, b.getId()));
+		conceptService.update(c, branch);
+		assertHierarchyCounts(root, 4, 2);
+		assertHierarchyCounts(a, 2, 1);
+		assertHierarchyCounts(b, 2, 1);
+		assertHierarchyCounts(c, 1, 1);
+
+		// 'c' is removed from under 'a' and a new concept is added under 'cc'
+		c.getRelationships().removeIf(relationship -> relationship.getDestinationId().equals(a.getId()));
+		conceptService.update(c, branch);
+		Concept ccc = new Concept("100003003").addRelationship(new Relationship(ISA, cc.getId()));
+		conceptService.create(ccc, branch);
+		assertHierarchyCounts(root, 5, 2);
+		assertHierarchyCounts(a, 0, 0);
+		assertHierarchyCounts(b, 3, 1);
+		assertHierarchyCounts(c, 2, 1);
+		assertHierarchyCounts(cc, 1, 1);
+		assertHierarchyCounts(ccc, 0, 0);
+
+		List<SemanticIndexDiff> diffs = new ArrayList<>();
+		updateService.verifyStatedAndInferredSemanticIndex(branch, diffs::add);
+		assertEquals(0, diffs.size());
+	}
+
+	@Test
+	void testRebuildJobResumesFromCheckpoint() throws ServiceException, InterruptedException {
+		Concept root = new Concept(SNOMEDCT_ROOT);
+		Concept a = new Concept("100001001").addRelationship(new Relationship(ISA, SNOMEDCT_ROOT));
+		Concept b = new Concept("100002001").addRelationship(new Relationship(ISA, SNOMEDCT_ROOT));
+		Concept c = new Concept("100003001").addRelationship(new Relationship(ISA, b.getId()));
+		String branch = "MAIN";
+		conceptService.batchCreate(Lists.newArrayList(root, a, b, c), branch);
+
+		// Entries either side of the checkpoint are lost, only the one after it is rebuilt
+		String checkpoint = Form.INFERRED.getName() + ":" + a.getId();
+		setRebuildCheckpoint(branch, checkpoint);
+		deleteInferredQueryConcepts(a, c);
+
+		SemanticIndexRebuildJob job = runRebuildJob(branch);
+		assertEquals(SemanticIndexRebuildJob.Status.COMPLETED, job.getStatus());
+		assertEquals(checkpoint, job.getResumedFromCheckpoint());
+		assertNull(branchService.findLatest(branch).getMetadata().getMapOrCreate(BranchMetadataHelper.INTERNAL_METADATA_KEY)
+				.get(SemanticIndexUpdateService.REBUILD_CHECKPOINT_METADATA_KEY));
+		assertTC(c, b, root);
+		assertTrue(queryService.findAncestorIds(a.getId(), branch, false).isEmpty(), "Concept before the checkpoint is not rebuilt.");
+
+		// A checkpoint in the wrong format is ignored and the whole index is rebuilt
+		setRebuildCheckpoint(branch, "inferred-100003001");
+		job = runRebuildJob(branch);
+		assertEquals(SemanticIndexRebuildJob.Status.COMPLETED, job.getStatus());
+		assertNull(job.getResumedFromCheckpoint());
+		assertTC(a, root);
+		assertTC(c, b, root);
+
+		// The job is not found through another branch
+		String jobId = job.getId();
+		assertThrows(NotFoundException.class, () -> updateService.getRebuildJobOrThrow("MAIN/OTHER", jobId));
+
+		// Starting another job forgets the finished one
+		runRebuildJob(branch);
+		assertThrows(NotFoundException.class, () -> updateService.getRebuildJobOrThrow(branch, jobId));
+	}
+
+	@Test
+	void testRebuildJobOnChildBranch() throws ServiceException, InterruptedException {
+		Concept root = new Concept(SNOMEDCT_ROOT);
+		Concept a = new Concept("100001001").addRelationship(new Relationship(ISA, SNOMEDCT_ROOT));
+		Concept b = new Concept("100002001").addRelationship(new Relationship(ISA, SNOMEDCT_ROOT));
+		Concept c = new Concept("100003001").addRelationship(new Relationship(ISA, b.getId()));
+		conceptService.batchCreate(Lists.newArrayList(root, a, b, c), "MAIN");
+
+		String branch = "MAIN/REBUILD";
+		branchService.create(branch);
+		c.getRelationships().clear();
+		c.addRelationship(new Relationship(ISA, a.getId()));
+		conceptService.update(c, branch);
+		Concept d = new Concept("100004001").addRelationship(new Relationship(ISA, c.getId()));
+		conceptService.create(d, branch);
+
+		// Lost entry of a concept created on the branch
+		deleteInferredQueryConcepts(d);
+
+		SemanticIndexRebuildJob job = runRebuildJob(branch);
+		assertEquals(SemanticIndexRebuildJob.Status.COMPLETED, job.getStatus());
+		assertTC(c, branch, a, root);
+		assertTC(d, branch, c, a, root);
+		assertTC(c, b, root);
+
+		List<SemanticIndexDiff> diffs = new ArrayList<>();
+		updateService.verifyStatedAndInferredSemanticIndex(branch, diffs::add);
+		assertEquals(0, diffs.size());
+	}
+
 	@Test
 	void testSecondIsARemoval() throws ServiceException {
 		Concept root = new Concept(SNOMEDCT_ROOT);
@@ -1346,6 +1515,43 @@ class SemanticIndexUpdateServiceTest extends AbstractTest {
 		}
 	}
 
+	private QueryConcept getInferredQueryConcept(String conceptId) {
+		final SearchHit<QueryConcept> hit = elasticsearchTemplate.searchOne(new NativeSearchQueryBuilder()
+				.withQuery(boolQuery()
+						.must(termQuery(QueryConcept.Fields.CONCEPT_ID_FORM, QueryConcept.toConceptIdForm(Long.parseLong(conceptId), false)))
+						.mustNot(existsQuery("end"))
+				).build(), QueryConcept.class);
+		assertNotNull(hit);
+		return hit.getContent();
+	}
+
+	private void setRebuildCheckpoint(String branch, String checkpoint) {
+		Metadata metadata = branchService.findLatest(branch).getMetadata();
+		metadata.getMapOrCreate(BranchMetadataHelper.INTERNAL_METADATA_KEY).put(SemanticIndexUpdateService.REBUILD_CHECKPOINT_METADATA_KEY, checkpoint);
+		branchService.updateMetadata(branch, metadata);
+	}
+
+	private void deleteInferredQueryConcepts(Concept... concepts) {
+		for (Concept concept : concepts) {
+			queryConceptRepository.delete(getInferredQueryConcept(concept.getId()));
+		}
+		elasticsearchTemplate.indexOps(QueryConcept.class).refresh();
+	}
+
+	private SemanticIndexRebuildJob runRebuildJob(String branch) throws InterruptedException {
+		SemanticIndexRebuildJob job = updateService.getRebuildJobOrThrow(branch, updateService.rebuildStatedAndInferredSemanticIndexAsync(branch));
+		for (int i = 0; i < 600 && job.getStatus() == SemanticIndexRebuildJob.Status.RUNNING; i++) {
+			Thread.sleep(100);
+		}
+		return job;
+	}
+
+	private void assertHierarchyCounts(Concept concept, int descendantCount, int childCount) {
+		QueryConcept queryConcept = getInferredQueryConcept(concept.getId());
+		assertEquals(Integer.valueOf(descendantCount), queryConcept.getDescendantCount(), "Descendant count of " + concept.getId());
+		assertEquals(Integer.valueOf(childCount), queryConcept.getChildCount(), "Child count of " + concept.getId());
+	}
+
 	private void assertTC(Concept concept, Concept... ancestors) {
 		assertTC(concept, "MAIN", ancestors);
 	}
@@ -0,0 +1,75 @@
+package org.snomed.snowstorm.core.data.services;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.junit.jupiter.api.Test;
+import org.snomed.snowstorm.core.data.domain.QueryConcept;
+import org.snomed.snowstorm.core.data.services.pojo.SemanticIndexRebuildProgress;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SemanticIndexWriterTest {
+
+	@Test
+	void testBatchesSavedWhileAdding() {
+		ExecutorService executorService = Executors.newFixedThreadPool(2);
+		try {
+			List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+			LongOpenHashSet affectedConceptIds = new LongOpenHashSet();
+			SemanticIndexRebuildProgress progress = new SemanticIndexRebuildProgress("MAIN", "inferred", false);
+			SemanticIndexWriter writer = new SemanticIndexWriter(executorService, 2, 10,
+					batch -> batchSizes.add(batch.size()), false, affectedConceptIds, progress);
+
+			for (long conceptId = 1000; conceptId < 1025; conceptId++) {
+				QueryConcept queryConcept = new QueryConcept(conceptId, Set.of(138875005L), Set.of(138875005L), false);
+				queryConcept.setCreating(true);
+				writer.add(queryConcept);
+			}
+			writer.finish();
+
+			assertEquals(25, writer.getCount());
+			assertEquals(25, batchSizes.stream().mapToInt(Integer::intValue).sum());
+			assertEquals(3, batchSizes.size());
+			assertEquals(25, progress.getConceptsSaved());
+			assertEquals(26, affectedConceptIds.size());
+			assertTrue(writer.getSummary().startsWith("25 semantic concepts created"));
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	@Test
+	void testConceptWithoutParentsDeletedAndDryRunNotSaved() {
+		List<QueryConcept> saved = new ArrayList<>();
+		SemanticIndexWriter writer = new SemanticIndexWriter(null, 1, 10, saved::addAll, true, null, null);
+		QueryConcept queryConcept = new QueryConcept(1000L, new HashSet<>(), new HashSet<>(), false);
+		writer.add(queryConcept);
+		writer.finish();
+
+		assertTrue(queryConcept.isDeleted());
+		assertTrue(saved.isEmpty());
+		assertEquals(1, writer.getCount());
+	}
+
+	@Test
+	void testWriterFailureReported() {
+		ExecutorService executorService = Executors.newFixedThreadPool(1);
+		try {
+			SemanticIndexWriter writer = new SemanticIndexWriter(executorService, 1, 1, batch -> {
+				throw new IllegalStateException("Index unavailable");
+			}, false, null, null);
+			assertThrows(IllegalStateException.class, () -> {
+				for (long conceptId = 1000; conceptId < 1010; conceptId++) {
+					writer.add(new QueryConcept(conceptId, Set.of(138875005L), Set.of(138875005L), false));
+				}
+				writer.finish();
+			});
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+}
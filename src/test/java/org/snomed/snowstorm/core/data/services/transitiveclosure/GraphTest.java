@@ -0,0 +1,111 @@
+package org.snomed.snowstorm.core.data.services.transitiveclosure;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GraphTest {
+
+	@Test
+	void testLoopThrowsOrWarns() throws GraphBuilderException {
+		// 300 and 400 are parents of each other, 500 is below the loop
+		GraphBuilder builder = new GraphBuilder();
+		builder.addParent(200, 100);
+		builder.addParent(300, 200);
+		builder.addParent(300, 400);
+		builder.addParent(400, 300);
+		builder.addParent(500, 400);
+		Graph graph = builder.build();
+
+		assertEquals(Set.of(100L), graph.getTransitiveClosure(graph.getIndex(200), "MAIN", true));
+		GraphBuilderException exception = assertThrows(GraphBuilderException.class, () -> graph.getTransitiveClosure(graph.getIndex(300), "MAIN", true));
+		assertTrue(exception.getMessage().contains("Loop found in transitive closure for concept 300 on branch MAIN"));
+
+		// Without the exception the loop is logged and the concept is left out of its own ancestors
+		assertEquals(Set.of(400L, 200L, 100L), graph.getTransitiveClosure(graph.getIndex(300), "MAIN", false));
+		assertEquals(Set.of(400L, 300L, 200L, 100L), graph.getTransitiveClosure(graph.getIndex(500), "MAIN", false));
+
+		// Loop members are not counted as their own descendants
+		int[] descendantCounts = graph.getDescendantCounts();
+		assertEquals(4, descendantCounts[graph.getIndex(100)]);
+		assertEquals(2, descendantCounts[graph.getIndex(300)]);
+		assertEquals(0, descendantCounts[graph.getIndex(500)]);
+	}
+
+	@Test
+	void testClearParentsAndMarkUpdated() throws GraphBuilderException {
+		GraphBuilder builder = new GraphBuilder();
+		builder.addParent(200, 100);
+		builder.addParent(300, 200);
+		builder.addParent(400, 300);
+
+		// Parents added before the clear are dropped, those added after are kept
+		builder.clearParentsAndMarkUpdated(300);
+		builder.addParent(300, 100);
+		Graph graph = builder.build();
+
+		int node = graph.getIndex(300);
+		assertEquals(Set.of(100L), graph.getParentIds(node));
+		assertEquals(Set.of(100L), graph.getTransitiveClosure(node, "MAIN", true));
+		assertEquals(Set.of(300L, 100L), graph.getTransitiveClosure(graph.getIndex(400), "MAIN", true));
+		assertTrue(graph.isAncestorOrSelfUpdated(node));
+		assertTrue(graph.isAncestorOrSelfUpdated(graph.getIndex(400)));
+		assertFalse(graph.isAncestorOrSelfUpdated(graph.getIndex(200)));
+		assertEquals(0, graph.getChildCounts()[graph.getIndex(200)]);
+
+		// Clearing a concept which is not in the graph yet adds it without parents
+		builder.clearParentsAndMarkUpdated(500);
+		graph = builder.build();
+		assertEquals(5, graph.getNodeCount());
+		assertEquals(0, graph.getParentCount(graph.getIndex(500)));
+		assertTrue(graph.isAncestorOrSelfUpdated(graph.getIndex(500)));
+	}
+
+	@Test
+	void testDuplicateEdges() {
+		GraphBuilder builder = new GraphBuilder();
+		builder.addParent(200, 100);
+		builder.addParent(300, 200);
+		builder.addParent(300, 100);
+		builder.addParent(300, 200);
+		builder.addParent(200, 100);
+		Graph graph = builder.build();
+
+		assertEquals(3, graph.getNodeCount());
+		assertEquals(1, graph.getParentCount(graph.getIndex(200)));
+		assertEquals(2, graph.getParentCount(graph.getIndex(300)));
+		assertEquals(Set.of(200L, 100L), graph.getParentIds(graph.getIndex(300)));
+		int[] childCounts = graph.getChildCounts();
+		assertEquals(2, childCounts[graph.getIndex(100)]);
+		assertEquals(1, childCounts[graph.getIndex(200)]);
+		int[] descendantCounts = graph.getDescendantCounts();
+		assertEquals(2, descendantCounts[graph.getIndex(100)]);
+		assertEquals(1, descendantCounts[graph.getIndex(200)]);
+	}
+
+	@Test
+	void testAncestorOrSelfUpdatedThroughDiamond() throws GraphBuilderException {
+		// 200 and 300 are both below 100 and above 400, 500 is below 400
+		GraphBuilder builder = new GraphBuilder();
+		builder.addParent(200, 100);
+		builder.addParent(300, 100);
+		builder.addParent(400, 200);
+		builder.addParent(400, 300);
+		builder.addParent(500, 400);
+		builder.clearParentsAndMarkUpdated(200);
+		builder.addParent(200, 100);
+		Graph graph = builder.build();
+
+		assertFalse(graph.isAncestorOrSelfUpdated(graph.getIndex(100)));
+		assertTrue(graph.isAncestorOrSelfUpdated(graph.getIndex(200)));
+		assertFalse(graph.isAncestorOrSelfUpdated(graph.getIndex(300)));
+		assertTrue(graph.isAncestorOrSelfUpdated(graph.getIndex(400)));
+		assertTrue(graph.isAncestorOrSelfUpdated(graph.getIndex(500)));
+
+		// Ancestors reached through both sides of the diamond are listed once
+		assertEquals(Set.of(400L, 300L, 200L, 100L), graph.getTransitiveClosure(graph.getIndex(500), "MAIN", true));
+		assertEquals(4, graph.getDescendantCounts()[graph.getIndex(100)]);
+	}
+}
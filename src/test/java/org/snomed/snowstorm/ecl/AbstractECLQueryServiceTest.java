@@ -8,12 +8,13 @@ import org.snomed.snowstorm.core.data.services.ConceptService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.PageRequest;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.snomed.snowstorm.TestConcepts.NON_EXISTENT_CONCEPT;
 import static org.snomed.snowstorm.TestConcepts.*;
 import static org.snomed.snowstorm.core.data.domain.Concepts.*;
@@ -29,6 +30,9 @@ abstract class AbstractECLQueryServiceTest {
 	@Autowired
 	protected ConceptService conceptService;
 
+	@Autowired
+	protected ECLBatchService eclBatchService;
+
 	@Autowired
 	protected VersionControlHelper versionControlHelper;
 
@@ -514,6 +518,55 @@ abstract class AbstractECLQueryServiceTest {
 				strings(selectConceptIds("* MINUS >*")).toString());
 	}
 
+	@Test
+	void streamConceptIdsInBatches() {
+		List<Long> streamed = new ArrayList<>();
+		List<Integer> batchSizes = new ArrayList<>();
+		eclQueryService.streamConceptIds("<<" + SNOMEDCT_ROOT, branchCriteria, INFERRED, 3, batch -> {
+			streamed.addAll(batch);
+			batchSizes.add(batch.size());
+		});
+
+		List<Long> expected = new ArrayList<>(selectConceptIds("<<" + SNOMEDCT_ROOT));
+		expected.sort(Comparator.reverseOrder());
+		assertEquals(expected, streamed);
+		assertEquals((expected.size() + 2) / 3, batchSizes.size());
+		assertTrue(batchSizes.stream().allMatch(size -> size <= 3));
+	}
+
+	@Test
+	void streamCompoundConceptIdsInBatches() {
+		// Selected once from prefetched sets, then streamed in batches
+		String ecl = "<" + SNOMEDCT_ROOT + " OR " + SNOMEDCT_ROOT;
+		List<Long> streamed = new ArrayList<>();
+		eclQueryService.streamConceptIds(ecl, branchCriteria, INFERRED, 3, streamed::addAll);
+
+		List<Long> expected = new ArrayList<>(selectConceptIds(ecl));
+		expected.sort(Comparator.reverseOrder());
+		assertEquals(expected, streamed);
+	}
+
+	@Test
+	void evaluateBatchWithValidAndInvalidExpressions() {
+		List<String> ecls = Arrays.asList(
+				"<" + CLINICAL_FINDING,
+				"<" + CLINICAL_FINDING + " AND",
+				"<" + NON_EXISTENT_CONCEPT,
+				"<<" + SNOMEDCT_ROOT);
+		List<ECLBatchResult> results = eclBatchService.evaluate(ecls, branchCriteria, INFERRED, null, 1000);
+
+		assertEquals(4, results.size());
+		// Each bad expression has its own error, the good ones are still evaluated
+		assertNull(results.get(0).getError());
+		assertEquals(strings(selectConceptIds(ecls.get(0))), strings(results.get(0).getConceptIds()));
+		assertNotNull(results.get(1).getError());
+		assertNotNull(results.get(2).getError());
+		assertTrue(results.get(2).getError().contains(NON_EXISTENT_CONCEPT));
+		assertNull(results.get(3).getError());
+		assertEquals(allConceptIds, strings(results.get(3).getConceptIds()));
+		assertEquals(Long.valueOf(allConceptIds.size()), results.get(3).getTotal());
+	}
+
 	protected Set<String> strings(Collection<Long> ids) {
 		return ids.stream().map(Object::toString).collect(Collectors.toSet());
 	}
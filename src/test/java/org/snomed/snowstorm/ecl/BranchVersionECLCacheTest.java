@@ -1,11 +1,22 @@
 package org.snomed.snowstorm.ecl;
 
 import org.junit.jupiter.api.Test;
+import org.snomed.langauges.ecl.ECLQueryBuilder;
+import org.snomed.snowstorm.ecl.domain.expressionconstraint.SExpressionConstraint;
+import org.springframework.data.domain.PageImpl;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class BranchVersionECLCacheTest {
 
+	private static final ECLQueryBuilder ECL_QUERY_BUILDER = new ECLQueryBuilder(new SECLObjectFactory());
+
 	@Test
 	void test() {
 		assertEquals("123, 456", BranchVersionECLCache.normaliseEclString("123 AND 456"));
@@ -21,4 +32,104 @@ class BranchVersionECLCacheTest {
 		assertEquals("<< 195967001 {{ d active = 1 }}", BranchVersionECLCache.normaliseEclString("<< 195967001 |Asthma| {{ D active = 1 }}"));
 	}
 
+	@Test
+	void testBranchQuota() {
+		ECLResultsCache resultsCache = new ECLResultsCache(100_000, 10_000);
+		BranchVersionECLCache cache = resultsCache.getOrCreateBranchVersionCache("MAIN", new Date());
+		for (int i = 0; i < 20; i++) {
+			cache.put("<< " + i, false, null, pageOfSize(100));
+		}
+		assertTrue(cache.getBytesUsed() <= 10_000);
+		assertTrue(cache.getStats().get("evictions") > 0);
+	}
+
+	@Test
+	void testOverallBudget() {
+		ECLResultsCache resultsCache = new ECLResultsCache(10_000, 10_000);
+		BranchVersionECLCache mainCache = resultsCache.getOrCreateBranchVersionCache("MAIN", new Date());
+		BranchVersionECLCache projectCache = resultsCache.getOrCreateBranchVersionCache("MAIN/PROJECT", new Date());
+		for (int i = 0; i < 10; i++) {
+			mainCache.put("<< " + i, false, null, pageOfSize(100));
+			projectCache.put("<< " + i, false, null, pageOfSize(100));
+		}
+		assertTrue(resultsCache.getBytesUsed() <= 10_000);
+		assertTrue(resultsCache.getStats().get("evictions") > 0);
+
+		resultsCache.clearCache();
+		assertEquals(0, resultsCache.getBytesUsed());
+	}
+
+	@Test
+	void testHierarchyConceptIds() {
+		assertArrayEquals(new long[]{404684003L}, hierarchyConceptIds("<< 404684003 |Clinical finding|"));
+		assertArrayEquals(new long[]{138875005L}, hierarchyConceptIds("> 138875005"));
+		assertArrayEquals(new long[]{195967001L, 404684003L}, hierarchyConceptIds("<< 404684003 MINUS (<! 195967001 OR 404684003)"));
+
+		// Depends on more than the hierarchy
+		assertNull(hierarchyConceptIds("*"));
+		assertNull(hierarchyConceptIds("< *"));
+		assertNull(hierarchyConceptIds("^ 723264001"));
+		assertNull(hierarchyConceptIds("<< 404684003 {{ term = \"heart\" }}"));
+		assertNull(hierarchyConceptIds("<< 404684003 : 363698007 = << 39057004"));
+		assertNull(hierarchyConceptIds("<< 404684003 . 363698007"));
+		assertNull(hierarchyConceptIds("<< (<< 404684003 : 363698007 = *)"));
+	}
+
+	@Test
+	void testCarryOver() {
+		ECLResultsCache resultsCache = new ECLResultsCache(100_000, 100_000);
+		Date firstHead = new Date(1000);
+		Date secondHead = new Date(2000);
+		BranchVersionECLCache cache = resultsCache.getOrCreateBranchVersionCache("MAIN", firstHead);
+		cache.put("<< 100", false, null, pageOfSize(10), new long[]{100});
+		cache.put("<< 200", false, null, pageOfSize(10), new long[]{200});
+		cache.put("<< 200", true, null, pageOfSize(10), new long[]{200});
+		cache.put("^ 300", false, null, pageOfSize(10), null);
+
+		// Concept 201 moved under 200 in the inferred form
+		SemanticChanges semanticChanges = new SemanticChanges("MAIN", firstHead, secondHead);
+		semanticChanges.getAffectedConceptIds(false).addAll(Arrays.asList(201L, 200L, 138875005L));
+		resultsCache.recordSemanticChanges(semanticChanges);
+
+		BranchVersionECLCache nextCache = resultsCache.getOrCreateBranchVersionCache("MAIN", secondHead);
+		assertNotNull(nextCache.get("<< 100", false, null));
+		assertNull(nextCache.get("<< 200", false, null));
+		assertNotNull(nextCache.get("<< 200", true, null));
+		assertNull(nextCache.get("^ 300", false, null));
+		assertEquals(2, resultsCache.getStats().get("carried-over"));
+
+		// No recorded changes, nothing carried over
+		BranchVersionECLCache thirdCache = resultsCache.getOrCreateBranchVersionCache("MAIN", new Date(3000));
+		assertNull(thirdCache.get("<< 100", false, null));
+	}
+
+	@Test
+	void testNoCarryOverAfterUnknownChanges() {
+		ECLResultsCache resultsCache = new ECLResultsCache(100_000, 100_000);
+		Date firstHead = new Date(1000);
+		Date secondHead = new Date(2000);
+		BranchVersionECLCache cache = resultsCache.getOrCreateBranchVersionCache("MAIN", firstHead);
+		cache.put("<< 100", false, null, pageOfSize(10), new long[]{100});
+
+		resultsCache.recordSemanticChanges(SemanticChanges.unknown("MAIN", secondHead));
+		resultsCache.recordSemanticChanges(new SemanticChanges("MAIN", firstHead, secondHead));
+
+		assertNull(resultsCache.getOrCreateBranchVersionCache("MAIN", secondHead).get("<< 100", false, null));
+	}
+
+	private long[] hierarchyConceptIds(String ecl) {
+		SExpressionConstraint expressionConstraint = (SExpressionConstraint) ECL_QUERY_BUILDER.createQuery(ecl);
+		long[] conceptIds = BranchVersionECLCache.getHierarchyConceptIds(expressionConstraint);
+		if (conceptIds != null) {
+			// Order is not significant
+			Arrays.sort(conceptIds);
+		}
+		return conceptIds;
+	}
+
+	private CachedConceptIds pageOfSize(int size) {
+		List<Long> ids = LongStream.range(0, size).boxed().collect(Collectors.toList());
+		return CachedConceptIds.of(new PageImpl<>(ids), null);
+	}
+
 }
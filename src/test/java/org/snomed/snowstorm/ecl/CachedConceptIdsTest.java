@@ -0,0 +1,56 @@
+package org.snomed.snowstorm.ecl;
+
+import org.junit.jupiter.api.Test;
+import org.snomed.snowstorm.core.util.SearchAfterPage;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.elasticsearch.core.SearchAfterPageRequest;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachedConceptIdsTest {
+
+	private final CachedConceptIds fullResult = CachedConceptIds.of(new PageImpl<>(List.of(900L, 800L, 700L, 600L, 500L)), null);
+
+	@Test
+	void testFullResult() {
+		Page<Long> page = fullResult.getPage(null);
+		assertEquals(List.of(900L, 800L, 700L, 600L, 500L), page.getContent());
+		assertEquals(5, page.getTotalElements());
+	}
+
+	@Test
+	void testPaging() {
+		Page<Long> page = fullResult.getPage(PageRequest.of(1, 2));
+		assertEquals(List.of(700L, 600L), page.getContent());
+		assertEquals(5, page.getTotalElements());
+
+		assertTrue(fullResult.getPage(PageRequest.of(3, 2)).getContent().isEmpty());
+	}
+
+	@Test
+	void testSearchAfter() {
+		SearchAfterPage<Long> firstPage = (SearchAfterPage<Long>) fullResult.getPage(PageRequest.of(0, 2));
+		assertEquals(List.of(900L, 800L), firstPage.getContent());
+
+		Page<Long> secondPage = fullResult.getPage(SearchAfterPageRequest.of(firstPage.getSearchAfter(), 2, Sort.unsorted()));
+		assertEquals(List.of(700L, 600L), secondPage.getContent());
+	}
+
+	@Test
+	void testFilter() {
+		assertEquals(List.of(800L, 500L), fullResult.getFilteredPage(Set.of(500L, 800L, 123L), null).getContent());
+		assertEquals(List.of(500L), fullResult.getFilteredPage(Set.of(500L, 800L, 123L), PageRequest.of(1, 1)).getContent());
+		assertTrue(fullResult.getFilteredPage(Set.of(123L), null).getContent().isEmpty());
+
+		// Unsorted results keep their order
+		CachedConceptIds unsorted = CachedConceptIds.of(new PageImpl<>(List.of(100L, 300L, 200L)), null);
+		assertEquals(List.of(100L, 200L), unsorted.getFilteredPage(Set.of(200L, 100L), null).getContent());
+	}
+
+}
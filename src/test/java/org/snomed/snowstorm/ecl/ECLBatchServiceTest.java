@@ -0,0 +1,34 @@
+package org.snomed.snowstorm.ecl;
+
+import org.junit.jupiter.api.Test;
+import org.snomed.langauges.ecl.ECLQueryBuilder;
+import org.snomed.snowstorm.ecl.domain.expressionconstraint.SExpressionConstraint;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ECLBatchServiceTest {
+
+	private static final ECLQueryBuilder ECL_QUERY_BUILDER = new ECLQueryBuilder(new SECLObjectFactory());
+
+	@Test
+	void testFindSharedPrefetches() {
+		List<SExpressionConstraint> expressions = Stream.of(
+				"< 404684003 {{ term = \"heart\" }}",
+				"< 404684003 {{ term = \"lung\" }} AND < 64572001",
+				"<< 64572001 {{ C active = true }}",
+				"<< 64572001 OR < 404684003")
+				.map(ecl -> (SExpressionConstraint) ECL_QUERY_BUILDER.createQuery(ecl))
+				.collect(Collectors.toList());
+
+		// The unfiltered selection is shared by the first two, the third is only used once
+		Set<String> shared = ECLBatchService.findSharedPrefetches(expressions);
+		assertEquals(1, shared.size());
+		assertEquals(((SExpressionConstraint) ECL_QUERY_BUILDER.createQuery("< 404684003")).toEclString(), shared.iterator().next());
+	}
+
+}
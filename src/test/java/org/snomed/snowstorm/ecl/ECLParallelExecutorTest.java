@@ -0,0 +1,84 @@
+package org.snomed.snowstorm.ecl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ECLParallelExecutorTest {
+
+	private ECLParallelExecutor executor;
+
+	@BeforeEach
+	void setup() {
+		executor = new ECLParallelExecutor(8, 3);
+		executor.init();
+	}
+
+	@AfterEach
+	void tearDown() {
+		executor.shutdown();
+	}
+
+	@Test
+	void testResultsInOrderWithinPerQueryLimit() {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		List<Callable<Integer>> tasks = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			int value = i;
+			tasks.add(() -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				Thread.sleep(5);
+				running.decrementAndGet();
+				return value;
+			});
+		}
+		List<Integer> results = executor.invokeAll(tasks);
+		for (int i = 0; i < 20; i++) {
+			assertEquals(i, results.get(i));
+		}
+		assertTrue(maxRunning.get() <= 3);
+	}
+
+	@Test
+	void testNestedSectionsRunOnTaskThread() {
+		List<Callable<List<String>>> tasks = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			tasks.add(() -> {
+				String thread = Thread.currentThread().getName();
+				List<Callable<String>> nested = List.of(() -> Thread.currentThread().getName(), () -> Thread.currentThread().getName());
+				List<String> nestedThreads = executor.invokeAll(nested);
+				nestedThreads.forEach(nestedThread -> assertEquals(thread, nestedThread));
+				return nestedThreads;
+			});
+		}
+		assertEquals(4, executor.invokeAll(tasks).size());
+	}
+
+	@Test
+	void testFailureStopsRemainingTasks() {
+		AtomicInteger started = new AtomicInteger();
+		List<Callable<Integer>> tasks = new ArrayList<>();
+		tasks.add(() -> {
+			throw new IllegalArgumentException("Bad ECL");
+		});
+		for (int i = 0; i < 100; i++) {
+			tasks.add(() -> {
+				started.incrementAndGet();
+				Thread.sleep(5);
+				return 1;
+			});
+		}
+		IllegalArgumentException exception = assertThrows(IllegalArgumentException.class, () -> executor.invokeAll(tasks));
+		assertEquals("Bad ECL", exception.getMessage());
+		assertTrue(started.get() < 100);
+	}
+
+}
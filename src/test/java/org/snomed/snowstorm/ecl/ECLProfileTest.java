@@ -0,0 +1,68 @@
+package org.snomed.snowstorm.ecl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ECLProfileTest {
+
+	@Test
+	void testStepsRecordedWithinProfile() {
+		ECLProfile profile = ECLProfile.start("<< 100");
+		try (ECLProfile.Step select = ECLProfile.step("select", "<< 100")) {
+			ECLProfile.recordRequest(50);
+			try (ECLProfile.Step filter = ECLProfile.step("description-filter", null)) {
+				ECLProfile.recordRequest(10);
+				filter.setResults(4);
+			}
+			select.setCache("miss");
+			select.setResults(4);
+		}
+		profile.finish();
+
+		ECLProfile.Step select = profile.getRoot().getChildren().get(0);
+		assertEquals(1, select.getEsRequests());
+		assertEquals(50, select.getDocuments());
+		assertEquals("miss", select.getCache());
+		assertEquals(4L, select.getChildren().get(0).getResults());
+		assertEquals(2, profile.getTotalEsRequests());
+		assertEquals(60, profile.getTotalDocuments());
+		assertNotNull(profile.getRoot().getTimeMillis());
+	}
+
+	@Test
+	void testDocumentsReadFromStreamCounted() {
+		ECLProfile profile = ECLProfile.start("<< 100");
+		List<Long> read = new ArrayList<>();
+		try (ECLProfile.Step select = ECLProfile.step("select", "<< 100")) {
+			ECLProfile.forEachDocument(List.of(1L, 2L, 3L).iterator(), read::add);
+			// A stream which fails part way counts the documents read before the failure
+			assertThrows(IllegalStateException.class, () -> ECLProfile.forEachDocument(List.of(4L, 5L, 6L).iterator(), id -> {
+				if (id == 5L) {
+					throw new IllegalStateException();
+				}
+				read.add(id);
+			}));
+		}
+		profile.finish();
+
+		ECLProfile.Step select = profile.getRoot().getChildren().get(0);
+		assertEquals(List.of(1L, 2L, 3L, 4L), read);
+		assertEquals(2, select.getEsRequests());
+		assertEquals(4, select.getDocuments());
+	}
+
+	@Test
+	void testNothingRecordedWithoutProfile() {
+		try (ECLProfile.Step step = ECLProfile.step("select", "<< 100")) {
+			ECLProfile.recordRequest(50);
+			step.setResults(4);
+			assertNull(step.getResults());
+			assertEquals(0, step.getEsRequests());
+		}
+	}
+
+}
@@ -17,6 +17,7 @@ import org.springframework.data.domain.PageRequest;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -25,6 +26,8 @@ import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Sets.newHashSet;
 import static io.kaicode.elasticvc.domain.Branch.MAIN;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.snomed.snowstorm.core.data.domain.Concepts.REFSET_SAME_AS_ASSOCIATION;
 
 @ExtendWith(SpringExtension.class)
@@ -43,6 +46,9 @@ class ECLQueryServiceFilterTest {
 	@Autowired
 	private ReferenceSetMemberService memberService;
 
+	@Autowired
+	private ECLQueryPlanner eclQueryPlanner;
+
 	protected Collection<String> allConceptIds = new HashSet<>();
 	protected BranchCriteria branchCriteria;
 
@@ -115,6 +121,83 @@ class ECLQueryServiceFilterTest {
 		assertEquals(1, select("< 64572001 |Disease| {{ D active = 0 }}").size());
 	}
 
+	@Test
+	void testPlannedConjunctionsWithFilters() {
+		// The selective constraint is moved first and distributed over the disjunction
+		String ecl = "( < 64572001 |Disease| {{ term = \"heart\" }} OR < 64572001 |Disease| {{ term = wild:\"card*pathy\" }} ) AND 100001";
+		assertEquals(newHashSet("100001"), select(ecl));
+
+		ecl = "< 64572001 |Disease| {{ term = \"heart\" }} AND << 100002";
+		assertEquals(newHashSet("100002"), select(ecl));
+
+		ecl = "< 64572001 |Disease| {{ term = \"heart\" }} AND < 64572001 |Disease| {{ term = \"heart ath\" }}";
+		assertEquals(newHashSet("100001"), select(ecl));
+	}
+
+	@Test
+	void testPlannerReordersConjunction() {
+		ECLQueryPlan plan = eclQueryService.explain("< 64572001 |Disease| {{ term = \"heart\" }} AND 100001", branchCriteria, false);
+		assertEquals("conjunction", plan.getRoot().getType());
+		assertEquals("prefetch most selective first, pass result down as filter", plan.getRoot().getStrategy());
+		ECLQueryPlan.Node first = plan.getRoot().getChildren().get(0);
+		assertEquals("concept", first.getType());
+		assertEquals("100001", first.getEcl());
+		assertEquals(1L, first.getEstimate());
+		assertEquals("exact", first.getEstimateSource());
+		ECLQueryPlan.Node second = plan.getRoot().getChildren().get(1);
+		assertEquals("filtered", second.getType());
+		// Upper bound of 4 or exact count of 2 when cached by another test
+		assertTrue(second.getEstimate() > 1);
+		assertEquals(1, plan.getRewrites().size());
+		assertTrue(plan.getRewrites().get(0).startsWith("Conjunction reordered smallest first: 100001 (~1), "));
+		assertTrue(plan.getEcl().startsWith("100001 AND "));
+
+		// Already smallest first
+		plan = eclQueryService.explain("100001 AND < 64572001 |Disease| {{ term = \"heart\" }}", branchCriteria, false);
+		assertFalse(plan.isRewritten());
+		assertEquals("100001", plan.getRoot().getChildren().get(0).getEcl());
+	}
+
+	@Test
+	void testPlannerDistributesSelectiveConstraintOverDisjunction() {
+		String ecl = "( < 64572001 |Disease| {{ term = \"heart\" }} OR < 64572001 |Disease| {{ term = wild:\"card*pathy\" }} ) AND 100001";
+		ECLQueryPlan plan = eclQueryService.explain(ecl, branchCriteria, false);
+		assertEquals("disjunction", plan.getRoot().getType());
+		assertEquals(2, plan.getRoot().getChildren().size());
+		for (ECLQueryPlan.Node conjunction : plan.getRoot().getChildren()) {
+			assertEquals("conjunction", conjunction.getType());
+			assertEquals("100001", conjunction.getChildren().get(0).getEcl());
+			assertEquals("filtered", conjunction.getChildren().get(1).getType());
+			assertEquals(1L, conjunction.getEstimate());
+		}
+		assertEquals(1, plan.getRewrites().size());
+		assertTrue(plan.getRewrites().get(0).startsWith("Selective constraint 100001 (~1) distributed over disjunction "));
+		assertEquals(newHashSet("100001"), select(ecl));
+	}
+
+	@Test
+	void testPlannerLeavesSingleQueryUnchanged() {
+		ECLQueryPlan plan = eclQueryService.explain("< 64572001 |Disease| AND << 100002", branchCriteria, false);
+		assertFalse(plan.isRewritten());
+		assertEquals("conjunction", plan.getRoot().getType());
+		assertEquals("single semantic index query", plan.getRoot().getStrategy());
+		assertEquals(2, plan.getRoot().getChildren().size());
+		assertEquals("hierarchy", plan.getRoot().getChildren().get(0).getType());
+	}
+
+	@Test
+	void testConjunctionWithFiltersIsIntersection() {
+		// Operands run in the written order, the larger first
+		ReflectionTestUtils.setField(eclQueryPlanner, "enabled", false);
+		try {
+			assertEquals(newHashSet("100002"), select("< 64572001 |Disease| {{ term = \"heart\" }} AND << 100002"));
+			assertEquals(newHashSet("100002"), select("<< 100002 AND < 64572001 |Disease| {{ term = \"heart\" }}"));
+			assertEquals(newHashSet(), select("< 64572001 |Disease| {{ term = \"heart\" }} AND << 100003"));
+		} finally {
+			ReflectionTestUtils.setField(eclQueryPlanner, "enabled", true);
+		}
+	}
+
 	@Test
 	void testLanguageFilters() {
 		// sv language only
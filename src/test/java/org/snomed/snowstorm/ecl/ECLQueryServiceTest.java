@@ -1,18 +1,38 @@
 package org.snomed.snowstorm.ecl;
 
+import io.kaicode.elasticvc.api.BranchCriteria;
+import io.kaicode.elasticvc.api.BranchService;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.snomed.snowstorm.core.data.domain.Concept;
+import org.snomed.snowstorm.core.data.domain.Description;
+import org.snomed.snowstorm.core.data.domain.Relationship;
+import org.snomed.snowstorm.core.data.services.ServiceException;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
+import java.util.Arrays;
 import java.util.stream.Collectors;
 
+import static org.junit.Assert.assertEquals;
+import static org.snomed.snowstorm.core.data.domain.Concepts.CLINICAL_FINDING;
+import static org.snomed.snowstorm.TestConcepts.DISORDER;
+import static org.snomed.snowstorm.core.data.domain.Concepts.ISA;
+
 @ExtendWith(SpringExtension.class)
 @ContextConfiguration(classes = ECLQueryServiceTestConfig.class)
 public class ECLQueryServiceTest extends AbstractECLQueryServiceTest {
 
+	private static final String DISORDER_OF_LUNG = "19829001";
+	private static final String PNEUMONIA = "233604007";
+
+	@Autowired
+	private BranchService branchService;
+
 	@BeforeEach
 	void setup() {
 		branchCriteria = versionControlHelper.getBranchCriteria(MAIN);
@@ -20,4 +40,63 @@ public class ECLQueryServiceTest extends AbstractECLQueryServiceTest {
 				.getContent().stream().map(Object::toString).collect(Collectors.toSet());
 	}
 
+	@Test
+	void secondRunServedFromMemo() throws ServiceException {
+		BranchCriteria memoBranchCriteria = getMemoBranchCriteria();
+		String ecl = "<< " + DISORDER_OF_LUNG + " AND << " + CLINICAL_FINDING;
+
+		ECLProfile first = eclQueryService.profile(ecl, memoBranchCriteria, INFERRED, PageRequest.of(0, 100));
+		assertEquals(Long.valueOf(2), first.getRoot().getResults());
+		assertEquals("miss", first.getRoot().getChildren().get(0).getCache());
+
+		ECLProfile second = eclQueryService.profile(ecl, memoBranchCriteria, INFERRED, PageRequest.of(0, 100));
+		assertEquals(Long.valueOf(2), second.getRoot().getResults());
+		assertEquals("hit", second.getRoot().getChildren().get(0).getCache());
+		assertEquals(0, second.getTotalEsRequests());
+	}
+
+	@Test
+	void subExpressionMemoSharedBetweenExpressions() throws ServiceException {
+		BranchCriteria memoBranchCriteria = getMemoBranchCriteria();
+		String subExpression = "<< " + DISORDER_OF_LUNG;
+
+		// The filtered operand selects all of the sub-expression before applying the filter
+		ECLProfile first = eclQueryService.profile(subExpression + " {{ term = \"pneumonia\" }}", memoBranchCriteria, INFERRED, PageRequest.of(0, 100));
+		assertEquals(Long.valueOf(1), first.getRoot().getResults());
+		assertEquals("miss", findSelectStep(first.getRoot(), subExpression).getCache());
+
+		// A different expression containing the same sub-expression reuses its result
+		ECLProfile second = eclQueryService.profile(subExpression + " {{ term = \"lung\" }}", memoBranchCriteria, INFERRED, PageRequest.of(0, 100));
+		assertEquals(Long.valueOf(1), second.getRoot().getResults());
+		assertEquals("miss", second.getRoot().getChildren().get(0).getCache());
+		assertEquals("hit", findSelectStep(second.getRoot(), subExpression).getCache());
+	}
+
+	// Own branch so that nothing is already cached and the shared test data is unchanged
+	private BranchCriteria getMemoBranchCriteria() throws ServiceException {
+		String path = "MAIN/ECL-MEMO";
+		if (!branchService.exists(path)) {
+			branchService.create(path);
+			conceptService.batchCreate(Arrays.asList(
+					new Concept(DISORDER_OF_LUNG).addDescription(new Description("Disorder of lung")).addRelationship(new Relationship(ISA, DISORDER)),
+					new Concept(PNEUMONIA).addDescription(new Description("Pneumonia")).addRelationship(new Relationship(ISA, DISORDER_OF_LUNG))), path);
+		}
+		return versionControlHelper.getBranchCriteria(path);
+	}
+
+	private ECLProfile.Step findSelectStep(ECLProfile.Step step, String ecl) {
+		if ("select".equals(step.getType()) && ecl.equals(step.getEcl())) {
+			return step;
+		}
+		if (step.getChildren() != null) {
+			for (ECLProfile.Step child : step.getChildren()) {
+				ECLProfile.Step found = findSelectStep(child, ecl);
+				if (found != null) {
+					return found;
+				}
+			}
+		}
+		return null;
+	}
+
 }
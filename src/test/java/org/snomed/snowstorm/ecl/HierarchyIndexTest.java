@@ -0,0 +1,48 @@
+package org.snomed.snowstorm.ecl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HierarchyIndexTest {
+
+	@Test
+	void testHierarchyLookups() {
+		// 100 is the root, 300 has two parents
+		HierarchyIndex index = HierarchyIndex.builder()
+				.add(300, Set.of(200L, 210L), Set.of(200L, 210L, 100L))
+				.add(100, Set.of(), Set.of())
+				.add(200, Set.of(100L), Set.of(100L))
+				.add(210, Set.of(100L), Set.of(100L))
+				.add(400, Set.of(300L), Set.of(300L, 200L, 210L, 100L))
+				.build();
+
+		assertEquals(5, index.getConceptCount());
+		assertArrayEquals(new long[]{400, 300, 210, 200}, index.getDescendants(List.of(100L), false));
+		assertArrayEquals(new long[]{400, 300, 200}, index.getDescendants(List.of(200L), true));
+		assertArrayEquals(new long[]{400, 300}, index.getDescendants(List.of(200L, 210L), false));
+		assertArrayEquals(new long[]{300}, index.getChildren(List.of(200L), false));
+		assertArrayEquals(new long[]{210, 200, 100}, index.getAncestors(List.of(300L), false));
+		assertArrayEquals(new long[]{300, 210, 200}, index.getParents(List.of(300L), true));
+		assertArrayEquals(new long[0], index.getDescendants(List.of(400L), false));
+
+		// Unknown concepts match nothing, not even themselves
+		assertArrayEquals(new long[0], index.getDescendants(List.of(999L), true));
+		assertFalse(index.contains(999L));
+		assertTrue(index.estimateSizeInBytes() > 0);
+	}
+
+	@Test
+	void testMissingAncestorsLeftOut() {
+		// Ancestor 50 has no entry in this form
+		HierarchyIndex index = HierarchyIndex.builder()
+				.add(100, Set.of(50L), Set.of(50L))
+				.build();
+		assertArrayEquals(new long[0], index.getAncestors(List.of(100L), false));
+		assertArrayEquals(new long[0], index.getDescendants(List.of(50L), true));
+	}
+
+}